@@ -0,0 +1,55 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.config;
+
+import org.kpax.winfoom.pac.DefaultPacScriptEvaluator;
+import org.kpax.winfoom.pac.GraalJsPacScriptEvaluator;
+import org.kpax.winfoom.pac.PacScriptEvaluator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Primary;
+
+/**
+ * Select the {@link PacScriptEvaluator} implementation by the {@code pac.engine} system property.
+ * <p>The GraalJS dependency is optional: without it, the Nashorn evaluator is used instead.
+ */
+@Configuration
+public class PacConfiguration {
+
+    private final Logger logger = LoggerFactory.getLogger(PacConfiguration.class);
+
+    /**
+     * The selected evaluator is itself proxySession scoped, hence closed with the proxy session,
+     * not by this bean.
+     */
+    @Lazy
+    @Primary
+    @Bean(destroyMethod = "")
+    public PacScriptEvaluator pacScriptEvaluator(SystemConfig systemConfig,
+                                                 ObjectProvider<DefaultPacScriptEvaluator> nashornEvaluator,
+                                                 ObjectProvider<GraalJsPacScriptEvaluator> graalJsEvaluator) {
+        if (systemConfig.getPacEngine() == SystemConfig.PacEngine.GRAALJS) {
+            GraalJsPacScriptEvaluator pacScriptEvaluator = graalJsEvaluator.getIfAvailable();
+            if (pacScriptEvaluator != null) {
+                return pacScriptEvaluator;
+            }
+            logger.warn("GraalJS not found on the classpath, fall back to Nashorn");
+        }
+        return nashornEvaluator.getObject();
+    }
+
+}
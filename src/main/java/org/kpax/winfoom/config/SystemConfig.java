@@ -47,6 +47,33 @@ public class SystemConfig {
     @Value("${maxConnections.perRoute:20}")
     private Integer maxConnectionsPerRoute;
 
+    /**
+     * Whether to adjust the max polled connections per route to the measured lease wait time and utilisation,
+     * between {@link #maxConnectionsPerRoute} and {@link #maxConnectionsPerRouteUpperBound}.
+     */
+    @Value("${maxConnections.perRoute.adaptive:false}")
+    private boolean maxConnectionsPerRouteAdaptive;
+
+    /**
+     * The upper bound of the max polled connections per route, when adaptive.
+     */
+    @Value("${maxConnections.perRoute.upperBound:100}")
+    private Integer maxConnectionsPerRouteUpperBound;
+
+    /**
+     * The 95th percentile of the lease wait time (milliseconds) above which
+     * the max polled connections per route grows, when adaptive.
+     */
+    @Value("${maxConnections.perRoute.leaseWaitThreshold:50}")
+    private Integer maxConnectionsPerRouteLeaseWaitThreshold;
+
+    /**
+     * The frequency of adjusting the max polled connections per route and
+     * logging the lease wait percentiles (seconds).
+     */
+    @Value("${maxConnections.perRoute.adjustInterval:10}")
+    private Integer maxConnectionsPerRouteAdjustInterval;
+
     /**
      * Connection pool property: max polled connections.
      */
@@ -60,25 +87,219 @@ public class SystemConfig {
     private Integer internalBufferLength;
 
     /**
-     * The frequency of running purge idle
-     * on the connection manager pool (seconds).
+     * The frequency of purging the expired connections
+     * from the connection manager pool (seconds).
      */
     @Value("${connectionManager.clean.interval:30}")
     private Integer connectionManagerCleanInterval;
 
     /**
-     * The connections idle timeout,
-     * to be purged by a scheduled task (seconds).
+     * The connections keep-alive duration when the upstream
+     * does not send a shorter one (seconds).
      */
     @Value("${connectionManager.idleTimeout:30}")
     private Integer connectionManagerIdleTimeout;
 
+    /**
+     * The period of inactivity after which a pooled connection
+     * is checked for staleness before being reused (milliseconds).
+     */
+    @Value("${connectionManager.validateAfterInactivity:2000}")
+    private Integer connectionManagerValidateAfterInactivity;
+
     /**
      * The maximum number of pending connections.
      */
     @Value("${serverSocket.backlog:1000}")
     private Integer serverSocketBacklog;
 
+    /**
+     * Whether to accept the client connections with a non-blocking selector,
+     * dispatching them to a worker thread only after the request head is fully read.
+     */
+    @Value("${serverSocket.nonBlocking:false}")
+    private boolean serverSocketNonBlocking;
+
+    /**
+     * The max length of a request head buffered by the non-blocking acceptor (bytes).
+     * <p>A longer request head is handed over to a worker thread to finish the parsing.
+     */
+    @Value("${serverSocket.requestHead.maxLength:65536}")
+    private Integer requestHeadMaxLength;
+
+    /**
+     * Whether to relay the established tunnels with a small pool of selector threads,
+     * instead of two blocking transfers per tunnel.
+     * <p>It only applies to client connections accepted in non-blocking mode.
+     */
+    @Value("${tunnel.relay.nonBlocking:false}")
+    private boolean tunnelRelayNonBlocking;
+
+    /**
+     * The number of selector threads relaying the tunnels
+     * ({@code 0} means the number of available processors).
+     */
+    @Value("${tunnel.relay.threads:0}")
+    private Integer tunnelRelayThreads;
+
+    /**
+     * Whether to move the tunnel bytes with Linux's {@code splice} (zero-copy),
+     * for CONNECT requests without proxy or through a SOCKS proxy.
+     * <p>It falls back to the stream copy when not available.
+     */
+    @Value("${tunnel.splice:false}")
+    private boolean tunnelSplice;
+
+    /**
+     * The max idle connections kept warm for each upstream HTTP proxy, for CONNECT requests
+     * ({@code 0} means disabled).
+     * <p>A warm connection is TCP connected and, when the proxy requires authentication,
+     * has already received the challenge.
+     */
+    @Value("${tunnel.pool.size:0}")
+    private Integer tunnelPoolSize;
+
+    /**
+     * The max time (seconds) a warm connection is kept idle, below the proxy's keep-alive timeout.
+     */
+    @Value("${tunnel.pool.idleTimeout:20}")
+    private Integer tunnelPoolIdleTimeout;
+
+    /**
+     * The max idle connections kept for each upstream SOCKS server, for CONNECT requests
+     * ({@code 0} means disabled).
+     * <p>An idle connection has already finished the SOCKS greeting and authentication.
+     */
+    @Value("${socks.pool.size:0}")
+    private Integer socksPoolSize;
+
+    /**
+     * The max time (seconds) a SOCKS connection is kept idle.
+     */
+    @Value("${socks.pool.idleTimeout:20}")
+    private Integer socksPoolIdleTimeout;
+
+    /**
+     * Whether to actively probe the upstream proxies seen in the PAC results or the manual configuration.
+     * <p>A proxy failing the probe is skipped (like a blacklisted one) until a probe succeeds again.
+     */
+    @Value("${healthCheck:false}")
+    private boolean healthCheck;
+
+    /**
+     * The interval (seconds) between two probes of the same proxy.
+     */
+    @Value("${healthCheck.interval:10}")
+    private Integer healthCheckInterval;
+
+    /**
+     * The timeout (seconds) of a probe.
+     */
+    @Value("${healthCheck.timeout:3}")
+    private Integer healthCheckTimeout;
+
+    /**
+     * If not empty, the URL requested through the HTTP proxies when probing:
+     * with a CONNECT request for {@code https} URLs, a HEAD request otherwise.
+     * Any HTTP response means the proxy is up. When empty, only the TCP connection is checked.
+     */
+    @Value("${healthCheck.url:}")
+    private String healthCheckUrl;
+
+    /**
+     * The number of the last connection attempts to a proxy the failure rate is computed over (max 64).
+     */
+    @Value("${circuitBreaker.window:10}")
+    private Integer circuitBreakerWindow;
+
+    /**
+     * The failure rate (percentage) over the window from which a proxy is blacklisted.
+     */
+    @Value("${circuitBreaker.failureRateThreshold:50}")
+    private Integer circuitBreakerFailureRateThreshold;
+
+    /**
+     * The maximum multiplier of the blacklist timeout: the timeout doubles each time a proxy
+     * is blacklisted again without a full window of successful connections in between.
+     */
+    @Value("${circuitBreaker.maxBackoffMultiplier:16}")
+    private Integer circuitBreakerMaxBackoffMultiplier;
+
+    /**
+     * The selection policy among the upstream proxies returned by the PAC script:
+     * {@code NONE} (the PAC order), {@code FASTEST} (the lowest average latency first) or
+     * {@code POWER_OF_TWO_CHOICES} (the least loaded of two random proxies first,
+     * the load being the average latency weighted by the in-flight requests).
+     * <p>The PAC order is the tiebreaker.
+     */
+    @Value("${loadBalancing:NONE}")
+    private LoadBalancing loadBalancing;
+
+    /**
+     * Whether to race the connection attempts to the proxies returned by the PAC script:
+     * when a proxy has not connected within {@link #proxyRaceDelay}, the next one is tried in parallel
+     * and the first one connected is used.
+     */
+    @Value("${proxyRace:false}")
+    private boolean proxyRace;
+
+    /**
+     * The delay (milliseconds) before starting the connection attempt to the next proxy, in race mode.
+     */
+    @Value("${proxyRace.delay:250}")
+    private Integer proxyRaceDelay;
+
+    /**
+     * Whether to send the credentials preemptively to the upstream HTTP proxies that have already
+     * accepted them in the current proxy session (only for Basic and Digest authentication).
+     */
+    @Value("${authentication.preemptive:true}")
+    private boolean authenticationPreemptive;
+
+    /**
+     * Whether to keep the client's connection open after a non-CONNECT response,
+     * so that it can be reused for the next requests.
+     */
+    @Value("${clientConnection.keepAlive:true}")
+    private boolean clientConnectionKeepAlive;
+
+    /**
+     * How long a persistent client's connection can be idle between requests (seconds).
+     */
+    @Value("${clientConnection.keepAlive.timeout:15}")
+    private Integer clientConnectionKeepAliveTimeout;
+
+    /**
+     * The threading mode of the proxy executor service:
+     * {@code PLATFORM} (an unbounded pool of platform threads), {@code BOUNDED} (an unbounded pool of platform threads,
+     * with a limited number of client connections handled at the same time) or {@code VIRTUAL}
+     * (a virtual thread per task).
+     * <p>The {@code VIRTUAL} mode falls back to {@code PLATFORM} when the JVM doesn't support virtual threads.
+     */
+    @Value("${executor.mode:PLATFORM}")
+    private ExecutorMode executorMode;
+
+    /**
+     * The max number of client connections handled at the same time in {@code BOUNDED} executor mode.
+     * <p>The proxy's internal tasks, like the second half of a tunnel, are not counted.
+     * <p>{@code executor.maxThreads} is the deprecated name of this setting.
+     */
+    @Value("${executor.maxConnections:${executor.maxThreads:500}}")
+    private Integer executorMaxConnections;
+
+    /**
+     * The max number of client connections waiting to be handled in {@code BOUNDED} executor mode
+     * ({@code 0} means no waiting: the connection is rejected when the max number of connections are handled).
+     */
+    @Value("${executor.queueCapacity:100}")
+    private Integer executorQueueCapacity;
+
+    /**
+     * The frequency of logging the executor statistics (seconds).
+     */
+    @Value("${executor.stats.interval:60}")
+    private Integer executorStatsInterval;
+
     /**
      * The timeout for read/write through socket channel (seconds).
      */
@@ -91,6 +312,43 @@ public class SystemConfig {
     @Value("${socket.connectTimeout:10}")
     private Integer socketConnectTimeout;
 
+    /**
+     * How long the resolved addresses of a host are cached (seconds).
+     */
+    @Value("${dns.cache.ttl:60}")
+    private Integer dnsCacheTtl;
+
+    /**
+     * How long a failed host resolution is cached (seconds).
+     */
+    @Value("${dns.cache.negativeTtl:10}")
+    private Integer dnsCacheNegativeTtl;
+
+    /**
+     * The max number of hosts in the DNS cache.
+     */
+    @Value("${dns.cache.maxSize:1000}")
+    private Integer dnsCacheMaxSize;
+
+    /**
+     * Whether to resolve the host names with the built-in DNS resolver instead of the JDK one.
+     */
+    @Value("${dns.resolver.builtin:false}")
+    private boolean dnsResolverBuiltin;
+
+    /**
+     * The DNS servers used by the built-in resolver, as comma separated {@code host[:port]} entries
+     * (empty means the system's DNS servers).
+     */
+    @Value("${dns.resolver.servers:}")
+    private String dnsResolverServers;
+
+    /**
+     * The built-in resolver's timeout for a DNS query, before trying the next server (milliseconds).
+     */
+    @Value("${dns.resolver.timeout:2000}")
+    private Integer dnsResolverTimeout;
+
     /**
      * Whether to use the environment properties
      * when configuring a HTTP client builder.
@@ -108,6 +366,60 @@ public class SystemConfig {
     @Value("${java.net.preferIPv6Addresses:false}")
     private boolean preferIPv6Addresses;
 
+    /**
+     * The max number of PAC script decisions cached (0 disables the cache).
+     */
+    @Value("${pac.cache.maxSize:1000}")
+    private Integer pacCacheMaxSize;
+
+    /**
+     * How long a PAC script decision is cached (seconds).
+     */
+    @Value("${pac.cache.ttl:300}")
+    private Integer pacCacheTtl;
+
+    /**
+     * How long a PAC script decision is cached when the script depends on the local addresses (seconds).
+     */
+    @Value("${pac.cache.volatileTtl:5}")
+    private Integer pacCacheVolatileTtl;
+
+    /**
+     * The JavaScript engine evaluating the PAC script.
+     */
+    @Value("${pac.engine:NASHORN}")
+    private PacEngine pacEngine;
+
+    /**
+     * The max number of PAC script engines evaluating in parallel (0 means the number of processors).
+     */
+    @Value("${pac.engine.poolSize:0}")
+    private Integer pacEnginePoolSize;
+
+    /**
+     * Whether to compile the PAC script into Java rules, when it only uses the supported subset.
+     */
+    @Value("${pac.compile:false}")
+    private boolean pacCompile;
+
+    /**
+     * Whether to periodically fetch the PAC file again and swap in the new script, if modified.
+     */
+    @Value("${pac.reload:false}")
+    private boolean pacReload;
+
+    /**
+     * The interval (seconds) between two checks of the PAC file for modifications.
+     */
+    @Value("${pac.reload.interval:300}")
+    private Integer pacReloadInterval;
+
+    /**
+     * Whether to keep a copy of the last remote PAC file loaded in the application's home directory.
+     */
+    @Value("${pac.diskCache:false}")
+    private boolean pacDiskCache;
+
     /**
      * The cache2k default capacity.
      */
@@ -118,6 +430,22 @@ public class SystemConfig {
         return maxConnectionsPerRoute;
     }
 
+    public boolean isMaxConnectionsPerRouteAdaptive() {
+        return maxConnectionsPerRouteAdaptive;
+    }
+
+    public Integer getMaxConnectionsPerRouteUpperBound() {
+        return maxConnectionsPerRouteUpperBound;
+    }
+
+    public Integer getMaxConnectionsPerRouteLeaseWaitThreshold() {
+        return maxConnectionsPerRouteLeaseWaitThreshold;
+    }
+
+    public Integer getMaxConnectionsPerRouteAdjustInterval() {
+        return maxConnectionsPerRouteAdjustInterval;
+    }
+
     public Integer getMaxConnections() {
         return maxConnections;
     }
@@ -138,10 +466,118 @@ public class SystemConfig {
         return connectionManagerIdleTimeout;
     }
 
+    public Integer getConnectionManagerValidateAfterInactivity() {
+        return connectionManagerValidateAfterInactivity;
+    }
+
     public Integer getServerSocketBacklog() {
         return serverSocketBacklog;
     }
 
+    public boolean isServerSocketNonBlocking() {
+        return serverSocketNonBlocking;
+    }
+
+    public Integer getRequestHeadMaxLength() {
+        return requestHeadMaxLength;
+    }
+
+    public boolean isTunnelRelayNonBlocking() {
+        return tunnelRelayNonBlocking;
+    }
+
+    public Integer getTunnelRelayThreads() {
+        return tunnelRelayThreads;
+    }
+
+    public boolean isTunnelSplice() {
+        return tunnelSplice;
+    }
+
+    public Integer getTunnelPoolSize() {
+        return tunnelPoolSize;
+    }
+
+    public Integer getTunnelPoolIdleTimeout() {
+        return tunnelPoolIdleTimeout;
+    }
+
+    public Integer getSocksPoolSize() {
+        return socksPoolSize;
+    }
+
+    public Integer getSocksPoolIdleTimeout() {
+        return socksPoolIdleTimeout;
+    }
+
+    public boolean isHealthCheck() {
+        return healthCheck;
+    }
+
+    public Integer getHealthCheckInterval() {
+        return healthCheckInterval;
+    }
+
+    public Integer getHealthCheckTimeout() {
+        return healthCheckTimeout;
+    }
+
+    public String getHealthCheckUrl() {
+        return healthCheckUrl;
+    }
+
+    public Integer getCircuitBreakerWindow() {
+        return circuitBreakerWindow;
+    }
+
+    public Integer getCircuitBreakerFailureRateThreshold() {
+        return circuitBreakerFailureRateThreshold;
+    }
+
+    public Integer getCircuitBreakerMaxBackoffMultiplier() {
+        return circuitBreakerMaxBackoffMultiplier;
+    }
+
+    public LoadBalancing getLoadBalancing() {
+        return loadBalancing;
+    }
+
+    public boolean isProxyRace() {
+        return proxyRace;
+    }
+
+    public Integer getProxyRaceDelay() {
+        return proxyRaceDelay;
+    }
+
+    public boolean isAuthenticationPreemptive() {
+        return authenticationPreemptive;
+    }
+
+    public boolean isClientConnectionKeepAlive() {
+        return clientConnectionKeepAlive;
+    }
+
+    public Integer getClientConnectionKeepAliveTimeout() {
+        return clientConnectionKeepAliveTimeout;
+    }
+
+    public ExecutorMode getExecutorMode() {
+        return executorMode;
+    }
+
+    public Integer getExecutorMaxConnections() {
+        return executorMaxConnections;
+    }
+
+    public Integer getExecutorQueueCapacity() {
+        return executorQueueCapacity;
+    }
+
+    public Integer getExecutorStatsInterval() {
+        return executorStatsInterval;
+    }
+
     public Integer getSocketSoTimeout() {
         return socketSoTimeout;
     }
@@ -150,10 +586,70 @@ public class SystemConfig {
         return socketConnectTimeout;
     }
 
+    public Integer getDnsCacheTtl() {
+        return dnsCacheTtl;
+    }
+
+    public Integer getDnsCacheNegativeTtl() {
+        return dnsCacheNegativeTtl;
+    }
+
+    public Integer getDnsCacheMaxSize() {
+        return dnsCacheMaxSize;
+    }
+
+    public boolean isDnsResolverBuiltin() {
+        return dnsResolverBuiltin;
+    }
+
+    public String getDnsResolverServers() {
+        return dnsResolverServers;
+    }
+
+    public Integer getDnsResolverTimeout() {
+        return dnsResolverTimeout;
+    }
+
     public boolean isPreferIPv6Addresses() {
         return preferIPv6Addresses;
     }
 
+    public Integer getPacCacheMaxSize() {
+        return pacCacheMaxSize;
+    }
+
+    public Integer getPacCacheTtl() {
+        return pacCacheTtl;
+    }
+
+    public Integer getPacCacheVolatileTtl() {
+        return pacCacheVolatileTtl;
+    }
+
+    public PacEngine getPacEngine() {
+        return pacEngine;
+    }
+
+    public Integer getPacEnginePoolSize() {
+        return pacEnginePoolSize;
+    }
+
+    public boolean isPacCompile() {
+        return pacCompile;
+    }
+
+    public boolean isPacReload() {
+        return pacReload;
+    }
+
+    public Integer getPacReloadInterval() {
+        return pacReloadInterval;
+    }
+
+    public boolean isPacDiskCache() {
+        return pacDiskCache;
+    }
+
     public Integer getCacheGlobPatternCapacity() {
         return cacheGlobPatternCapacity;
     }
@@ -169,4 +665,25 @@ public class SystemConfig {
         return socket;
     }
 
+    /**
+     * The threading modes of the proxy executor service.
+     */
+    public enum ExecutorMode {
+        PLATFORM, BOUNDED, VIRTUAL
+    }
+
+    /**
+     * The JavaScript engines able to evaluate the PAC script.
+     */
+    public enum PacEngine {
+        NASHORN, GRAALJS
+    }
+
+    /**
+     * The selection policies among the upstream proxies.
+     */
+    public enum LoadBalancing {
+        NONE, FASTEST, POWER_OF_TWO_CHOICES
+    }
+
 }
@@ -0,0 +1,553 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.apache.commons.io.IOUtils;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.exception.MissingResourceException;
+import org.kpax.winfoom.exception.PacFileException;
+import org.kpax.winfoom.exception.PacScriptException;
+import org.kpax.winfoom.proxy.ProxyExecutorService;
+import org.kpax.winfoom.proxy.ProxyInfo;
+import org.kpax.winfoom.util.HttpUtils;
+import org.kpax.winfoom.util.functional.DoubleExceptionSingletonSupplier;
+import org.kpax.winfoom.util.functional.SingletonSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Evaluate the PAC script with a bounded pool of identically initialised script engines,
+ * each evaluation having an engine for itself.
+ * <p>The engines are created on demand, up to {@code pac.engine.poolSize},
+ * and the time spent waiting for an engine is measured.
+ * <p>When {@code pac.reload} is enabled, the PAC file is periodically fetched again, only if modified,
+ * and the new script is swapped in once its first engine is created: the evaluations in progress
+ * keep the previous script's engines.
+ * <p>When {@code pac.diskCache} is enabled, the last remote PAC file successfully loaded is stored
+ * by {@link PacFileStore}: on startup the script is created from the stored copy right away and revalidated
+ * in the background, and the stored copy is used as long as the PAC server is down.
+ * <p>The subclasses only provide the script engine.
+ */
+@ThreadSafe
+public abstract class AbstractPacScriptEvaluator implements PacScriptEvaluator, AutoCloseable {
+
+    /**
+     * The globals left in place before evaluating the PAC script, the others are deleted.
+     */
+    static final String[] ALLOWED_GLOBALS =
+            ("Object,Function,Array,String,Date,Number,BigInt,"
+                    + "Boolean,RegExp,Math,JSON,NaN,Infinity,undefined,"
+                    + "isNaN,isFinite,parseFloat,parseInt,encodeURI,"
+                    + "encodeURIComponent,decodeURI,decodeURIComponent,eval,"
+                    + "escape,unescape,"
+                    + "Error,EvalError,RangeError,ReferenceError,SyntaxError,"
+                    + "TypeError,URIError,ArrayBuffer,Int8Array,Uint8Array,"
+                    + "Uint8ClampedArray,Int16Array,Uint16Array,Int32Array,"
+                    + "Uint32Array,Float32Array,Float64Array,BigInt64Array,"
+                    + "BigUint64Array,DataView,Map,Set,WeakMap,"
+                    + "WeakSet,Symbol,Reflect,Proxy,Promise,SharedArrayBuffer,"
+                    + "Atomics,console,performance,"
+                    + "arguments").split(",");
+
+    /**
+     * A function deleting the globals not in the array argument.
+     */
+    static final String GLOBALS_CLEANER = "(function(allowed) {\n"
+            + "   var names = Object.getOwnPropertyNames(this);\n"
+            + "   MAIN: for (var i = 0; i < names.length; i++) {\n"
+            + "     for (var j = 0; j < allowed.length; j++) {\n"
+            + "       if (names[i] === allowed[j]) {\n"
+            + "         continue MAIN;\n"
+            + "       }\n"
+            + "     }\n"
+            + "     delete this[names[i]];\n"
+            + "   }\n"
+            + "})";
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    protected SystemConfig systemConfig;
+
+    @Autowired
+    protected DefaultPacHelperMethods pacHelperMethods;
+
+    @Autowired
+    private ProxyExecutorService executorService;
+
+    @Autowired
+    private PacFileStore pacFileStore;
+
+    private final DoubleExceptionSingletonSupplier<PacScript, PacFileException, IOException> pacScriptSupplier =
+            new DoubleExceptionSingletonSupplier<PacScript, PacFileException, IOException>(this::loadPacScript);
+
+    private final AtomicBoolean reloading = new AtomicBoolean();
+
+    /**
+     * Set when the proxy session ends: no PAC script is loaded anymore.
+     */
+    private volatile boolean closed;
+
+    private final LongAdder checkoutCount = new LongAdder();
+
+    private final LongAdder waitCount = new LongAdder();
+
+    private final LongAdder waitTimeNanos = new LongAdder();
+
+    private final AtomicLong maxWaitTimeNanos = new AtomicLong();
+
+    protected final SingletonSupplier<String> helperJSScriptSupplier = new SingletonSupplier<>(() -> {
+        try {
+            return IOUtils.toString(getClass().getClassLoader().
+                    getResourceAsStream("javascript/pacFunctions.js"), StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            throw new MissingResourceException("pacFunctions.js not found in classpath", e);
+        }
+    });
+
+    /**
+     * Load the PAC script file and create the script.
+     *
+     * @return the PAC script.
+     * @throws PacFileException
+     * @throws IOException
+     */
+    private PacScript loadPacScript() throws PacFileException, IOException {
+        Assert.state(!closed, "PAC script evaluator closed");
+        URL url = proxyConfig.getProxyPacFileLocationAsURL();
+        Assert.state(url != null, "No proxy PAC file location found");
+        boolean diskCache = isDiskCacheEnabled(url);
+        if (diskCache) {
+            Optional<PacFile> storedPacFile = pacFileStore.load(url);
+            if (storedPacFile.isPresent()) {
+                logger.info("Get PAC file from the disk cache: {}", storedPacFile.get());
+                try {
+                    PacScript pacScript = createPacScript(storedPacFile.get());
+                    pacScript.revalidate.set(true);
+                    return pacScript;
+                } catch (PacFileException | RuntimeException e) {
+                    logger.warn("The stored PAC file is invalid, ignore it", e);
+                }
+            }
+        }
+        logger.info("Get PAC file from: {}", url);
+        PacFile pacFile = PacFile.load(url, getConnectTimeout(), getReadTimeout());
+        PacScript pacScript = createPacScript(pacFile);
+        if (diskCache) {
+            pacFileStore.save(pacFile);
+        }
+        return pacScript;
+    }
+
+    /**
+     * @param url the PAC file location.
+     * @return {@code true} iff the PAC file is remote and {@code pac.diskCache} is enabled.
+     */
+    private boolean isDiskCacheEnabled(URL url) {
+        return systemConfig.isPacDiskCache() && url.getProtocol().startsWith("http");
+    }
+
+    private int getConnectTimeout() {
+        return (int) TimeUnit.SECONDS.toMillis(systemConfig.getSocketConnectTimeout());
+    }
+
+    private int getReadTimeout() {
+        return (int) TimeUnit.SECONDS.toMillis(systemConfig.getSocketSoTimeout());
+    }
+
+    private PacScript createPacScript(PacFile pacFile) throws PacFileException {
+        String pacSource = pacFile.getContent();
+        logger.info("PAC content: {}", pacSource);
+        PacDecisionCache.Purity purity = PacDecisionCache.detectPurity(pacSource);
+        logger.info("PAC script purity: {}", purity);
+        int poolSize = systemConfig.getPacEnginePoolSize() > 0
+                ? systemConfig.getPacEnginePoolSize() : Runtime.getRuntime().availableProcessors();
+        CompiledPacScript compiledScript = systemConfig.isPacCompile()
+                ? PacScriptCompiler.compile(pacSource).orElse(null) : null;
+        PacScript pacScript = new PacScript(pacFile, poolSize, compiledScript, new PacDecisionCache(purity,
+                systemConfig.getPacCacheMaxSize(),
+                TimeUnit.SECONDS.toMillis(systemConfig.getPacCacheTtl()),
+                TimeUnit.SECONDS.toMillis(systemConfig.getPacCacheVolatileTtl())));
+
+        if (compiledScript != null) {
+            logger.info("PAC script compiled, no script engine needed");
+        } else {
+            // Create the first engine now, to validate the script
+            pacScript.checkin(pacScript.createEngine());
+        }
+        return pacScript;
+    }
+
+    /**
+     * A job that reloads the PAC script on a separate thread, if enabled and not already reloading.
+     */
+    @Scheduled(fixedRateString = "#{systemConfig.pacReloadInterval * 1000}")
+    void scheduleReload() {
+        if (systemConfig.isPacReload() && pacScriptSupplier.hasValue()) {
+            submitReload();
+        }
+    }
+
+    private void submitReload() {
+        if (reloading.compareAndSet(false, true)) {
+            try {
+                executorService.submit(() -> {
+                    try {
+                        reload();
+                    } finally {
+                        reloading.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                logger.debug("Cannot reload the PAC script", e);
+                reloading.set(false);
+            }
+        }
+    }
+
+    /**
+     * Fetch the loaded PAC file again, if modified, then create the new script and swap it in.
+     * <p>On any error the loaded script is kept.
+     *
+     * @return {@code true} iff a new script has been swapped in.
+     */
+    boolean reload() {
+        Optional<PacScript> value = pacScriptSupplier.value();
+        if (!value.isPresent()) {
+            return false;
+        }
+        PacScript current = value.get();
+        PacFile pacFile;
+        try {
+            pacFile = current.pacFile.reload(getConnectTimeout(), getReadTimeout());
+        } catch (IOException e) {
+            logger.warn("Cannot reload the PAC file from " + current.pacFile.getUrl() + ", keep the loaded one", e);
+            return false;
+        }
+        if (pacFile == current.pacFile) {
+            logger.debug("PAC file not modified");
+            return false;
+        }
+        if (pacFile.getContent().equals(current.pacFile.getContent())) {
+            logger.debug("PAC file unchanged");
+            current.pacFile = pacFile;
+            if (isDiskCacheEnabled(pacFile.getUrl())) {
+                pacFileStore.save(pacFile);
+            }
+            return false;
+        }
+        PacScript pacScript;
+        try {
+            pacScript = createPacScript(pacFile);
+        } catch (PacFileException | RuntimeException e) {
+            logger.warn("The reloaded PAC file is invalid, keep the loaded one", e);
+            return false;
+        }
+        if (pacScriptSupplier.replace(current, pacScript)) {
+            logger.info("PAC script reloaded from {}", pacFile.getUrl());
+            if (isDiskCacheEnabled(pacFile.getUrl())) {
+                pacFileStore.save(pacFile);
+            }
+            // The engines in use are closed when released
+            current.close();
+            return true;
+        }
+        // Closed or reloaded meanwhile
+        pacScript.close();
+        return false;
+    }
+
+    /**
+     * Create a script engine having the globals cleaned, the PAC script evaluated and
+     * the helper functions bound to {@link #pacHelperMethods}.
+     *
+     * @param pacSource the PAC script's content.
+     * @return the new script engine.
+     * @throws PacFileException when the PAC script is invalid.
+     */
+    protected abstract PacScriptEngine createScriptEngine(String pacSource) throws PacFileException;
+
+    @Override
+    public List<ProxyInfo> findProxyForURL(URI uri) throws PacScriptException, PacFileException, IOException {
+        String strippedURL = HttpUtils.toStrippedURLStr(uri);
+        while (true) {
+            if (closed) {
+                throw new PacScriptException("PAC script evaluator closed");
+            }
+            PacScript pacScript = pacScriptSupplier.get();
+            if (pacScript.revalidate.compareAndSet(true, false)) {
+                // Loaded from the disk cache
+                submitReload();
+            }
+            List<ProxyInfo> cachedProxies = pacScript.decisionCache.get(strippedURL);
+            if (cachedProxies != null) {
+                logger.debug("Cached PAC decision for {}: {}", strippedURL, cachedProxies);
+                return cachedProxies;
+            }
+            if (pacScript.compiledScript != null) {
+                String proxyLine = pacScript.compiledScript.findProxyForURL(strippedURL, uri.getHost(),
+                        pacHelperMethods);
+                logger.debug("proxyLine [{}]", proxyLine);
+                return pacScript.decisionCache.put(strippedURL, HttpUtils.parsePacProxyLine(proxyLine));
+            }
+            PacScriptEngine scriptEngine;
+            try {
+                scriptEngine = pacScript.checkout();
+            } catch (PacScriptClosedException e) {
+                // Closed by a reload: retry on the new script, unless the session ended meanwhile
+                logger.debug("PAC script closed while waiting for an engine");
+                continue;
+            }
+            try {
+                Object obj = scriptEngine.findProxyForURL(strippedURL, uri.getHost());
+                String proxyLine = Objects.toString(obj, null);
+                logger.debug("proxyLine [{}]", proxyLine);
+                return pacScript.decisionCache.put(strippedURL, HttpUtils.parsePacProxyLine(proxyLine));
+            } catch (Exception ex) {
+                if (ex.getCause() != null) {
+                    if (ex.getCause() instanceof ClassNotFoundException) {
+                        // Is someone trying to break out of the sandbox ?
+                        logger.warn("The downloaded PAC script is attempting to access Java class [{}] " +
+                                "which may be a sign of maliciousness. " +
+                                "You should investigate this with your network administrator.",
+                                ex.getCause().getMessage());
+                    }
+                }
+                // other unforeseen errors
+                throw new PacScriptException("Error when executing PAC script function: " +
+                        scriptEngine.getJsMainFunction(), ex);
+            } finally {
+                pacScript.checkin(scriptEngine);
+            }
+        }
+    }
+
+    /**
+     * @return the number of script engines checked out so far.
+     */
+    public long getEngineCheckoutCount() {
+        return checkoutCount.sum();
+    }
+
+    /**
+     * @return the number of checkouts that had to wait for an engine to be released.
+     */
+    public long getEngineWaitCount() {
+        return waitCount.sum();
+    }
+
+    /**
+     * @return the average wait for an engine, over all the checkouts (milliseconds).
+     */
+    public double getEngineAverageWaitMillis() {
+        long count = checkoutCount.sum();
+        return count > 0 ? waitTimeNanos.sum() / 1e6 / count : 0;
+    }
+
+    /**
+     * @return the longest wait for an engine (milliseconds).
+     */
+    public long getEngineMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitTimeNanos.get());
+    }
+
+    /**
+     * Discard the loaded script, along with its engines and cached decisions.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        logger.debug("PAC engine checkouts: {}, waits: {}, average wait: {} ms, max wait: {} ms",
+                getEngineCheckoutCount(), getEngineWaitCount(), getEngineAverageWaitMillis(), getEngineMaxWaitMillis());
+        Optional<PacScript> pacScript = pacScriptSupplier.value();
+        pacScriptSupplier.reset();
+        pacScript.ifPresent(PacScript::close);
+    }
+
+    /**
+     * A script engine, having the PAC script loaded.
+     * <p>It is never used by more than one thread at a time.
+     */
+    protected interface PacScriptEngine extends AutoCloseable {
+
+        /**
+         * @return {@link PacScriptEvaluator#IPV6_AWARE_PAC_MAIN_FUNCTION} if available,
+         * otherwise {@link PacScriptEvaluator#STANDARD_PAC_MAIN_FUNCTION}.
+         */
+        String getJsMainFunction();
+
+        Object findProxyForURL(String url, String host) throws Exception;
+
+        @Override
+        default void close() {
+        }
+    }
+
+    /**
+     * Put in the idle engines of a closed script, to wake up the threads waiting for an engine.
+     */
+    private static final PacScriptEngine CLOSED_MARKER = new PacScriptEngine() {
+        @Override
+        public String getJsMainFunction() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object findProxyForURL(String url, String host) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    /**
+     * Thrown on checking out an engine of a closed script.
+     */
+    private static class PacScriptClosedException extends Exception {
+        PacScriptClosedException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * A loaded PAC script: its pool of engines, its compiled form if any, and its cached decisions.
+     */
+    private class PacScript implements AutoCloseable {
+        private final String pacSource;
+        private volatile PacFile pacFile;
+        /**
+         * Whether the PAC file needs to be fetched again, when loaded from the disk cache.
+         */
+        private final AtomicBoolean revalidate = new AtomicBoolean();
+        private final int poolSize;
+        private final CompiledPacScript compiledScript;
+        private final PacDecisionCache decisionCache;
+        private final BlockingQueue<PacScriptEngine> idleEngines = new LinkedBlockingQueue<>();
+        private final AtomicInteger engineCount = new AtomicInteger();
+        private volatile boolean closed;
+
+        PacScript(PacFile pacFile, int poolSize, CompiledPacScript compiledScript, PacDecisionCache decisionCache) {
+            this.pacSource = pacFile.getContent();
+            this.pacFile = pacFile;
+            this.poolSize = poolSize;
+            this.compiledScript = compiledScript;
+            this.decisionCache = decisionCache;
+        }
+
+        /**
+         * @return a new engine, or {@code null} if the pool is full.
+         */
+        PacScriptEngine createEngine() throws PacFileException {
+            int count;
+            do {
+                count = engineCount.get();
+                if (count >= poolSize) {
+                    return null;
+                }
+            } while (!engineCount.compareAndSet(count, count + 1));
+            try {
+                PacScriptEngine scriptEngine = createScriptEngine(pacSource);
+                logger.debug("PAC script engine created, total: {}", count + 1);
+                return scriptEngine;
+            } catch (RuntimeException | PacFileException e) {
+                engineCount.decrementAndGet();
+                throw e;
+            }
+        }
+
+        /**
+         * Get an idle engine, create a new one if the pool is not full, otherwise wait for one to be released.
+         *
+         * @throws PacScriptClosedException if the script is closed, even while waiting.
+         */
+        PacScriptEngine checkout() throws PacScriptException, PacFileException, PacScriptClosedException {
+            checkoutCount.increment();
+            PacScriptEngine scriptEngine = idleEngines.poll();
+            if (scriptEngine == null && !closed) {
+                scriptEngine = createEngine();
+            }
+            if (scriptEngine == null) {
+                scriptEngine = waitForEngine();
+            }
+            if (scriptEngine == CLOSED_MARKER) {
+                // Leave it for the other waiting threads
+                idleEngines.offer(CLOSED_MARKER);
+                throw new PacScriptClosedException();
+            }
+            return scriptEngine;
+        }
+
+        private PacScriptEngine waitForEngine() throws PacScriptException {
+            waitCount.increment();
+            long start = System.nanoTime();
+            try {
+                return idleEngines.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PacScriptException("Interrupted while waiting for a PAC script engine", e);
+            } finally {
+                long waitTime = System.nanoTime() - start;
+                waitTimeNanos.add(waitTime);
+                maxWaitTimeNanos.accumulateAndGet(waitTime, Math::max);
+            }
+        }
+
+        void checkin(PacScriptEngine scriptEngine) {
+            synchronized (this) {
+                if (!closed) {
+                    idleEngines.offer(scriptEngine);
+                    return;
+                }
+            }
+            scriptEngine.close();
+        }
+
+        /**
+         * Close the idle engines and wake up the threads waiting for an engine.
+         * The engines in use are closed when checked in.
+         */
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                for (PacScriptEngine scriptEngine; (scriptEngine = idleEngines.poll()) != null; ) {
+                    scriptEngine.close();
+                }
+                idleEngines.offer(CLOSED_MARKER);
+            }
+        }
+    }
+
+}
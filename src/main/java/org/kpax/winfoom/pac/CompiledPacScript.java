@@ -0,0 +1,561 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.kpax.winfoom.annotation.ThreadSafe;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A PAC script compiled by {@link PacScriptCompiler} into a Java rule tree.
+ * <p>The runs of consecutive {@code if (predicate) return "constant";} rules testing the host
+ * the same way are evaluated with a single lookup: a map for {@code dnsDomainIs} and the exact host matches,
+ * a suffix trie for the {@code shExpMatch(host, "*suffix")} rules and a CIDR table for the {@code isInNet} rules.
+ * The other conditions call the {@link PacHelperMethodsNetscape} methods, like the script would.
+ */
+@ThreadSafe
+final class CompiledPacScript {
+
+    private final Statement body;
+
+    CompiledPacScript(final Statement body) {
+        this.body = body;
+    }
+
+    /**
+     * The equivalent of the script's {@code FindProxyForURL(url, host)} function.
+     *
+     * @param url           the stripped URL.
+     * @param host          the host.
+     * @param helperMethods the helper functions.
+     * @return the proxy line.
+     */
+    String findProxyForURL(final String url, final String host, final PacHelperMethodsNetscape helperMethods) {
+        return body.execute(new Evaluation(url, host, helperMethods));
+    }
+
+    /**
+     * The state of one evaluation.
+     */
+    static final class Evaluation {
+        private final String url;
+        private final String host;
+        private final PacHelperMethodsNetscape helperMethods;
+        private String resolvedHost;
+        private boolean resolved;
+
+        Evaluation(final String url, final String host, final PacHelperMethodsNetscape helperMethods) {
+            this.url = url;
+            this.host = host;
+            this.helperMethods = helperMethods;
+        }
+
+        /**
+         * @return the host's address like the script's {@code dnsResolve(host)}, looked up once per evaluation.
+         */
+        String dnsResolveHost() {
+            if (!resolved) {
+                resolvedHost = helperMethods.dnsResolve(host);
+                resolved = true;
+            }
+            // The pacFunctions.js wrapper converts null to 'null'
+            return resolvedHost != null ? resolvedHost : "null";
+        }
+    }
+
+    /**
+     * A function argument or a comparison operand.
+     */
+    static final class Arg {
+        enum Kind {URL, HOST, DNS_RESOLVE_HOST, LITERAL}
+
+        final Kind kind;
+        final String literal;
+        /**
+         * The length of the {@code substring(0, length)} applied on the value, {@code -1} if none.
+         */
+        final int substringLength;
+
+        Arg(final Kind kind, final String literal, final int substringLength) {
+            this.kind = kind;
+            this.literal = literal;
+            this.substringLength = substringLength;
+        }
+
+        String value(final Evaluation evaluation) {
+            String value;
+            switch (kind) {
+                case URL:
+                    value = evaluation.url;
+                    break;
+                case HOST:
+                    value = evaluation.host;
+                    break;
+                case DNS_RESOLVE_HOST:
+                    value = evaluation.dnsResolveHost();
+                    break;
+                default:
+                    value = literal;
+            }
+            if (substringLength >= 0 && value.length() > substringLength) {
+                return value.substring(0, substringLength);
+            }
+            return value;
+        }
+
+        boolean isPlainHost() {
+            return kind == Kind.HOST && substringLength < 0;
+        }
+    }
+
+    interface Condition {
+        boolean test(Evaluation evaluation);
+    }
+
+    interface Statement {
+        /**
+         * @return the returned proxy line, or {@code null} when the statement completes without returning.
+         */
+        String execute(Evaluation evaluation);
+
+        /**
+         * @return whether the statement returns on every path.
+         */
+        boolean alwaysReturns();
+    }
+
+    static final class Or implements Condition {
+        private final Condition[] conditions;
+
+        Or(final List<Condition> conditions) {
+            this.conditions = conditions.toArray(new Condition[0]);
+        }
+
+        List<Condition> getConditions() {
+            return List.of(conditions);
+        }
+
+        @Override
+        public boolean test(final Evaluation evaluation) {
+            for (Condition condition : conditions) {
+                if (condition.test(evaluation)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static final class And implements Condition {
+        private final Condition[] conditions;
+
+        And(final List<Condition> conditions) {
+            this.conditions = conditions.toArray(new Condition[0]);
+        }
+
+        @Override
+        public boolean test(final Evaluation evaluation) {
+            for (Condition condition : conditions) {
+                if (!condition.test(evaluation)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static final class Not implements Condition {
+        private final Condition condition;
+
+        Not(final Condition condition) {
+            this.condition = condition;
+        }
+
+        @Override
+        public boolean test(final Evaluation evaluation) {
+            return !condition.test(evaluation);
+        }
+    }
+
+    /**
+     * A string comparison with {@code ==} or {@code !=}.
+     */
+    static final class Equals implements Condition {
+        final Arg left;
+        final Arg right;
+        final boolean negated;
+
+        Equals(final Arg left, final Arg right, final boolean negated) {
+            this.left = left;
+            this.right = right;
+            this.negated = negated;
+        }
+
+        @Override
+        public boolean test(final Evaluation evaluation) {
+            return left.value(evaluation).equals(right.value(evaluation)) != negated;
+        }
+    }
+
+    /**
+     * A call of a boolean helper function.
+     */
+    static final class HelperCall implements Condition {
+        final String function;
+        final Arg[] args;
+
+        HelperCall(final String function, final List<Arg> args) {
+            this.function = function;
+            this.args = args.toArray(new Arg[0]);
+        }
+
+        @Override
+        public boolean test(final Evaluation evaluation) {
+            PacHelperMethodsNetscape helperMethods = evaluation.helperMethods;
+            switch (function) {
+                case "isPlainHostName":
+                    return helperMethods.isPlainHostName(args[0].value(evaluation));
+                case "dnsDomainIs":
+                    return helperMethods.dnsDomainIs(args[0].value(evaluation), args[1].value(evaluation));
+                case "localHostOrDomainIs":
+                    return helperMethods.localHostOrDomainIs(args[0].value(evaluation), args[1].value(evaluation));
+                case "isResolvable":
+                    return helperMethods.isResolvable(args[0].value(evaluation));
+                case "shExpMatch":
+                    return helperMethods.shExpMatch(args[0].value(evaluation), args[1].value(evaluation));
+                case "isInNet":
+                    return helperMethods.isInNet(args[0].value(evaluation),
+                            args[1].value(evaluation), args[2].value(evaluation));
+                default:
+                    throw new IllegalStateException("Unsupported function " + function);
+            }
+        }
+    }
+
+    static final class Return implements Statement {
+        private final String proxyLine;
+
+        Return(final String proxyLine) {
+            this.proxyLine = proxyLine;
+        }
+
+        @Override
+        public String execute(final Evaluation evaluation) {
+            return proxyLine;
+        }
+
+        @Override
+        public boolean alwaysReturns() {
+            return true;
+        }
+    }
+
+    static final class If implements Statement {
+        private final Condition condition;
+        private final Statement then;
+        private final Statement otherwise;
+
+        If(final Condition condition, final Statement then, final Statement otherwise) {
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        Condition getCondition() {
+            return condition;
+        }
+
+        Statement getThen() {
+            return then;
+        }
+
+        Statement getOtherwise() {
+            return otherwise;
+        }
+
+        @Override
+        public String execute(final Evaluation evaluation) {
+            if (condition.test(evaluation)) {
+                return then.execute(evaluation);
+            }
+            return otherwise != null ? otherwise.execute(evaluation) : null;
+        }
+
+        @Override
+        public boolean alwaysReturns() {
+            return otherwise != null && then.alwaysReturns() && otherwise.alwaysReturns();
+        }
+    }
+
+    static final class Block implements Statement {
+        private final Statement[] statements;
+
+        Block(final List<Statement> statements) {
+            this.statements = statements.toArray(new Statement[0]);
+        }
+
+        @Override
+        public String execute(final Evaluation evaluation) {
+            for (Statement statement : statements) {
+                String proxyLine = statement.execute(evaluation);
+                if (proxyLine != null) {
+                    return proxyLine;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean alwaysReturns() {
+            for (Statement statement : statements) {
+                if (statement.alwaysReturns()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A run of {@code if (predicate) return "constant";} rules, the first matching rule winning.
+     */
+    static final class Lookup implements Statement {
+        private final LookupTable table;
+        private final String[] proxyLines;
+
+        Lookup(final LookupTable table, final List<String> proxyLines) {
+            this.table = table;
+            this.proxyLines = proxyLines.toArray(new String[0]);
+        }
+
+        @Override
+        public String execute(final Evaluation evaluation) {
+            int index = table.find(evaluation);
+            return index >= 0 ? proxyLines[index] : null;
+        }
+
+        @Override
+        public boolean alwaysReturns() {
+            return false;
+        }
+    }
+
+    /**
+     * The rules of a {@link Lookup}, indexed by their position.
+     */
+    interface LookupTable {
+        /**
+         * @return the index of the first matching rule, {@code -1} if none.
+         */
+        int find(Evaluation evaluation);
+    }
+
+    private static int min(final Integer index, final int other) {
+        if (index == null) {
+            return other;
+        }
+        return other < 0 ? index : Math.min(index, other);
+    }
+
+    /**
+     * The {@code dnsDomainIs(host, domain)} rules: the host without its first label,
+     * with or without the leading dot, equals the domain.
+     */
+    static final class DomainTable implements LookupTable {
+        private final Map<String, Integer> domains = new HashMap<>();
+
+        void add(final String domain, final int index) {
+            domains.putIfAbsent(domain, index);
+        }
+
+        @Override
+        public int find(final Evaluation evaluation) {
+            String host = evaluation.host;
+            int dotPos = host.indexOf('.');
+            if (dotPos == -1 || dotPos == host.length() - 1) {
+                return -1;
+            }
+            return min(domains.get(host.substring(dotPos)), min(domains.get(host.substring(dotPos + 1)), -1));
+        }
+    }
+
+    /**
+     * The rules matching the exact host: {@code localHostOrDomainIs}, {@code host == "..."}
+     * and {@code shExpMatch} without wildcard.
+     */
+    static final class HostTable implements LookupTable {
+        private final Map<String, Integer> hosts = new HashMap<>();
+
+        void add(final String host, final int index) {
+            hosts.putIfAbsent(host, index);
+        }
+
+        @Override
+        public int find(final Evaluation evaluation) {
+            return min(hosts.get(evaluation.host), -1);
+        }
+    }
+
+    /**
+     * The {@code shExpMatch(host, "*suffix")} rules, as a trie of the reversed suffixes.
+     */
+    static final class SuffixTrie implements LookupTable {
+        private final Node root = new Node();
+
+        void add(final String suffix, final int index) {
+            Node node = root;
+            for (int i = suffix.length() - 1; i >= 0; i--) {
+                node = node.children.computeIfAbsent(suffix.charAt(i), c -> new Node());
+            }
+            if (node.index < 0) {
+                node.index = index;
+            }
+        }
+
+        @Override
+        public int find(final Evaluation evaluation) {
+            String host = evaluation.host;
+            Node node = root;
+            int index = node.index;
+            for (int i = host.length() - 1; i >= 0 && node != null; i--) {
+                node = node.children.get(host.charAt(i));
+                if (node != null && node.index >= 0) {
+                    index = index < 0 ? node.index : Math.min(index, node.index);
+                }
+            }
+            return index;
+        }
+
+        private static class Node {
+            private final Map<Character, Node> children = new HashMap<>(4);
+            private int index = -1;
+        }
+    }
+
+    /**
+     * The {@code isInNet(host, pattern, mask)} or {@code isInNet(dnsResolve(host), pattern, mask)}
+     * rules on IPv4 networks, grouped by prefix length.
+     * <p>An address not in the dotted-decimal form, as a host could be written, is tested rule by rule
+     * by the helper function.
+     */
+    static final class CidrTable implements LookupTable {
+        private final boolean resolve;
+
+        /**
+         * Key = the prefix length<br>
+         * Value = the rule index by network address
+         */
+        private final Map<Integer, Map<Integer, Integer>> networks = new TreeMap<>();
+
+        /**
+         * The pattern, the mask and the index of each rule, in order.
+         */
+        private final List<Rule> rules = new ArrayList<>();
+
+        CidrTable(final boolean resolve) {
+            this.resolve = resolve;
+        }
+
+        boolean isResolve() {
+            return resolve;
+        }
+
+        /**
+         * @param pattern      a valid IPv4 network address.
+         * @param prefixLength the mask's prefix length.
+         * @param mask         the mask.
+         * @param index        the rule's index.
+         */
+        void add(final String pattern, final int prefixLength, final String mask, final int index) {
+            networks.computeIfAbsent(prefixLength, k -> new HashMap<>()).putIfAbsent(parseIPv4(pattern), index);
+            rules.add(new Rule(pattern, mask, index));
+        }
+
+        @Override
+        public int find(final Evaluation evaluation) {
+            String address = resolve ? evaluation.dnsResolveHost() : evaluation.host;
+            Integer ipv4 = parseIPv4(address);
+            if (ipv4 == null) {
+                if (address.isEmpty() || !Character.isDigit(address.charAt(0))) {
+                    // Not an IP address
+                    return -1;
+                }
+                for (Rule rule : rules) {
+                    if (evaluation.helperMethods.isInNet(address, rule.pattern, rule.mask)) {
+                        return rule.index;
+                    }
+                }
+                return -1;
+            }
+            int index = -1;
+            for (Map.Entry<Integer, Map<Integer, Integer>> entry : networks.entrySet()) {
+                index = min(entry.getValue().get(ipv4 & mask(entry.getKey())), index);
+            }
+            return index;
+        }
+
+        static int mask(final int prefixLength) {
+            return prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+        }
+
+        /**
+         * @param address the address.
+         * @return the IPv4 address as an int, or {@code null} if not in the canonical dotted-decimal form.
+         */
+        static Integer parseIPv4(final String address) {
+            int result = 0;
+            int octet = -1;
+            int dots = 0;
+            for (int i = 0; i < address.length(); i++) {
+                char c = address.charAt(i);
+                if (c >= '0' && c <= '9') {
+                    if (octet == 0) {
+                        // Leading zero, left to the helper function
+                        return null;
+                    }
+                    octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                    if (octet > 255) {
+                        return null;
+                    }
+                } else if (c == '.' && octet >= 0 && dots < 3) {
+                    result = result << 8 | octet;
+                    octet = -1;
+                    dots++;
+                } else {
+                    return null;
+                }
+            }
+            if (octet < 0 || dots != 3) {
+                return null;
+            }
+            return result << 8 | octet;
+        }
+
+        private static class Rule {
+            private final String pattern;
+            private final String mask;
+            private final int index;
+
+            private Rule(final String pattern, final String mask, final int index) {
+                this.pattern = pattern;
+                this.mask = mask;
+                this.index = index;
+            }
+        }
+    }
+
+}
@@ -36,6 +36,7 @@ import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.pac.datetime.PacDateTimeUtils;
 import org.kpax.winfoom.pac.net.IpAddressMatcher;
 import org.kpax.winfoom.pac.net.IpAddresses;
+import org.kpax.winfoom.proxy.DnsCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -71,6 +72,9 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
     @Autowired
     private GlobPatternMatcher globPatternMatcher;
 
+    @Autowired
+    private DnsCache dnsCache;
+
     // *************************************************************
     //  Official helper functions.
     // *************************************************************
@@ -107,7 +111,7 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
     @Override
     public boolean isResolvable(String host) {
         try {
-            return !IpAddresses.resolve(host, isIPv4Predicate).isEmpty();
+            return !IpAddresses.resolve(host, isIPv4Predicate, dnsCache).isEmpty();
         } catch (UnknownHostException ex) {
             logger.debug("Error on resolving host [{}]", host);
             return false;
@@ -117,7 +121,7 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
     @Override
     public String dnsResolve(String host) {
         try {
-            List<InetAddress> addresses = IpAddresses.resolve(host, isIPv4Predicate);
+            List<InetAddress> addresses = IpAddresses.resolve(host, isIPv4Predicate, dnsCache);
             if (!addresses.isEmpty()) {
                 return addresses.get(0).getHostAddress();
             }
@@ -198,7 +202,7 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
     @Override
     public boolean isResolvableEx(String host) {
         try {
-            return !IpAddresses.resolve(host).isEmpty();
+            return !IpAddresses.resolve(host, null, dnsCache).isEmpty();
         } catch (UnknownHostException ex) {
             return false;
         }
@@ -207,7 +211,7 @@ public class DefaultPacHelperMethods implements PacHelperMethodsNetscape, PacHel
     @Override
     public String dnsResolveEx(String host) {
         try {
-            List<InetAddress> addresses = IpAddresses.resolve(host);
+            List<InetAddress> addresses = IpAddresses.resolve(host, null, dnsCache);
             if (!addresses.isEmpty()) {
                 if (addresses.size() > 1) {
                     addresses.sort(IpAddresses.addressComparator(systemConfig.isPreferIPv6Addresses()));
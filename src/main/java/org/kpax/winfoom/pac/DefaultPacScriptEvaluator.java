@@ -30,20 +30,9 @@
  */
 package org.kpax.winfoom.pac;
 
-import org.apache.commons.io.IOUtils;
 import org.kpax.winfoom.annotation.ProxySessionScope;
 import org.kpax.winfoom.annotation.ThreadSafe;
-import org.kpax.winfoom.config.ProxyConfig;
-import org.kpax.winfoom.exception.MissingResourceException;
 import org.kpax.winfoom.exception.PacFileException;
-import org.kpax.winfoom.exception.PacScriptException;
-import org.kpax.winfoom.proxy.ProxyInfo;
-import org.kpax.winfoom.util.HttpUtils;
-import org.kpax.winfoom.util.functional.DoubleExceptionSingletonSupplier;
-import org.kpax.winfoom.util.functional.SingletonSupplier;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
@@ -53,92 +42,26 @@ import javax.script.Invocable;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.URI;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
-import java.util.List;
-import java.util.Objects;
 
+/**
+ * The Nashorn based {@link PacScriptEvaluator}.
+ */
 @ThreadSafe
 @Order(3)
 @Lazy
 @Component
 @ProxySessionScope
-public class DefaultPacScriptEvaluator implements PacScriptEvaluator, AutoCloseable {
-
-    private final Logger logger = LoggerFactory.getLogger(DefaultPacScriptEvaluator.class);
-
-    @Autowired
-    private ProxyConfig proxyConfig;
-
-    @Autowired
-    private DefaultPacHelperMethods pacHelperMethods;
-
-    private final DoubleExceptionSingletonSupplier<PacScriptEngine, PacFileException, IOException> scriptEngineSupplier =
-            new DoubleExceptionSingletonSupplier<PacScriptEngine, PacFileException, IOException>(this::createScriptEngine);
-
-    private final SingletonSupplier<String> helperJSScriptSupplier = new SingletonSupplier<>(() -> {
-        try {
-            return IOUtils.toString(getClass().getClassLoader().
-                    getResourceAsStream("javascript/pacFunctions.js"), StandardCharsets.UTF_8);
-        } catch (Exception e) {
-            throw new MissingResourceException("pacFunctions.js not found in classpath", e);
-        }
-    });
-
-    /**
-     * Load and parse the PAC script file.
-     *
-     * @return the {@link DefaultPacScriptEvaluator} instance.
-     * @throws IOException
-     */
-    private String loadScript() throws IOException {
-        URL url = proxyConfig.getProxyPacFileLocationAsURL();
-        Assert.state(url != null, "No proxy PAC file location found");
-        logger.info("Get PAC file from: {}", url);
-        try (InputStream inputStream = url.openStream()) {
-            String content = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
-            logger.info("PAC content: {}", content);
-            return content;
-        }
-    }
+public class DefaultPacScriptEvaluator extends AbstractPacScriptEvaluator {
 
-    private PacScriptEngine createScriptEngine() throws PacFileException, IOException {
-        String pacSource = loadScript();
+    @Override
+    protected PacScriptEngine createScriptEngine(String pacSource) throws PacFileException {
         try {
             ScriptEngine engine = new ScriptEngineManager().getEngineByName("Nashorn");
             Assert.notNull(engine, "Nashorn engine not found");
 
-            String[] allowedGlobals =
-                    ("Object,Function,Array,String,Date,Number,BigInt,"
-                            + "Boolean,RegExp,Math,JSON,NaN,Infinity,undefined,"
-                            + "isNaN,isFinite,parseFloat,parseInt,encodeURI,"
-                            + "encodeURIComponent,decodeURI,decodeURIComponent,eval,"
-                            + "escape,unescape,"
-                            + "Error,EvalError,RangeError,ReferenceError,SyntaxError,"
-                            + "TypeError,URIError,ArrayBuffer,Int8Array,Uint8Array,"
-                            + "Uint8ClampedArray,Int16Array,Uint16Array,Int32Array,"
-                            + "Uint32Array,Float32Array,Float64Array,BigInt64Array,"
-                            + "BigUint64Array,DataView,Map,Set,WeakMap,"
-                            + "WeakSet,Symbol,Reflect,Proxy,Promise,SharedArrayBuffer,"
-                            + "Atomics,console,performance,"
-                            + "arguments").split(",");
-
-            Object cleaner = engine.eval("(function(allowed) {\n"
-                    + "   var names = Object.getOwnPropertyNames(this);\n"
-                    + "   MAIN: for (var i = 0; i < names.length; i++) {\n"
-                    + "     for (var j = 0; j < allowed.length; j++) {\n"
-                    + "       if (names[i] === allowed[j]) {\n"
-                    + "         continue MAIN;\n"
-                    + "       }\n"
-                    + "     }\n"
-                    + "     delete this[names[i]];\n"
-                    + "   }\n"
-                    + "})");
+            Object cleaner = engine.eval(GLOBALS_CLEANER);
             try {
-                ((Invocable) engine).invokeMethod(cleaner, "call", null, allowedGlobals);
+                ((Invocable) engine).invokeMethod(cleaner, "call", null, (Object) ALLOWED_GLOBALS);
             } catch (NoSuchMethodException ex) {
                 throw new ScriptException(ex);
             }
@@ -151,34 +74,12 @@ public class DefaultPacScriptEvaluator implements PacScriptEvaluator, AutoClosea
                 throw new ScriptException(ex);
             }
 
-            return new PacScriptEngine(engine);
+            return new NashornScriptEngine(engine);
         } catch (ScriptException e) {
             throw new PacFileException(e);
         }
     }
 
-    @Override
-    public List<ProxyInfo> findProxyForURL(URI uri) throws PacScriptException, PacFileException, IOException {
-        PacScriptEngine scriptEngine = scriptEngineSupplier.get();
-        try {
-            Object obj = scriptEngine.findProxyForURL(HttpUtils.toStrippedURLStr(uri), uri.getHost());
-            String proxyLine = Objects.toString(obj, null);
-            logger.debug("proxyLine [{}]", proxyLine);
-            return HttpUtils.parsePacProxyLine(proxyLine);
-        } catch (Exception ex) {
-            if (ex.getCause() != null) {
-                if (ex.getCause() instanceof ClassNotFoundException) {
-                    // Is someone trying to break out of the sandbox ?
-                    logger.warn("The downloaded PAC script is attempting to access Java class [{}] " +
-                            "which may be a sign of maliciousness. " +
-                            "You should investigate this with your network administrator.", ex.getCause().getMessage());
-                }
-            }
-            // other unforeseen errors
-            throw new PacScriptException("Error when executing PAC script function: " + scriptEngine.jsMainFunction, ex);
-        }
-    }
-
     private boolean isJsFunctionAvailable(ScriptEngine eng, String functionName) {
         // We want to test if the function is there, but without actually
         // invoking it.
@@ -192,16 +93,11 @@ public class DefaultPacScriptEvaluator implements PacScriptEvaluator, AutoClosea
         }
     }
 
-    @Override
-    public void close() {
-        scriptEngineSupplier.reset();
-    }
-
-    private class PacScriptEngine {
+    private class NashornScriptEngine implements PacScriptEngine {
         private final Invocable invocable;
         private final String jsMainFunction;
 
-        PacScriptEngine(ScriptEngine scriptEngine) throws PacFileException {
+        NashornScriptEngine(ScriptEngine scriptEngine) throws PacFileException {
             this.invocable = (Invocable) scriptEngine;
             if (isJsFunctionAvailable(scriptEngine, PacScriptEvaluator.IPV6_AWARE_PAC_MAIN_FUNCTION)) {
                 this.jsMainFunction = PacScriptEvaluator.IPV6_AWARE_PAC_MAIN_FUNCTION;
@@ -213,7 +109,13 @@ public class DefaultPacScriptEvaluator implements PacScriptEvaluator, AutoClosea
             }
         }
 
-        Object findProxyForURL(String url, String host) throws ScriptException, NoSuchMethodException {
+        @Override
+        public String getJsMainFunction() {
+            return jsMainFunction;
+        }
+
+        @Override
+        public Object findProxyForURL(String url, String host) throws ScriptException, NoSuchMethodException {
             return invocable.invokeFunction(jsMainFunction, url, host);
         }
     }
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.graalvm.polyglot.*;
+import org.graalvm.polyglot.proxy.ProxyArray;
+import org.graalvm.polyglot.proxy.ProxyExecutable;
+import org.graalvm.polyglot.proxy.ProxyObject;
+import org.kpax.winfoom.annotation.ProxySessionScope;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.exception.PacFileException;
+import org.kpax.winfoom.util.functional.SingletonSupplier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The GraalJS based {@link PacScriptEvaluator}.
+ * <p>Each pooled script engine is a sandboxed {@link Context}: no host access, no class lookup,
+ * no IO, no thread creation. The helper functions reach {@link DefaultPacHelperMethods} through
+ * proxy executables, not through host access.
+ * <p>The contexts share one {@link Engine}, so that the sources are parsed only once.
+ * <p>Registered only when the optional GraalJS dependency is on the classpath.
+ */
+@ThreadSafe
+@Order(3)
+@Lazy
+@Component
+@ProxySessionScope
+@ConditionalOnClass(name = "org.graalvm.polyglot.Context")
+public class GraalJsPacScriptEvaluator extends AbstractPacScriptEvaluator {
+
+    private static final String LANGUAGE_ID = "js";
+
+    private final SingletonSupplier<Engine> engineSupplier = new SingletonSupplier<>(() ->
+            Engine.newBuilder().option("engine.WarnInterpreterOnly", "false").build());
+
+    private final Source cleanerSource = Source.newBuilder(LANGUAGE_ID, GLOBALS_CLEANER, "cleaner.js")
+            .cached(true).buildLiteral();
+
+    private final SingletonSupplier<Source> helperSourceSupplier = new SingletonSupplier<>(() ->
+            Source.newBuilder(LANGUAGE_ID, helperJSScriptSupplier.get(), "pacFunctions.js")
+                    .cached(true).buildLiteral());
+
+    private final SingletonSupplier<ProxyObject> helperMethodsSupplier =
+            new SingletonSupplier<>(this::createHelperMethodsProxy);
+
+    /**
+     * The last PAC source, reused by all the contexts.
+     */
+    private volatile Source pacSource;
+
+    @Override
+    protected PacScriptEngine createScriptEngine(String pacContent) throws PacFileException {
+        Context context = Context.newBuilder(LANGUAGE_ID)
+                .engine(engineSupplier.get())
+                .allowHostAccess(HostAccess.NONE)
+                .allowHostClassLookup(className -> false)
+                .allowPolyglotAccess(PolyglotAccess.NONE)
+                .allowIO(false)
+                .allowCreateThread(false)
+                .allowNativeAccess(false)
+                .build();
+        try {
+            context.eval(cleanerSource).execute(ProxyArray.fromArray((Object[]) ALLOWED_GLOBALS));
+            context.eval(getPacSource(pacContent));
+            context.eval(helperSourceSupplier.get()).execute(helperMethodsSupplier.get());
+            return new GraalJsScriptEngine(context);
+        } catch (PolyglotException e) {
+            context.close();
+            throw new PacFileException(e);
+        } catch (PacFileException e) {
+            context.close();
+            throw e;
+        }
+    }
+
+    private Source getPacSource(String pacContent) {
+        Source source = pacSource;
+        if (source == null || !source.getCharacters().toString().equals(pacContent)) {
+            source = Source.newBuilder(LANGUAGE_ID, pacContent, "pac.js").cached(true).buildLiteral();
+            pacSource = source;
+        }
+        return source;
+    }
+
+    /**
+     * @return an object having a member function for each public method of {@link DefaultPacHelperMethods}.
+     */
+    private ProxyObject createHelperMethodsProxy() {
+        Map<String, Object> members = new HashMap<>();
+        for (Method method : DefaultPacHelperMethods.class.getDeclaredMethods()) {
+            if (Modifier.isPublic(method.getModifiers()) && !Modifier.isStatic(method.getModifiers())) {
+                members.put(method.getName(), (ProxyExecutable) arguments -> invokeHelperMethod(method, arguments));
+            }
+        }
+        return ProxyObject.fromMap(members);
+    }
+
+    private Object invokeHelperMethod(Method method, Value[] arguments) {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        Object[] args = new Object[parameterTypes.length];
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (method.isVarArgs() && i == parameterTypes.length - 1) {
+                Object[] varArgs = new Object[Math.max(0, arguments.length - i)];
+                for (int j = 0; j < varArgs.length; j++) {
+                    varArgs[j] = toJava(arguments[i + j], Object.class);
+                }
+                args[i] = varArgs;
+            } else {
+                args[i] = i < arguments.length ? toJava(arguments[i], parameterTypes[i]) : null;
+            }
+        }
+        try {
+            return method.invoke(pacHelperMethods, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof RuntimeException
+                    ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object toJava(Value value, Class<?> type) {
+        if (value.isNull()) {
+            return null;
+        } else if (type == Object.class) {
+            if (value.isString()) {
+                return value.asString();
+            } else if (value.isNumber()) {
+                return value.fitsInInt() ? (Object) value.asInt() : (Object) value.asDouble();
+            } else if (value.isBoolean()) {
+                return value.asBoolean();
+            }
+            return value.toString();
+        } else if (type == String.class) {
+            return value.isString() ? value.asString() : value.toString();
+        }
+        return value.as(type);
+    }
+
+    /**
+     * Close the contexts' engine too, cancelling the evaluations in progress.
+     */
+    @Override
+    public void close() {
+        super.close();
+        Optional<Engine> engine = engineSupplier.value();
+        engineSupplier.reset();
+        engine.ifPresent(e -> e.close(true));
+        pacSource = null;
+    }
+
+    private class GraalJsScriptEngine implements PacScriptEngine {
+        private final Context context;
+        private final Value mainFunction;
+        private final String jsMainFunction;
+
+        GraalJsScriptEngine(Context context) throws PacFileException {
+            this.context = context;
+            Value bindings = context.getBindings(LANGUAGE_ID);
+            Value ipv6AwareFunction = bindings.getMember(PacScriptEvaluator.IPV6_AWARE_PAC_MAIN_FUNCTION);
+            Value standardFunction = bindings.getMember(PacScriptEvaluator.STANDARD_PAC_MAIN_FUNCTION);
+            if (ipv6AwareFunction != null && ipv6AwareFunction.canExecute()) {
+                this.jsMainFunction = PacScriptEvaluator.IPV6_AWARE_PAC_MAIN_FUNCTION;
+                this.mainFunction = ipv6AwareFunction;
+            } else if (standardFunction != null && standardFunction.canExecute()) {
+                this.jsMainFunction = PacScriptEvaluator.STANDARD_PAC_MAIN_FUNCTION;
+                this.mainFunction = standardFunction;
+            } else {
+                throw new PacFileException("Function " + PacScriptEvaluator.STANDARD_PAC_MAIN_FUNCTION +
+                        " or " + PacScriptEvaluator.IPV6_AWARE_PAC_MAIN_FUNCTION + " not found in PAC Script.");
+            }
+        }
+
+        @Override
+        public String getJsMainFunction() {
+            return jsMainFunction;
+        }
+
+        @Override
+        public Object findProxyForURL(String url, String host) {
+            Value result = mainFunction.execute(url, host);
+            return result.isNull() ? null : result.isString() ? result.asString() : result.toString();
+        }
+
+        @Override
+        public void close() {
+            context.close();
+        }
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.proxy.ProxyInfo;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.regex.Pattern;
+
+/**
+ * The cache of the PAC script's decisions, for one loaded script.
+ * <p>The key is the stripped URL ({@code scheme://host[:port]/}), the only input of the script
+ * besides the host. How long a decision is kept depends on the script's {@link Purity}:
+ * the decisions of a time dependent or random script are never cached.
+ */
+@ThreadSafe
+class PacDecisionCache {
+
+    private static final Pattern TIME_DEPENDENT_PATTERN =
+            Pattern.compile("\\b(timeRange|dateRange|weekdayRange|new\\s+Date|Date\\s*\\.\\s*now"
+                    + "|Math\\s*\\.\\s*random)\\s*\\(");
+
+    private static final Pattern NETWORK_DEPENDENT_PATTERN =
+            Pattern.compile("\\b(myIpAddress|myIpAddressEx)\\s*\\(");
+
+    /**
+     * Key = the stripped URL<br>
+     * Value = the decision
+     */
+    private final Map<String, Decision> decisions = new ConcurrentHashMap<>();
+
+    /**
+     * The decisions in insertion order, for the eviction.
+     * <p>It may also hold decisions already removed or replaced, skipped by the eviction.
+     */
+    private final Queue<Decision> insertionOrder = new LinkedBlockingQueue<>();
+
+    private final int maxSize;
+
+    private final long ttl;
+
+    /**
+     * @param purity      the script's purity.
+     * @param maxSize     the max number of cached decisions ({@code 0} disables the cache).
+     * @param ttl         how long a decision of a pure script is cached (milliseconds).
+     * @param volatileTtl how long a decision of a network dependent script is cached (milliseconds).
+     */
+    PacDecisionCache(final Purity purity, final int maxSize, final long ttl, final long volatileTtl) {
+        this.maxSize = maxSize;
+        if (purity == Purity.TIME_DEPENDENT) {
+            this.ttl = 0;
+        } else if (purity == Purity.NETWORK_DEPENDENT) {
+            this.ttl = Math.min(ttl, volatileTtl);
+        } else {
+            this.ttl = ttl;
+        }
+    }
+
+    /**
+     * @param url the stripped URL.
+     * @return the cached decision, or {@code null} if none or expired.
+     */
+    List<ProxyInfo> get(final String url) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Decision decision = decisions.get(url);
+        if (decision == null) {
+            return null;
+        }
+        if (decision.isExpired()) {
+            decisions.remove(url, decision);
+            return null;
+        }
+        return decision.proxies;
+    }
+
+    /**
+     * Cache the decision, removing the expired ones then the oldest inserted ones if the max size is exceeded.
+     *
+     * @param url     the stripped URL.
+     * @param proxies the decision.
+     * @return the cached (unmodifiable) decision.
+     */
+    List<ProxyInfo> put(final String url, final List<ProxyInfo> proxies) {
+        List<ProxyInfo> unmodifiableProxies = Collections.unmodifiableList(proxies);
+        if (isEnabled()) {
+            Decision decision = new Decision(url, unmodifiableProxies, System.currentTimeMillis() + ttl);
+            decisions.put(url, decision);
+            insertionOrder.offer(decision);
+            if (decisions.size() > maxSize) {
+                decisions.values().removeIf(Decision::isExpired);
+                Decision oldest;
+                while (decisions.size() > maxSize && (oldest = insertionOrder.poll()) != null) {
+                    decisions.remove(oldest.url, oldest);
+                }
+            }
+            if (insertionOrder.size() > 2 * maxSize) {
+                insertionOrder.removeIf(item -> decisions.get(item.url) != item);
+            }
+        }
+        return unmodifiableProxies;
+    }
+
+    boolean isEnabled() {
+        return maxSize > 0 && ttl > 0;
+    }
+
+    int size() {
+        return decisions.size();
+    }
+
+    void clear() {
+        decisions.clear();
+        insertionOrder.clear();
+    }
+
+    /**
+     * Detect the purity of a PAC script by looking for the calls of the helper functions
+     * whose result depends on something else than the URL and the host,
+     * and for the current date ({@code new Date()}, {@code Date.now()}) or {@code Math.random()}.
+     *
+     * @param pacSource the PAC script's content.
+     * @return the script's purity.
+     */
+    static Purity detectPurity(final String pacSource) {
+        if (TIME_DEPENDENT_PATTERN.matcher(pacSource).find()) {
+            return Purity.TIME_DEPENDENT;
+        } else if (NETWORK_DEPENDENT_PATTERN.matcher(pacSource).find()) {
+            return Purity.NETWORK_DEPENDENT;
+        }
+        return Purity.PURE;
+    }
+
+    enum Purity {
+        /**
+         * The decision depends only on the URL and the host
+         * (and the host's resolution, itself cached for {@code dns.cache.ttl}).
+         */
+        PURE,
+        /**
+         * The decision depends on the local addresses, that may change when the network changes.
+         */
+        NETWORK_DEPENDENT,
+        /**
+         * The decision depends on the current date or time, or is random.
+         */
+        TIME_DEPENDENT
+    }
+
+    private static class Decision {
+
+        private final String url;
+
+        private final List<ProxyInfo> proxies;
+
+        private final long expiresAt;
+
+        private Decision(final String url, final List<ProxyInfo> proxies, final long expiresAt) {
+            this.url = url;
+            this.proxies = proxies;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() > expiresAt;
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpHeaders;
+import org.kpax.winfoom.annotation.ThreadSafe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The content of a PAC file, along with the validators needed to fetch it again only when modified:
+ * the {@code ETag} and {@code Last-Modified} headers for HTTP locations, the modification time otherwise.
+ * <p>Immutable.
+ */
+@ThreadSafe
+final class PacFile {
+
+    private final URL url;
+
+    private final String content;
+
+    private final String eTag;
+
+    /**
+     * The modification time (milliseconds since epoch), {@code 0} if unknown.
+     */
+    private final long lastModified;
+
+    PacFile(final URL url, final String content, final String eTag, final long lastModified) {
+        this.url = url;
+        this.content = content;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Fetch a PAC file.
+     *
+     * @param url            the PAC file location.
+     * @param connectTimeout the connect timeout (milliseconds).
+     * @param readTimeout    the read timeout (milliseconds).
+     * @return the PAC file.
+     * @throws IOException
+     */
+    static PacFile load(final URL url, final int connectTimeout, final int readTimeout) throws IOException {
+        return fetch(url, null, connectTimeout, readTimeout);
+    }
+
+    /**
+     * Fetch this PAC file again, conditionally.
+     *
+     * @param connectTimeout the connect timeout (milliseconds).
+     * @param readTimeout    the read timeout (milliseconds).
+     * @return the new PAC file, or this one if not modified.
+     * @throws IOException
+     */
+    PacFile reload(final int connectTimeout, final int readTimeout) throws IOException {
+        return fetch(url, this, connectTimeout, readTimeout);
+    }
+
+    private static PacFile fetch(final URL url, final PacFile previous,
+                                 final int connectTimeout, final int readTimeout) throws IOException {
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        try {
+            if (previous != null) {
+                if (connection instanceof HttpURLConnection) {
+                    if (previous.eTag != null) {
+                        connection.setRequestProperty(HttpHeaders.IF_NONE_MATCH, previous.eTag);
+                    }
+                    if (previous.lastModified > 0) {
+                        connection.setIfModifiedSince(previous.lastModified);
+                    }
+                    if (((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        return previous;
+                    }
+                } else if (previous.lastModified > 0 && connection.getLastModified() == previous.lastModified) {
+                    return previous;
+                }
+            }
+            try (InputStream inputStream = connection.getInputStream()) {
+                String content = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+                return new PacFile(url, content, connection.getHeaderField(HttpHeaders.ETAG),
+                        connection.getLastModified());
+            }
+        } finally {
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) connection).disconnect();
+            }
+        }
+    }
+
+    URL getUrl() {
+        return url;
+    }
+
+    String getContent() {
+        return content;
+    }
+
+    String getETag() {
+        return eTag;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public String toString() {
+        return "PacFile{" +
+                "url=" + url +
+                ", eTag='" + eTag + '\'' +
+                ", lastModified=" + lastModified +
+                '}';
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Optional;
+import java.util.Properties;
+
+/**
+ * Keep a copy of the last PAC file successfully loaded, with its validators and a checksum,
+ * in the application's home directory.
+ * <p>It lets the PAC script be evaluated right away on startup, and when the PAC server is down.
+ */
+@ThreadSafe
+@Component
+class PacFileStore {
+
+    static final String DIR_NAME = "pac";
+
+    static final String CONTENT_FILENAME = "proxy.pac";
+
+    static final String METADATA_FILENAME = "proxy.pac.properties";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private Path directory;
+
+    @Autowired
+    private void setDirectory(@Value("${user.home}") String userHome) {
+        directory = Paths.get(userHome, SystemConfig.APP_HOME_DIR_NAME, DIR_NAME);
+    }
+
+    /**
+     * @param url the PAC file location.
+     * @return the stored PAC file, empty if none is stored for this location or the copy is corrupted.
+     */
+    synchronized Optional<PacFile> load(final URL url) {
+        Path contentPath = directory.resolve(CONTENT_FILENAME);
+        Path metadataPath = directory.resolve(METADATA_FILENAME);
+        if (!Files.exists(contentPath) || !Files.exists(metadataPath)) {
+            return Optional.empty();
+        }
+        try {
+            Properties metadata = new Properties();
+            try (InputStream inputStream = Files.newInputStream(metadataPath)) {
+                metadata.load(inputStream);
+            }
+            if (!url.toString().equals(metadata.getProperty("url"))) {
+                logger.debug("The stored PAC file belongs to another location: {}", metadata.getProperty("url"));
+                return Optional.empty();
+            }
+            String content = new String(Files.readAllBytes(contentPath), StandardCharsets.UTF_8);
+            if (!checksum(content).equals(metadata.getProperty("checksum"))) {
+                logger.warn("The stored PAC file {} is corrupted, ignore it", contentPath);
+                return Optional.empty();
+            }
+            return Optional.of(new PacFile(url, content,
+                    metadata.getProperty("eTag"), Long.parseLong(metadata.getProperty("lastModified", "0"))));
+        } catch (IOException | NumberFormatException e) {
+            logger.warn("Cannot read the stored PAC file " + contentPath, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Replace the stored PAC file.
+     * <p>On error the stored copy is left unchanged or, at worst, ignored by the next {@link #load(URL)}.
+     *
+     * @param pacFile the PAC file.
+     */
+    synchronized void save(final PacFile pacFile) {
+        try {
+            Files.createDirectories(directory);
+            Properties metadata = new Properties();
+            metadata.setProperty("url", pacFile.getUrl().toString());
+            if (pacFile.getETag() != null) {
+                metadata.setProperty("eTag", pacFile.getETag());
+            }
+            metadata.setProperty("lastModified", String.valueOf(pacFile.getLastModified()));
+            metadata.setProperty("checksum", checksum(pacFile.getContent()));
+
+            Path contentTempPath = directory.resolve(CONTENT_FILENAME + ".tmp");
+            Files.write(contentTempPath, pacFile.getContent().getBytes(StandardCharsets.UTF_8));
+            Path metadataTempPath = directory.resolve(METADATA_FILENAME + ".tmp");
+            try (OutputStream outputStream = Files.newOutputStream(metadataTempPath)) {
+                metadata.store(outputStream, "The last PAC file loaded");
+            }
+            move(contentTempPath, directory.resolve(CONTENT_FILENAME));
+            move(metadataTempPath, directory.resolve(METADATA_FILENAME));
+            logger.debug("PAC file stored: {}", pacFile);
+        } catch (IOException e) {
+            logger.warn("Cannot store the PAC file in " + directory, e);
+        }
+    }
+
+    private static void move(final Path source, final Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static String checksum(final String content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+            return String.format("%064x", new BigInteger(1, digest));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,560 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.apache.commons.lang3.StringUtils;
+import org.kpax.winfoom.pac.CompiledPacScript.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Compile a PAC script into a {@link CompiledPacScript}, when it only uses the supported subset of JavaScript:
+ * <ul>
+ * <li>a single {@code FindProxyForURL(url, host)} function, returning a string literal on every path;</li>
+ * <li>{@code if}/{@code else} statements, blocks and {@code return} statements;</li>
+ * <li>the {@code ||}, {@code &&} and {@code !} operators, the {@code ==} and {@code !=} string comparisons;</li>
+ * <li>the {@code isPlainHostName}, {@code dnsDomainIs}, {@code localHostOrDomainIs}, {@code isResolvable},
+ * {@code shExpMatch} and {@code isInNet} functions, having as arguments {@code url}, {@code host},
+ * {@code dnsResolve(host)}, string literals or {@code url.substring(0, n)}.</li>
+ * </ul>
+ * Any other script is left to the script engine.
+ */
+final class PacScriptCompiler {
+
+    private static final Logger logger = LoggerFactory.getLogger(PacScriptCompiler.class);
+
+    /**
+     * Key = the supported boolean helper function<br>
+     * Value = its number of arguments
+     */
+    private static final Map<String, Integer> FUNCTIONS = Map.of(
+            "isPlainHostName", 1,
+            "dnsDomainIs", 2,
+            "localHostOrDomainIs", 2,
+            "isResolvable", 1,
+            "shExpMatch", 2,
+            "isInNet", 3);
+
+    /**
+     * The glob characters translated literally by {@link GlobPatternMatcher#convertGlobToRegEx(String)}.
+     */
+    private static final Pattern LITERAL_GLOB_PATTERN = Pattern.compile("[A-Za-z0-9._-]*");
+
+    private static final Set<String> PUNCTUATORS =
+            Set.of("(", ")", "{", "}", ",", ";", ".", "!", "||", "&&", "==", "===", "!=", "!==");
+
+    private final List<Token> tokens;
+
+    private int position;
+
+    private String urlParam;
+
+    private String hostParam;
+
+    private PacScriptCompiler(final List<Token> tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * @param pacSource the PAC script's content.
+     * @return the compiled script, empty if the script uses something else than the supported subset.
+     */
+    static Optional<CompiledPacScript> compile(final String pacSource) {
+        try {
+            Statement body = new PacScriptCompiler(tokenize(pacSource)).parseScript();
+            if (!body.alwaysReturns()) {
+                throw new UnsupportedScriptException("FindProxyForURL may complete without returning");
+            }
+            return Optional.of(new CompiledPacScript(body));
+        } catch (UnsupportedScriptException e) {
+            logger.info("The PAC script is not compiled, it uses unsupported syntax: {}", e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    // *************************************************************
+    //  Tokenizer
+    // *************************************************************
+
+    private enum TokenType {IDENTIFIER, STRING, NUMBER, PUNCTUATOR, END}
+
+    private static class Token {
+        private final TokenType type;
+        private final String text;
+
+        private Token(final TokenType type, final String text) {
+            this.type = type;
+            this.text = text;
+        }
+
+        private boolean is(final TokenType type, final String text) {
+            return this.type == type && this.text.equals(text);
+        }
+
+        @Override
+        public String toString() {
+            return type == TokenType.STRING ? '"' + text + '"' : text;
+        }
+    }
+
+    private static List<Token> tokenize(final String source) throws UnsupportedScriptException {
+        List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < source.length()) {
+            char c = source.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (source.startsWith("//", i)) {
+                int end = source.indexOf('\n', i);
+                i = end < 0 ? source.length() : end + 1;
+            } else if (source.startsWith("/*", i)) {
+                int end = source.indexOf("*/", i + 2);
+                if (end < 0) {
+                    throw new UnsupportedScriptException("unterminated comment");
+                }
+                i = end + 2;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int start = i;
+                while (i < source.length() && Character.isJavaIdentifierPart(source.charAt(i))) {
+                    i++;
+                }
+                tokens.add(new Token(TokenType.IDENTIFIER, source.substring(start, i)));
+            } else if (c >= '0' && c <= '9') {
+                int start = i;
+                while (i < source.length() && source.charAt(i) >= '0' && source.charAt(i) <= '9') {
+                    i++;
+                }
+                tokens.add(new Token(TokenType.NUMBER, source.substring(start, i)));
+            } else if (c == '"' || c == '\'') {
+                StringBuilder literal = new StringBuilder();
+                for (i++; ; i++) {
+                    if (i >= source.length() || source.charAt(i) == '\n') {
+                        throw new UnsupportedScriptException("unterminated string");
+                    }
+                    char ch = source.charAt(i);
+                    if (ch == c) {
+                        break;
+                    } else if (ch == '\\') {
+                        char escaped = i + 1 < source.length() ? source.charAt(++i) : 0;
+                        if (escaped == '\\' || escaped == '"' || escaped == '\'') {
+                            literal.append(escaped);
+                        } else {
+                            throw new UnsupportedScriptException("escape sequence \\" + escaped);
+                        }
+                    } else {
+                        literal.append(ch);
+                    }
+                }
+                i++;
+                tokens.add(new Token(TokenType.STRING, literal.toString()));
+            } else {
+                String punctuator = null;
+                for (int length = 3; length > 0 && punctuator == null; length--) {
+                    if (i + length <= source.length() && PUNCTUATORS.contains(source.substring(i, i + length))) {
+                        punctuator = source.substring(i, i + length);
+                    }
+                }
+                if (punctuator == null) {
+                    throw new UnsupportedScriptException("character '" + c + "'");
+                }
+                tokens.add(new Token(TokenType.PUNCTUATOR, punctuator));
+                i += punctuator.length();
+            }
+        }
+        tokens.add(new Token(TokenType.END, ""));
+        return tokens;
+    }
+
+    // *************************************************************
+    //  Parser
+    // *************************************************************
+
+    private Token peek() {
+        return tokens.get(position);
+    }
+
+    private Token next() {
+        return tokens.get(position++);
+    }
+
+    private boolean accept(final TokenType type, final String text) {
+        if (peek().is(type, text)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(final TokenType type, final String text) throws UnsupportedScriptException {
+        if (!accept(type, text)) {
+            throw new UnsupportedScriptException("expected '" + text + "' but found '" + peek() + "'");
+        }
+    }
+
+    private String expectIdentifier() throws UnsupportedScriptException {
+        Token token = next();
+        if (token.type != TokenType.IDENTIFIER) {
+            throw new UnsupportedScriptException("expected an identifier but found '" + token + "'");
+        }
+        return token.text;
+    }
+
+    private Statement parseScript() throws UnsupportedScriptException {
+        expect(TokenType.IDENTIFIER, "function");
+        expect(TokenType.IDENTIFIER, PacScriptEvaluator.STANDARD_PAC_MAIN_FUNCTION);
+        expect(TokenType.PUNCTUATOR, "(");
+        urlParam = expectIdentifier();
+        expect(TokenType.PUNCTUATOR, ",");
+        hostParam = expectIdentifier();
+        expect(TokenType.PUNCTUATOR, ")");
+        if (urlParam.equals(hostParam)) {
+            throw new UnsupportedScriptException("duplicate parameter " + urlParam);
+        }
+        Statement body = parseBlock();
+        accept(TokenType.PUNCTUATOR, ";");
+        if (peek().type != TokenType.END) {
+            throw new UnsupportedScriptException("'" + peek() + "' after " +
+                    PacScriptEvaluator.STANDARD_PAC_MAIN_FUNCTION);
+        }
+        return body;
+    }
+
+    private Statement parseBlock() throws UnsupportedScriptException {
+        expect(TokenType.PUNCTUATOR, "{");
+        List<Statement> statements = new ArrayList<>();
+        while (!accept(TokenType.PUNCTUATOR, "}")) {
+            Statement statement = parseStatement();
+            if (statement != null) {
+                statements.add(statement);
+            }
+        }
+        statements = optimize(statements);
+        return statements.size() == 1 ? statements.get(0) : new Block(statements);
+    }
+
+    /**
+     * @return the statement, {@code null} for an empty statement.
+     */
+    private Statement parseStatement() throws UnsupportedScriptException {
+        if (peek().is(TokenType.PUNCTUATOR, "{")) {
+            return parseBlock();
+        } else if (accept(TokenType.PUNCTUATOR, ";")) {
+            return null;
+        } else if (accept(TokenType.IDENTIFIER, "return")) {
+            String proxyLine = parseStringLiteral();
+            accept(TokenType.PUNCTUATOR, ";");
+            return new Return(proxyLine);
+        } else if (accept(TokenType.IDENTIFIER, "if")) {
+            expect(TokenType.PUNCTUATOR, "(");
+            Condition condition = parseOr();
+            expect(TokenType.PUNCTUATOR, ")");
+            Statement then = emptyIfNull(parseStatement());
+            Statement otherwise = accept(TokenType.IDENTIFIER, "else") ? emptyIfNull(parseStatement()) : null;
+            return new If(condition, then, otherwise);
+        }
+        throw new UnsupportedScriptException("statement starting with '" + peek() + "'");
+    }
+
+    private static Statement emptyIfNull(final Statement statement) {
+        return statement != null ? statement : new Block(Collections.emptyList());
+    }
+
+    private String parseStringLiteral() throws UnsupportedScriptException {
+        if (accept(TokenType.PUNCTUATOR, "(")) {
+            String literal = parseStringLiteral();
+            expect(TokenType.PUNCTUATOR, ")");
+            return literal;
+        }
+        Token token = next();
+        if (token.type != TokenType.STRING) {
+            throw new UnsupportedScriptException("return of '" + token + "'");
+        }
+        return token.text;
+    }
+
+    private Condition parseOr() throws UnsupportedScriptException {
+        List<Condition> conditions = new ArrayList<>();
+        do {
+            conditions.add(parseAnd());
+        } while (accept(TokenType.PUNCTUATOR, "||"));
+        return conditions.size() == 1 ? conditions.get(0) : new Or(conditions);
+    }
+
+    private Condition parseAnd() throws UnsupportedScriptException {
+        List<Condition> conditions = new ArrayList<>();
+        do {
+            conditions.add(parseUnary());
+        } while (accept(TokenType.PUNCTUATOR, "&&"));
+        return conditions.size() == 1 ? conditions.get(0) : new And(conditions);
+    }
+
+    private Condition parseUnary() throws UnsupportedScriptException {
+        if (accept(TokenType.PUNCTUATOR, "!")) {
+            return new Not(parseUnary());
+        } else if (accept(TokenType.PUNCTUATOR, "(")) {
+            Condition condition = parseOr();
+            expect(TokenType.PUNCTUATOR, ")");
+            return condition;
+        }
+        Token token = peek();
+        if (token.type == TokenType.IDENTIFIER && FUNCTIONS.containsKey(token.text)) {
+            position++;
+            expect(TokenType.PUNCTUATOR, "(");
+            List<Arg> args = new ArrayList<>();
+            do {
+                args.add(parseArg());
+            } while (accept(TokenType.PUNCTUATOR, ","));
+            expect(TokenType.PUNCTUATOR, ")");
+            if (args.size() != FUNCTIONS.get(token.text)) {
+                throw new UnsupportedScriptException(token.text + " with " + args.size() + " arguments");
+            }
+            return new HelperCall(token.text, args);
+        }
+        Arg left = parseArg();
+        boolean negated;
+        if (accept(TokenType.PUNCTUATOR, "==") || accept(TokenType.PUNCTUATOR, "===")) {
+            negated = false;
+        } else if (accept(TokenType.PUNCTUATOR, "!=") || accept(TokenType.PUNCTUATOR, "!==")) {
+            negated = true;
+        } else {
+            throw new UnsupportedScriptException("condition '" + peek() + "'");
+        }
+        return new Equals(left, parseArg(), negated);
+    }
+
+    private Arg parseArg() throws UnsupportedScriptException {
+        Token token = next();
+        if (token.type == TokenType.STRING) {
+            return new Arg(Arg.Kind.LITERAL, token.text, -1);
+        } else if (token.is(TokenType.IDENTIFIER, "dnsResolve")) {
+            expect(TokenType.PUNCTUATOR, "(");
+            expect(TokenType.IDENTIFIER, hostParam);
+            expect(TokenType.PUNCTUATOR, ")");
+            return new Arg(Arg.Kind.DNS_RESOLVE_HOST, null, -1);
+        } else if (token.is(TokenType.IDENTIFIER, urlParam) || token.is(TokenType.IDENTIFIER, hostParam)) {
+            Arg.Kind kind = token.text.equals(urlParam) ? Arg.Kind.URL : Arg.Kind.HOST;
+            int substringLength = -1;
+            if (accept(TokenType.PUNCTUATOR, ".")) {
+                expect(TokenType.IDENTIFIER, "substring");
+                expect(TokenType.PUNCTUATOR, "(");
+                expect(TokenType.NUMBER, "0");
+                expect(TokenType.PUNCTUATOR, ",");
+                Token length = next();
+                if (length.type != TokenType.NUMBER) {
+                    throw new UnsupportedScriptException("substring end '" + length + "'");
+                }
+                expect(TokenType.PUNCTUATOR, ")");
+                substringLength = Integer.parseInt(length.text);
+            }
+            return new Arg(kind, null, substringLength);
+        }
+        throw new UnsupportedScriptException("expression '" + token + "'");
+    }
+
+    // *************************************************************
+    //  Lookup tables
+    // *************************************************************
+
+    private enum TableKind {DOMAIN, HOST, SUFFIX, CIDR, CIDR_RESOLVE}
+
+    /**
+     * A predicate of a rule, as an entry of a lookup table.
+     */
+    private static class TableEntry {
+        private final TableKind kind;
+        private final String key;
+        private final int prefixLength;
+        private final String mask;
+
+        private TableEntry(final TableKind kind, final String key) {
+            this(kind, key, -1, null);
+        }
+
+        private TableEntry(final TableKind kind, final String key, final int prefixLength, final String mask) {
+            this.kind = kind;
+            this.key = key;
+            this.prefixLength = prefixLength;
+            this.mask = mask;
+        }
+    }
+
+    /**
+     * Replace the runs of {@code if (predicate) return "constant";} rules of the same kind with lookups.
+     */
+    private static List<Statement> optimize(final List<Statement> statements) {
+        List<Statement> optimized = new ArrayList<>();
+        for (int i = 0; i < statements.size(); ) {
+            List<TableEntry> entries = toTableEntries(statements.get(i));
+            TableKind kind = entries != null ? entries.get(0).kind : null;
+            int end = i + 1;
+            while (kind != null && end < statements.size()) {
+                List<TableEntry> nextEntries = toTableEntries(statements.get(end));
+                if (nextEntries == null || nextEntries.get(0).kind != kind) {
+                    break;
+                }
+                end++;
+            }
+            if (end - i < 2) {
+                optimized.add(statements.get(i));
+            } else {
+                optimized.add(createLookup(kind, statements.subList(i, end)));
+            }
+            i = end;
+        }
+        return optimized;
+    }
+
+    private static Lookup createLookup(final TableKind kind, final List<Statement> rules) {
+        LookupTable table;
+        switch (kind) {
+            case DOMAIN:
+                table = new DomainTable();
+                break;
+            case HOST:
+                table = new HostTable();
+                break;
+            case SUFFIX:
+                table = new SuffixTrie();
+                break;
+            default:
+                table = new CidrTable(kind == TableKind.CIDR_RESOLVE);
+        }
+        List<String> proxyLines = new ArrayList<>();
+        for (int index = 0; index < rules.size(); index++) {
+            If rule = (If) rules.get(index);
+            proxyLines.add(rule.getThen().execute(null));
+            for (TableEntry entry : toTableEntries(rule)) {
+                if (table instanceof DomainTable) {
+                    ((DomainTable) table).add(entry.key, index);
+                } else if (table instanceof HostTable) {
+                    ((HostTable) table).add(entry.key, index);
+                } else if (table instanceof SuffixTrie) {
+                    ((SuffixTrie) table).add(entry.key, index);
+                } else {
+                    ((CidrTable) table).add(entry.key, entry.prefixLength, entry.mask, index);
+                }
+            }
+        }
+        logger.debug("Lookup of kind {} for {} rules", kind, rules.size());
+        return new Lookup(table, proxyLines);
+    }
+
+    /**
+     * @return the table entries of a {@code if (predicate) return "constant";} rule,
+     * {@code null} if the statement is not such a rule or its predicates are not all of the same kind.
+     */
+    private static List<TableEntry> toTableEntries(final Statement statement) {
+        if (!(statement instanceof If)) {
+            return null;
+        }
+        If rule = (If) statement;
+        if (rule.getOtherwise() != null || !(rule.getThen() instanceof Return)) {
+            return null;
+        }
+        List<Condition> conditions = rule.getCondition() instanceof Or
+                ? ((Or) rule.getCondition()).getConditions() : Collections.singletonList(rule.getCondition());
+        List<TableEntry> entries = new ArrayList<>();
+        for (Condition condition : conditions) {
+            List<TableEntry> conditionEntries = toTableEntries(condition);
+            if (conditionEntries == null) {
+                return null;
+            }
+            entries.addAll(conditionEntries);
+        }
+        for (TableEntry entry : entries) {
+            if (entry.kind != entries.get(0).kind) {
+                return null;
+            }
+        }
+        return entries;
+    }
+
+    private static List<TableEntry> toTableEntries(final Condition condition) {
+        if (condition instanceof Equals) {
+            Equals equals = (Equals) condition;
+            if (!equals.negated) {
+                if (equals.left.isPlainHost() && equals.right.kind == Arg.Kind.LITERAL) {
+                    return List.of(new TableEntry(TableKind.HOST, equals.right.literal));
+                } else if (equals.right.isPlainHost() && equals.left.kind == Arg.Kind.LITERAL) {
+                    return List.of(new TableEntry(TableKind.HOST, equals.left.literal));
+                }
+            }
+            return null;
+        } else if (!(condition instanceof HelperCall)) {
+            return null;
+        }
+        HelperCall call = (HelperCall) condition;
+        Arg[] args = call.args;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].kind != Arg.Kind.LITERAL) {
+                return null;
+            }
+        }
+        switch (call.function) {
+            case "dnsDomainIs":
+                return args[0].isPlainHost() ? List.of(new TableEntry(TableKind.DOMAIN, args[1].literal)) : null;
+            case "localHostOrDomainIs":
+                if (!args[0].isPlainHost()) {
+                    return null;
+                }
+                List<TableEntry> entries = new ArrayList<>();
+                entries.add(new TableEntry(TableKind.HOST, args[1].literal));
+                Arrays.stream(args[1].literal.split("\\.")).filter(StringUtils::isNotEmpty).findFirst()
+                        .ifPresent(label -> entries.add(new TableEntry(TableKind.HOST, label)));
+                return entries;
+            case "shExpMatch":
+                if (!args[0].isPlainHost()) {
+                    return null;
+                }
+                String glob = args[1].literal;
+                if (LITERAL_GLOB_PATTERN.matcher(glob).matches()) {
+                    return List.of(new TableEntry(TableKind.HOST, glob));
+                } else if (glob.startsWith("*") && LITERAL_GLOB_PATTERN.matcher(glob.substring(1)).matches()) {
+                    return List.of(new TableEntry(TableKind.SUFFIX, glob.substring(1)));
+                }
+                return null;
+            case "isInNet":
+                TableKind kind;
+                if (args[0].isPlainHost()) {
+                    kind = TableKind.CIDR;
+                } else if (args[0].kind == Arg.Kind.DNS_RESOLVE_HOST && args[0].substringLength < 0) {
+                    kind = TableKind.CIDR_RESOLVE;
+                } else {
+                    return null;
+                }
+                Integer network = CidrTable.parseIPv4(args[1].literal);
+                Integer mask = CidrTable.parseIPv4(args[2].literal);
+                if (network == null || mask == null) {
+                    return null;
+                }
+                int prefixLength = Integer.bitCount(mask);
+                if (CidrTable.mask(prefixLength) != mask || (network & mask) != network) {
+                    // Not contiguous or not a network address
+                    return null;
+                }
+                return List.of(new TableEntry(kind, args[1].literal, prefixLength, args[2].literal));
+            default:
+                return null;
+        }
+    }
+
+    private static class UnsupportedScriptException extends Exception {
+        private UnsupportedScriptException(final String message) {
+            super(message);
+        }
+    }
+
+}
@@ -14,6 +14,7 @@ package org.kpax.winfoom.pac.net;
 
 
 import inet.ipaddr.IPAddressString;
+import org.apache.http.conn.DnsResolver;
 import org.kpax.winfoom.exception.NativeException;
 import org.kpax.winfoom.util.functional.SingleExceptionSingletonSupplier;
 import org.slf4j.Logger;
@@ -146,17 +147,28 @@ public class IpAddresses {
         return resolve(host, null);
     }
 
+    /**
+     * @see #resolve(String, Predicate, DnsResolver)
+     */
+    public static List<InetAddress> resolve(String host,
+                                            Predicate<InetAddress> filter)
+            throws UnknownHostException {
+        return resolve(host, filter, null);
+    }
+
     /**
      * If the host is an IP address (IPv4 or IPv6), then the corresponding {@link InetAddress} is returned.
      * Otherwise the host is DNS resolved.
      *
-     * @param host   the IP address or hostname
-     * @param filter for filtering the result
+     * @param host        the IP address or hostname
+     * @param filter      for filtering the result
+     * @param dnsResolver the resolver to use for hostnames, {@code null} for {@link InetAddress#getAllByName(String)}
      * @return the filtered list (possible empty) of {@link InetAddress} instances
      * @throws UnknownHostException if no IP address for the host could be found, or if a scope_id was specified for a global IPv6 address
      */
     public static List<InetAddress> resolve(String host,
-                                            Predicate<InetAddress> filter)
+                                            Predicate<InetAddress> filter,
+                                            DnsResolver dnsResolver)
             throws UnknownHostException {
         if (isValidIPAddress(host)) {
             // No DNS lookup is needed in this case
@@ -167,7 +179,8 @@ public class IpAddresses {
                 return Collections.emptyList();
             }
         } else {
-            InetAddress[] ipAddresses = InetAddress.getAllByName(host);
+            InetAddress[] ipAddresses = dnsResolver != null
+                    ? dnsResolver.resolve(host) : InetAddress.getAllByName(host);
             Stream<InetAddress> addressStream = Arrays.stream(ipAddresses);
             if (filter != null) {
                 addressStream = addressStream.filter(filter);
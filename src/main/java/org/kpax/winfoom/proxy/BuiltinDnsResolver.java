@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.conn.DnsResolver;
+import org.kpax.winfoom.annotation.ProxySessionScope;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.pac.net.IpAddresses;
+import org.kpax.winfoom.util.functional.SingletonSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.naming.Context;
+import javax.naming.directory.InitialDirContext;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+/**
+ * A DNS resolver sending the queries itself, without the JDK resolver.
+ * <p>The A and AAAA queries are sent in parallel over UDP (TCP when the response is truncated);
+ * each query is bounded by {@code dns.resolver.timeout}, after which the next DNS server is tried.
+ * <p>The DNS servers are {@code dns.resolver.servers} when not empty, otherwise the system's ones,
+ * as discovered by the JNDI DNS provider.
+ * <p>The host names without domain are resolved by the JDK resolver,
+ * since they rely on the hosts file or the search domains.
+ */
+@ThreadSafe
+@ProxySessionScope
+@Component
+class BuiltinDnsResolver implements DnsResolver {
+
+    static final int DNS_PORT = 53;
+
+    static final int TYPE_A = 1;
+    static final int TYPE_AAAA = 28;
+    static final int CLASS_IN = 1;
+
+    static final int RCODE_NO_ERROR = 0;
+    static final int RCODE_NAME_ERROR = 3;
+
+    private static final int FLAG_TRUNCATED = 0x0200;
+    private static final int FLAG_RECURSION_DESIRED = 0x0100;
+
+    private static final int MAX_UDP_SIZE = 512;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyExecutorService executorService;
+
+    private final SingletonSupplier<List<InetSocketAddress>> serversSupplier =
+            new SingletonSupplier<>(this::loadServers);
+
+    @Override
+    public InetAddress[] resolve(final String host) throws UnknownHostException {
+        if (IpAddresses.isValidIPAddress(host) || !host.contains(".") || serversSupplier.get().isEmpty()) {
+            return InetAddress.getAllByName(host);
+        }
+        Future<List<InetAddress>> ipv4Future = executorService.submit(() -> query(host, TYPE_A));
+        Future<List<InetAddress>> ipv6Future = executorService.submit(() -> query(host, TYPE_AAAA));
+        List<InetAddress> addresses = new ArrayList<>();
+        UnknownHostException unknownHostException = null;
+        for (Future<List<InetAddress>> future : Arrays.asList(ipv4Future, ipv6Future)) {
+            try {
+                addresses.addAll(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                ipv4Future.cancel(true);
+                ipv6Future.cancel(true);
+                throw new UnknownHostException("Interrupted while resolving " + host);
+            } catch (Exception e) {
+                logger.debug("Error on resolving host {}", host, e);
+                unknownHostException = new UnknownHostException(host + ": " + e.getCause());
+            }
+        }
+        if (addresses.isEmpty()) {
+            throw unknownHostException != null ? unknownHostException : new UnknownHostException(host);
+        }
+        addresses.sort(IpAddresses.addressComparator(systemConfig.isPreferIPv6Addresses()));
+        return addresses.toArray(new InetAddress[0]);
+    }
+
+    /**
+     * Send the query to each DNS server in turn, until one answers.
+     *
+     * @param host the host name.
+     * @param type {@link #TYPE_A} or {@link #TYPE_AAAA}.
+     * @return the addresses (possibly empty).
+     * @throws UnknownHostException if the name does not exist.
+     * @throws IOException          if no DNS server has answered.
+     */
+    List<InetAddress> query(final String host, final int type) throws IOException {
+        IOException lastException = null;
+        for (InetSocketAddress server : serversSupplier.get()) {
+            int id = ThreadLocalRandom.current().nextInt(0x10000);
+            byte[] query = createQuery(id, host, type);
+            try {
+                Response response = parse(sendUdp(server, query, id), id, host);
+                if (response.truncated) {
+                    logger.debug("Truncated response from {}, retry over TCP", server);
+                    response = parse(sendTcp(server, query), id, host);
+                }
+                if (response.rcode == RCODE_NAME_ERROR) {
+                    throw new UnknownHostException(host);
+                } else if (response.rcode != RCODE_NO_ERROR) {
+                    throw new IOException("DNS server " + server + " failed with code " + response.rcode);
+                }
+                return response.addresses;
+            } catch (UnknownHostException e) {
+                throw e;
+            } catch (IOException e) {
+                logger.debug("No answer from DNS server {} for {}, try the next one", server, host, e);
+                lastException = e;
+            }
+        }
+        throw lastException != null ? lastException : new IOException("No DNS server");
+    }
+
+    private byte[] sendUdp(final InetSocketAddress server, final byte[] query, final int id) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(systemConfig.getDnsResolverTimeout());
+            socket.send(new DatagramPacket(query, query.length, server));
+            long deadline = System.currentTimeMillis() + systemConfig.getDnsResolverTimeout();
+            while (true) {
+                DatagramPacket packet = new DatagramPacket(new byte[MAX_UDP_SIZE], MAX_UDP_SIZE);
+                socket.receive(packet);
+                // Ignore the stray datagrams
+                if (packet.getLength() >= 2 && server.equals(packet.getSocketAddress())
+                        && ByteBuffer.wrap(packet.getData()).getShort() == (short) id) {
+                    return Arrays.copyOf(packet.getData(), packet.getLength());
+                }
+                int remaining = (int) (deadline - System.currentTimeMillis());
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("DNS query timed out");
+                }
+                socket.setSoTimeout(remaining);
+            }
+        }
+    }
+
+    private byte[] sendTcp(final InetSocketAddress server, final byte[] query) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(server, systemConfig.getDnsResolverTimeout());
+            socket.setSoTimeout(systemConfig.getDnsResolverTimeout());
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            outputStream.writeShort(query.length);
+            outputStream.write(query);
+            outputStream.flush();
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+            byte[] response = new byte[inputStream.readUnsignedShort()];
+            inputStream.readFully(response);
+            return response;
+        }
+    }
+
+    static byte[] createQuery(final int id, final String host, final int type) throws IOException {
+        ByteArrayOutputStream query = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(query);
+        outputStream.writeShort(id);
+        outputStream.writeShort(FLAG_RECURSION_DESIRED);
+        outputStream.writeShort(1);
+        outputStream.writeShort(0);
+        outputStream.writeShort(0);
+        outputStream.writeShort(0);
+        for (String label : StringUtils.split(host, '.')) {
+            byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+            if (bytes.length > 63) {
+                throw new UnknownHostException("Label too long: " + label);
+            }
+            outputStream.writeByte(bytes.length);
+            outputStream.write(bytes);
+        }
+        outputStream.writeByte(0);
+        outputStream.writeShort(type);
+        outputStream.writeShort(CLASS_IN);
+        return query.toByteArray();
+    }
+
+    /**
+     * Parse the answer section, keeping only the A and AAAA records (the CNAME records are not followed,
+     * the recursive DNS server includes the records of the canonical name).
+     */
+    static Response parse(final byte[] message, final int id, final String host) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(message);
+            if ((buffer.getShort() & 0xFFFF) != id) {
+                throw new IOException("Unexpected DNS response id");
+            }
+            int flags = buffer.getShort() & 0xFFFF;
+            int questionCount = buffer.getShort() & 0xFFFF;
+            int answerCount = buffer.getShort() & 0xFFFF;
+            buffer.getShort();
+            buffer.getShort();
+            Response response = new Response(flags & 0x0F, (flags & FLAG_TRUNCATED) != 0);
+            if (response.truncated) {
+                return response;
+            }
+            for (int i = 0; i < questionCount; i++) {
+                skipName(buffer);
+                buffer.position(buffer.position() + 4);
+            }
+            for (int i = 0; i < answerCount; i++) {
+                skipName(buffer);
+                int type = buffer.getShort() & 0xFFFF;
+                int recordClass = buffer.getShort() & 0xFFFF;
+                buffer.getInt();
+                int length = buffer.getShort() & 0xFFFF;
+                byte[] data = new byte[length];
+                buffer.get(data);
+                if (recordClass == CLASS_IN && ((type == TYPE_A && length == 4) || (type == TYPE_AAAA && length == 16))) {
+                    response.addresses.add(InetAddress.getByAddress(host, data));
+                }
+            }
+            return response;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed DNS response", e);
+        }
+    }
+
+    private static void skipName(final ByteBuffer buffer) {
+        while (true) {
+            int length = buffer.get() & 0xFF;
+            if (length == 0) {
+                return;
+            } else if ((length & 0xC0) == 0xC0) {
+                // Compression pointer, the end of the name
+                buffer.get();
+                return;
+            }
+            buffer.position(buffer.position() + length);
+        }
+    }
+
+    /**
+     * @return the configured DNS servers, otherwise the system's ones.
+     */
+    private List<InetSocketAddress> loadServers() {
+        List<String> servers;
+        if (StringUtils.isNotBlank(systemConfig.getDnsResolverServers())) {
+            servers = Arrays.asList(StringUtils.split(systemConfig.getDnsResolverServers(), ", "));
+        } else {
+            servers = new ArrayList<>();
+            try {
+                Hashtable<String, String> env = new Hashtable<>();
+                env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+                Object providerUrl = new InitialDirContext(env).getEnvironment().get(Context.PROVIDER_URL);
+                if (providerUrl != null) {
+                    for (String url : StringUtils.split(providerUrl.toString(), ' ')) {
+                        servers.add(StringUtils.removeStart(url, "dns://"));
+                    }
+                }
+            } catch (Exception e) {
+                logger.warn("Cannot get the system's DNS servers", e);
+            }
+        }
+        List<InetSocketAddress> serverAddresses = servers.stream().map(this::toServerAddress)
+                .filter(Objects::nonNull).collect(Collectors.toList());
+        logger.info("DNS servers: {}", serverAddresses);
+        return serverAddresses;
+    }
+
+    /**
+     * @param server {@code host}, {@code host:port} or {@code [IPv6]:port}.
+     */
+    private InetSocketAddress toServerAddress(final String server) {
+        try {
+            URI uri = new URI("dns://" + server);
+            return new InetSocketAddress(InetAddress.getByName(uri.getHost()),
+                    uri.getPort() > 0 ? uri.getPort() : DNS_PORT);
+        } catch (Exception e) {
+            logger.warn("Invalid DNS server: {}", server, e);
+            return null;
+        }
+    }
+
+    static class Response {
+
+        private final int rcode;
+
+        private final boolean truncated;
+
+        private final List<InetAddress> addresses = new ArrayList<>();
+
+        private Response(final int rcode, final boolean truncated) {
+            this.rcode = rcode;
+            this.truncated = truncated;
+        }
+
+        int getRcode() {
+            return rcode;
+        }
+
+        List<InetAddress> getAddresses() {
+            return addresses;
+        }
+    }
+
+}
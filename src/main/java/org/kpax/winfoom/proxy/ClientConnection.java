@@ -28,6 +28,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.Assert;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -93,6 +94,21 @@ final class ClientConnection implements StreamSource, AutoCloseable {
 
     private boolean prepareAttempted;
 
+    /**
+     * Whether the connection has been handed over to the {@link TunnelRelay}.
+     */
+    private boolean relayed;
+
+    /**
+     * Whether the connection can be reused for the next request.
+     */
+    private boolean keepAlive;
+
+    /**
+     * When the response started to be written, as given by {@link System#nanoTime()}, {@code 0} if not yet.
+     */
+    private long responseStartTime;
+
     /**
      * Constructor.<br>
      * Has the responsibility of parsing the request.
@@ -106,23 +122,72 @@ final class ClientConnection implements StreamSource, AutoCloseable {
     ClientConnection(final Socket socket,
                      final ProxyConfig proxyConfig,
                      final SystemConfig systemConfig) throws IOException, HttpException {
+        this(socket, socket.getInputStream(), proxyConfig, systemConfig);
+    }
+
+    /**
+     * Constructor.<br>
+     * Has the responsibility of parsing the request, read from the provided input stream.
+     *
+     * @param socket       the underlying socket.
+     * @param inputStream  the stream to read the request from (usually the socket's input stream,
+     *                     possibly prefixed by already buffered bytes).
+     * @param proxyConfig
+     * @param systemConfig
+     * @throws IOException
+     * @throws HttpException
+     */
+    ClientConnection(final Socket socket,
+                     final InputStream inputStream,
+                     final ProxyConfig proxyConfig,
+                     final SystemConfig systemConfig) throws IOException, HttpException {
+        this(socket, inputStream, null, proxyConfig, systemConfig);
+    }
+
+    /**
+     * Constructor.<br>
+     * Has the responsibility of parsing the next request of a persistent connection,
+     * read from the session input buffer of the previous one.
+     *
+     * @param previous     the previous connection on the same socket.
+     * @param proxyConfig
+     * @param systemConfig
+     * @throws IOException
+     * @throws HttpException
+     */
+    ClientConnection(final ClientConnection previous,
+                     final ProxyConfig proxyConfig,
+                     final SystemConfig systemConfig) throws IOException, HttpException {
+        this(previous.socket, previous.inputStream, previous.sessionInputBuffer, proxyConfig, systemConfig);
+    }
+
+    private ClientConnection(final Socket socket,
+                             final InputStream inputStream,
+                             final SessionInputBufferImpl sessionInputBuffer,
+                             final ProxyConfig proxyConfig,
+                             final SystemConfig systemConfig) throws IOException, HttpException {
         this.socket = socket;
         this.proxyConfig = proxyConfig;
         this.systemConfig = systemConfig;
 
         // Set the streams
-        this.inputStream = socket.getInputStream();
+        this.inputStream = inputStream;
         this.outputStream = socket.getOutputStream();
 
         // Parse the request
         try {
-            this.sessionInputBuffer = new SessionInputBufferImpl(
-                    new HttpTransportMetricsImpl(),
-                    InputOutputs.DEFAULT_BUFFER_SIZE,
-                    InputOutputs.DEFAULT_BUFFER_SIZE,
-                    MessageConstraints.DEFAULT,
-                    StandardCharsets.UTF_8.newDecoder());
-            this.sessionInputBuffer.bind(this.inputStream);
+            if (sessionInputBuffer != null) {
+                // Keep the bytes already buffered
+                this.sessionInputBuffer = sessionInputBuffer;
+            } else {
+                this.sessionInputBuffer = new SessionInputBufferImpl(
+                        new HttpTransportMetricsImpl(),
+                        InputOutputs.DEFAULT_BUFFER_SIZE,
+                        InputOutputs.DEFAULT_BUFFER_SIZE,
+                        MessageConstraints.DEFAULT,
+                        StandardCharsets.UTF_8.newDecoder());
+                this.sessionInputBuffer.bind(this.inputStream);
+            }
             this.request = new DefaultHttpRequestParser(this.sessionInputBuffer).parse();
             try {
                 this.requestUri = HttpUtils.parseRequestUri(this.request.getRequestLine());
@@ -240,6 +305,14 @@ final class ClientConnection implements StreamSource, AutoCloseable {
         return prepareAttempted;
     }
 
+    /**
+     * @return when the response (other than an error response) started to be written,
+     * as given by {@link System#nanoTime()}, {@code 0} if not yet.
+     */
+    long getResponseStartTime() {
+        return responseStartTime;
+    }
+
     /**
      * @return the request URI extracted from the request line.
      */
@@ -254,6 +327,9 @@ final class ClientConnection implements StreamSource, AutoCloseable {
      * @throws IOException
      */
     void write(Object obj) throws IOException {
+        if (responseStartTime == 0) {
+            responseStartTime = System.nanoTime();
+        }
         outputStream.write(ObjectFormat.toCrlf(obj));
     }
 
@@ -286,14 +362,31 @@ final class ClientConnection implements StreamSource, AutoCloseable {
      */
     void writeErrorResponse(ProtocolVersion protocolVersion, int statusCode, String reasonPhrase) {
         try {
-            write(HttpUtils.toStatusLine(protocolVersion, statusCode, reasonPhrase));
-            write(HttpUtils.createHttpHeader(HTTP.DATE_HEADER, new HeaderDateGenerator().getCurrentDate()));
-            writeln();
+            writeErrorResponse(outputStream, protocolVersion, statusCode, reasonPhrase);
         } catch (Exception ex) {
             logger.debug("Error on writing error response", ex);
         }
     }
 
+    /**
+     * Write a simple response with only the status line and date header, followed by an empty line,
+     * without any {@link ClientConnection} instance (for example, when the request has not been parsed yet).
+     *
+     * @param outputStream    the client's output stream.
+     * @param protocolVersion the HTTP version.
+     * @param statusCode      the status code.
+     * @param reasonPhrase    the reason phrase.
+     * @throws IOException
+     */
+    static void writeErrorResponse(OutputStream outputStream, ProtocolVersion protocolVersion,
+                                   int statusCode, String reasonPhrase) throws IOException {
+        outputStream.write(ObjectFormat.toCrlf(HttpUtils.toStatusLine(protocolVersion, statusCode, reasonPhrase)));
+        outputStream.write(ObjectFormat.toCrlf(
+                HttpUtils.createHttpHeader(HTTP.DATE_HEADER, new HeaderDateGenerator().getCurrentDate())));
+        outputStream.write(ObjectFormat.CRLF.getBytes());
+        outputStream.flush();
+    }
+
     /**
      * Write a simple response with only the status line and date header, followed by an empty line.
      *
@@ -333,6 +426,76 @@ final class ClientConnection implements StreamSource, AutoCloseable {
         EntityUtils.consume(entity);
     }
 
+    /**
+     * Read the client's bytes already received but not consumed yet, without blocking.
+     *
+     * @return the pending bytes (possibly empty).
+     * @throws IOException
+     */
+    byte[] readPendingInput() throws IOException {
+        ByteArrayOutputStream pendingInput = new ByteArrayOutputStream();
+        byte[] buffer = new byte[InputOutputs.DEFAULT_BUFFER_SIZE];
+        int length;
+        while ((length = sessionInputBuffer.length()) > 0) {
+            pendingInput.write(buffer, 0,
+                    sessionInputBuffer.read(buffer, 0, Math.min(length, buffer.length)));
+        }
+        while ((length = inputStream.available()) > 0) {
+            int read = inputStream.read(buffer, 0, Math.min(length, buffer.length));
+            if (read < 0) {
+                break;
+            }
+            pendingInput.write(buffer, 0, read);
+        }
+        return pendingInput.toByteArray();
+    }
+
+    /**
+     * Check whether the client asked for a persistent connection:
+     * HTTP/1.1 unless {@code close} is present, HTTP/1.0 only with {@code keep-alive}
+     * (in either {@code Connection} or {@code Proxy-Connection} header).
+     *
+     * @return {@code true} iff the client can reuse the connection.
+     */
+    boolean isKeepAliveRequested() {
+        boolean keepAliveToken = false;
+        for (Header header : request.getAllHeaders()) {
+            if (HTTP.CONN_DIRECTIVE.equalsIgnoreCase(header.getName())
+                    || HttpUtils.PROXY_CONNECTION.equalsIgnoreCase(header.getName())) {
+                for (String token : header.getValue().split(",")) {
+                    if (HTTP.CONN_CLOSE.equalsIgnoreCase(token.trim())) {
+                        return false;
+                    }
+                    keepAliveToken |= HTTP.CONN_KEEP_ALIVE.equalsIgnoreCase(token.trim());
+                }
+            }
+        }
+        return keepAliveToken || getRequestLine().getProtocolVersion().greaterEquals(HttpVersion.HTTP_1_1);
+    }
+
+    /**
+     * @return {@code true} iff the request's body, if any, has been entirely read from the client.
+     */
+    boolean isRequestConsumed() {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            return entity instanceof RepeatableHttpEntity && ((RepeatableHttpEntity) entity).isConsumed();
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true} iff the response has been entirely written with a proper framing,
+     * so the connection can be reused for the next request.
+     */
+    boolean isKeepAlive() {
+        return keepAlive && !relayed;
+    }
+
+    void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
     boolean isConnect() {
         return HttpUtils.HTTP_CONNECT.equalsIgnoreCase(request.getRequestLine().getMethod());
     }
@@ -344,6 +507,25 @@ final class ClientConnection implements StreamSource, AutoCloseable {
         return socket.isClosed();
     }
 
+    /**
+     * @return the underlying socket.
+     */
+    Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * @return {@code true} iff the connection has been handed over to the {@link TunnelRelay},
+     * which becomes responsible for closing the underlying socket.
+     */
+    boolean isRelayed() {
+        return relayed;
+    }
+
+    void setRelayed(boolean relayed) {
+        this.relayed = relayed;
+    }
+
     /**
      * @return the request's line
      */
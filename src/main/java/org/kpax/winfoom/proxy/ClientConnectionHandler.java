@@ -17,6 +17,7 @@ import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpStatus;
 import org.apache.http.RequestLine;
+import org.apache.http.impl.io.SessionInputBufferImpl;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
@@ -31,6 +32,7 @@ import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ConnectException;
 import java.net.Socket;
 import java.net.URI;
@@ -61,6 +63,23 @@ public class ClientConnectionHandler {
     @Autowired
     private ProxyBlacklist proxyBlacklist;
 
+    @Autowired
+    private ProxyRace proxyRace;
+
+    @Autowired
+    private UpstreamConnector upstreamConnector;
+
+    @Autowired
+    private TunnelRelay tunnelRelay;
+
+    @Lazy
+    @Autowired
+    private ProxyHealthChecker proxyHealthChecker;
+
+    @Lazy
+    @Autowired
+    private ProxyLoadBalancer proxyLoadBalancer;
+
     @Autowired
     private HttpConnectClientConnectionProcessor httpConnectClientConnectionProcessor;
 
@@ -75,15 +94,75 @@ public class ClientConnectionHandler {
      * Process the client connection with each available proxy.<br>
      * Un un-responding to connect proxy is blacklisted only if it is not the last
      * one available.<br>
+     * When load balancing is enabled, the PAC returned proxies are first ordered by {@link ProxyLoadBalancer}.<br>
+     * In race mode, the connection attempts to the PAC returned proxies are first raced by {@link ProxyRace}.<br>
      * <b>Note:</b> If the {@link ClientConnection} is successfully created,
-     * a proper response <i>must</i> be sent to the client.
+     * a proper response <i>must</i> be sent to the client.<br>
+     * If the response allows it, the connection is kept alive and the client's next requests
+     * are processed on the same thread.<br>
+     * The socket is closed at the end, unless the connection has been handed over to the {@link TunnelRelay}.
      *
      * @param socket the client's socket
      * @throws IOException
      * @throws HttpException
      */
     public void handleConnection(final Socket socket) throws IOException, HttpException {
-        final ClientConnection clientConnection = new ClientConnection(socket, proxyConfig, systemConfig);
+        handleConnection(socket, socket.getInputStream());
+    }
+
+    /**
+     * Same as {@link #handleConnection(Socket)}, except the request is read from the provided stream.
+     *
+     * @param socket      the client's socket
+     * @param inputStream the stream to read the request from, possibly starting with already buffered bytes
+     * @throws IOException
+     * @throws HttpException
+     */
+    public void handleConnection(final Socket socket, final InputStream inputStream)
+            throws IOException, HttpException {
+        ClientConnection clientConnection = null;
+        try {
+            clientConnection = new ClientConnection(socket, inputStream, proxyConfig, systemConfig);
+            handleRequest(clientConnection);
+
+            // Serve the next requests of a persistent connection
+            while (clientConnection.isKeepAlive() && awaitNextRequest(clientConnection)) {
+                clientConnection = new ClientConnection(clientConnection, proxyConfig, systemConfig);
+                handleRequest(clientConnection);
+            }
+        } finally {
+            if (clientConnection == null || !clientConnection.isRelayed()) {
+                InputOutputs.close(socket);
+            }
+        }
+    }
+
+    /**
+     * Wait for the client to start sending the next request, no longer than the keep-alive timeout.
+     *
+     * @param clientConnection the previous connection on the same socket.
+     * @return {@code false} if the client closed the connection or the timeout expired.
+     */
+    private boolean awaitNextRequest(final ClientConnection clientConnection) {
+        SessionInputBufferImpl sessionInputBuffer = clientConnection.getSessionInputBuffer();
+        try {
+            if (sessionInputBuffer.hasBufferedData()) {
+                return true;
+            }
+            Socket socket = clientConnection.getSocket();
+            socket.setSoTimeout(systemConfig.getClientConnectionKeepAliveTimeout() * 1000);
+            try {
+                return sessionInputBuffer.fillBuffer() > 0;
+            } finally {
+                systemConfig.configureSocket(socket);
+            }
+        } catch (IOException e) {
+            logger.debug("No further request on the persistent connection", e);
+            return false;
+        }
+    }
+
+    private void handleRequest(final ClientConnection clientConnection) {
         RequestLine requestLine = clientConnection.getRequestLine();
         logger.debug("Handle request: {}", requestLine);
 
@@ -93,6 +172,13 @@ public class ClientConnectionHandler {
                 URI requestUri = clientConnection.getRequestUri();
                 logger.debug("Extracted URI from request {}", requestUri);
                 proxyInfoList = pacScriptEvaluator.findProxyForURL(requestUri);
+                if (proxyLoadBalancer.isEnabled() && proxyInfoList.size() > 1) {
+                    proxyInfoList = proxyLoadBalancer.order(proxyInfoList);
+                }
+                if (systemConfig.isProxyRace() && proxyInfoList.size() > 1) {
+                    proxyInfoList = proxyRace.race(proxyInfoList, requestUri,
+                            clientConnection.isConnect() && tunnelRelay.isRelayable(clientConnection));
+                }
             } else {
 
                 // Manual proxy case
@@ -102,6 +188,9 @@ public class ClientConnectionHandler {
                 proxyInfoList = Collections.singletonList(new ProxyInfo(proxyConfig.getProxyType(), proxyHost));
             }
             logger.debug("proxyInfoList {}", proxyInfoList);
+            if (proxyHealthChecker.isEnabled()) {
+                proxyHealthChecker.register(proxyInfoList);
+            }
 
             ClientConnectionProcessor connectionProcessor;
             for (Iterator<ProxyInfo> itr = proxyInfoList.iterator(); itr.hasNext(); ) {
@@ -126,7 +215,8 @@ public class ClientConnectionHandler {
 
                 try {
                     logger.debug("Process connection with proxy: {}", proxyInfo);
-                    connectionProcessor.process(clientConnection, proxyInfo);
+                    process(connectionProcessor, clientConnection, proxyInfo);
+                    proxyBlacklist.recordSuccess(proxyInfo);
 
                     // Success, break the iteration
                     break;
@@ -168,9 +258,33 @@ public class ClientConnectionHandler {
                     e.getMessage());
             logger.debug("Error on handling request", e);
         } finally {
+            upstreamConnector.releaseAdopted();
             InputOutputs.close(clientConnection);
         }
         logger.debug("Done handling request: {}", requestLine);
     }
 
+    /**
+     * Process the client connection with a proxy, feeding the load balancing statistics if enabled.
+     */
+    private void process(final ClientConnectionProcessor connectionProcessor,
+                         final ClientConnection clientConnection,
+                         final ProxyInfo proxyInfo) throws IOException, HttpException {
+        if (!proxyLoadBalancer.isEnabled()) {
+            connectionProcessor.process(clientConnection, proxyInfo);
+            return;
+        }
+        long start = System.nanoTime();
+        proxyLoadBalancer.begin(proxyInfo);
+        try {
+            connectionProcessor.process(clientConnection, proxyInfo);
+        } finally {
+            proxyLoadBalancer.end(proxyInfo);
+            long responseStartTime = clientConnection.getResponseStartTime();
+            if (responseStartTime > start) {
+                proxyLoadBalancer.recordLatency(proxyInfo, (responseStartTime - start) / 1e6);
+            }
+        }
+    }
+
 }
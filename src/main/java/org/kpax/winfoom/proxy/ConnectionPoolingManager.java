@@ -14,8 +14,12 @@ package org.kpax.winfoom.proxy;
 
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.DnsResolver;
 import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.kpax.winfoom.annotation.ProxySessionScope;
 import org.kpax.winfoom.annotation.ThreadSafe;
@@ -37,6 +41,8 @@ import java.util.concurrent.TimeUnit;
 /**
  * It manages the HTTP connection pooling mechanism.
  * <p>Only used for non-CONNECT HTTP requests.
+ * <p>The pools measure the lease wait time per route, logged periodically as percentiles;
+ * when adaptive, the max connections per route follows the measurements.
  */
 @ThreadSafe
 @Order(1)
@@ -52,6 +58,9 @@ class ConnectionPoolingManager implements AutoCloseable {
     @Autowired
     private ProxyController proxyController;
 
+    @Autowired
+    private DnsCache dnsCache;
+
     @Lazy
     @Autowired
     private SocksConnectionSocketFactory socksConnectionSocketFactory;
@@ -64,7 +73,10 @@ class ConnectionPoolingManager implements AutoCloseable {
      * For HTTP proxy type
      */
     private final SingletonSupplier<PoolingHttpClientConnectionManager> httpSupplier =
-            new SingletonSupplier<>(() -> createConnectionManager(null));
+            new SingletonSupplier<>(() -> createConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                    .register("https", SSLConnectionSocketFactory.getSocketFactory())
+                    .build(), dnsCache));
 
     /**
      * For SOCKS5 proxy type
@@ -81,6 +93,10 @@ class ConnectionPoolingManager implements AutoCloseable {
     private final List<SingletonSupplier<PoolingHttpClientConnectionManager>> poolingHttpSuppliers =
             Arrays.asList(httpSupplier, socks5Supplier, socks4Supplier);
 
+    private final SingletonSupplier<ConnectionKeepAliveStrategy> keepAliveStrategySupplier =
+            new SingletonSupplier<>(() -> new UpstreamKeepAliveStrategy(
+                    TimeUnit.SECONDS.toMillis(systemConfig.getConnectionManagerIdleTimeout())));
+
     /**
      * Lazy getter for HTTP proxy.
      *
@@ -119,7 +135,18 @@ class ConnectionPoolingManager implements AutoCloseable {
     }
 
     /**
-     * A job that closes the idle/expired HTTP connections.
+     * Getter for the keep-alive strategy to be used with the pooled connections.
+     *
+     * @return the {@link ConnectionKeepAliveStrategy} instance, setting the expiry deadline of each connection.
+     */
+    ConnectionKeepAliveStrategy getKeepAliveStrategy() {
+        return keepAliveStrategySupplier.get();
+    }
+
+    /**
+     * A job that closes the expired HTTP connections.
+     * <p>Each pooled connection has its own expiry deadline, given by the {@link UpstreamKeepAliveStrategy},
+     * and an expired connection is never leased; this job only releases their sockets.
      */
     @Scheduled(fixedRateString = "#{systemConfig.connectionManagerCleanInterval * 1000}")
     void cleanUpConnectionManager() {
@@ -129,8 +156,6 @@ class ConnectionPoolingManager implements AutoCloseable {
                 try {
                     PoolingHttpClientConnectionManager connectionManager = connectionManagerSupplier.get();
                     connectionManager.closeExpiredConnections();
-                    connectionManager.closeIdleConnections(systemConfig.getConnectionManagerIdleTimeout(),
-                            TimeUnit.SECONDS);
                     if (logger.isDebugEnabled()) {
                         logger.debug("PoolingHttpClientConnectionManager statistics {}",
                                 connectionManager.getTotalStats());
@@ -142,19 +167,41 @@ class ConnectionPoolingManager implements AutoCloseable {
         }
     }
 
+    /**
+     * A job that logs the lease wait percentiles and, when adaptive, adjusts the max connections per route.
+     */
+    @Scheduled(fixedRateString = "#{systemConfig.maxConnectionsPerRouteAdjustInterval * 1000}")
+    void adjustConnectionManager() {
+        if (proxyController.isRunning()) {
+            poolingHttpSuppliers.stream().filter(SingletonSupplier::hasValue).forEach((connectionManagerSupplier) -> {
+                try {
+                    ((InstrumentedConnectionManager) connectionManagerSupplier.get()).adjust(
+                            systemConfig.getMaxConnectionsPerRoute(),
+                            Math.max(systemConfig.getMaxConnectionsPerRoute(),
+                                    systemConfig.getMaxConnectionsPerRouteUpperBound()),
+                            systemConfig.getMaxConnectionsPerRouteLeaseWaitThreshold(),
+                            systemConfig.isMaxConnectionsPerRouteAdaptive());
+                } catch (Exception e) {
+                    logger.debug("Error on adjusting connection pool", e);
+                }
+            });
+        }
+    }
+
     /**
      * Create a generic {@link PoolingHttpClientConnectionManager}
      *
      * @param socketFactoryRegistry the {@link Registry} instance used to configure the
      *                              {@link PoolingHttpClientConnectionManager}.
+     * @param dnsResolver           the {@link DnsResolver} for the hosts to connect to.
      * @return the new {@link PoolingHttpClientConnectionManager} instance.
      * @throws IllegalStateException when the proxy is not started.
      */
-    private PoolingHttpClientConnectionManager createConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry) {
+    private PoolingHttpClientConnectionManager createConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry,
+                                                                       DnsResolver dnsResolver) {
         Assert.state(proxyController.isRunning(), "Cannot create connectionManagers: ConnectionPoolingManager is not started");
-        PoolingHttpClientConnectionManager connectionManager = socketFactoryRegistry != null
-                ? new PoolingHttpClientConnectionManager(socketFactoryRegistry) :
-                new PoolingHttpClientConnectionManager();
+        PoolingHttpClientConnectionManager connectionManager =
+                new InstrumentedConnectionManager(socketFactoryRegistry, dnsResolver);
         logger.info("Configure connection manager");
         if (systemConfig.getMaxConnections() != null) {
             connectionManager.setMaxTotal(systemConfig.getMaxConnections());
@@ -162,6 +209,9 @@ class ConnectionPoolingManager implements AutoCloseable {
         if (systemConfig.getMaxConnectionsPerRoute() != null) {
             connectionManager.setDefaultMaxPerRoute(systemConfig.getMaxConnectionsPerRoute());
         }
+        if (systemConfig.getConnectionManagerValidateAfterInactivity() != null) {
+            connectionManager.setValidateAfterInactivity(systemConfig.getConnectionManagerValidateAfterInactivity());
+        }
         return connectionManager;
     }
 
@@ -179,7 +229,8 @@ class ConnectionPoolingManager implements AutoCloseable {
                 .register("http", connectionSocketFactory)
                 .register("https", connectionSocketFactory)
                 .build();
-        return createConnectionManager(socketFactoryRegistry);
+        // The SOCKS server resolves the targets
+        return createConnectionManager(socketFactoryRegistry, SocksConnectionSocketFactory.REMOTE_DNS_RESOLVER);
     }
 
     @Override
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.conn.DnsResolver;
+import org.kpax.winfoom.annotation.ProxySessionScope;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.pac.net.IpAddresses;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PostConstruct;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The DNS cache shared by the PAC helper functions, the connection managers and the socket connect paths.
+ * <p>The successful lookups are cached for {@code dns.cache.ttl}, the failed ones for {@code dns.cache.negativeTtl}.
+ * Concurrent lookups of the same host are coalesced into a single one.
+ * <p>The IP addresses are never cached, since they need no lookup.
+ * <p>The lookups are done by the {@link BuiltinDnsResolver} when {@code dns.resolver.builtin} is on,
+ * otherwise by the JDK resolver.
+ */
+@ThreadSafe
+@Order(1)
+@ProxySessionScope
+@Component
+public class DnsCache implements DnsResolver, AutoCloseable {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private BuiltinDnsResolver builtinDnsResolver;
+
+    /**
+     * Key = the host name (lower case)<br>
+     * Value = the lookup, pending or done
+     */
+    private final Map<String, CompletableFuture<Resolution>> resolutions = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void init() {
+        Assert.isTrue(systemConfig.getDnsCacheTtl() >= 0, "dns.cache.ttl cannot be negative");
+        Assert.isTrue(systemConfig.getDnsCacheNegativeTtl() >= 0, "dns.cache.negativeTtl cannot be negative");
+    }
+
+    /**
+     * Resolve the host, using the cached lookup if not expired.
+     * <p>The result of the lookup made or waited for is always returned, even if already expired:
+     * the expiration only decides whether the next call reuses it.
+     *
+     * @param host the host name or IP address.
+     * @return the host's addresses (a copy, free to be modified by the caller).
+     * @throws UnknownHostException if the host cannot be resolved.
+     */
+    @Override
+    public InetAddress[] resolve(final String host) throws UnknownHostException {
+        if (host == null || IpAddresses.isValidIPAddress(host)) {
+            return InetAddress.getAllByName(host);
+        }
+        String key = host.toLowerCase();
+        CompletableFuture<Resolution> newFuture = new CompletableFuture<>();
+        CompletableFuture<Resolution> future = resolutions.compute(key,
+                (k, current) -> current == null || isExpired(current) ? newFuture : current);
+        if (future == newFuture) {
+            // This thread does the lookup
+            lookup(host, newFuture);
+            evictIfFull();
+        }
+        Resolution resolution;
+        try {
+            resolution = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException("Interrupted while resolving " + host);
+        } catch (ExecutionException e) {
+            throw new UnknownHostException(host + ": " + e.getCause());
+        }
+        if (resolution.unknownHostException != null) {
+            throw new UnknownHostException(resolution.unknownHostException.getMessage());
+        }
+        return resolution.addresses.clone();
+    }
+
+    private void lookup(final String host, final CompletableFuture<Resolution> future) {
+        try {
+            InetAddress[] addresses = systemConfig.isDnsResolverBuiltin()
+                    ? builtinDnsResolver.resolve(host) : InetAddress.getAllByName(host);
+            future.complete(new Resolution(addresses, null,
+                    System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(systemConfig.getDnsCacheTtl())));
+        } catch (UnknownHostException e) {
+            logger.debug("Cannot resolve host {}", host);
+            future.complete(new Resolution(null, e,
+                    System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(systemConfig.getDnsCacheNegativeTtl())));
+        } catch (RuntimeException e) {
+            resolutions.remove(host.toLowerCase(), future);
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Remove the expired lookups when the max size is exceeded, then any other lookup if still exceeded.
+     */
+    private void evictIfFull() {
+        int maxSize = systemConfig.getDnsCacheMaxSize();
+        if (resolutions.size() > maxSize) {
+            resolutions.values().removeIf(DnsCache::isExpired);
+            for (Iterator<CompletableFuture<Resolution>> itr = resolutions.values().iterator();
+                 resolutions.size() > maxSize && itr.hasNext(); ) {
+                if (itr.next().isDone()) {
+                    itr.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param future the lookup.
+     * @return {@code true} iff the lookup is done and expired.
+     */
+    private static boolean isExpired(final CompletableFuture<Resolution> future) {
+        return future.isDone() && !future.isCompletedExceptionally() && future.join().isExpired();
+    }
+
+    /**
+     * Forget the host's lookup, for example when its addresses became unreachable.
+     *
+     * @param host the host name.
+     */
+    void evict(final String host) {
+        if (host != null) {
+            resolutions.remove(host.toLowerCase());
+        }
+    }
+
+    /**
+     * @return the number of cached lookups.
+     */
+    int size() {
+        return resolutions.size();
+    }
+
+    @Override
+    public void close() {
+        logger.debug("Clear the DNS cache");
+        resolutions.clear();
+    }
+
+    private static class Resolution {
+
+        private final InetAddress[] addresses;
+
+        private final UnknownHostException unknownHostException;
+
+        private final long expiresAt;
+
+        private Resolution(final InetAddress[] addresses,
+                           final UnknownHostException unknownHostException,
+                           final long expiresAt) {
+            this.addresses = addresses;
+            this.unknownHostException = unknownHostException;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() > expiresAt;
+        }
+    }
+
+}
@@ -15,25 +15,39 @@ package org.kpax.winfoom.proxy;
 import org.apache.http.HttpHost;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.client.WinHttpClients;
 import org.apache.http.impl.conn.DefaultProxyRoutePlanner;
+import org.kpax.winfoom.annotation.ProxySessionScope;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * A factory for {@link HttpClientBuilder} for different proxy types.
+ * <p>It also caches the built {@link CloseableHttpClient} instances by proxy, for the duration of the proxy session.
  * <p><b>Note:</b> The {@link HttpClientBuilder} class is not thread safe.
  *
  * @author Eugen Covaci {@literal eugen.covaci.q@gmail.com}
  * Created on 4/10/2020
  */
 @ThreadSafe
+@Order(1)
+@ProxySessionScope
 @Component
-class HttpClientBuilderFactory {
+class HttpClientBuilderFactory implements AutoCloseable {
+
+    private final Logger logger = LoggerFactory.getLogger(HttpClientBuilderFactory.class);
 
     @Autowired
     private SystemConfig systemConfig;
@@ -44,6 +58,25 @@ class HttpClientBuilderFactory {
     @Autowired
     private ConnectionPoolingManager connectionPoolingManager;
 
+    /**
+     * The built clients, by proxy.
+     */
+    private final Map<ProxyInfo, CloseableHttpClient> httpClients = new ConcurrentHashMap<>();
+
+    /**
+     * Get the cached {@link CloseableHttpClient} for the requested proxy, built on first use.
+     * <p>The client shares the connection manager, so it must not be closed by the caller.
+     *
+     * @param proxyInfo the proxy.
+     * @return the {@link CloseableHttpClient} instance for the requested proxy.
+     */
+    CloseableHttpClient getHttpClient(final ProxyInfo proxyInfo) {
+        return httpClients.computeIfAbsent(proxyInfo, (key) -> {
+            logger.debug("Build HTTP client for proxy {}", key);
+            return createClientBuilder(key).build();
+        });
+    }
+
     /**
      * Create a new instance of {@link HttpClientBuilder} according to the requested proxy.
      *
@@ -74,6 +107,7 @@ class HttpClientBuilderFactory {
         HttpClientBuilder builder = WinHttpClients.custom().setDefaultCredentialsProvider(credentialsProvider)
                 .setConnectionManager(connectionPoolingManager.getHttpConnectionManager())
                 .setConnectionManagerShared(true)
+                .setKeepAliveStrategy(connectionPoolingManager.getKeepAliveStrategy())
                 .setDefaultRequestConfig(requestConfig)
                 .setRoutePlanner(new DefaultProxyRoutePlanner(requestConfig.getProxy()))
                 .disableAutomaticRetries()
@@ -95,6 +129,7 @@ class HttpClientBuilderFactory {
         HttpClientBuilder builder = HttpClients.custom()
                 .setConnectionManager(connectionPoolingManager.getHttpConnectionManager())
                 .setConnectionManagerShared(true)
+                .setKeepAliveStrategy(connectionPoolingManager.getKeepAliveStrategy())
                 .setDefaultRequestConfig(systemConfig.applyConfig(RequestConfig.custom())
                         .setCircularRedirectsAllowed(true)
                         .build())
@@ -121,6 +156,7 @@ class HttpClientBuilderFactory {
                         .setCircularRedirectsAllowed(true)
                         .build())
                 .setConnectionManagerShared(true)
+                .setKeepAliveStrategy(connectionPoolingManager.getKeepAliveStrategy())
                 .disableAutomaticRetries()
                 .disableRedirectHandling()
                 .disableCookieManagement();
@@ -131,5 +167,11 @@ class HttpClientBuilderFactory {
         return builder;
     }
 
+    @Override
+    public void close() {
+        logger.debug("Close the cached HTTP clients");
+        httpClients.values().forEach(InputOutputs::close);
+        httpClients.clear();
+    }
 
 }
@@ -44,6 +44,9 @@ class HttpConnectClientConnectionProcessor implements ClientConnectionProcessor
     @Autowired
     private TunnelConnection tunnelConnection;
 
+    @Autowired
+    private TunnelRelay tunnelRelay;
+
     @Override
     public void process(final ClientConnection clientConnection, final ProxyInfo proxyInfo)
             throws IOException, HttpException {
@@ -52,32 +55,46 @@ class HttpConnectClientConnectionProcessor implements ClientConnectionProcessor
         HttpHost target = HttpHost.create(requestLine.getUri());
         HttpHost proxy = new HttpHost(proxyInfo.getProxyHost().getHostName(), proxyInfo.getProxyHost().getPort());
 
-        try (Tunnel tunnel = tunnelConnection.open(proxy, target, requestLine.getProtocolVersion())) {
+        Tunnel tunnel;
+        try {
+            tunnel = tunnelConnection.open(proxy, target, requestLine.getProtocolVersion(),
+                    tunnelRelay.isRelayable(clientConnection));
+        } catch (TunnelRefusedException tre) {
+            logger.debug("The tunnel request was rejected by the proxy host", tre);
             try {
-                // Handle the tunnel response
-                logger.debug("Write status line");
-                clientConnection.write(tunnel.getStatusLine());
+                clientConnection.writeHttpResponse(tre.getResponse());
+            } catch (Exception e) {
+                logger.debug("Error on writing response", e);
+            }
+            return;
+        }
 
-                logger.debug("Write headers");
-                for (Header header : tunnel.getResponse().getAllHeaders()) {
-                    clientConnection.write(header);
-                }
-                clientConnection.writeln();
+        try {
+            // Handle the tunnel response
+            logger.debug("Write status line");
+            clientConnection.write(tunnel.getStatusLine());
 
+            logger.debug("Write headers");
+            for (Header header : tunnel.getResponse().getAllHeaders()) {
+                clientConnection.write(header);
+            }
+            clientConnection.writeln();
+
+            if (tunnelRelay.canRelay(clientConnection, tunnel.getConnection().getSocket())) {
+                // Hand over the tunnel to the selector threads
+                // and release the current thread
+                tunnelRelay.relay(clientConnection, tunnel.getConnection().getSocket());
+            } else {
                 // The proxy facade mediates the full duplex communication
                 // between the client and the remote proxy.
                 // This usually ends on connection reset, timeout or any other error
                 InputOutputs.duplex(executorService, tunnel, clientConnection);
-
-            } catch (Exception e) {
-                logger.debug("Error on handling CONNECT response", e);
             }
-        } catch (TunnelRefusedException tre) {
-            logger.debug("The tunnel request was rejected by the proxy host", tre);
-            try {
-                clientConnection.writeHttpResponse(tre.getResponse());
-            } catch (Exception e) {
-                logger.debug("Error on writing response", e);
+        } catch (Exception e) {
+            logger.debug("Error on handling CONNECT response", e);
+        } finally {
+            if (!clientConnection.isRelayed()) {
+                tunnel.close();
             }
         }
 
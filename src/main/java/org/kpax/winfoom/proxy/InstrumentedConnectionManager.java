@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.config.Registry;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link PoolingHttpClientConnectionManager} that measures, per route, the time spent waiting
+ * for a connection lease and the number of leased connections.
+ * <p>The measurements are used to adjust the max connections per route within bounds:
+ * it grows when the leases wait, it shrinks when the connections are underused.
+ * <p>The measurements of a route without lease nor leased connection since the previous adjustment are dropped,
+ * so that only the routes in use are tracked.
+ */
+@ThreadSafe
+class InstrumentedConnectionManager extends PoolingHttpClientConnectionManager {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Map<HttpRoute, RouteStats> routeStatsMap = new ConcurrentHashMap<>();
+
+    /**
+     * Key = a leased connection<br>
+     * Value = the statistics of the connection's route
+     */
+    private final Map<HttpClientConnection, RouteStats> leasedMap = new ConcurrentHashMap<>();
+
+    InstrumentedConnectionManager(final Registry<ConnectionSocketFactory> socketFactoryRegistry,
+                                  final DnsResolver dnsResolver) {
+        super(socketFactoryRegistry, dnsResolver);
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+        ConnectionRequest connectionRequest = super.requestConnection(route, state);
+        RouteStats routeStats = getRouteStats(route);
+        return new ConnectionRequest() {
+
+            @Override
+            public HttpClientConnection get(final long timeout, final TimeUnit timeUnit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                long start = System.nanoTime();
+                try {
+                    HttpClientConnection connection = connectionRequest.get(timeout, timeUnit);
+                    leasedMap.put(connection, routeStats);
+                    routeStats.leased(1);
+                    return connection;
+                } finally {
+                    routeStats.leaseWait.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                return connectionRequest.cancel();
+            }
+        };
+    }
+
+    @Override
+    public void releaseConnection(final HttpClientConnection managedConn, final Object state,
+                                  final long keepalive, final TimeUnit timeUnit) {
+        RouteStats routeStats = leasedMap.remove(managedConn);
+        if (routeStats != null) {
+            routeStats.leased(-1);
+        }
+        super.releaseConnection(managedConn, state, keepalive, timeUnit);
+    }
+
+    /**
+     * @param route      the route.
+     * @param percentile the percentile, between {@code 0} and {@code 100}.
+     * @return an upper bound of the lease wait time's percentile (milliseconds) since the pool creation,
+     * or {@code -1} if there is no lease yet.
+     */
+    long getLeaseWaitPercentile(final HttpRoute route, final double percentile) {
+        RouteStats routeStats = routeStatsMap.get(route);
+        return routeStats != null ? Histogram.percentile(routeStats.leaseWait.snapshot(), percentile) : -1;
+    }
+
+    /**
+     * Adjust the max connections of each route, according to the measurements since the previous call.
+     * <p>A route without lease since the previous call and without leased connection is dropped.
+     *
+     * @param lowerBound         the lower bound of the max connections per route.
+     * @param upperBound         the upper bound of the max connections per route.
+     * @param leaseWaitThreshold the lease wait time's 95th percentile (milliseconds) above which the max grows.
+     * @param adaptive           whether to adjust or only log the measurements.
+     */
+    void adjust(final int lowerBound, final int upperBound, final int leaseWaitThreshold, final boolean adaptive) {
+        routeStatsMap.forEach((route, routeStats) -> {
+            long[] counts = routeStats.leaseWait.snapshot();
+            long[] interval = routeStats.interval(counts);
+            if (Arrays.stream(interval).sum() == 0 && routeStats.leased.get() == 0) {
+                logger.debug("Route {}: idle, drop its measurements", route);
+                routeStatsMap.remove(route, routeStats);
+                return;
+            }
+            int peakLeased = routeStats.resetPeakLeased();
+            long p95 = Histogram.percentile(interval, 95);
+            if (logger.isDebugEnabled()) {
+                PoolStats poolStats = getStats(route);
+                logger.debug("Route {}: lease wait p50 {} ms, p95 {} ms, p99 {} ms (all time p99 {} ms), "
+                                + "peak leased {}, {}",
+                        route, Histogram.percentile(interval, 50), p95, Histogram.percentile(interval, 99),
+                        Histogram.percentile(counts, 99), peakLeased, poolStats);
+            }
+            if (!adaptive) {
+                return;
+            }
+            int maxPerRoute = getMaxPerRoute(route);
+            int newMaxPerRoute = maxPerRoute;
+            if (p95 > leaseWaitThreshold) {
+                newMaxPerRoute = Math.min(upperBound, maxPerRoute + Math.max(1, maxPerRoute / 2));
+            } else if (peakLeased < maxPerRoute / 2) {
+                newMaxPerRoute = Math.max(lowerBound, Math.max(peakLeased * 2, maxPerRoute - maxPerRoute / 4));
+            }
+            newMaxPerRoute = Math.max(lowerBound, Math.min(upperBound, newMaxPerRoute));
+            if (newMaxPerRoute != maxPerRoute) {
+                logger.info("Route {}: lease wait p95 {} ms, peak leased {}, change max connections from {} to {}",
+                        route, p95, peakLeased, maxPerRoute, newMaxPerRoute);
+                setMaxPerRoute(route, newMaxPerRoute);
+            }
+        });
+    }
+
+    private RouteStats getRouteStats(final HttpRoute route) {
+        RouteStats routeStats = routeStatsMap.get(route);
+        return routeStats != null ? routeStats : routeStatsMap.computeIfAbsent(route, (key) -> new RouteStats());
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        leasedMap.clear();
+        routeStatsMap.clear();
+    }
+
+    /**
+     * The measurements of a route.
+     */
+    private static class RouteStats {
+
+        private final Histogram leaseWait = new Histogram();
+
+        private final AtomicInteger leased = new AtomicInteger();
+
+        private final AtomicInteger peakLeased = new AtomicInteger();
+
+        /**
+         * The lease wait counts at the previous adjustment, only accessed by the adjusting thread.
+         */
+        private long[] previousCounts = new long[Histogram.BUCKETS];
+
+        private void leased(final int delta) {
+            int count = leased.addAndGet(delta);
+            peakLeased.accumulateAndGet(count, Math::max);
+        }
+
+        /**
+         * @return the peak leased connections since the previous call.
+         */
+        private int resetPeakLeased() {
+            return peakLeased.getAndSet(leased.get());
+        }
+
+        /**
+         * @return the lease wait counts since the previous call.
+         */
+        private long[] interval(final long[] counts) {
+            long[] interval = new long[Histogram.BUCKETS];
+            for (int i = 0; i < Histogram.BUCKETS; i++) {
+                interval[i] = counts[i] - previousCounts[i];
+            }
+            previousCounts = counts;
+            return interval;
+        }
+    }
+
+    /**
+     * A lock free histogram of durations with power of two buckets (milliseconds):
+     * bucket {@code 0} for {@code 0}, bucket {@code i} for {@code [2^(i-1), 2^i)}.
+     */
+    static class Histogram {
+
+        static final int BUCKETS = 24;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        void record(final long millis) {
+            int bucket = Math.min(BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(Math.max(0, millis)));
+            counts.incrementAndGet(bucket);
+        }
+
+        long[] snapshot() {
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+            }
+            return snapshot;
+        }
+
+        /**
+         * @return the upper bound (milliseconds) of the bucket containing the percentile,
+         * {@code -1} if there is no sample.
+         */
+        static long percentile(final long[] counts, final double percentile) {
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            if (total == 0) {
+                return -1;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long cumulated = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulated += counts[i];
+                if (cumulated >= Math.max(rank, 1)) {
+                    return (1L << i) - 1;
+                }
+            }
+            return (1L << (counts.length - 1)) - 1;
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import com.sun.jna.Library;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+
+/**
+ * The C library on Linux, limited to what the zero-copy relay needs.
+ * <p>The error code of a failed call is available through {@link com.sun.jna.Native#getLastError()}.
+ */
+public interface LinuxLibc extends Library {
+
+    int SPLICE_F_MOVE = 1;
+
+    int SPLICE_F_MORE = 4;
+
+    int SOL_SOCKET = 1;
+
+    int SO_RCVTIMEO = 20;
+
+    int F_GETFL = 3;
+
+    int F_SETFL = 4;
+
+    int O_NONBLOCK = 04000;
+
+    int EINTR = 4;
+
+    int EAGAIN = 11;
+
+    int pipe(int[] fds);
+
+    NativeLong splice(int fdIn, Pointer offIn, int fdOut, Pointer offOut, NativeLong len, int flags);
+
+    int setsockopt(int fd, int level, int optname, Pointer optval, int optlen);
+
+    int fcntl(int fd, int cmd, int arg);
+
+    int close(int fd);
+}
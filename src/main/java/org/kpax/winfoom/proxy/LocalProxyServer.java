@@ -12,6 +12,8 @@
 
 package org.kpax.winfoom.proxy;
 
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.kpax.winfoom.annotation.ProxySessionScope;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.ProxyConfig;
@@ -24,9 +26,13 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * The local proxy server.
@@ -56,6 +62,8 @@ class LocalProxyServer implements AutoCloseable {
 
     private ServerSocket serverSocket;
 
+    private SelectorAcceptor selectorAcceptor;
+
     /**
      * Start the local proxy server.
      * <p>This means:
@@ -64,7 +72,9 @@ class LocalProxyServer implements AutoCloseable {
      * <li>When a connection arrives, it delegates the handling to the {@link ClientConnectionHandler}, on a new
      * thread.</li>
      * </ul>
-     * The proxy settings are saved after the local proxy server successfully starts.
+     * If the non-blocking mode is on, the request head is read by a {@link SelectorAcceptor}
+     * before delegating the handling.
+     * <p>The proxy settings are saved after the local proxy server successfully starts.
      *
      * @throws IllegalStateException if the server had been started.
      * @throws Exception
@@ -73,38 +83,11 @@ class LocalProxyServer implements AutoCloseable {
         logger.info("Start local proxy server with userConfig {}", proxyConfig);
 
         try {
-            serverSocket = new ServerSocket(proxyConfig.getLocalPort(),
-                    systemConfig.getServerSocketBacklog());
-            executorService.submit(() -> {
-                while (true) {
-                    try {
-                        Socket socket = serverSocket.accept();
-                        systemConfig.configureSocket(socket);
-                        executorService.submit(() -> {
-                            try {
-                                clientConnectionHandler.handleConnection(socket);
-                            } catch (Exception e) {
-                                logger.debug("Error on handling connection", e);
-                            } finally {
-                                InputOutputs.close(socket);
-                            }
-                        });
-                    } catch (SocketException e) {
-
-                        // The ServerSocket has been closed, exit the while loop
-                        if (HttpUtils.isSocketClosed(e)) {
-                            break;
-                        }
-
-                        // Get this whenever stop the server socket.
-                        if (!HttpUtils.isConnectionInterrupted(e)) {
-                            logger.debug("Socket error on getting connection", e);
-                        }
-                    } catch (Exception e) {
-                        logger.debug("Generic error on getting connection", e);
-                    }
-                }
-            });
+            if (systemConfig.isServerSocketNonBlocking()) {
+                startNonBlocking();
+            } else {
+                startBlocking();
+            }
 
             try {
                 // Save the user properties
@@ -121,9 +104,91 @@ class LocalProxyServer implements AutoCloseable {
         }
     }
 
+    private void startBlocking() throws Exception {
+        serverSocket = new ServerSocket(proxyConfig.getLocalPort(),
+                systemConfig.getServerSocketBacklog());
+        executorService.submit(() -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    submitConnection(socket, socket.getInputStream());
+                } catch (SocketException e) {
+
+                    // The ServerSocket has been closed, exit the while loop
+                    if (HttpUtils.isSocketClosed(e)) {
+                        break;
+                    }
+
+                    // Get this whenever stop the server socket.
+                    if (!HttpUtils.isConnectionInterrupted(e)) {
+                        logger.debug("Socket error on getting connection", e);
+                    }
+                } catch (Exception e) {
+                    logger.debug("Generic error on getting connection", e);
+                }
+            }
+        });
+    }
+
+    private void startNonBlocking() throws Exception {
+        logger.info("Use the non-blocking acceptor");
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocket = serverSocketChannel.socket();
+        serverSocket.bind(new InetSocketAddress(proxyConfig.getLocalPort()),
+                systemConfig.getServerSocketBacklog());
+        selectorAcceptor = new SelectorAcceptor(serverSocketChannel,
+                (socket, inputStream) -> {
+                    try {
+                        submitConnection(socket, inputStream);
+                    } catch (SocketException e) {
+                        logger.debug("Socket error on submitting connection", e);
+                        InputOutputs.close(socket);
+                    }
+                },
+                systemConfig.getRequestHeadMaxLength(),
+                systemConfig.getSocketSoTimeout());
+        executorService.submit(selectorAcceptor);
+    }
+
+    /**
+     * Delegate the handling of the connection to the {@link ClientConnectionHandler}, on a new thread.
+     * <p>If the executor does not admit the connection, the client gets a {@code 503} response
+     * and the socket is closed, without reading the request.
+     *
+     * @param socket      the client's socket.
+     * @param inputStream the stream to read the client's request from.
+     * @throws SocketException if the socket cannot be configured.
+     */
+    private void submitConnection(final Socket socket, final InputStream inputStream) throws SocketException {
+        systemConfig.configureSocket(socket);
+        try {
+            executorService.submitConnection(() -> {
+                try {
+                    clientConnectionHandler.handleConnection(socket, inputStream);
+                } catch (Exception e) {
+                    logger.debug("Error on handling connection", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("Connection rejected, send the error response", e);
+            try {
+                ClientConnection.writeErrorResponse(socket.getOutputStream(), HttpVersion.HTTP_1_1,
+                        HttpStatus.SC_SERVICE_UNAVAILABLE, "Proxy overloaded");
+                socket.shutdownOutput();
+            } catch (Exception ex) {
+                logger.debug("Error on writing error response", ex);
+            } finally {
+                InputOutputs.close(socket);
+            }
+        }
+    }
+
     @Override
     public synchronized void close() {
         logger.info("Now stop running the local proxy server");
+        if (selectorAcceptor != null) {
+            selectorAcceptor.close();
+        }
         try {
             logger.info("Close the server socket");
             serverSocket.close();
@@ -18,11 +18,16 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.io.ChunkedOutputStream;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.SessionOutputBufferImpl;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.util.HttpUtils;
+import org.kpax.winfoom.util.InputOutputs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -36,6 +41,8 @@ import java.net.UnknownHostException;
 
 /**
  * Process any type of non-CONNECT request for any type of proxy.
+ * <p>When the client's connection is persistent, the response body is framed either by the
+ * {@code Content-Length} header or by chunked encoding, so that the client can reuse the connection.
  *
  * @author Eugen Covaci {@literal eugen.covaci.q@gmail.com}
  * Created on 4/13/2020
@@ -55,78 +62,117 @@ class NonConnectClientConnectionProcessor implements ClientConnectionProcessor {
     @Autowired
     private HttpClientBuilderFactory clientBuilderFactory;
 
+    @Autowired
+    private ProxyAuthCache proxyAuthCache;
+
     @Override
     public void process(final ClientConnection clientConnection, final ProxyInfo proxyInfo)
             throws IOException {
         logger.debug("Handle non-connect request");
-        try (CloseableHttpClient httpClient = clientBuilderFactory.createClientBuilder(proxyInfo).build()) {
-            URI uri = clientConnection.getRequestUri();
-            HttpHost target = new HttpHost(uri.getHost(),
-                    uri.getPort(),
-                    uri.getScheme());
-
-            HttpClientContext context = HttpClientContext.create();
-            if (proxyInfo.getType().isSocks()) {
-                InetSocketAddress proxySocketAddress = new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
-                        proxyInfo.getProxyHost().getPort());
-                context.setAttribute(HttpUtils.SOCKS_ADDRESS, proxySocketAddress);
-            }
+        CloseableHttpClient httpClient = clientBuilderFactory.getHttpClient(proxyInfo);
+        URI uri = clientConnection.getRequestUri();
+        HttpHost target = new HttpHost(uri.getHost(),
+                uri.getPort(),
+                uri.getScheme());
+
+        HttpClientContext context = HttpClientContext.create();
+        if (proxyInfo.getType().isSocks()) {
+            InetSocketAddress proxySocketAddress = new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
+                    proxyInfo.getProxyHost().getPort());
+            context.setAttribute(HttpUtils.SOCKS_ADDRESS, proxySocketAddress);
+        } else if (proxyInfo.getType().isHttp() && systemConfig.isAuthenticationPreemptive()) {
+            context.setAuthCache(proxyAuthCache);
+        }
 
-            // Execute the request
-            try (CloseableHttpResponse response = httpClient.execute(target, clientConnection.getPreparedRequest(), context)) {
-                try {
-                    StatusLine statusLine = response.getStatusLine();
-                    logger.debug("Write status line: {}", statusLine);
-                    clientConnection.write(statusLine);
-                    clientConnection.write(HttpUtils.createViaHeader(
-                            clientConnection.getRequestLine().getProtocolVersion(),
-                            response.getFirstHeader(HttpHeaders.VIA)));
-                    response.removeHeaders(HttpHeaders.VIA);
-                    for (Header header : response.getAllHeaders()) {
-                        if (HttpHeaders.TRANSFER_ENCODING.equals(header.getName())) {
-
-                            // Strip 'chunked' from Transfer-Encoding header's value
-                            // since the response is not chunked
-                            String nonChunkedTransferEncoding = HttpUtils.stripChunked(header.getValue());
-                            if (StringUtils.isNotEmpty(nonChunkedTransferEncoding)) {
-                                clientConnection.write(
-                                        HttpUtils.createHttpHeader(HttpHeaders.TRANSFER_ENCODING,
-                                                nonChunkedTransferEncoding));
-                                logger.debug("Add chunk-striped header response");
-                            } else {
-                                logger.debug("Remove transfer encoding chunked header response");
-                            }
-                        } else {
-                            logger.debug("Write response header: {}", header);
-                            clientConnection.write(header);
-                        }
-                    }
+        // Execute the request
+        try (CloseableHttpResponse response = httpClient.execute(target, clientConnection.getPreparedRequest(), context)) {
+            try {
+                ProtocolVersion clientVersion = clientConnection.getRequestLine().getProtocolVersion();
+                HttpEntity entity = response.getEntity();
+
+                // A persistent connection needs a framed response body: when the length is unknown,
+                // chunk it for HTTP/1.1 clients, otherwise close the connection after the body
+                boolean keepAlive = systemConfig.isClientConnectionKeepAlive()
+                        && clientConnection.isKeepAliveRequested();
+                boolean chunked = false;
+                if (keepAlive && entity != null && entity.getContentLength() < 0) {
+                    chunked = clientVersion.greaterEquals(HttpVersion.HTTP_1_1);
+                    keepAlive = chunked;
+                }
 
-                    // Empty line marking the end
-                    // of header's section
-                    clientConnection.writeln();
+                StatusLine statusLine = response.getStatusLine();
+                logger.debug("Write status line: {}", statusLine);
+                clientConnection.write(statusLine);
+                clientConnection.write(HttpUtils.createViaHeader(clientVersion,
+                        response.getFirstHeader(HttpHeaders.VIA)));
+                response.removeHeaders(HttpHeaders.VIA);
+                String nonChunkedTransferEncoding = null;
+                for (Header header : response.getAllHeaders()) {
+                    if (HttpHeaders.TRANSFER_ENCODING.equalsIgnoreCase(header.getName())) {
+
+                        // Strip 'chunked' from Transfer-Encoding header's value
+                        // since the response is chunked again only if needed
+                        nonChunkedTransferEncoding = HttpUtils.stripChunked(header.getValue());
+                    } else if (HTTP.CONN_DIRECTIVE.equalsIgnoreCase(header.getName())
+                            || HTTP.CONN_KEEP_ALIVE.equalsIgnoreCase(header.getName())
+                            || HttpUtils.PROXY_CONNECTION.equalsIgnoreCase(header.getName())) {
+                        logger.debug("Remove hop-by-hop response header: {}", header);
+                    } else if (chunked && HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(header.getName())) {
+                        logger.debug("Remove content length response header: {}", header);
+                    } else {
+                        logger.debug("Write response header: {}", header);
+                        clientConnection.write(header);
+                    }
+                }
+                if (chunked) {
+                    clientConnection.write(HttpUtils.createHttpHeader(HttpHeaders.TRANSFER_ENCODING,
+                            StringUtils.isNotEmpty(nonChunkedTransferEncoding)
+                                    ? nonChunkedTransferEncoding + "," + HTTP.CHUNK_CODING : HTTP.CHUNK_CODING));
+                } else if (StringUtils.isNotEmpty(nonChunkedTransferEncoding)) {
+                    clientConnection.write(HttpUtils.createHttpHeader(HttpHeaders.TRANSFER_ENCODING,
+                            nonChunkedTransferEncoding));
+                    logger.debug("Add chunk-striped header response");
+                }
+                if (!keepAlive) {
+                    clientConnection.write(HttpUtils.createHttpHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE));
+                } else if (!clientVersion.greaterEquals(HttpVersion.HTTP_1_1)) {
+                    clientConnection.write(HttpUtils.createHttpHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_KEEP_ALIVE));
+                }
 
-                    // Now write the request body, if any
-                    HttpEntity entity = response.getEntity();
-                    if (entity != null) {
-                        logger.debug("Start writing entity content");
+                // Empty line marking the end
+                // of header's section
+                clientConnection.writeln();
+
+                // Now write the request body, if any
+                if (entity != null) {
+                    logger.debug("Start writing entity content, chunked: {}", chunked);
+                    if (chunked) {
+                        SessionOutputBufferImpl sessionOutputBuffer = new SessionOutputBufferImpl(
+                                new HttpTransportMetricsImpl(), InputOutputs.DEFAULT_BUFFER_SIZE);
+                        sessionOutputBuffer.bind(clientConnection.getOutputStream());
+                        try (ChunkedOutputStream chunkedOutputStream =
+                                     new ChunkedOutputStream(InputOutputs.DEFAULT_BUFFER_SIZE, sessionOutputBuffer)) {
+                            entity.writeTo(chunkedOutputStream);
+                        }
+                    } else {
                         entity.writeTo(clientConnection.getOutputStream());
-                        logger.debug("End writing entity content");
-
-                        // Make sure the entity is fully consumed
-                        EntityUtils.consume(entity);
                     }
+                    logger.debug("End writing entity content");
 
-                } catch (Exception e) {
-                    logger.debug("Error on handling non CONNECT response", e);
+                    // Make sure the entity is fully consumed
+                    EntityUtils.consume(entity);
                 }
-            } catch (UnknownHostException e) {
-                logger.debug("Unknown host error", e);
-                clientConnection.writeErrorResponse(HttpStatus.SC_NOT_FOUND, e);
-            } catch (ConnectTimeoutException e) {
-                logger.debug("Connect timeout error", e);
-                throw new ConnectException(e.getMessage());
+                clientConnection.getOutputStream().flush();
+                clientConnection.setKeepAlive(keepAlive && clientConnection.isRequestConsumed());
+            } catch (Exception e) {
+                logger.debug("Error on handling non CONNECT response", e);
             }
+        } catch (UnknownHostException e) {
+            logger.debug("Unknown host error", e);
+            clientConnection.writeErrorResponse(HttpStatus.SC_NOT_FOUND, e);
+        } catch (ConnectTimeoutException e) {
+            logger.debug("Connect timeout error", e);
+            throw new ConnectException(e.getMessage());
         }
     }
 
@@ -0,0 +1,43 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.client.AuthCache;
+import org.apache.http.impl.client.BasicAuthCache;
+import org.kpax.winfoom.annotation.ProxySessionScope;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * The {@link AuthCache} shared by all the requests to the upstream proxies, for the duration of the proxy session.
+ * <p>Once a proxy has accepted the credentials, its authentication scheme is cached
+ * and the next requests send the credentials preemptively, without waiting for the {@code 407} challenge.
+ * Only the schemes allowing it are cached (Basic, Digest with the last nonce),
+ * the connection based ones (NTLM, Negotiate) still go through the challenge.
+ */
+@ThreadSafe
+@ProxySessionScope
+@Component
+class ProxyAuthCache extends BasicAuthCache implements AutoCloseable {
+
+    private final Logger logger = LoggerFactory.getLogger(ProxyAuthCache.class);
+
+    @Override
+    public void close() {
+        logger.debug("Clear the proxy authentication cache");
+        clear();
+    }
+
+}
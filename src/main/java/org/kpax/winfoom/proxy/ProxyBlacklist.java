@@ -15,6 +15,7 @@ package org.kpax.winfoom.proxy;
 import org.kpax.winfoom.annotation.ProxySessionScope;
 import org.kpax.winfoom.annotation.ThreadSafe;
 import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -24,14 +25,25 @@ import org.springframework.stereotype.Component;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * It implements the proxy blacklisting mechanism.
- * <p>If a proxy doesn't respond to a connect attempt, it can be blacklisted
+ * It implements the proxy blacklisting mechanism, as a circuit breaker per proxy.
+ * <p>The outcomes of the last connection attempts to a proxy are kept in a sliding window.
+ * When the failure rate over the window reaches the threshold, the proxy is blacklisted (the circuit is open)
  * which means it will not be used again until the blacklist timeout happens.
+ * The timeout doubles each time the proxy is blacklisted again, up to a maximum multiplier,
+ * and is reset after a full window of successful connections.
+ * <p>After the timeout, the proxy is half-open: a single request is let through as a trial,
+ * the others still skip the proxy. A successful trial closes the circuit, a failed one opens it again.
+ * <p>Each proxy's state is an immutable snapshot swapped by compare-and-set,
+ * so checking it doesn't lock.
+ * <p>When the {@link ProxyHealthChecker} is enabled, a proxy that failed the last probe
+ * is considered blacklisted too, and a successful probe removes the proxy from the blacklist.
  */
 @ThreadSafe
 @Lazy
@@ -42,10 +54,17 @@ public class ProxyBlacklist implements AutoCloseable {
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     /**
-     * Key = the blacklisted ProxyInfo<br>
-     * Value = the blacklist timeout Instant
+     * Key = the proxy<br>
+     * Value = the proxy's circuit breaker
      */
-    private final Map<ProxyInfo, Instant> blacklistMap = new ConcurrentHashMap<>();
+    private final Map<ProxyInfo, CircuitBreaker> circuitBreakerMap = new ConcurrentHashMap<>();
+
+    /**
+     * Key = the proxy<br>
+     * Value = the last measured connect latency in milliseconds
+     * (a lower bound if the connection attempt was cancelled)
+     */
+    private final Map<ProxyInfo, Long> latencyMap = new ConcurrentHashMap<>();
 
     /**
      * The temporal unit for measuring the timeout period.
@@ -55,12 +74,19 @@ public class ProxyBlacklist implements AutoCloseable {
     @Autowired
     private ProxyConfig proxyConfig;
 
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Lazy
+    @Autowired
+    private ProxyHealthChecker proxyHealthChecker;
+
     /**
-     * Attempt to blacklist a proxy. Does nothing if the blacklisting is disabled.<br>
+     * Record a failed connection attempt to a proxy. Does nothing if the blacklisting is disabled.<br>
      * If the proxy is already blacklisted, it keeps the existent timeout.
      *
      * @param proxyInfo the proxy to be blacklisted.
-     * @return the blacklist timeout {@link Instant} iff the blacklisting is enabled, {@code null} otherwise.
+     * @return the blacklist timeout {@link Instant} iff the proxy is blacklisted, {@code null} otherwise.
      */
     Instant blacklist(final ProxyInfo proxyInfo) {
         logger.debug("Attempt to blacklist proxy {}", proxyInfo);
@@ -68,46 +94,174 @@ public class ProxyBlacklist implements AutoCloseable {
             logger.debug("Blacklisting is disabled, nothing to do");
             return null;
         }
-        return blacklistMap.compute(proxyInfo, (key, value) -> {
+        AtomicReference<State> stateRef = getCircuitBreaker(proxyInfo).state;
+        while (true) {
+            State state = stateRef.get();
             Instant now = Instant.now();
-            if (value == null || value.isBefore(now)) {
-                Instant timeoutInstant = now.plus(proxyConfig.getBlacklistTimeout(),
-                        temporalUnit);
-                logger.debug("Blacklisted until {}", timeoutInstant);
-                return timeoutInstant;
+            State next;
+            if (state.status == Status.OPEN && !state.openUntil.isBefore(now)) {
+                logger.debug("Already blacklisted until {}", state.openUntil);
+                return state.openUntil;
+            } else if (state.status == Status.CLOSED) {
+                next = state.record(true, systemConfig.getCircuitBreakerWindow());
+                if (next.getFailureRate() < systemConfig.getCircuitBreakerFailureRateThreshold()) {
+                    if (stateRef.compareAndSet(state, next)) {
+                        logger.debug("Failure rate {}% under threshold", next.getFailureRate());
+                        return null;
+                    }
+                    continue;
+                }
+                next = open(next, now);
             } else {
-                logger.debug("Already blacklisted until {}", value);
-                return value;
+                // The trial failed, or the proxy has been used after the timeout without a trial
+                next = open(state, now);
             }
-        });
+            if (stateRef.compareAndSet(state, next)) {
+                logger.debug("Blacklisted until {}", next.openUntil);
+                return next.openUntil;
+            }
+        }
+    }
+
+    private State open(final State state, final Instant now) {
+        long multiplier = Math.min(1L << Math.min(state.backoff, 30),
+                systemConfig.getCircuitBreakerMaxBackoffMultiplier());
+        Instant openUntil = now.plus(proxyConfig.getBlacklistTimeout() * Math.max(multiplier, 1), temporalUnit);
+        return new State(Status.OPEN, 0, 0, state.backoff + 1, openUntil);
     }
 
     /**
-     * Verify whether a proxy is blacklisted.<br>
-     * If the proxy is in the blacklist map but expired, will be removed.
+     * Record a successful connection through a proxy, closing its circuit if half-open.
+     *
+     * @param proxyInfo the proxy.
+     */
+    void recordSuccess(final ProxyInfo proxyInfo) {
+        CircuitBreaker circuitBreaker = circuitBreakerMap.get(proxyInfo);
+        if (circuitBreaker == null) {
+            return;
+        }
+        AtomicReference<State> stateRef = circuitBreaker.state;
+        while (true) {
+            State state = stateRef.get();
+            State next = state.status == Status.CLOSED
+                    ? state.record(false, systemConfig.getCircuitBreakerWindow())
+                    : new State(Status.CLOSED, 0, 0, state.backoff, null).record(false,
+                    systemConfig.getCircuitBreakerWindow());
+            if (next.equals(state) || stateRef.compareAndSet(state, next)) {
+                if (state.status != Status.CLOSED) {
+                    logger.debug("Proxy {} is used again", proxyInfo);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Verify whether a proxy can be used.<br>
+     * If the proxy's blacklist timeout expired, the caller gets the single trial of the half-open state;
+     * the trial is given again when not resolved within the socket connect timeout.
      *
      * @param proxyInfo the proxy to be checked
-     * @return {@code true} iff the proxy is blacklisted
+     * @return {@code true} iff the proxy is blacklisted (including half-open with a pending trial) or,
+     * when the health check is enabled, down
      */
     boolean checkBlacklist(final ProxyInfo proxyInfo) {
+        if (proxyHealthChecker.isEnabled() && proxyHealthChecker.isDown(proxyInfo)) {
+            return true;
+        }
         if (proxyConfig.getBlacklistTimeout() < 1) {
             return false;
         }
-        Instant timeoutInstant = blacklistMap.computeIfPresent(
-                proxyInfo, (key, value) -> value.isBefore(Instant.now()) ? null : value);
-        return timeoutInstant != null;
+        CircuitBreaker circuitBreaker = circuitBreakerMap.get(proxyInfo);
+        if (circuitBreaker == null) {
+            return false;
+        }
+        AtomicReference<State> stateRef = circuitBreaker.state;
+        while (true) {
+            State state = stateRef.get();
+            if (state.status == Status.CLOSED) {
+                return false;
+            }
+            Instant now = Instant.now();
+            if (!state.openUntil.isBefore(now)) {
+                return true;
+            }
+            State trial = new State(Status.HALF_OPEN, 0, 0, state.backoff,
+                    now.plus(systemConfig.getSocketConnectTimeout(), ChronoUnit.SECONDS));
+            if (stateRef.compareAndSet(state, trial)) {
+                logger.debug("Half-open proxy {}, let a trial request through", proxyInfo);
+                return false;
+            }
+        }
     }
 
     /**
-     * Clear the blacklist map.
+     * Unlike {@link #checkBlacklist(ProxyInfo)}, it never gives the half-open trial.
+     *
+     * @param proxyInfo the proxy to be checked
+     * @return {@code true} iff the proxy is blacklisted (and not yet half-open) or,
+     * when the health check is enabled, down
+     */
+    boolean isBlacklisted(final ProxyInfo proxyInfo) {
+        if (proxyHealthChecker.isEnabled() && proxyHealthChecker.isDown(proxyInfo)) {
+            return true;
+        }
+        if (proxyConfig.getBlacklistTimeout() < 1) {
+            return false;
+        }
+        CircuitBreaker circuitBreaker = circuitBreakerMap.get(proxyInfo);
+        if (circuitBreaker == null) {
+            return false;
+        }
+        State state = circuitBreaker.state.get();
+        return state.status == Status.OPEN && !state.openUntil.isBefore(Instant.now());
+    }
+
+    /**
+     * Remove a proxy from the blacklist, if present, resetting its circuit breaker.
+     *
+     * @param proxyInfo the proxy.
+     */
+    void remove(final ProxyInfo proxyInfo) {
+        if (circuitBreakerMap.remove(proxyInfo) != null) {
+            logger.debug("Proxy {} removed from blacklist", proxyInfo);
+        }
+    }
+
+    private CircuitBreaker getCircuitBreaker(final ProxyInfo proxyInfo) {
+        CircuitBreaker circuitBreaker = circuitBreakerMap.get(proxyInfo);
+        return circuitBreaker != null ? circuitBreaker
+                : circuitBreakerMap.computeIfAbsent(proxyInfo, (key) -> new CircuitBreaker());
+    }
+
+    /**
+     * Record the connect latency of a proxy.
+     *
+     * @param proxyInfo the proxy.
+     * @param latency   the latency in milliseconds.
+     */
+    void recordLatency(final ProxyInfo proxyInfo, final long latency) {
+        logger.debug("Record latency {} ms for proxy {}", latency, proxyInfo);
+        latencyMap.put(proxyInfo, latency);
+    }
+
+    /**
+     * @param proxyInfo the proxy.
+     * @return the last recorded connect latency in milliseconds or {@code null} if none.
+     */
+    Long getLatency(final ProxyInfo proxyInfo) {
+        return latencyMap.get(proxyInfo);
+    }
+
+    /**
+     * Clear the blacklist, resetting all the circuit breakers.
      *
      * @return the number of currently active blacklisted proxies.
      */
     public int clear() {
-        long count = blacklistMap.keySet().stream()
-                .filter(this::checkBlacklist).count();
-        blacklistMap.clear();
-        return (int) count;
+        int count = getActiveBlacklistMap().size();
+        circuitBreakerMap.clear();
+        return count;
     }
 
     /**
@@ -119,7 +273,17 @@ public class ProxyBlacklist implements AutoCloseable {
         return temporalUnit;
     }
 
+    /**
+     * @return a map containing the blacklisted proxies (not yet half-open), with their timeout.
+     */
     public Map<ProxyInfo, Instant> getBlacklistMap() {
+        Map<ProxyInfo, Instant> blacklistMap = new HashMap<>();
+        circuitBreakerMap.forEach((proxyInfo, circuitBreaker) -> {
+            State state = circuitBreaker.state.get();
+            if (state.status == Status.OPEN) {
+                blacklistMap.put(proxyInfo, state.openUntil);
+            }
+        });
         return Collections.unmodifiableMap(blacklistMap);
     }
 
@@ -132,15 +296,100 @@ public class ProxyBlacklist implements AutoCloseable {
      */
     public Map<ProxyInfo, Instant> getActiveBlacklistMap() {
         Instant now = Instant.now();
-        return Collections.unmodifiableMap(
-                blacklistMap.entrySet().stream().
-                        filter(e -> !e.getValue().isBefore(now)).
-                        collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+        Map<ProxyInfo, Instant> blacklistMap = new HashMap<>(getBlacklistMap());
+        blacklistMap.values().removeIf(timeout -> timeout.isBefore(now));
+        return Collections.unmodifiableMap(blacklistMap);
     }
 
     @Override
     public void close() {
         logger.debug("Clear the blacklist");
-        blacklistMap.clear();
+        circuitBreakerMap.clear();
+        latencyMap.clear();
+    }
+
+    private enum Status {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * A proxy's circuit breaker.
+     */
+    private static class CircuitBreaker {
+
+        private final AtomicReference<State> state = new AtomicReference<>(State.INITIAL);
+    }
+
+    /**
+     * An immutable snapshot of a circuit breaker's state.
+     */
+    private static class State {
+
+        private static final State INITIAL = new State(Status.CLOSED, 0, 0, 0, null);
+
+        private final Status status;
+
+        /**
+         * The outcomes in the window, the last one as the lowest bit: {@code 1} for a failure.
+         */
+        private final long failures;
+
+        /**
+         * The number of outcomes in the window.
+         */
+        private final int calls;
+
+        /**
+         * How many times the proxy has been blacklisted since the last full window of successes.
+         */
+        private final int backoff;
+
+        /**
+         * When {@link Status#OPEN}, the blacklist timeout;
+         * when {@link Status#HALF_OPEN}, the moment the trial is given again.
+         */
+        private final Instant openUntil;
+
+        private State(Status status, long failures, int calls, int backoff, Instant openUntil) {
+            this.status = status;
+            this.failures = failures;
+            this.calls = calls;
+            this.backoff = backoff;
+            this.openUntil = openUntil;
+        }
+
+        private State record(final boolean failure, final int window) {
+            int size = Math.max(1, Math.min(window, Long.SIZE));
+            long mask = size == Long.SIZE ? -1L : (1L << size) - 1;
+            long nextFailures = ((failures << 1) | (failure ? 1 : 0)) & mask;
+            int nextCalls = Math.min(calls + 1, size);
+
+            // A full window of successes resets the backoff
+            int nextBackoff = nextCalls == size && nextFailures == 0 ? 0 : backoff;
+            return new State(status, nextFailures, nextCalls, nextBackoff, openUntil);
+        }
+
+        private int getFailureRate() {
+            return calls == 0 ? 0 : Long.bitCount(failures) * 100 / calls;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof State)) {
+                return false;
+            }
+            State state = (State) o;
+            return failures == state.failures && calls == state.calls && backoff == state.backoff
+                    && status == state.status && Objects.equals(openUntil, state.openUntil);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(status, failures, calls, backoff, openUntil);
+        }
     }
+
 }
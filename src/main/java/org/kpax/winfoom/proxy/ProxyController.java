@@ -13,7 +13,6 @@
 package org.kpax.winfoom.proxy;
 
 import org.kpax.winfoom.annotation.ThreadSafe;
-import org.kpax.winfoom.config.ProxyConfig;
 import org.kpax.winfoom.config.ScopeConfiguration;
 import org.kpax.winfoom.pac.net.IpAddresses;
 import org.slf4j.Logger;
@@ -22,8 +21,6 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
-import java.net.Authenticator;
-
 /**
  * Provide methods to begin, end or clear proxy session.
  * <p>We rely on the Spring context to close this instance!
@@ -36,9 +33,6 @@ public class ProxyController implements AutoCloseable {
 
     private final Logger logger = LoggerFactory.getLogger(ProxyController.class);
 
-    @Autowired
-    private ProxyConfig proxyConfig;
-
     @Autowired
     private ScopeConfiguration scopeConfiguration;
 
@@ -63,7 +57,6 @@ public class ProxyController implements AutoCloseable {
 
     /**
      * End the proxy session.
-     * <p>Also, it removes the {@link Authenticator} - if any.
      */
     public synchronized void stop() {
         if (started) {
@@ -76,11 +69,6 @@ public class ProxyController implements AutoCloseable {
             IpAddresses.allPrimaryAddresses.reset();
             IpAddresses.primaryIPv4Address.reset();
         }
-
-        // Remove auth for SOCKS proxy
-        if (proxyConfig.getProxyType().isSocks5()) {
-            Authenticator.setDefault(null);
-        }
     }
 
     /**
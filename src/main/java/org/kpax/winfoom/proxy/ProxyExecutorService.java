@@ -13,37 +13,112 @@
 package org.kpax.winfoom.proxy;
 
 import org.kpax.winfoom.annotation.ProxySessionScope;
+import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.util.functional.SingletonSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A wrapper for {@link ThreadPoolExecutor} that forbids {@link #shutdown()}, {@link #shutdownNow()}
+ * A wrapper for {@link ExecutorService} that forbids {@link #shutdown()}, {@link #shutdownNow()}
  * and {@link #awaitTermination(long, TimeUnit)}.
+ * <p>Depending on {@link SystemConfig#getExecutorMode()}, the tasks are executed by a {@link ThreadPoolExecutor}
+ * of platform threads or, if the JVM supports it, by a virtual thread per task executor.
+ * <p>In bounded mode, only the client connections submitted by {@link #submitConnection(Runnable)} are limited:
+ * a connection submitted while the max number of connections are handled waits in a bounded queue, or is rejected
+ * with a {@link RejectedExecutionException} when the queue is full. The proxy's internal tasks are never rejected,
+ * since a connection may depend on them.
  */
 @Order(2)
 @ProxySessionScope
 @Component
 public class ProxyExecutorService implements ExecutorService, AutoCloseable {
 
-    private final SingletonSupplier<ThreadPoolExecutor> threadPoolSupplier;
+    private final Logger logger = LoggerFactory.getLogger(ProxyExecutorService.class);
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    private final SingletonSupplier<ExecutorService> threadPoolSupplier;
+
+    private final SingletonSupplier<ConnectionAdmission> connectionAdmissionSupplier;
+
+    private final AtomicLong rejectedCount = new AtomicLong();
 
     public ProxyExecutorService() {
-        this.threadPoolSupplier =
-                new SingletonSupplier<>(() -> new ThreadPoolExecutor(0, Integer.MAX_VALUE,
-                        60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
-                        new DefaultThreadFactory()));
+        this.threadPoolSupplier = new SingletonSupplier<>(this::createExecutor);
+        this.connectionAdmissionSupplier = new SingletonSupplier<>(() -> {
+            int maxConnections = systemConfig.getExecutorMaxConnections();
+            int queueCapacity = systemConfig.getExecutorQueueCapacity();
+            logger.info("Limit the client connections, max: {}, queueCapacity: {}", maxConnections, queueCapacity);
+            return new ConnectionAdmission(maxConnections, queueCapacity);
+        });
+    }
+
+    private ExecutorService createExecutor() {
+        if (systemConfig.getExecutorMode() == SystemConfig.ExecutorMode.VIRTUAL) {
+            Optional<ExecutorService> virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+            if (virtualThreadExecutor.isPresent()) {
+                logger.info("Use virtual threads");
+                return virtualThreadExecutor.get();
+            }
+            logger.warn("Virtual threads not supported by the JVM, use platform threads instead");
+        }
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                new DefaultThreadFactory());
+    }
+
+    /**
+     * Look up {@code Executors.newVirtualThreadPerTaskExecutor()} by reflection,
+     * since it is not available on every supported JDK.
+     *
+     * @return the virtual thread per task executor or empty if not supported.
+     */
+    private Optional<ExecutorService> newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return Optional.of((ExecutorService) factoryMethod.invoke(null));
+        } catch (NoSuchMethodException e) {
+            return Optional.empty();
+        } catch (Exception e) {
+            // For instance, the JDK has them as preview feature, but it is not enabled
+            logger.debug("Cannot create virtual threads", e);
+            return Optional.empty();
+        }
     }
 
     public void execute(Runnable task) {
         this.threadPoolSupplier.get().execute(task);
     }
 
+    /**
+     * Execute the handling of a new client connection, subject to the admission control in bounded mode.
+     *
+     * @param task the connection handling.
+     * @throws RejectedExecutionException if the connection is not admitted.
+     */
+    public void submitConnection(Runnable task) {
+        if (systemConfig.getExecutorMode() == SystemConfig.ExecutorMode.BOUNDED) {
+            connectionAdmissionSupplier.get().admit(task);
+        } else {
+            execute(task);
+        }
+    }
+
     public void shutdown() {
         throw new IllegalStateException("Manual shutdown not supported - ExecutorServiceAdapter is dependent on an external lifecycle");
     }
@@ -93,6 +168,54 @@ public class ProxyExecutorService implements ExecutorService, AutoCloseable {
         return threadPoolSupplier.get().invokeAny(tasks, timeout, unit);
     }
 
+    /**
+     * @return the approximate number of threads actively executing tasks
+     * ({@code 0} for the virtual thread per task executor).
+     */
+    public int getActiveCount() {
+        return threadPoolSupplier.value()
+                .filter(ThreadPoolExecutor.class::isInstance)
+                .map(executor -> ((ThreadPoolExecutor) executor).getActiveCount())
+                .orElse(0);
+    }
+
+    /**
+     * @return the number of client connections being handled, in bounded mode.
+     */
+    public int getActiveConnectionCount() {
+        return connectionAdmissionSupplier.value().map(ConnectionAdmission::getActiveCount).orElse(0);
+    }
+
+    /**
+     * @return the number of client connections waiting to be handled, in bounded mode.
+     */
+    public int getQueuedCount() {
+        return connectionAdmissionSupplier.value().map(ConnectionAdmission::getQueuedCount).orElse(0);
+    }
+
+    /**
+     * @return the number of client connections rejected so far, in bounded mode.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * A job that logs the executor statistics, along with the client connections' in bounded mode.
+     */
+    @Scheduled(fixedRateString = "#{systemConfig.executorStatsInterval * 1000}")
+    void logStatistics() {
+        if (threadPoolSupplier.hasValue() && !isShutdown()) {
+            if (systemConfig.getExecutorMode() == SystemConfig.ExecutorMode.BOUNDED) {
+                logger.info("Executor statistics: active threads {}, active connections {}, "
+                                + "queued connections {}, rejected connections {}",
+                        getActiveCount(), getActiveConnectionCount(), getQueuedCount(), getRejectedCount());
+            } else {
+                logger.info("Executor statistics: active threads {}", getActiveCount());
+            }
+        }
+    }
+
     public boolean isShutdown() {
         return threadPoolSupplier.hasValue() && threadPoolSupplier.get().isShutdown();
     }
@@ -106,6 +229,83 @@ public class ProxyExecutorService implements ExecutorService, AutoCloseable {
         threadPoolSupplier.value().ifPresent(ExecutorService::shutdownNow);
     }
 
+    /**
+     * Limit the number of client connections handled at the same time, with a bounded queue of waiting connections.
+     * <p>A finished connection hands its place over to the first waiting one.
+     */
+    private class ConnectionAdmission {
+        private final int maxConnections;
+        private final int queueCapacity;
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+        private int active;
+
+        ConnectionAdmission(int maxConnections, int queueCapacity) {
+            this.maxConnections = maxConnections;
+            this.queueCapacity = queueCapacity;
+        }
+
+        void admit(Runnable task) {
+            synchronized (this) {
+                if (active >= maxConnections) {
+                    if (waiting.size() < queueCapacity) {
+                        waiting.offer(task);
+                        return;
+                    }
+                    rejectedCount.incrementAndGet();
+                    throw new RejectedExecutionException("Connection rejected, active: " + active
+                            + ", queued: " + waiting.size());
+                }
+                active++;
+            }
+            try {
+                run(task);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    active--;
+                }
+                throw e;
+            }
+        }
+
+        private void run(Runnable task) {
+            execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    release();
+                }
+            });
+        }
+
+        private void release() {
+            Runnable next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    active--;
+                    return;
+                }
+            }
+            try {
+                run(next);
+            } catch (RejectedExecutionException e) {
+                // The executor is shut down
+                logger.debug("Cannot handle the waiting connection", e);
+                synchronized (this) {
+                    active--;
+                }
+            }
+        }
+
+        synchronized int getActiveCount() {
+            return active;
+        }
+
+        synchronized int getQueuedCount() {
+            return waiting.size();
+        }
+    }
+
     public static class DefaultThreadFactory implements ThreadFactory {
         private static final AtomicInteger poolNumber = new AtomicInteger(1);
         private final ThreadGroup group;
@@ -0,0 +1,208 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpVersion;
+import org.apache.http.util.EncodingUtils;
+import org.kpax.winfoom.annotation.ProxySessionScope;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.HttpUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * It actively probes the upstream proxies seen in the PAC results or the manual configuration.
+ * <p>The probe checks the TCP connection and, for HTTP proxies, optionally sends a request
+ * for the configured URL. A failed probe marks the proxy down, so that {@link ProxyBlacklist#checkBlacklist}
+ * skips it before any client request fails on it; a successful probe marks the proxy up
+ * and removes it from the blacklist, so that a recovered proxy is used again within seconds.
+ */
+@ThreadSafe
+@Order(1)
+@ProxySessionScope
+@Component
+class ProxyHealthChecker implements AutoCloseable {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyExecutorService executorService;
+
+    @Lazy
+    @Autowired
+    private ProxyBlacklist proxyBlacklist;
+
+    /**
+     * The probed proxies, with their state.
+     */
+    private final Map<ProxyInfo, Health> healthMap = new ConcurrentHashMap<>();
+
+    private volatile boolean closed;
+
+    /**
+     * @return {@code true} iff the health check is enabled.
+     */
+    boolean isEnabled() {
+        return systemConfig.isHealthCheck();
+    }
+
+    /**
+     * Register the proxies to be probed from now on. {@code DIRECT} is ignored.
+     *
+     * @param proxyInfoList the proxies.
+     */
+    void register(final List<ProxyInfo> proxyInfoList) {
+        for (ProxyInfo proxyInfo : proxyInfoList) {
+            if (!proxyInfo.getType().isDirect() && healthMap.putIfAbsent(proxyInfo, new Health()) == null) {
+                logger.debug("Register proxy {} for health check", proxyInfo);
+            }
+        }
+    }
+
+    /**
+     * @param proxyInfo the proxy.
+     * @return {@code true} iff the last probe of the proxy failed.
+     */
+    boolean isDown(final ProxyInfo proxyInfo) {
+        Health health = healthMap.get(proxyInfo);
+        return health != null && health.down;
+    }
+
+    /**
+     * A job that probes all the registered proxies, each one on a separate thread.
+     */
+    @Scheduled(fixedRateString = "#{systemConfig.healthCheckInterval * 1000}")
+    void probeAll() {
+        if (!closed && isEnabled()) {
+            healthMap.forEach((proxyInfo, health) -> {
+                if (health.probing.compareAndSet(false, true)) {
+                    try {
+                        executorService.submit(() -> {
+                            try {
+                                probe(proxyInfo);
+                            } finally {
+                                health.probing.set(false);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        logger.debug("Cannot probe proxy " + proxyInfo, e);
+                        health.probing.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Probe a proxy and update its state.
+     *
+     * @param proxyInfo the proxy.
+     * @return {@code true} iff the proxy is up.
+     */
+    boolean probe(final ProxyInfo proxyInfo) {
+        boolean up;
+        try {
+            check(proxyInfo);
+            up = true;
+        } catch (Exception e) {
+            logger.debug("Health check failed for proxy " + proxyInfo, e);
+            up = false;
+        }
+        Health health = healthMap.computeIfAbsent(proxyInfo, (key) -> new Health());
+        if (health.down == up) {
+            logger.info("Proxy {} is {}", proxyInfo, up ? "up" : "down");
+        }
+        health.down = !up;
+        if (up) {
+            proxyBlacklist.remove(proxyInfo);
+        }
+        return up;
+    }
+
+    /**
+     * @throws Exception if the proxy cannot be connected, or doesn't give a HTTP response to the request.
+     */
+    private void check(final ProxyInfo proxyInfo) throws Exception {
+        HttpHost proxyHost = proxyInfo.getProxyHost();
+        int timeout = systemConfig.getHealthCheckTimeout() * 1000;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(proxyHost.getHostName(), proxyHost.getPort()), timeout);
+            String url = systemConfig.getHealthCheckUrl();
+            if (proxyInfo.getType().isHttp() && StringUtils.hasText(url)) {
+                socket.setSoTimeout(timeout);
+                URI uri = URI.create(url);
+                String request;
+                if ("https".equalsIgnoreCase(uri.getScheme())) {
+                    String host = uri.getHost() + ":" + (uri.getPort() > 0 ? uri.getPort() : 443);
+                    request = HttpUtils.HTTP_CONNECT + " " + host + " " + HttpVersion.HTTP_1_1 + "\r\n"
+                            + "Host: " + host + "\r\n\r\n";
+                } else {
+                    request = "HEAD " + url + " " + HttpVersion.HTTP_1_1 + "\r\n"
+                            + "Host: " + uri.getAuthority() + "\r\n"
+                            + "Connection: close\r\n\r\n";
+                }
+                OutputStream outputStream = socket.getOutputStream();
+                outputStream.write(EncodingUtils.getAsciiBytes(request));
+                outputStream.flush();
+                String statusLine = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+                if (statusLine == null || !statusLine.startsWith("HTTP/")) {
+                    throw new IllegalStateException("Not a HTTP response: " + statusLine);
+                }
+                logger.debug("Health check response from proxy {}: {}", proxyInfo, statusLine);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        logger.debug("Clear the health check states");
+        closed = true;
+        healthMap.clear();
+    }
+
+    /**
+     * The health state of a proxy.
+     */
+    private static class Health {
+
+        private final AtomicBoolean probing = new AtomicBoolean();
+
+        private volatile boolean down;
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.kpax.winfoom.annotation.ProxySessionScope;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * It orders the upstream proxies returned by the PAC script according to the
+ * {@link SystemConfig.LoadBalancing} policy, so that the load is spread among equivalent proxies.
+ * <p>For each proxy, it keeps an exponentially weighted moving average (EWMA) of the latency
+ * until the response starts (connect plus first byte) and the number of in-flight requests.
+ * Only the runs of consecutive non blacklisted proxies are reordered, each one in place: the {@code DIRECT}
+ * and the blacklisted entries stay where the PAC script put them. The PAC order is the tiebreaker.
+ */
+@ThreadSafe
+@ProxySessionScope
+@Component
+class ProxyLoadBalancer implements AutoCloseable {
+
+    /**
+     * The weight of the last sample in the moving average.
+     */
+    static final double ALPHA = 0.3;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Lazy
+    @Autowired
+    private ProxyBlacklist proxyBlacklist;
+
+    private final Map<ProxyInfo, Stats> statsMap = new ConcurrentHashMap<>();
+
+    /**
+     * @return {@code true} iff a load balancing policy is configured.
+     */
+    boolean isEnabled() {
+        return systemConfig.getLoadBalancing() != SystemConfig.LoadBalancing.NONE;
+    }
+
+    /**
+     * Order the proxies according to the load balancing policy.
+     *
+     * @param proxyInfoList the proxies, in the PAC order.
+     * @return the ordered proxies.
+     */
+    List<ProxyInfo> order(final List<ProxyInfo> proxyInfoList) {
+        List<ProxyInfo> ordered = null;
+        int runStart = 0;
+        for (int i = 0; i <= proxyInfoList.size(); i++) {
+            if (i < proxyInfoList.size() && isCandidate(proxyInfoList.get(i))) {
+                continue;
+            }
+            if (i - runStart > 1) {
+                if (ordered == null) {
+                    ordered = new ArrayList<>(proxyInfoList);
+                }
+                orderRun(ordered.subList(runStart, i));
+            }
+            runStart = i + 1;
+        }
+        if (ordered == null) {
+            return proxyInfoList;
+        }
+        logger.debug("Load balanced proxies: {}", ordered);
+        return ordered;
+    }
+
+    private boolean isCandidate(final ProxyInfo proxyInfo) {
+        return !proxyInfo.getType().isDirect() && !proxyBlacklist.isBlacklisted(proxyInfo);
+    }
+
+    /**
+     * Order in place a run of at least two consecutive candidates.
+     */
+    private void orderRun(final List<ProxyInfo> candidates) {
+        if (systemConfig.getLoadBalancing() == SystemConfig.LoadBalancing.FASTEST) {
+            // The sort is stable: the PAC order breaks the ties
+            candidates.sort(Comparator.comparingDouble(this::getLatency));
+        } else {
+            int first = ThreadLocalRandom.current().nextInt(candidates.size());
+            int second = ThreadLocalRandom.current().nextInt(candidates.size() - 1);
+            if (second >= first) {
+                second++;
+            }
+            double firstLoad = getLoad(candidates.get(first));
+            double secondLoad = getLoad(candidates.get(second));
+            int chosen = firstLoad < secondLoad ? first
+                    : firstLoad > secondLoad ? second : Math.min(first, second);
+            candidates.add(0, candidates.remove(chosen));
+        }
+    }
+
+    /**
+     * Mark the beginning of a request through the proxy.
+     *
+     * @param proxyInfo the proxy.
+     */
+    void begin(final ProxyInfo proxyInfo) {
+        getStats(proxyInfo).inFlight.incrementAndGet();
+    }
+
+    /**
+     * Mark the end of a request through the proxy.
+     *
+     * @param proxyInfo the proxy.
+     */
+    void end(final ProxyInfo proxyInfo) {
+        getStats(proxyInfo).inFlight.decrementAndGet();
+    }
+
+    /**
+     * Add a latency sample to the proxy's moving average.
+     *
+     * @param proxyInfo the proxy.
+     * @param latency   the latency in milliseconds.
+     */
+    void recordLatency(final ProxyInfo proxyInfo, final double latency) {
+        Stats stats = getStats(proxyInfo);
+        synchronized (stats) {
+            stats.latency = Double.isNaN(stats.latency) ? latency : ALPHA * latency + (1 - ALPHA) * stats.latency;
+        }
+        logger.debug("Latency sample {} ms for proxy {}, average {} ms", latency, proxyInfo, stats.latency);
+    }
+
+    /**
+     * @param proxyInfo the proxy.
+     * @return the average latency in milliseconds, or the last connect latency recorded by the
+     * {@link ProxyBlacklist} if there is no sample yet, or {@code 0} if unknown.
+     */
+    double getLatency(final ProxyInfo proxyInfo) {
+        Stats stats = statsMap.get(proxyInfo);
+        if (stats != null && !Double.isNaN(stats.latency)) {
+            return stats.latency;
+        }
+        Long connectLatency = proxyBlacklist.getLatency(proxyInfo);
+        return connectLatency != null ? connectLatency : 0;
+    }
+
+    /**
+     * @param proxyInfo the proxy.
+     * @return the number of in-flight requests through the proxy.
+     */
+    int getInFlight(final ProxyInfo proxyInfo) {
+        Stats stats = statsMap.get(proxyInfo);
+        return stats != null ? stats.inFlight.get() : 0;
+    }
+
+    /**
+     * The average latency weighted by the in-flight requests, including the next one.
+     */
+    private double getLoad(final ProxyInfo proxyInfo) {
+        return getLatency(proxyInfo) * (getInFlight(proxyInfo) + 1);
+    }
+
+    private Stats getStats(final ProxyInfo proxyInfo) {
+        return statsMap.computeIfAbsent(proxyInfo, (key) -> new Stats());
+    }
+
+    @Override
+    public void close() {
+        logger.debug("Clear the load balancing statistics");
+        statsMap.clear();
+    }
+
+    private static class Stats {
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        /**
+         * The moving average, {@code NaN} until the first sample.
+         */
+        private volatile double latency = Double.NaN;
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * It races the connection attempts to the proxies returned by the PAC script, similar to Happy Eyeballs.
+ * <p>The proxies are tried in order: when an attempt has not connected within the configured delay,
+ * or has failed, the attempt to the next proxy is started in parallel. The first proxy connected wins;
+ * the pending attempts are cancelled and their elapsed time is recorded as the proxy's latency,
+ * the failed ones are blacklisted. A TCP connection proves nothing at the HTTP level, so it doesn't close
+ * the circuit breaker of a half-open proxy: the request processed afterwards does.
+ * <p>The attempts only establish the TCP connection, the request is processed afterwards
+ * by the usual processor with the winner moved in front of the list. The winning socket is handed over
+ * to the {@link UpstreamConnector}, to be used by the processor's first connection to the winner.
+ */
+@ThreadSafe
+@Component
+class ProxyRace {
+
+    private final Logger logger = LoggerFactory.getLogger(ProxyRace.class);
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyExecutorService executorService;
+
+    @Lazy
+    @Autowired
+    private ProxyBlacklist proxyBlacklist;
+
+    @Autowired
+    private DnsCache dnsCache;
+
+    @Autowired
+    private UpstreamConnector upstreamConnector;
+
+    /**
+     * Race the connection attempts.
+     *
+     * @param proxyInfoList the proxies, in the PAC order.
+     * @param requestUri    the request's URI, for the {@code DIRECT} connection attempts.
+     * @param withChannel   whether the sockets must be backed by a {@link SocketChannel}.
+     * @return the proxies with the winner first, or the same list if no proxy could be connected.
+     */
+    List<ProxyInfo> race(final List<ProxyInfo> proxyInfoList, final URI requestUri, final boolean withChannel) {
+        List<Attempt> attempts = new ArrayList<>();
+        Attempt winnerAttempt = null;
+        try {
+            CompletionService<Attempt> completionService = new ExecutorCompletionService<>(executorService);
+            int pending = 0;
+            for (int i = 0; winnerAttempt == null; ) {
+                if (i < proxyInfoList.size()) {
+                    ProxyInfo proxyInfo = proxyInfoList.get(i++);
+                    if (i < proxyInfoList.size() && proxyBlacklist.isBlacklisted(proxyInfo)) {
+                        logger.debug("Blacklisted proxy {} - skip it", proxyInfo);
+                        continue;
+                    }
+                    Attempt attempt = new Attempt(proxyInfo, i == proxyInfoList.size(), requestUri, withChannel);
+                    attempts.add(attempt);
+                    completionService.submit(attempt::connect);
+                    pending++;
+                } else if (pending == 0) {
+                    break;
+                }
+
+                // Wait for the current attempts, no longer than the delay if there is a next proxy
+                Future<Attempt> done = i < proxyInfoList.size()
+                        ? completionService.poll(systemConfig.getProxyRaceDelay(), TimeUnit.MILLISECONDS)
+                        : completionService.take();
+                if (done != null) {
+                    pending--;
+                    Attempt attempt = done.get();
+                    if (attempt.connected) {
+                        winnerAttempt = attempt;
+                    } else if (!attempt.last) {
+                        proxyBlacklist.blacklist(attempt.proxyInfo);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            logger.debug("Error on racing the proxies, keep the PAC order", e);
+        } finally {
+            for (Attempt attempt : attempts) {
+                if (attempt != winnerAttempt) {
+                    attempt.cancel();
+                }
+            }
+        }
+
+        ProxyInfo winner = null;
+        if (winnerAttempt != null) {
+            winner = winnerAttempt.proxyInfo;
+            upstreamConnector.adopt(winnerAttempt.host, winnerAttempt.socket);
+        }
+        logger.debug("Race winner: {}", winner);
+        if (winner == null || winner.equals(proxyInfoList.get(0))) {
+            return proxyInfoList;
+        }
+        List<ProxyInfo> ordered = new ArrayList<>(proxyInfoList.size());
+        ordered.add(winner);
+        for (ProxyInfo proxyInfo : proxyInfoList) {
+            if (!proxyInfo.equals(winner)) {
+                ordered.add(proxyInfo);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * A TCP connection attempt to a proxy (or to the request's host, for {@code DIRECT}).
+     */
+    private class Attempt {
+
+        private final ProxyInfo proxyInfo;
+
+        private final boolean last;
+
+        private final URI requestUri;
+
+        /**
+         * The host connected to: the proxy or, for {@code DIRECT}, the request's host.
+         */
+        private final HttpHost host;
+
+        private final Socket socket;
+
+        private final long start = System.currentTimeMillis();
+
+        private volatile boolean connected;
+
+        private volatile boolean finished;
+
+        private Attempt(final ProxyInfo proxyInfo, final boolean last, final URI requestUri,
+                        final boolean withChannel) throws IOException {
+            this.proxyInfo = proxyInfo;
+            this.last = last;
+            if (proxyInfo.getType().isDirect()) {
+                int port = requestUri.getPort() > 0 ? requestUri.getPort()
+                        : "https".equalsIgnoreCase(requestUri.getScheme()) ? 443 : 80;
+                this.host = new HttpHost(requestUri.getHost(), port);
+            } else {
+                this.host = proxyInfo.getProxyHost();
+            }
+            this.socket = withChannel ? SocketChannel.open().socket() : new Socket();
+        }
+
+        private Attempt connect() {
+            try {
+                socket.connect(new InetSocketAddress(dnsCache.resolve(host.getHostName())[0], host.getPort()),
+                        systemConfig.getSocketConnectTimeout() * 1000);
+                connected = true;
+                proxyBlacklist.recordLatency(proxyInfo, System.currentTimeMillis() - start);
+            } catch (Exception e) {
+                logger.debug("Failed to connect with proxy: " + proxyInfo, e);
+                InputOutputs.close(socket);
+            } finally {
+                finished = true;
+            }
+            return this;
+        }
+
+        /**
+         * Close the socket of a losing attempt, recording the elapsed time as latency if still pending.
+         */
+        private void cancel() {
+            if (!finished) {
+                logger.debug("Cancel the connection attempt to proxy {}", proxyInfo);
+                proxyBlacklist.recordLatency(proxyInfo, System.currentTimeMillis() - start);
+            }
+            InputOutputs.close(socket);
+        }
+    }
+
+}
@@ -12,7 +12,6 @@
 
 package org.kpax.winfoom.proxy;
 
-import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpStatus;
@@ -161,17 +160,6 @@ public class ProxyValidator {
 
         HttpClientBuilder httpClientBuilder;
         if (proxyType.isSocks()) {
-            if (!proxyConfig.isAutoConfig()
-                    && proxyType.isSocks5()
-                    && StringUtils.isNotEmpty(proxyConfig.getProxyUsername())) {
-                Authenticator.setDefault(new Authenticator() {
-                    public PasswordAuthentication getPasswordAuthentication() {
-                        String proxyPassword = proxyConfig.getProxyPassword();
-                        return (new PasswordAuthentication(proxyConfig.getProxyUsername(),
-                                proxyPassword != null ? proxyPassword.toCharArray() : new char[0]));
-                    }
-                });
-            }
             ConnectionSocketFactory connectionSocketFactory = proxyType.isSocks4()
                     ? socks4ConnectionSocketFactory : socksConnectionSocketFactory;
             Registry<ConnectionSocketFactory> factoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
@@ -180,7 +168,8 @@ public class ProxyValidator {
                     .build();
 
             httpClientBuilder = HttpClients.custom().
-                    setConnectionManager(new PoolingHttpClientConnectionManager(factoryRegistry));
+                    setConnectionManager(new PoolingHttpClientConnectionManager(factoryRegistry,
+                            SocksConnectionSocketFactory.REMOTE_DNS_RESOLVER));
         } else {
             httpClientBuilder = WinHttpClients.custom();
         }
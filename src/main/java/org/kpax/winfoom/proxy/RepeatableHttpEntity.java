@@ -206,6 +206,13 @@ class RepeatableHttpEntity extends AbstractHttpEntity implements Closeable {
         }
     }
 
+    /**
+     * @return {@code true} iff the content has been entirely read from the {@link SessionInputBufferImpl}.
+     */
+    boolean isConsumed() {
+        return bufferedBytes != null || contentLength == 0 || !streaming;
+    }
+
     @Override
     public boolean isStreaming() {
         return bufferedBytes == null && streaming;
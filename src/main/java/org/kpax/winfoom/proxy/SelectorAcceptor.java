@@ -0,0 +1,309 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.kpax.winfoom.annotation.NotThreadSafe;
+import org.kpax.winfoom.util.InputOutputs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * A {@link Selector} based acceptor for the local proxy server.
+ * <p>It accepts the client connections and reads the request head (the request line plus the headers)
+ * without blocking. Only when the request head is completely buffered, the connection is switched back
+ * to blocking mode and handed over to the connection consumer, which is expected to process it on a worker thread.
+ * <p>A connection that doesn't send a complete request head within the socket timeout is closed.
+ * <p><b>Note:</b> The {@link #run()} method must be called by a single thread.
+ *
+ * @author Eugen Covaci
+ */
+@NotThreadSafe
+class SelectorAcceptor implements Runnable, AutoCloseable {
+
+    /**
+     * The max time the selector blocks waiting for events (milliseconds).
+     */
+    private static final long SELECT_TIMEOUT = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(SelectorAcceptor.class);
+
+    private final ServerSocketChannel serverSocketChannel;
+
+    private final Selector selector;
+
+    /**
+     * Receives the connections having a complete request head,
+     * along with the stream to read the request from.
+     */
+    private final BiConsumer<Socket, InputStream> connectionConsumer;
+
+    private final int requestHeadMaxLength;
+
+    /**
+     * The time to wait for a complete request head (milliseconds).
+     */
+    private final long requestHeadTimeout;
+
+    private long lastExpiryCheck = System.currentTimeMillis();
+
+    /**
+     * Constructor.
+     *
+     * @param serverSocketChannel  the bound server socket channel.
+     * @param connectionConsumer   the consumer of connections with complete request head.
+     * @param requestHeadMaxLength the max length of a buffered request head (bytes).
+     * @param requestHeadTimeout   the time to wait for a complete request head (seconds).
+     * @throws IOException if the selector cannot be opened.
+     */
+    SelectorAcceptor(final ServerSocketChannel serverSocketChannel,
+                     final BiConsumer<Socket, InputStream> connectionConsumer,
+                     final int requestHeadMaxLength,
+                     final int requestHeadTimeout) throws IOException {
+        Assert.notNull(serverSocketChannel, "serverSocketChannel cannot be null");
+        Assert.notNull(connectionConsumer, "connectionConsumer cannot be null");
+        this.serverSocketChannel = serverSocketChannel;
+        this.connectionConsumer = connectionConsumer;
+        this.requestHeadMaxLength = requestHeadMaxLength;
+        this.requestHeadTimeout = requestHeadTimeout * 1000L;
+        this.selector = Selector.open();
+        this.serverSocketChannel.configureBlocking(false);
+        this.serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void run() {
+        List<SelectionKey> completedKeys = new ArrayList<>();
+        while (selector.isOpen()) {
+            try {
+                selector.select(SELECT_TIMEOUT);
+                for (Iterator<SelectionKey> itr = selector.selectedKeys().iterator(); itr.hasNext(); ) {
+                    SelectionKey key = itr.next();
+                    itr.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable() && read(key)) {
+                        completedKeys.add(key);
+                    }
+                }
+
+                if (!completedKeys.isEmpty()) {
+                    completedKeys.forEach(SelectionKey::cancel);
+
+                    // Flush the cancelled keys, otherwise
+                    // the channels cannot be switched to blocking mode
+                    selector.selectNow();
+                    completedKeys.forEach(this::dispatch);
+                    completedKeys.clear();
+                }
+
+                closeExpired();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (Exception e) {
+                logger.debug("Generic error on selecting connections", e);
+            }
+        }
+        logger.debug("Selector acceptor stopped");
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        while (true) {
+            try {
+                channel = serverSocketChannel.accept();
+            } catch (IOException e) {
+                logger.debug("Error on accepting connection", e);
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new RequestHeadBuffer());
+            } catch (IOException e) {
+                logger.debug("Error on registering connection", e);
+                InputOutputs.close(channel);
+            }
+        }
+    }
+
+    /**
+     * Read the available bytes.
+     *
+     * @param key the selection key of a client channel.
+     * @return {@code true} iff the request head is complete or it reached the max length.
+     */
+    private boolean read(final SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        RequestHeadBuffer requestHeadBuffer = (RequestHeadBuffer) key.attachment();
+        try {
+            if (requestHeadBuffer.readFrom(channel) < 0) {
+                logger.debug("Connection closed before sending a complete request head");
+                closeKey(key);
+                return false;
+            }
+        } catch (IOException e) {
+            logger.debug("Error on reading request head", e);
+            closeKey(key);
+            return false;
+        }
+        return requestHeadBuffer.isComplete() || requestHeadBuffer.isFull();
+    }
+
+    private void dispatch(final SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        RequestHeadBuffer requestHeadBuffer = (RequestHeadBuffer) key.attachment();
+        try {
+            channel.configureBlocking(true);
+            Socket socket = channel.socket();
+
+            // Replay the already buffered bytes, then continue with the socket's stream
+            InputStream inputStream = new SequenceInputStream(requestHeadBuffer.toInputStream(),
+                    socket.getInputStream());
+            connectionConsumer.accept(socket, inputStream);
+        } catch (Exception e) {
+            logger.debug("Error on dispatching connection", e);
+            InputOutputs.close(channel);
+        }
+    }
+
+    /**
+     * Close the connections that didn't send a complete request head in time.
+     */
+    private void closeExpired() {
+        long now = System.currentTimeMillis();
+        if (requestHeadTimeout > 0 && now - lastExpiryCheck >= SELECT_TIMEOUT) {
+            lastExpiryCheck = now;
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof RequestHeadBuffer
+                        && now - ((RequestHeadBuffer) key.attachment()).createdAt > requestHeadTimeout) {
+                    logger.debug("Request head timeout, close the connection");
+                    closeKey(key);
+                }
+            }
+        }
+    }
+
+    private void closeKey(final SelectionKey key) {
+        key.cancel();
+        InputOutputs.close(key.channel());
+    }
+
+    @Override
+    public void close() {
+        logger.debug("Close the selector acceptor");
+        try {
+            for (SelectionKey key : selector.keys()) {
+                InputOutputs.close(key.channel());
+            }
+        } catch (ClosedSelectorException e) {
+            logger.debug("Selector already closed");
+        }
+        InputOutputs.close(selector);
+    }
+
+    /**
+     * Accumulates the bytes of a request head.
+     */
+    private class RequestHeadBuffer {
+
+        private final long createdAt = System.currentTimeMillis();
+
+        private ByteBuffer buffer = ByteBuffer.allocate(Math.min(InputOutputs.DEFAULT_BUFFER_SIZE,
+                requestHeadMaxLength));
+
+        /**
+         * The position where the search for the end of the request head resumes.
+         */
+        private int scanPosition;
+
+        private boolean complete;
+
+        int readFrom(final SocketChannel channel) throws IOException {
+            int total = 0;
+            while (!complete) {
+                if (!buffer.hasRemaining()) {
+                    if (buffer.capacity() >= requestHeadMaxLength) {
+                        break;
+                    }
+                    ByteBuffer newBuffer = ByteBuffer.allocate(Math.min(buffer.capacity() * 2,
+                            requestHeadMaxLength));
+                    buffer.flip();
+                    newBuffer.put(buffer);
+                    buffer = newBuffer;
+                }
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    return total > 0 ? total : read;
+                } else if (read == 0) {
+                    break;
+                }
+                total += read;
+                complete = scanForEnd();
+            }
+            return total;
+        }
+
+        /**
+         * Look for the empty line marking the end of the request head.
+         * <p>Bare LF line terminators are accepted as well, like the request parser does.
+         *
+         * @return {@code true} iff the end of the request head has been found.
+         */
+        private boolean scanForEnd() {
+            byte[] array = buffer.array();
+            int limit = buffer.position();
+            for (; scanPosition < limit; scanPosition++) {
+                if (array[scanPosition] == '\n' && scanPosition > 0) {
+                    if (array[scanPosition - 1] == '\n') {
+                        return true;
+                    }
+                    if (array[scanPosition - 1] == '\r' && scanPosition > 1 && array[scanPosition - 2] == '\n') {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        boolean isFull() {
+            return !buffer.hasRemaining() && buffer.capacity() >= requestHeadMaxLength;
+        }
+
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buffer.array(), 0, buffer.position());
+        }
+    }
+
+}
@@ -29,6 +29,7 @@ import org.springframework.stereotype.Component;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.SocketChannel;
 
 /**
  * Process a CONNECT request through a SOCKS proxy or no proxy.
@@ -47,6 +48,21 @@ class SocketConnectClientConnectionProcessor implements ClientConnectionProcesso
     @Autowired
     private ProxyExecutorService executorService;
 
+    @Autowired
+    private TunnelRelay tunnelRelay;
+
+    @Autowired
+    private SpliceTransfer spliceTransfer;
+
+    @Autowired
+    private SocksClient socksClient;
+
+    @Autowired
+    private DnsCache dnsCache;
+
+    @Autowired
+    private UpstreamConnector upstreamConnector;
+
     @Override
     public void process(final ClientConnection clientConnection, final ProxyInfo proxyInfo)
             throws IOException {
@@ -54,35 +70,21 @@ class SocketConnectClientConnectionProcessor implements ClientConnectionProcesso
         RequestLine requestLine = clientConnection.getRequestLine();
         HttpHost target = HttpHost.create(requestLine.getUri());
 
-        Proxy proxy;
-        if (proxyInfo.getType().isSocks()) {
-            proxy = new Proxy(Proxy.Type.SOCKS,
-                    new InetSocketAddress(proxyInfo.getProxyHost().getHostName(),
-                            proxyInfo.getProxyHost().getPort()));
-        } else {
-            proxy = Proxy.NO_PROXY;
-        }
-
-        try (Socket socket = new Socket(proxy)) {
-            systemConfig.configureSocket(socket);
-            if (proxyInfo.getType().isSocks4()) {
-                HttpUtils.setSocks4(socket);
-            }
-            logger.debug("Open connection");
-            try {
-                socket.connect(new InetSocketAddress(target.getHostName(), target.getPort()),
-                        systemConfig.getSocketConnectTimeout() * 1000);
-            } catch (UnknownHostException e) {
-                clientConnection.writeErrorResponse(HttpStatus.SC_NOT_FOUND, e);
-            } catch (Exception e) {
-                logger.debug("Error on socket connecting", e);
-                if (e instanceof SocketException) {
-                    if (HttpUtils.isConnectionRefused((SocketException) e)) {
-                        throw new ConnectException(e.getMessage());
-                    }
-                }
-                throw e;
+        Socket socket;
+        try {
+            if (proxyInfo.getType().isSocks()) {
+                logger.debug("Open connection through SOCKS server");
+                socket = socksClient.connect(proxyInfo.getProxyHost(), proxyInfo.getType().isSocks4(), target,
+                        tunnelRelay.isRelayable(clientConnection));
+            } else {
+                logger.debug("Open connection");
+                socket = connect(target, tunnelRelay.isRelayable(clientConnection));
             }
+        } catch (UnknownHostException e) {
+            clientConnection.writeErrorResponse(HttpStatus.SC_NOT_FOUND, e);
+            return;
+        }
+        try {
             logger.debug("Connected to {}", target);
 
             // Respond with 200 code
@@ -93,17 +95,57 @@ class SocketConnectClientConnectionProcessor implements ClientConnectionProcesso
             clientConnection.writeln();
 
             try {
-                // The proxy facade mediates the full duplex communication
-                // between the client and the remote proxy
-                // This usually ends on connection reset, timeout or any other error
-                InputOutputs.duplex(executorService,
-                        StreamSource.from(socket.getInputStream(),
-                                socket.getOutputStream()),
-                        clientConnection);
+                if (tunnelRelay.canRelay(clientConnection, socket)) {
+                    // Hand over the tunnel to the selector threads
+                    // and release the current thread
+                    tunnelRelay.relay(clientConnection, socket);
+                } else if (!spliceTransfer.duplex(clientConnection, socket)) {
+                    // The proxy facade mediates the full duplex communication
+                    // between the client and the remote proxy
+                    // This usually ends on connection reset, timeout or any other error
+                    InputOutputs.duplex(executorService,
+                            StreamSource.from(socket.getInputStream(),
+                                    socket.getOutputStream()),
+                            clientConnection);
+                }
             } catch (Exception e) {
                 logger.error("Error on full duplex", e);
             }
+        } finally {
+            if (!clientConnection.isRelayed()) {
+                InputOutputs.close(socket);
+            }
+        }
+    }
 
+    /**
+     * Connect directly to the target, unless the {@link ProxyRace} has already done it.
+     *
+     * @param target      the target.
+     * @param withChannel whether the socket must be backed by a {@link SocketChannel}.
+     * @return the connected socket.
+     * @throws IOException
+     */
+    private Socket connect(final HttpHost target, final boolean withChannel) throws IOException {
+        Socket adopted = upstreamConnector.takeAdopted(target, withChannel);
+        if (adopted != null) {
+            return adopted;
+        }
+        Socket socket = withChannel ? SocketChannel.open().socket() : new Socket();
+        try {
+            systemConfig.configureSocket(socket);
+            socket.connect(new InetSocketAddress(dnsCache.resolve(target.getHostName())[0], target.getPort()),
+                    systemConfig.getSocketConnectTimeout() * 1000);
+            return socket;
+        } catch (Exception e) {
+            logger.debug("Error on socket connecting", e);
+            InputOutputs.close(socket);
+            if (e instanceof SocketException) {
+                if (HttpUtils.isConnectionRefused((SocketException) e)) {
+                    throw new ConnectException(e.getMessage());
+                }
+            }
+            throw e;
         }
     }
 
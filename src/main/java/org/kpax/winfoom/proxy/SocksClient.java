@@ -0,0 +1,502 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.util.InetAddressUtils;
+import org.kpax.winfoom.annotation.ProxySessionScope;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A SOCKS client (SOCKS4a and SOCKS5, CONNECT command only).
+ * <p>The target's host name is always sent to the SOCKS server, to be resolved remotely.
+ * <p>If {@code socks.pool.size} is positive, it keeps for each SOCKS server, SOCKS version and socket kind
+ * a few idle connections that have already finished the greeting and the authentication,
+ * so a CONNECT only needs the final exchange.
+ * The pool of a SOCKS server is topped up in background after each successful CONNECT.
+ */
+@ThreadSafe
+@Order(1)
+@ProxySessionScope
+@Component
+class SocksClient implements AutoCloseable {
+
+    static final int SOCKS4_VERSION = 4;
+    static final int SOCKS5_VERSION = 5;
+
+    static final int CONNECT_COMMAND = 1;
+
+    static final int SOCKS4_GRANTED = 0x5A;
+
+    static final int NO_AUTH_METHOD = 0;
+    static final int USER_PASSWORD_METHOD = 2;
+    static final int NO_ACCEPTABLE_METHOD = 0xFF;
+
+    static final int IPV4_ADDRESS = 1;
+    static final int DOMAIN_NAME = 3;
+    static final int IPV6_ADDRESS = 4;
+
+    static final int SUCCEEDED = 0;
+    static final int HOST_UNREACHABLE = 4;
+
+    private static final String[] SOCKS5_REPLIES = {"Succeeded", "General SOCKS server failure",
+            "Connection not allowed by ruleset", "Network unreachable", "Host unreachable",
+            "Connection refused", "TTL expired", "Command not supported", "Address type not supported"};
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private UpstreamConnector upstreamConnector;
+
+    @Autowired
+    private ProxyExecutorService executorService;
+
+    private final Map<PoolKey, SessionPool> sessionPools = new ConcurrentHashMap<>();
+
+    private volatile boolean closed;
+
+    /**
+     * Open a connection to the target through a SOCKS server.
+     *
+     * @param proxy       the SOCKS server.
+     * @param socks4      whether the SOCKS version is {@code 4} or not.
+     * @param target      the target host, resolved by the SOCKS server.
+     * @param withChannel whether the socket must be backed by a {@link java.nio.channels.SocketChannel}.
+     * @return the socket connected to the target.
+     * @throws java.net.ConnectException if the SOCKS server cannot be reached.
+     * @throws UnknownHostException      if the SOCKS server cannot reach the target's host.
+     * @throws SocketException           if the SOCKS server rejects the authentication or the request.
+     * @throws IOException               on any other I/O error.
+     */
+    Socket connect(final HttpHost proxy, final boolean socks4,
+                   final HttpHost target, final boolean withChannel) throws IOException {
+        PoolKey poolKey = new PoolKey(proxy, socks4, withChannel);
+        if (isPoolEnabled()) {
+            SessionPool sessionPool = sessionPools.computeIfAbsent(poolKey, SessionPool::new);
+            for (Session session; (session = sessionPool.lease()) != null; ) {
+                try {
+                    request(session.socket, socks4, target);
+                    sessionPool.topUp();
+                    return session.socket;
+                } catch (SocksReplyException e) {
+                    InputOutputs.close(session.socket);
+                    throw e.getCause();
+                } catch (IOException e) {
+                    // Most likely closed by the SOCKS server in the meantime
+                    logger.debug("Cannot use the pooled SOCKS session, try the next one", e);
+                    InputOutputs.close(session.socket);
+                }
+            }
+        }
+        Socket socket = negotiate(proxy, socks4, withChannel);
+        try {
+            request(socket, socks4, target);
+        } catch (SocksReplyException e) {
+            InputOutputs.close(socket);
+            throw e.getCause();
+        } catch (Exception e) {
+            InputOutputs.close(socket);
+            throw e;
+        }
+        if (isPoolEnabled()) {
+            SessionPool sessionPool = sessionPools.get(poolKey);
+            if (sessionPool != null) {
+                sessionPool.topUp();
+            }
+        }
+        return socket;
+    }
+
+    /**
+     * @return {@code true} iff the pool size is positive.
+     */
+    boolean isPoolEnabled() {
+        return systemConfig.getSocksPoolSize() > 0;
+    }
+
+    /**
+     * @param proxy the SOCKS server.
+     * @return the number of idle sessions to the SOCKS server, of any version and socket kind.
+     */
+    int getIdleCount(final HttpHost proxy) {
+        return sessionPools.values().stream()
+                .filter(sessionPool -> sessionPool.key.proxy.equals(proxy))
+                .mapToInt(sessionPool -> sessionPool.idle.size())
+                .sum();
+    }
+
+    /**
+     * Connect to the SOCKS server and, for SOCKS5, execute the greeting and the authentication.
+     *
+     * @return the socket ready for the CONNECT request.
+     */
+    private Socket negotiate(final HttpHost proxy, final boolean socks4, final boolean withChannel)
+            throws IOException {
+        Socket socket = upstreamConnector.connect(proxy, withChannel);
+        if (socks4) {
+            return socket;
+        }
+        try {
+            String username = getUsername();
+            OutputStream outputStream = socket.getOutputStream();
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+            if (username != null) {
+                outputStream.write(new byte[]{SOCKS5_VERSION, 2, NO_AUTH_METHOD, USER_PASSWORD_METHOD});
+            } else {
+                outputStream.write(new byte[]{SOCKS5_VERSION, 1, NO_AUTH_METHOD});
+            }
+            outputStream.flush();
+            checkVersion(inputStream.readUnsignedByte(), SOCKS5_VERSION);
+            int method = inputStream.readUnsignedByte();
+            if (method == USER_PASSWORD_METHOD && username != null) {
+                authenticate(outputStream, inputStream, username);
+            } else if (method != NO_AUTH_METHOD) {
+                throw new SocketException(method == NO_ACCEPTABLE_METHOD
+                        ? "SOCKS : No acceptable methods" : "SOCKS : Unexpected method " + method);
+            }
+            return socket;
+        } catch (Exception e) {
+            InputOutputs.close(socket);
+            throw e;
+        }
+    }
+
+    /**
+     * Username/password authentication (RFC 1929).
+     */
+    private void authenticate(final OutputStream outputStream, final DataInputStream inputStream,
+                              final String username) throws IOException {
+        String password = proxyConfig.getProxyPassword();
+        ByteArrayOutputStream authRequest = new ByteArrayOutputStream();
+        authRequest.write(1);
+        writeString(authRequest, username);
+        writeString(authRequest, password != null ? password : "");
+        outputStream.write(authRequest.toByteArray());
+        outputStream.flush();
+        inputStream.readUnsignedByte();
+        if (inputStream.readUnsignedByte() != SUCCEEDED) {
+            throw new SocketException("SOCKS : authentication failed");
+        }
+    }
+
+    /**
+     * Send the CONNECT request and read the reply.
+     *
+     * @throws SocksReplyException if the SOCKS server has rejected the request.
+     */
+    private void request(final Socket socket, final boolean socks4, final HttpHost target) throws IOException {
+        OutputStream outputStream = socket.getOutputStream();
+        DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+        String hostName = target.getHostName();
+        int port = target.getPort();
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        if (socks4) {
+            // SOCKS4a: an invalid address 0.0.0.x followed by the host name
+            request.write(SOCKS4_VERSION);
+            request.write(CONNECT_COMMAND);
+            request.write(port >> 8);
+            request.write(port);
+            if (InetAddressUtils.isIPv4Address(hostName)) {
+                request.write(InetAddress.getByName(hostName).getAddress());
+                request.write(0);
+            } else {
+                request.write(new byte[]{0, 0, 0, 1});
+                request.write(0);
+                request.write(hostName.getBytes(StandardCharsets.ISO_8859_1));
+                request.write(0);
+            }
+            outputStream.write(request.toByteArray());
+            outputStream.flush();
+
+            inputStream.readUnsignedByte();
+            int status = inputStream.readUnsignedByte();
+            inputStream.readFully(new byte[6]);
+            if (status != SOCKS4_GRANTED) {
+                throw new SocksReplyException(new SocketException("SOCKS : request rejected, code " + status));
+            }
+        } else {
+            request.write(SOCKS5_VERSION);
+            request.write(CONNECT_COMMAND);
+            request.write(0);
+            if (InetAddressUtils.isIPv4Address(hostName)) {
+                request.write(IPV4_ADDRESS);
+                request.write(InetAddress.getByName(hostName).getAddress());
+            } else if (InetAddressUtils.isIPv6Address(hostName)) {
+                request.write(IPV6_ADDRESS);
+                request.write(InetAddress.getByName(hostName).getAddress());
+            } else {
+                request.write(DOMAIN_NAME);
+                writeString(request, hostName);
+            }
+            request.write(port >> 8);
+            request.write(port);
+            outputStream.write(request.toByteArray());
+            outputStream.flush();
+
+            checkVersion(inputStream.readUnsignedByte(), SOCKS5_VERSION);
+            int reply = inputStream.readUnsignedByte();
+            inputStream.readUnsignedByte();
+            int addressType = inputStream.readUnsignedByte();
+            int addressLength;
+            if (addressType == IPV4_ADDRESS) {
+                addressLength = 4;
+            } else if (addressType == IPV6_ADDRESS) {
+                addressLength = 16;
+            } else if (addressType == DOMAIN_NAME) {
+                addressLength = inputStream.readUnsignedByte();
+            } else {
+                throw new SocketException("SOCKS : Unexpected address type " + addressType);
+            }
+            // The bound address and port
+            inputStream.readFully(new byte[addressLength + 2]);
+            if (reply != SUCCEEDED) {
+                String message = "SOCKS : " + (reply < SOCKS5_REPLIES.length
+                        ? SOCKS5_REPLIES[reply] : "Unknown reply " + reply);
+                // The target's host name is resolved by the SOCKS server
+                throw new SocksReplyException(reply == HOST_UNREACHABLE
+                        ? new UnknownHostException(message) : new SocketException(message));
+            }
+        }
+        logger.debug("Connected to {} through the SOCKS server", target);
+    }
+
+    /**
+     * @return the SOCKS5 username, {@code null} if none.
+     */
+    private String getUsername() {
+        if (!proxyConfig.isAutoConfig()
+                && proxyConfig.getProxyType().isSocks5()
+                && StringUtils.isNotEmpty(proxyConfig.getProxyUsername())) {
+            return proxyConfig.getProxyUsername();
+        }
+        return null;
+    }
+
+    private void checkVersion(final int version, final int expected) throws SocketException {
+        if (version != expected) {
+            throw new SocketException("SOCKS : Unexpected version " + version);
+        }
+    }
+
+    private void writeString(final ByteArrayOutputStream outputStream, final String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 255) {
+            throw new SocketException("SOCKS : Value too long: " + value);
+        }
+        outputStream.write(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    private boolean isExpired(final Session session) {
+        return System.currentTimeMillis() - session.createdAt
+                > TimeUnit.SECONDS.toMillis(systemConfig.getSocksPoolIdleTimeout());
+    }
+
+    /**
+     * A job that closes the expired idle sessions.
+     */
+    @Scheduled(fixedRateString = "#{systemConfig.socksPoolIdleTimeout * 1000}")
+    void evictIdleSessions() {
+        if (!closed) {
+            logger.debug("Execute SOCKS session pool clean up task");
+            sessionPools.values().forEach(sessionPool -> sessionPool.idle.removeIf(session -> {
+                if (isExpired(session) || session.socket.isClosed()) {
+                    InputOutputs.close(session.socket);
+                    return true;
+                }
+                return false;
+            }));
+        }
+    }
+
+    @Override
+    public void close() {
+        logger.debug("Close all idle SOCKS sessions");
+        closed = true;
+        sessionPools.values().forEach(sessionPool -> {
+            for (Session session; (session = sessionPool.idle.pollFirst()) != null; ) {
+                InputOutputs.close(session.socket);
+            }
+        });
+        sessionPools.clear();
+    }
+
+    /**
+     * Carries a rejection by the SOCKS server, that must not be retried on another session.
+     */
+    private static class SocksReplyException extends IOException {
+
+        private SocksReplyException(final IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * The SOCKS server, the SOCKS version and whether the socket is backed by a channel:
+     * the sessions of a pool are interchangeable.
+     */
+    private static final class PoolKey {
+
+        private final HttpHost proxy;
+
+        private final boolean socks4;
+
+        private final boolean withChannel;
+
+        private PoolKey(final HttpHost proxy, final boolean socks4, final boolean withChannel) {
+            this.proxy = proxy;
+            this.socks4 = socks4;
+            this.withChannel = withChannel;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            PoolKey poolKey = (PoolKey) o;
+            return socks4 == poolKey.socks4 &&
+                    withChannel == poolKey.withChannel &&
+                    proxy.equals(poolKey.proxy);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(proxy, socks4, withChannel);
+        }
+
+        @Override
+        public String toString() {
+            return proxy + (socks4 ? " (SOCKS4)" : " (SOCKS5)") + (withChannel ? " with channel" : "");
+        }
+    }
+
+    /**
+     * A connection to the SOCKS server, ready for the CONNECT request.
+     */
+    private static class Session {
+
+        private final Socket socket;
+
+        private final boolean socks4;
+
+        private final boolean withChannel;
+
+        private final long createdAt = System.currentTimeMillis();
+
+        private Session(final Socket socket, final boolean socks4, final boolean withChannel) {
+            this.socket = socket;
+            this.socks4 = socks4;
+            this.withChannel = withChannel;
+        }
+    }
+
+    /**
+     * The idle sessions to a SOCKS server, for a SOCKS version and socket kind.
+     */
+    private class SessionPool {
+
+        private final PoolKey key;
+
+        private final Deque<Session> idle = new ConcurrentLinkedDeque<>();
+
+        private final AtomicBoolean toppingUp = new AtomicBoolean();
+
+        private SessionPool(final PoolKey key) {
+            this.key = key;
+        }
+
+        private Session lease() {
+            for (Session session; (session = idle.pollFirst()) != null; ) {
+                if (session.socks4 == key.socks4 && session.withChannel == key.withChannel
+                        && !isExpired(session) && !session.socket.isClosed()) {
+                    logger.debug("Lease SOCKS session to {}", key);
+                    return session;
+                }
+                InputOutputs.close(session.socket);
+            }
+            return null;
+        }
+
+        /**
+         * Prepare new sessions in background, unless another top up is in progress.
+         */
+        private void topUp() {
+            if (!closed && idle.size() < systemConfig.getSocksPoolSize() && toppingUp.compareAndSet(false, true)) {
+                try {
+                    executorService.submit(this::fill);
+                } catch (RejectedExecutionException e) {
+                    logger.debug("Cannot top up the SOCKS session pool", e);
+                    toppingUp.set(false);
+                }
+            }
+        }
+
+        private void fill() {
+            try {
+                while (!closed && idle.size() < systemConfig.getSocksPoolSize()) {
+                    Session session = new Session(negotiate(key.proxy, key.socks4, key.withChannel),
+                            key.socks4, key.withChannel);
+                    idle.addLast(session);
+                    if (closed) {
+                        idle.remove(session);
+                        InputOutputs.close(session.socket);
+                    }
+                }
+            } catch (Exception e) {
+                logger.debug("Error on preparing SOCKS session to " + key, e);
+            } finally {
+                toppingUp.set(false);
+            }
+        }
+    }
+
+}
@@ -13,35 +13,44 @@
 package org.kpax.winfoom.proxy;
 
 import org.apache.http.HttpHost;
-import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.DnsResolver;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.protocol.HttpContext;
 import org.kpax.winfoom.annotation.ThreadSafe;
-import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.util.HttpUtils;
+import org.kpax.winfoom.util.InputOutputs;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
-import java.net.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 
 /**
  * A {@link ConnectionSocketFactory} implementation for SOCKS proxy.
+ * <p>The connections are opened by the {@link SocksClient}, that sends the target's host name
+ * to the SOCKS server; use it along with {@link #REMOTE_DNS_RESOLVER} to avoid the local DNS lookup.
  */
 @ThreadSafe
 @Lazy
 @Component
 class SocksConnectionSocketFactory implements ConnectionSocketFactory {
 
+    /**
+     * A {@link DnsResolver} that does not resolve anything, since the SOCKS server does it.
+     */
+    static final DnsResolver REMOTE_DNS_RESOLVER =
+            host -> new InetAddress[]{InetAddress.getByAddress(host, new byte[]{0, 0, 0, 0})};
+
     @Autowired
-    private SystemConfig systemConfig;
+    private SocksClient socksClient;
 
     @Override
-    public Socket createSocket(final HttpContext context) throws IOException {
-        InetSocketAddress socketAddress = (InetSocketAddress) context.getAttribute(HttpUtils.SOCKS_ADDRESS);
-        Proxy proxy = new Proxy(Proxy.Type.SOCKS, socketAddress);
-        return systemConfig.configureSocket(new Socket(proxy));
+    public Socket createSocket(final HttpContext context) {
+        // Only a placeholder, replaced by the one opened by the SOCKS client
+        return new Socket();
     }
 
     @Override
@@ -52,25 +61,19 @@ class SocksConnectionSocketFactory implements ConnectionSocketFactory {
             final InetSocketAddress remoteAddress,
             final InetSocketAddress localAddress,
             final HttpContext context) throws IOException {
-        Socket currentSocket = socket != null ? socket : createSocket(context);
-        if (localAddress != null) {
-            currentSocket.bind(localAddress);
+        if (socket != null) {
+            InputOutputs.close(socket);
         }
-        try {
-            currentSocket.connect(remoteAddress, connectTimeout);
-        } catch (SocketTimeoutException e) {
-            throw new ConnectTimeoutException(e, host, remoteAddress.getAddress());
-        } catch (SocketException e) {
+        InetSocketAddress socketAddress = (InetSocketAddress) context.getAttribute(HttpUtils.SOCKS_ADDRESS);
+        return socksClient.connect(new HttpHost(socketAddress.getHostString(), socketAddress.getPort()),
+                isSocks4(), new HttpHost(host.getHostName(), remoteAddress.getPort()), false);
+    }
 
-            // Remap some exception to
-            // single out the connection failed case.
-            if (HttpUtils.isConnectionRefused(e)
-                    || HttpUtils.isConnectionTimeout(e)) {
-                throw new ConnectException(e.getMessage());
-            }
-            throw e;
-        }
-        return currentSocket;
+    /**
+     * @return whether the SOCKS version is {@code 4} or not.
+     */
+    boolean isSocks4() {
+        return false;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,251 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Platform;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.functional.SingletonSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.net.SocketImpl;
+import java.net.SocketTimeoutException;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * It mediates the full duplex communication of a tunnel with Linux's {@code splice},
+ * so the bytes are moved from one socket to the other through a pipe, without being copied in the Java heap.
+ * <p>It needs the sockets' file descriptors: on JDK 16+ the JVM must be started with
+ * {@code --add-opens java.base/java.io=ALL-UNNAMED --add-opens java.base/java.net=ALL-UNNAMED
+ * --add-opens java.base/sun.nio.ch=ALL-UNNAMED}.
+ * When not enabled or not available, the caller falls back to the stream copy.
+ */
+@ThreadSafe
+@Component
+class SpliceTransfer {
+
+    /**
+     * The max bytes moved by a single {@code splice} call (the default pipe capacity).
+     */
+    private static final int PIPE_CAPACITY = 65536;
+
+    private final Logger logger = LoggerFactory.getLogger(SpliceTransfer.class);
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private ProxyExecutorService executorService;
+
+    private final SingletonSupplier<Optional<LinuxLibc>> libcSupplier = new SingletonSupplier<>(this::loadLibc);
+
+    private Optional<LinuxLibc> loadLibc() {
+        if (!Platform.isLinux()) {
+            logger.info("Splice is only available on Linux");
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(Native.loadLibrary("c", LinuxLibc.class));
+        } catch (Throwable e) {
+            logger.warn("Cannot load the C library, splice not available", e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @return {@code true} iff splice is enabled and the C library is available.
+     */
+    boolean isEnabled() {
+        return systemConfig.isTunnelSplice() && libcSupplier.get().isPresent();
+    }
+
+    /**
+     * Mediate the full duplex communication between the client and the remote socket, using {@code splice}.
+     * <p>Any client's bytes already read but not consumed are first written to the remote socket.
+     * Like {@link org.kpax.winfoom.util.InputOutputs#duplex}, it returns when both directions end.
+     *
+     * @param clientConnection the client's connection.
+     * @param socket           the remote socket.
+     * @return {@code false} if splice cannot be used, in which case nothing has been transferred.
+     * @throws IOException if an I/O error occurs before the transfer starts.
+     */
+    boolean duplex(final ClientConnection clientConnection, final Socket socket) throws IOException {
+        if (!isEnabled()) {
+            return false;
+        }
+        Socket clientSocket = clientConnection.getSocket();
+        int clientFd;
+        int remoteFd;
+        try {
+            clientFd = getFileDescriptor(clientSocket);
+            remoteFd = getFileDescriptor(socket);
+        } catch (Exception e) {
+            logger.debug("Cannot access the sockets' file descriptors, splice not available", e);
+            return false;
+        }
+        LinuxLibc libc = libcSupplier.get().get();
+
+        byte[] pendingInput = clientConnection.readPendingInput();
+        if (pendingInput.length > 0) {
+            logger.debug("Write {} pending client bytes", pendingInput.length);
+            socket.getOutputStream().write(pendingInput);
+        }
+        configureBlocking(libc, clientFd);
+        configureBlocking(libc, remoteFd);
+
+        logger.debug("Start full duplex splice");
+        Future<?> remoteToClient = executorService.submit(
+                () -> transfer(libc, socket, remoteFd, clientSocket, clientFd));
+        transfer(libc, clientSocket, clientFd, socket, remoteFd);
+        try {
+            remoteToClient.get();
+        } catch (ExecutionException e) {
+            logger.debug("Error on executing remote to client splice", e.getCause());
+        } catch (InterruptedException e) {
+            logger.debug("Remote to client splice interrupted", e);
+            shutdown(clientSocket);
+            shutdown(socket);
+        }
+        logger.debug("End full duplex splice");
+        return true;
+    }
+
+    /**
+     * Move the bytes from source to target until the end of stream, then propagate the half-close.
+     * <p>On error, both sockets are shut down so that the opposite direction ends too.
+     */
+    private void transfer(final LinuxLibc libc,
+                          final Socket source, final int sourceFd,
+                          final Socket target, final int targetFd) {
+        int[] pipe = new int[2];
+        if (libc.pipe(pipe) != 0) {
+            logger.debug("Cannot create pipe, errno: {}", Native.getLastError());
+            shutdown(source);
+            shutdown(target);
+            return;
+        }
+        try {
+            NativeLong capacity = new NativeLong(PIPE_CAPACITY);
+            long read;
+            while ((read = splice(libc, sourceFd, pipe[1], capacity)) > 0) {
+                while (read > 0) {
+                    read -= splice(libc, pipe[0], targetFd, new NativeLong(read));
+                }
+            }
+            if (!target.isOutputShutdown()) {
+                target.shutdownOutput();
+            }
+        } catch (Exception e) {
+            logger.debug("Error on splice", e);
+            shutdown(source);
+            shutdown(target);
+        } finally {
+            libc.close(pipe[0]);
+            libc.close(pipe[1]);
+        }
+    }
+
+    /**
+     * @return the number of bytes moved, {@code 0} on end of stream.
+     * @throws IOException on error, including the socket timeout.
+     */
+    private long splice(final LinuxLibc libc, final int fdIn, final int fdOut, final NativeLong length)
+            throws IOException {
+        while (true) {
+            long result = libc.splice(fdIn, null, fdOut, null, length,
+                    LinuxLibc.SPLICE_F_MOVE | LinuxLibc.SPLICE_F_MORE).longValue();
+            if (result >= 0) {
+                return result;
+            }
+            int errno = Native.getLastError();
+            if (errno == LinuxLibc.EAGAIN) {
+                throw new SocketTimeoutException("Splice timed out");
+            } else if (errno != LinuxLibc.EINTR) {
+                throw new IOException("Splice failed, errno: " + errno);
+            }
+        }
+    }
+
+    /**
+     * Clear {@code O_NONBLOCK}, which the JDK may set for timed reads,
+     * and apply the socket timeout as {@code SO_RCVTIMEO}, which {@code splice} honours.
+     */
+    private void configureBlocking(final LinuxLibc libc, final int fd) throws IOException {
+        int flags = libc.fcntl(fd, LinuxLibc.F_GETFL, 0);
+        if (flags < 0 || libc.fcntl(fd, LinuxLibc.F_SETFL, flags & ~LinuxLibc.O_NONBLOCK) < 0) {
+            throw new IOException("Cannot configure blocking, errno: " + Native.getLastError());
+        }
+        Memory timeval = new Memory(2L * Native.LONG_SIZE);
+        timeval.setNativeLong(0, new NativeLong(systemConfig.getSocketSoTimeout()));
+        timeval.setNativeLong(Native.LONG_SIZE, new NativeLong(0));
+        if (libc.setsockopt(fd, LinuxLibc.SOL_SOCKET, LinuxLibc.SO_RCVTIMEO, timeval, (int) timeval.size()) < 0) {
+            throw new IOException("Cannot set the receive timeout, errno: " + Native.getLastError());
+        }
+    }
+
+    private void shutdown(final Socket socket) {
+        try {
+            if (!socket.isInputShutdown()) {
+                socket.shutdownInput();
+            }
+            if (!socket.isOutputShutdown()) {
+                socket.shutdownOutput();
+            }
+        } catch (Exception e) {
+            logger.debug("Error on shutting down socket", e);
+        }
+    }
+
+    /**
+     * Get the socket's file descriptor by reflection, since the JDK doesn't expose it.
+     *
+     * @param socket the connected socket.
+     * @return the file descriptor.
+     * @throws Exception if not accessible.
+     */
+    static int getFileDescriptor(final Socket socket) throws Exception {
+        FileDescriptor fileDescriptor;
+        if (socket.getChannel() != null) {
+            Method getFD = socket.getChannel().getClass().getDeclaredMethod("getFD");
+            getFD.setAccessible(true);
+            fileDescriptor = (FileDescriptor) getFD.invoke(socket.getChannel());
+        } else {
+            Method getImpl = Socket.class.getDeclaredMethod("getImpl");
+            getImpl.setAccessible(true);
+            Method getFileDescriptor = SocketImpl.class.getDeclaredMethod("getFileDescriptor");
+            getFileDescriptor.setAccessible(true);
+            fileDescriptor = (FileDescriptor) getFileDescriptor.invoke(getImpl.invoke(socket));
+        }
+        Field fd = FileDescriptor.class.getDeclaredField("fd");
+        fd.setAccessible(true);
+        int value = fd.getInt(fileDescriptor);
+        if (value < 0) {
+            throw new IllegalStateException("Invalid file descriptor");
+        }
+        return value;
+    }
+
+}
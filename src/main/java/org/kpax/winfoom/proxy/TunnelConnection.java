@@ -14,12 +14,15 @@ package org.kpax.winfoom.proxy;
 
 import org.apache.http.*;
 import org.apache.http.auth.AUTH;
+import org.apache.http.auth.AuthProtocolState;
+import org.apache.http.auth.AuthScheme;
 import org.apache.http.auth.AuthSchemeProvider;
 import org.apache.http.auth.AuthState;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.config.AuthSchemes;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.protocol.RequestAuthCache;
 import org.apache.http.client.protocol.RequestClientConnControl;
 import org.apache.http.config.ConnectionConfig;
 import org.apache.http.config.Registry;
@@ -52,8 +55,9 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import java.io.Closeable;
 import java.io.IOException;
-import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 /**
  * Establish a tunnel via a HTTP proxy.<br>
@@ -73,6 +77,15 @@ public class TunnelConnection {
     @Autowired
     private SystemConfig systemConfig;
 
+    @Autowired
+    private TunnelConnectionPool tunnelConnectionPool;
+
+    @Autowired
+    private ProxyAuthCache proxyAuthCache;
+
+    @Autowired
+    private UpstreamConnector upstreamConnector;
+
     private ConnectionReuseStrategy reuseStrategy;
     private Registry<AuthSchemeProvider> authSchemeRegistry;
     private HttpProcessor httpProcessor;
@@ -90,7 +103,7 @@ public class TunnelConnection {
                 .register(AuthSchemes.SPNEGO, new WindowsNegotiateSchemeFactory(null))
                 .build();
         this.httpProcessor = new ImmutableHttpProcessor(new RequestTargetHost(),
-                new RequestClientConnControl(), new RequestUserAgent());
+                new RequestClientConnControl(), new RequestUserAgent(), new RequestAuthCache());
         this.requestExec = new HttpRequestExecutor();
         this.proxyAuthStrategy = new ProxyAuthenticationStrategy();
         this.authenticator = new HttpAuthenticator();
@@ -99,24 +112,148 @@ public class TunnelConnection {
     public Tunnel open(final HttpHost proxy, final HttpHost target,
                        final ProtocolVersion protocolVersion)
             throws IOException, HttpException {
+        return open(proxy, target, protocolVersion, false);
+    }
+
+    /**
+     * Open a tunnel through a HTTP proxy.
+     * <p>If the {@link TunnelConnectionPool} is enabled, it first tries an idle connection
+     * already connected and possibly half-way authenticated to the proxy. If the pooled connection's
+     * authentication state is stale (a {@code 407} response) or the response cannot be understood,
+     * a fresh connection is tried. Any other refusal is thrown right away.
+     *
+     * @param proxy           the HTTP proxy.
+     * @param target          the tunnel's target.
+     * @param protocolVersion the HTTP version of the CONNECT request.
+     * @param withChannel     whether the socket to the proxy must be backed by a {@link SocketChannel}.
+     * @return the established {@link Tunnel}.
+     * @throws IOException
+     * @throws HttpException
+     */
+    public Tunnel open(final HttpHost proxy, final HttpHost target,
+                       final ProtocolVersion protocolVersion,
+                       final boolean withChannel)
+            throws IOException, HttpException {
         Args.notNull(proxy, "Proxy host");
         Args.notNull(target, "Target host");
 
-        AuthState proxyAuthState = new AuthState();
+        if (tunnelConnectionPool.isEnabled()) {
+            for (Handshake handshake; (handshake = tunnelConnectionPool.lease(proxy, target, withChannel)) != null; ) {
+                try {
+                    return open(proxy, target, protocolVersion, handshake);
+                } catch (IOException e) {
+                    // Most likely closed by the proxy in the meantime
+                    logger.debug("Cannot use the pooled connection, try the next one", e);
+                    InputOutputs.close(handshake);
+                } catch (TunnelRefusedException e) {
+                    InputOutputs.close(handshake);
+                    if (e.getResponse().getStatusLine().getStatusCode()
+                            != HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED) {
+                        throw e;
+                    }
+                    logger.debug("Stale authentication state on the pooled connection, try a fresh one", e);
+                    break;
+                } catch (HttpException e) {
+                    logger.debug("Unexpected response on the pooled connection, try a fresh one", e);
+                    InputOutputs.close(handshake);
+                    break;
+                }
+            }
+        }
+        return open(proxy, target, protocolVersion, new Handshake(withChannel));
+    }
+
+    private Tunnel open(final HttpHost proxy, final HttpHost target,
+                        final ProtocolVersion protocolVersion,
+                        final Handshake handshake)
+            throws IOException, HttpException {
+        final HttpHost host = toTunnelHost(target);
+        final HttpRequest connect = new BasicHttpRequest(HttpUtils.HTTP_CONNECT, host.toHostString(), protocolVersion);
+        final HttpResponse response = execute(proxy, host, connect, handshake, false);
 
-        HttpHost host = target;
-        if (host.getPort() <= 0) {
-            host = new HttpHost(host.getHostName(), 80, host.getSchemeName());
+        final int status = response.getStatusLine().getStatusCode();
+        logger.debug("Tunnel final status code: {}", status);
+
+        if (status > HttpUtils.MAX_HTTP_SUCCESS_CODE) { // Error case
+
+            // Buffer response content
+            final HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                response.setEntity(new BufferedHttpEntity(entity));
+            }
+            logger.debug("Close tunnel connection");
+            InputOutputs.close(handshake);
+            throw new TunnelRefusedException("CONNECT refused by proxy: " + response.getStatusLine(), response);
         }
+
+        if (tunnelConnectionPool.isEnabled()) {
+            tunnelConnectionPool.opened(proxy, handshake.challenged);
+        }
+        return new Tunnel(handshake.connection, response);
+    }
+
+    /**
+     * Prepare an idle connection to the proxy, for later use.
+     * <p>The connection is always TCP connected. If the proxy requires authentication,
+     * a CONNECT request is sent to get the authentication challenge, and, for NTLM,
+     * the first leg of the handshake is executed too: the next CONNECT request on this connection
+     * can carry the final credentials.
+     *
+     * @param proxy        the HTTP proxy.
+     * @param target       the target of the authentication CONNECT request.
+     * @param withChannel  whether the socket to the proxy must be backed by a {@link SocketChannel}.
+     * @param authenticate whether to start the authentication.
+     * @return the prepared {@link Handshake} or {@code null} if the proxy didn't challenge as expected.
+     * @throws IOException
+     * @throws HttpException
+     */
+    Handshake prepare(final HttpHost proxy, final HttpHost target,
+                      final boolean withChannel, final boolean authenticate)
+            throws IOException, HttpException {
+        Handshake handshake = new Handshake(withChannel);
+        try {
+            handshake.connect(proxy);
+            if (authenticate) {
+                final HttpHost host = toTunnelHost(target);
+                final HttpRequest connect = new BasicHttpRequest(HttpUtils.HTTP_CONNECT, host.toHostString(),
+                        HttpVersion.HTTP_1_1);
+                if (execute(proxy, host, connect, handshake, true) != null) {
+                    logger.debug("No authentication challenge from proxy {}", proxy);
+                    InputOutputs.close(handshake);
+                    return null;
+                }
+            }
+            return handshake;
+        } catch (Exception e) {
+            InputOutputs.close(handshake);
+            throw e;
+        }
+    }
+
+    /**
+     * Execute the CONNECT request, handling the authentication challenges.
+     *
+     * @param proxy     the HTTP proxy.
+     * @param host      the tunnel's target.
+     * @param connect   the CONNECT request.
+     * @param handshake the connection's state.
+     * @param warmUp    whether to stop once the next request would carry the final credentials.
+     * @return the final response or {@code null} if the warm up stopped.
+     * @throws IOException
+     * @throws HttpException
+     */
+    private HttpResponse execute(final HttpHost proxy, final HttpHost host,
+                                 final HttpRequest connect, final Handshake handshake,
+                                 final boolean warmUp)
+            throws IOException, HttpException {
+        final ManagedHttpClientConnection connection = handshake.connection;
+        final AuthState proxyAuthState = handshake.proxyAuthState;
+        final HttpContext context = handshake.context;
         final HttpRoute route = new HttpRoute(host, RequestConfig.DEFAULT.getLocalAddress(),
                 proxy, false, TunnelType.TUNNELLED, LayerType.PLAIN);
-        final ManagedHttpClientConnection connection = ManagedHttpClientConnectionFactory.INSTANCE.create(route,
-                ConnectionConfig.DEFAULT);
-        final HttpContext context = new BasicHttpContext();
-        final HttpRequest connect = new BasicHttpRequest(HttpUtils.HTTP_CONNECT, host.toHostString(), protocolVersion);
 
         // Populate the execution context
-        context.setAttribute(HttpCoreContext.HTTP_TARGET_HOST, target);
+        context.setAttribute(HttpCoreContext.HTTP_TARGET_HOST, host);
         context.setAttribute(HttpCoreContext.HTTP_CONNECTION, connection);
         context.setAttribute(HttpCoreContext.HTTP_REQUEST, connect);
         context.setAttribute(HttpClientContext.HTTP_ROUTE, route);
@@ -124,15 +261,17 @@ public class TunnelConnection {
         context.setAttribute(HttpClientContext.CREDS_PROVIDER, credentialsProvider);
         context.setAttribute(HttpClientContext.REQUEST_CONFIG, RequestConfig.DEFAULT);
         context.setAttribute(HttpClientContext.AUTHSCHEME_REGISTRY, authSchemeRegistry);
+        if (systemConfig.isAuthenticationPreemptive()) {
+            // Authenticate preemptively if the proxy's scheme is cached
+            context.setAttribute(HttpClientContext.AUTH_CACHE, proxyAuthCache);
+        }
 
         requestExec.preProcess(connect, httpProcessor, context);
 
         HttpResponse response;
         while (true) {
             if (!connection.isOpen()) {
-                Socket socket = new Socket(proxy.getHostName(), proxy.getPort());
-                systemConfig.configureSocket(socket);
-                connection.bind(socket);
+                handshake.connect(proxy);
             }
 
             authenticator.generateAuthResponse(connect, proxyAuthState, context);
@@ -148,6 +287,7 @@ public class TunnelConnection {
                     proxy, response, proxyAuthStrategy, proxyAuthState, context)) {
                 if (authenticator.handleAuthChallenge(
                         proxy, response, proxyAuthStrategy, proxyAuthState, context)) {
+                    handshake.challenged = true;
                     // Retry request
                     if (reuseStrategy.keepAlive(response, context)) {
                         // Consume response content
@@ -159,6 +299,11 @@ public class TunnelConnection {
                     }
                     // discard previous auth header
                     connect.removeHeaders(AUTH.PROXY_AUTH_RESP);
+
+                    if (warmUp && connection.isOpen() && isFinalLegNext(proxyAuthState)) {
+                        logger.debug("Connection warmed up, auth state {}", proxyAuthState.getState());
+                        return null;
+                    }
                 } else {
                     break;
                 }
@@ -167,23 +312,85 @@ public class TunnelConnection {
             }
 
         }
+        return response;
+    }
 
-        final int status = response.getStatusLine().getStatusCode();
-        logger.debug("Tunnel final status code: {}", status);
+    /**
+     * @param proxyAuthState the authentication state.
+     * @return {@code true} iff the next request would carry the final credentials:
+     * NTLM after the server's challenge, any other scheme after the first challenge.
+     */
+    private boolean isFinalLegNext(final AuthState proxyAuthState) {
+        if (proxyAuthState.getState() == AuthProtocolState.HANDSHAKE) {
+            return true;
+        }
+        // After the first challenge, only the options are known, in the order of preference
+        AuthScheme authScheme = proxyAuthState.getAuthScheme();
+        if (authScheme == null && proxyAuthState.getAuthOptions() != null
+                && !proxyAuthState.getAuthOptions().isEmpty()) {
+            authScheme = proxyAuthState.getAuthOptions().peek().getAuthScheme();
+        }
+        return authScheme != null && !AuthSchemes.NTLM.equalsIgnoreCase(authScheme.getSchemeName());
+    }
 
-        if (status > HttpUtils.MAX_HTTP_SUCCESS_CODE) { // Error case
+    private HttpHost toTunnelHost(final HttpHost target) {
+        if (target.getPort() <= 0) {
+            return new HttpHost(target.getHostName(), 80, target.getSchemeName());
+        }
+        return target;
+    }
 
-            // Buffer response content
-            final HttpEntity entity = response.getEntity();
-            if (entity != null) {
-                response.setEntity(new BufferedHttpEntity(entity));
-            }
-            logger.debug("Close tunnel connection");
-            InputOutputs.close(connection);
-            throw new TunnelRefusedException("CONNECT refused by proxy: " + response.getStatusLine(), response);
+    /**
+     * The connection to the proxy along with its authentication state.
+     */
+    class Handshake implements Closeable {
+
+        private final ManagedHttpClientConnection connection;
+        private final AuthState proxyAuthState = new AuthState();
+        private final HttpContext context = new BasicHttpContext();
+        private final boolean withChannel;
+        private final long createdAt = System.currentTimeMillis();
+
+        /**
+         * Whether the proxy has challenged for authentication, that is the credentials were not sent preemptively.
+         */
+        private boolean challenged;
+
+        Handshake(final boolean withChannel) {
+            this.withChannel = withChannel;
+            this.connection = ManagedHttpClientConnectionFactory.INSTANCE.create(null, ConnectionConfig.DEFAULT);
         }
 
-        return new Tunnel(connection, response);
+        /**
+         * Bind the connection to a new socket connected to the proxy.
+         *
+         * @throws java.net.ConnectException if the proxy cannot be reached.
+         */
+        private void connect(final HttpHost proxy) throws IOException {
+            connection.bind(upstreamConnector.connect(proxy, withChannel));
+            // Bind the session buffers too, so that the staleness check works before any request
+            connection.flush();
+        }
+
+        boolean isWithChannel() {
+            return withChannel;
+        }
+
+        long getCreatedAt() {
+            return createdAt;
+        }
+
+        /**
+         * @return {@code true} iff the connection is open and the proxy hasn't closed it.
+         */
+        boolean isUsable() {
+            return connection.isOpen() && !connection.isStale();
+        }
+
+        @Override
+        public void close() {
+            InputOutputs.close(connection);
+        }
     }
 
 }
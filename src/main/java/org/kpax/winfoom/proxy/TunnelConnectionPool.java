@@ -0,0 +1,210 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.kpax.winfoom.annotation.ProxySessionScope;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * It keeps, for each upstream HTTP proxy, a few idle connections ready for the next CONNECT requests.
+ * <p>A CONNECT connection cannot be reused once the tunnel is established, and the NTLM handshake
+ * takes two extra round trips for each one. A warm connection is TCP connected and, when the proxy
+ * requires authentication, has already received the challenge (for NTLM, the server's challenge message),
+ * so the CONNECT request sent on it carries the final credentials.
+ * <p>The pool of a proxy is topped up in background after each successful CONNECT request,
+ * once it is known whether the proxy requires authentication.
+ */
+@ThreadSafe
+@Order(1)
+@ProxySessionScope
+@Component
+class TunnelConnectionPool implements AutoCloseable {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private TunnelConnection tunnelConnection;
+
+    @Autowired
+    private ProxyExecutorService executorService;
+
+    private final Map<HttpHost, ProxyPool> proxyPools = new ConcurrentHashMap<>();
+
+    private volatile boolean closed;
+
+    /**
+     * @return {@code true} iff the pool size is positive.
+     */
+    boolean isEnabled() {
+        return systemConfig.getTunnelPoolSize() > 0;
+    }
+
+    /**
+     * Remove an usable idle connection to the proxy.
+     *
+     * @param proxy       the HTTP proxy.
+     * @param target      the tunnel's target, used for authentication CONNECT requests when topping up.
+     * @param withChannel whether the socket must be backed by a {@link java.nio.channels.SocketChannel}.
+     * @return an usable connection or {@code null} if none available.
+     */
+    TunnelConnection.Handshake lease(final HttpHost proxy, final HttpHost target, final boolean withChannel) {
+        ProxyPool proxyPool = proxyPools.computeIfAbsent(proxy, ProxyPool::new);
+        proxyPool.target = target;
+        proxyPool.withChannel = withChannel;
+        for (TunnelConnection.Handshake handshake; (handshake = proxyPool.idle.pollFirst()) != null; ) {
+            if (handshake.isWithChannel() == withChannel && !isExpired(handshake) && handshake.isUsable()) {
+                logger.debug("Lease warm connection to proxy {}", proxy);
+                return handshake;
+            }
+            InputOutputs.close(handshake);
+        }
+        return null;
+    }
+
+    /**
+     * Record the outcome of a successful CONNECT request, then top up the proxy's pool in background.
+     *
+     * @param proxy         the HTTP proxy.
+     * @param challenged whether the proxy challenged for authentication.
+     */
+    void opened(final HttpHost proxy, final boolean challenged) {
+        ProxyPool proxyPool = proxyPools.get(proxy);
+        if (proxyPool != null) {
+            proxyPool.authenticate = challenged;
+            proxyPool.topUp();
+        }
+    }
+
+    /**
+     * @param proxy the HTTP proxy.
+     * @return the number of idle connections to the proxy.
+     */
+    int getIdleCount(final HttpHost proxy) {
+        ProxyPool proxyPool = proxyPools.get(proxy);
+        return proxyPool != null ? proxyPool.idle.size() : 0;
+    }
+
+    private boolean isExpired(final TunnelConnection.Handshake handshake) {
+        return System.currentTimeMillis() - handshake.getCreatedAt()
+                > TimeUnit.SECONDS.toMillis(systemConfig.getTunnelPoolIdleTimeout());
+    }
+
+    /**
+     * A job that closes the expired or closed by the proxy idle connections.
+     */
+    @Scheduled(fixedRateString = "#{systemConfig.tunnelPoolIdleTimeout * 1000}")
+    void evictIdleConnections() {
+        if (!closed) {
+            logger.debug("Execute tunnel connection pool clean up task");
+            proxyPools.values().forEach(proxyPool -> proxyPool.idle.removeIf(handshake -> {
+                if (isExpired(handshake) || !handshake.isUsable()) {
+                    InputOutputs.close(handshake);
+                    return true;
+                }
+                return false;
+            }));
+        }
+    }
+
+    @Override
+    public void close() {
+        logger.debug("Close all idle tunnel connections");
+        closed = true;
+        proxyPools.values().forEach(proxyPool -> {
+            for (TunnelConnection.Handshake handshake; (handshake = proxyPool.idle.pollFirst()) != null; ) {
+                InputOutputs.close(handshake);
+            }
+        });
+        proxyPools.clear();
+    }
+
+    /**
+     * The idle connections to a proxy.
+     */
+    private class ProxyPool {
+
+        private final HttpHost proxy;
+
+        private final Deque<TunnelConnection.Handshake> idle = new ConcurrentLinkedDeque<>();
+
+        private final AtomicBoolean toppingUp = new AtomicBoolean();
+
+        private volatile HttpHost target;
+
+        private volatile boolean withChannel;
+
+        private volatile boolean authenticate;
+
+        private ProxyPool(final HttpHost proxy) {
+            this.proxy = proxy;
+        }
+
+        /**
+         * Prepare new connections in background, unless another top up is in progress.
+         */
+        private void topUp() {
+            if (!closed && idle.size() < systemConfig.getTunnelPoolSize() && toppingUp.compareAndSet(false, true)) {
+                try {
+                    executorService.submit(this::fill);
+                } catch (RejectedExecutionException e) {
+                    logger.debug("Cannot top up the tunnel connection pool", e);
+                    toppingUp.set(false);
+                }
+            }
+        }
+
+        private void fill() {
+            try {
+                while (!closed && idle.size() < systemConfig.getTunnelPoolSize()) {
+                    TunnelConnection.Handshake handshake = tunnelConnection.prepare(proxy, target,
+                            withChannel, authenticate);
+                    if (handshake == null) {
+                        // The proxy doesn't require authentication anymore
+                        authenticate = false;
+                        continue;
+                    }
+                    idle.addLast(handshake);
+                    if (closed) {
+                        idle.remove(handshake);
+                        InputOutputs.close(handshake);
+                    }
+                }
+            } catch (Exception e) {
+                logger.debug("Error on preparing tunnel connection to proxy " + proxy, e);
+            } finally {
+                toppingUp.set(false);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,362 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.kpax.winfoom.annotation.ProxySessionScope;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.kpax.winfoom.util.functional.SingletonSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * It relays the established tunnels using a small pool of selector threads.
+ * <p>Unlike {@link InputOutputs#duplex(java.util.concurrent.ExecutorService,
+ * org.kpax.winfoom.util.StreamSource, org.kpax.winfoom.util.StreamSource)}, which keeps two threads busy for
+ * the entire life of a tunnel, the bytes are moved with non-blocking {@link SocketChannel}s, so the thread count
+ * depends on the number of processors, not on the number of open tunnels.
+ * <p>Both the client's and the remote sockets must be backed by a {@link SocketChannel}.
+ * Once handed over, the relay owns the channels and closes them when the tunnel ends.
+ */
+@ThreadSafe
+@Order(2)
+@ProxySessionScope
+@Component
+class TunnelRelay implements AutoCloseable {
+
+    /**
+     * The max time the selector blocks waiting for events (milliseconds).
+     */
+    private static final long SELECT_TIMEOUT = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(TunnelRelay.class);
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    private final SingletonSupplier<List<RelayWorker>> workersSupplier = new SingletonSupplier<>(this::createWorkers);
+
+    private final AtomicInteger nextWorker = new AtomicInteger();
+
+    private final AtomicInteger activeTunnels = new AtomicInteger();
+
+    /**
+     * Check whether a tunnel can be relayed by this instance.
+     *
+     * @param clientConnection the client's connection.
+     * @param socket           the remote socket.
+     * @return {@code true} iff the non-blocking relay is enabled and both sockets have channels.
+     */
+    boolean canRelay(final ClientConnection clientConnection, final Socket socket) {
+        return systemConfig.isTunnelRelayNonBlocking()
+                && clientConnection.getSocket().getChannel() != null
+                && socket.getChannel() != null;
+    }
+
+    /**
+     * Check whether the remote socket should be created with a channel, to be eligible for relaying.
+     *
+     * @param clientConnection the client's connection.
+     * @return {@code true} iff the non-blocking relay is enabled and the client's socket has a channel.
+     */
+    boolean isRelayable(final ClientConnection clientConnection) {
+        return systemConfig.isTunnelRelayNonBlocking()
+                && clientConnection.getSocket().getChannel() != null;
+    }
+
+    /**
+     * Hand over the tunnel to a selector thread, then return immediately.
+     * <p>Any client's bytes already read but not consumed are first written to the remote socket.
+     * On success, the {@link ClientConnection} is marked as relayed and the caller
+     * must not close any of the sockets anymore.
+     *
+     * @param clientConnection the client's connection.
+     * @param socket           the remote socket.
+     * @throws IOException if an I/O error occurs before the hand over.
+     */
+    void relay(final ClientConnection clientConnection, final Socket socket) throws IOException {
+        byte[] pendingInput = clientConnection.readPendingInput();
+        if (pendingInput.length > 0) {
+            logger.debug("Write {} pending client bytes", pendingInput.length);
+            socket.getOutputStream().write(pendingInput);
+        }
+        SocketChannel clientChannel = clientConnection.getSocket().getChannel();
+        SocketChannel remoteChannel = socket.getChannel();
+        clientChannel.configureBlocking(false);
+        remoteChannel.configureBlocking(false);
+
+        List<RelayWorker> workers = workersSupplier.get();
+        workers.get(Math.floorMod(nextWorker.getAndIncrement(), workers.size()))
+                .register(remoteChannel, clientChannel);
+        clientConnection.setRelayed(true);
+    }
+
+    /**
+     * @return the number of tunnels currently relayed.
+     */
+    int getActiveTunnels() {
+        return activeTunnels.get();
+    }
+
+    private List<RelayWorker> createWorkers() {
+        int threads = systemConfig.getTunnelRelayThreads() > 0
+                ? systemConfig.getTunnelRelayThreads() : Runtime.getRuntime().availableProcessors();
+        logger.info("Create {} tunnel relay threads", threads);
+        ThreadFactory threadFactory = new ProxyExecutorService.DefaultThreadFactory();
+        List<RelayWorker> workers = new ArrayList<>(threads);
+        try {
+            for (int i = 0; i < threads; i++) {
+                RelayWorker worker = new RelayWorker();
+                workers.add(worker);
+                threadFactory.newThread(worker).start();
+            }
+        } catch (IOException e) {
+            workers.forEach(InputOutputs::close);
+            throw new UncheckedIOException(e);
+        }
+        return Collections.unmodifiableList(workers);
+    }
+
+    @Override
+    public void close() {
+        logger.debug("Close the tunnel relay");
+        workersSupplier.value().ifPresent(workers -> workers.forEach(InputOutputs::close));
+        workersSupplier.reset();
+    }
+
+    /**
+     * A selector thread serving many tunnels.
+     */
+    private class RelayWorker implements Runnable, AutoCloseable {
+
+        private final Selector selector;
+
+        /**
+         * The sessions waiting to be registered by the selector thread.
+         */
+        private final Queue<RelaySession> pendingSessions = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Only accessed by the selector thread.
+         */
+        private final Set<RelaySession> sessions = new HashSet<>();
+
+        private long lastExpiryCheck = System.currentTimeMillis();
+
+        RelayWorker() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(final SocketChannel first, final SocketChannel second) {
+            pendingSessions.add(new RelaySession(first, second));
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    selector.select(SELECT_TIMEOUT);
+                    for (RelaySession session; (session = pendingSessions.poll()) != null; ) {
+                        session.register(selector);
+                        sessions.add(session);
+                        activeTunnels.incrementAndGet();
+                        session.pump();
+                    }
+                    for (Iterator<SelectionKey> itr = selector.selectedKeys().iterator(); itr.hasNext(); ) {
+                        SelectionKey key = itr.next();
+                        itr.remove();
+                        if (key.isValid()) {
+                            ((RelaySession) key.attachment()).pump();
+                        }
+                    }
+                    closeExpired();
+                } catch (ClosedSelectorException e) {
+                    break;
+                } catch (Exception e) {
+                    logger.debug("Generic error on relaying tunnels", e);
+                }
+            }
+            new ArrayList<>(sessions).forEach(RelaySession::close);
+            pendingSessions.forEach(RelaySession::close);
+            logger.debug("Tunnel relay thread stopped");
+        }
+
+        /**
+         * Close the tunnels that didn't move any byte within the socket timeout.
+         */
+        private void closeExpired() {
+            long now = System.currentTimeMillis();
+            long timeout = systemConfig.getSocketSoTimeout() * 1000L;
+            if (timeout > 0 && now - lastExpiryCheck >= SELECT_TIMEOUT) {
+                lastExpiryCheck = now;
+                for (RelaySession session : new ArrayList<>(sessions)) {
+                    if (now - session.lastActivity > timeout) {
+                        logger.debug("Idle tunnel, close it");
+                        session.close();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            InputOutputs.close(selector);
+        }
+
+        /**
+         * The two directions of a tunnel.
+         */
+        private class RelaySession {
+
+            private final Direction firstToSecond;
+            private final Direction secondToFirst;
+
+            private SelectionKey firstKey;
+            private SelectionKey secondKey;
+
+            private long lastActivity = System.currentTimeMillis();
+
+            private boolean closed;
+
+            RelaySession(final SocketChannel first, final SocketChannel second) {
+                this.firstToSecond = new Direction(first, second);
+                this.secondToFirst = new Direction(second, first);
+            }
+
+            void register(final Selector selector) throws IOException {
+                try {
+                    firstKey = firstToSecond.source.register(selector, 0, this);
+                    secondKey = secondToFirst.source.register(selector, 0, this);
+                } catch (IOException e) {
+                    close();
+                    throw e;
+                }
+            }
+
+            /**
+             * Move the available bytes in both directions, then update the interest sets.
+             */
+            void pump() {
+                if (closed) {
+                    return;
+                }
+                try {
+                    boolean moved = firstToSecond.pump();
+                    moved |= secondToFirst.pump();
+                    if (moved) {
+                        lastActivity = System.currentTimeMillis();
+                    }
+                    if (firstToSecond.isDone() && secondToFirst.isDone()) {
+                        logger.debug("Tunnel ended");
+                        close();
+                        return;
+                    }
+                    firstKey.interestOps((firstToSecond.wantsRead() ? SelectionKey.OP_READ : 0)
+                            | (secondToFirst.wantsWrite() ? SelectionKey.OP_WRITE : 0));
+                    secondKey.interestOps((secondToFirst.wantsRead() ? SelectionKey.OP_READ : 0)
+                            | (firstToSecond.wantsWrite() ? SelectionKey.OP_WRITE : 0));
+                } catch (Exception e) {
+                    logger.debug("Error on relaying tunnel", e);
+                    close();
+                }
+            }
+
+            void close() {
+                if (!closed) {
+                    closed = true;
+                    if (sessions.remove(this)) {
+                        activeTunnels.decrementAndGet();
+                    }
+                    InputOutputs.close(firstToSecond.source);
+                    InputOutputs.close(secondToFirst.source);
+                }
+            }
+        }
+    }
+
+    /**
+     * One direction of a tunnel: source channel, buffer, target channel.
+     */
+    private static class Direction {
+
+        private final SocketChannel source;
+        private final SocketChannel target;
+        private final ByteBuffer buffer = ByteBuffer.allocate(InputOutputs.DEFAULT_BUFFER_SIZE);
+
+        private boolean endOfStream;
+        private boolean outputShutdown;
+
+        Direction(final SocketChannel source, final SocketChannel target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        /**
+         * @return {@code true} iff any byte has been moved.
+         * @throws IOException
+         */
+        boolean pump() throws IOException {
+            int moved = 0;
+            if (wantsRead()) {
+                int read = source.read(buffer);
+                if (read < 0) {
+                    endOfStream = true;
+                } else {
+                    moved += read;
+                }
+            }
+            if (wantsWrite()) {
+                buffer.flip();
+                moved += target.write(buffer);
+                buffer.compact();
+            }
+            if (endOfStream && !wantsWrite() && !outputShutdown) {
+                // Propagate the half-close
+                outputShutdown = true;
+                target.shutdownOutput();
+            }
+            return moved > 0;
+        }
+
+        boolean wantsRead() {
+            return !endOfStream && buffer.hasRemaining();
+        }
+
+        boolean wantsWrite() {
+            return buffer.position() > 0;
+        }
+
+        boolean isDone() {
+            return outputShutdown;
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.HttpHostConnectException;
+import org.kpax.winfoom.annotation.ProxySessionScope;
+import org.kpax.winfoom.annotation.ThreadSafe;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Open TCP connections to the upstream proxies.
+ * <p>The proxy's addresses are resolved through the {@link DnsCache}, each connect attempt is bounded by
+ * the {@code socket.connectTimeout} and the pending attempts are cancelled when the proxy session ends.
+ * <p>Any failure to reach a resolved proxy, including the timeout, is thrown as a {@link java.net.ConnectException},
+ * so that the caller can fail over to the next proxy. A name resolution failure is thrown unchanged,
+ * as an {@link UnknownHostException}.
+ * <p>A socket already connected by the {@link ProxyRace} can be handed over for the current request:
+ * it is used by the first connection to the same host, and closed at the end of the request otherwise.
+ */
+@ThreadSafe
+@Order(1)
+@ProxySessionScope
+@Component
+class UpstreamConnector implements AutoCloseable {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private SystemConfig systemConfig;
+
+    @Autowired
+    private DnsCache dnsCache;
+
+    /**
+     * The sockets being connected.
+     */
+    private final Set<Socket> pendingSockets = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean closed;
+
+    /**
+     * The socket handed over for the current request's thread.
+     */
+    private final ThreadLocal<AdoptedSocket> adoptedSocket = new ThreadLocal<>();
+
+    /**
+     * Connect a new socket to the host, trying each resolved address in turn.
+     *
+     * @param host        the host (usually a proxy).
+     * @param withChannel whether the socket must be backed by a {@link SocketChannel}.
+     * @return the connected socket, configured by {@link SystemConfig#configureSocket(Socket)}.
+     * @throws UnknownHostException     if the host cannot be resolved.
+     * @throws HttpHostConnectException if the host refuses the connection,
+     *                                  does not accept it within the timeout or the attempt is cancelled.
+     * @throws IOException              on socket creation error.
+     */
+    Socket connect(final HttpHost host, final boolean withChannel) throws IOException {
+        Socket adopted = takeAdopted(host, withChannel);
+        if (adopted != null) {
+            return adopted;
+        }
+        InetAddress[] addresses = dnsCache.resolve(host.getHostName());
+        IOException lastException = null;
+        for (InetAddress address : addresses) {
+            Socket socket = withChannel ? SocketChannel.open().socket() : new Socket();
+            pendingSockets.add(socket);
+            try {
+                if (closed) {
+                    throw new IOException("Upstream connector closed");
+                }
+                socket.connect(new InetSocketAddress(address, host.getPort()),
+                        systemConfig.getSocketConnectTimeout() * 1000);
+                systemConfig.configureSocket(socket);
+                return socket;
+            } catch (IOException e) {
+                logger.debug("Cannot connect to {} at address {}", host, address, e);
+                InputOutputs.close(socket);
+                lastException = e;
+            } finally {
+                pendingSockets.remove(socket);
+            }
+        }
+        // The host may have moved
+        dnsCache.evict(host.getHostName());
+        throw new HttpHostConnectException(lastException, host, addresses);
+    }
+
+    /**
+     * Hand over a connected socket, to be used by the current request's next connection to the host.
+     *
+     * @param host   the host the socket is connected to.
+     * @param socket the connected socket.
+     */
+    void adopt(final HttpHost host, final Socket socket) {
+        releaseAdopted();
+        adoptedSocket.set(new AdoptedSocket(host, socket));
+    }
+
+    /**
+     * Take the socket handed over for the current request, if connected to the host.
+     * <p>A socket not matching is closed: the request connects elsewhere.
+     *
+     * @param host        the host.
+     * @param withChannel whether the socket must be backed by a {@link SocketChannel}.
+     * @return the socket, configured by {@link SystemConfig#configureSocket(Socket)}, or {@code null} if none.
+     * @throws SocketException on socket configuration error.
+     */
+    Socket takeAdopted(final HttpHost host, final boolean withChannel) throws SocketException {
+        AdoptedSocket adopted = adoptedSocket.get();
+        if (adopted == null) {
+            return null;
+        }
+        adoptedSocket.remove();
+        Socket socket = adopted.socket;
+        if (adopted.host.getHostName().equalsIgnoreCase(host.getHostName())
+                && adopted.host.getPort() == host.getPort()
+                && (socket.getChannel() != null) == withChannel
+                && socket.isConnected() && !socket.isClosed()) {
+            logger.debug("Use the socket already connected to {}", host);
+            try {
+                systemConfig.configureSocket(socket);
+            } catch (SocketException e) {
+                InputOutputs.close(socket);
+                throw e;
+            }
+            return socket;
+        }
+        InputOutputs.close(socket);
+        return null;
+    }
+
+    /**
+     * Close the socket handed over for the current request, if not used.
+     */
+    void releaseAdopted() {
+        AdoptedSocket adopted = adoptedSocket.get();
+        if (adopted != null) {
+            adoptedSocket.remove();
+            InputOutputs.close(adopted.socket);
+        }
+    }
+
+    @Override
+    public void close() {
+        logger.debug("Cancel the pending connect attempts");
+        closed = true;
+        pendingSockets.forEach(InputOutputs::close);
+        pendingSockets.clear();
+    }
+
+    private static class AdoptedSocket {
+
+        private final HttpHost host;
+
+        private final Socket socket;
+
+        private AdoptedSocket(final HttpHost host, final Socket socket) {
+            this.host = host;
+            this.socket = socket;
+        }
+    }
+
+}
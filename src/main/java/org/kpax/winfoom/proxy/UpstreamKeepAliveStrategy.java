@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2020. Eugen Covaci
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.protocol.HttpContext;
+import org.kpax.winfoom.annotation.ThreadSafe;
+
+/**
+ * The keep-alive duration of a pooled upstream connection, that becomes the connection's expiry deadline.
+ * <p>It honours the {@code Keep-Alive: timeout} response header, minus a safety margin
+ * so that the connection expires before the upstream drops it, capped by the configured idle timeout.
+ * Without such header, the configured idle timeout applies.
+ */
+@ThreadSafe
+class UpstreamKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+    /**
+     * The safety margin subtracted from the upstream's keep-alive timeout (milliseconds).
+     */
+    static final long SAFETY_MARGIN = 1000;
+
+    private final long defaultKeepAlive;
+
+    /**
+     * Constructor.
+     *
+     * @param defaultKeepAlive the keep-alive duration (milliseconds) when the upstream does not send one.
+     */
+    UpstreamKeepAliveStrategy(final long defaultKeepAlive) {
+        this.defaultKeepAlive = defaultKeepAlive;
+    }
+
+    @Override
+    public long getKeepAliveDuration(final HttpResponse response, final HttpContext context) {
+        long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+        if (keepAlive < 0) {
+            return defaultKeepAlive;
+        }
+        // A non positive duration would mean 'forever' for the pool
+        return Math.min(defaultKeepAlive, Math.max(1, keepAlive - SAFETY_MARGIN));
+    }
+
+}
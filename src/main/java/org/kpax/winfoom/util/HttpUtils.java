@@ -25,8 +25,6 @@ import org.springframework.util.Assert;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
@@ -49,6 +47,11 @@ public final class HttpUtils {
      */
     public static final String SOCKS_ADDRESS = "socks.address";
 
+    /**
+     * The non-standard header used by some clients instead of {@code Connection} when talking to a proxy.
+     */
+    public static final String PROXY_CONNECTION = "Proxy-Connection";
+
     /**
      * The maximum value of a success HTTP code.
      */
@@ -298,27 +301,6 @@ public final class HttpUtils {
         return new StringBuilder("<html>").append(text).append("</html>").toString();
     }
 
-    /**
-     * Quite a dirty hack.<br>
-     * Using Java Reflection, call the {@code java.net.SocksSocketImpl#setV4()} method.
-     *
-     * @param socket the SOCKS socket to be marked as version 4.
-     * @throws UnsupportedOperationException
-     */
-    public static void setSocks4(final Socket socket) throws UnsupportedOperationException {
-        try {
-            Field implField = Socket.class.getDeclaredField("impl");
-            implField.setAccessible(true);
-            Object impl = implField.get(socket);
-            Class<?> implType = impl.getClass();
-            Method setV4 = implType.getDeclaredMethod("setV4");
-            setV4.setAccessible(true);
-            setV4.invoke(impl);
-        } catch (Exception e) {
-            throw new UnsupportedOperationException("SOCKS 4 not supported by the JVM", e);
-        }
-    }
-
     /**
      * Parse the proxy line returned by PAC proxy script.
      *
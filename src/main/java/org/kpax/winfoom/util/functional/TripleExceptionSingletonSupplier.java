@@ -90,6 +90,25 @@ public class TripleExceptionSingletonSupplier<T, E1 extends Exception, E2 extend
         }
     }
 
+    /**
+     * Replace the value in a thread safe manner, if it is still the expected one.
+     * <p>The replaced value is not closed.
+     *
+     * @param expected the expected current value
+     * @param value    the not null new value
+     * @return {@code true} iff the value has been replaced
+     */
+    public boolean replace(T expected, T value) {
+        Assert.notNull(value, "value cannot be null");
+        synchronized (LOCK) {
+            if (t != expected) {
+                return false;
+            }
+            t = value;
+            return true;
+        }
+    }
+
     /**
      * Check whether the value is not null.
      *
@@ -17,10 +17,13 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.kpax.winfoom.FoomApplicationTest;
 import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
 import org.kpax.winfoom.exception.PacFileException;
 import org.kpax.winfoom.exception.PacScriptException;
+import org.kpax.winfoom.proxy.ProxyExecutorService;
 import org.kpax.winfoom.proxy.ProxyInfo;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -29,15 +32,28 @@ import org.springframework.context.annotation.Lazy;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.ServerSocket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 @DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
@@ -47,6 +63,14 @@ import static org.mockito.Mockito.when;
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
 public class DefaultPacScriptEvaluatorTests {
 
+    /**
+     * A PAC script keeping its engine busy for 2 seconds when the host is 'slow'.
+     */
+    private static final String SLOW_PAC = "function FindProxyForURL(url, host) {\n" +
+            "  if (host == 'slow') { var end = Date.now() + 2000; while (Date.now() < end) {} }\n" +
+            "  return 'DIRECT';\n" +
+            "}";
+
     @MockBean
     private ProxyConfig proxyConfig;
 
@@ -54,6 +78,10 @@ public class DefaultPacScriptEvaluatorTests {
     @Autowired
     private PacScriptEvaluator pacScriptEvaluator;
 
+    @Lazy
+    @Autowired
+    private DefaultPacHelperMethods pacHelperMethods;
+
     @BeforeEach
     void beforeEach() throws IOException {
         when(proxyConfig.getProxyPacFileLocationAsURL()).
@@ -68,4 +96,189 @@ public class DefaultPacScriptEvaluatorTests {
         assertEquals(1, proxies.size());
         assertTrue(proxies.get(0).getType().isDirect());
     }
+
+    @Test
+    void findProxyForURL_ParallelEvaluations_EnginesCheckedOut(@TempDir Path tempDir) throws Exception {
+        // timeRange keeps the decisions out of the cache, the loop keeps each engine busy for a while
+        Path pacFile = tempDir.resolve("proxy.pac");
+        writePacFile(pacFile, "function FindProxyForURL(url, host) {\n" +
+                "  if (timeRange(0, 23)) { var end = Date.now() + 50; while (Date.now() < end) {} }\n" +
+                "  return 'DIRECT';\n" +
+                "}", 1_600_000_000_000L);
+        SystemConfig systemConfig = mockSystemConfig();
+        when(systemConfig.getPacEnginePoolSize()).thenReturn(2);
+        DefaultPacScriptEvaluator pacScriptEvaluator =
+                createPacScriptEvaluator(pacFile.toUri().toURL(), systemConfig, null);
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<ProxyInfo>>> futures = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                URI uri = new URI("http://host" + i + ":80/path");
+                futures.add(executorService.submit(() -> pacScriptEvaluator.findProxyForURL(uri)));
+            }
+            for (Future<List<ProxyInfo>> future : futures) {
+                List<ProxyInfo> proxies = future.get(10, TimeUnit.SECONDS);
+                assertEquals(1, proxies.size());
+                assertTrue(proxies.get(0).getType().isDirect());
+            }
+            assertEquals(16, pacScriptEvaluator.getEngineCheckoutCount());
+            // 8 threads share 2 engines
+            assertTrue(pacScriptEvaluator.getEngineWaitCount() > 0);
+            assertTrue(pacScriptEvaluator.getEngineMaxWaitMillis() > 0);
+            assertTrue(pacScriptEvaluator.getEngineAverageWaitMillis() > 0);
+            assertTrue(pacScriptEvaluator.getEngineAverageWaitMillis() <= pacScriptEvaluator.getEngineMaxWaitMillis());
+        } finally {
+            executorService.shutdownNow();
+            pacScriptEvaluator.close();
+        }
+    }
+
+    @Test
+    void reload_ModifiedPacFile_NewScriptSwappedIn(@TempDir Path tempDir) throws Exception {
+        Path pacFile = tempDir.resolve("proxy.pac");
+        writePacFile(pacFile, "function FindProxyForURL(url, host) { return 'DIRECT'; }", 1_600_000_000_000L);
+
+        DefaultPacScriptEvaluator pacScriptEvaluator =
+                createPacScriptEvaluator(pacFile.toUri().toURL(), mockSystemConfig(), null);
+        try {
+            URI uri = new URI("http://host/path");
+            assertTrue(pacScriptEvaluator.findProxyForURL(uri).get(0).getType().isDirect());
+            assertFalse(pacScriptEvaluator.reload());
+
+            writePacFile(pacFile, "function FindProxyForURL(url, host) { return 'PROXY localhost:3128'; }",
+                    1_600_000_001_000L);
+            assertTrue(pacScriptEvaluator.reload());
+            List<ProxyInfo> proxies = pacScriptEvaluator.findProxyForURL(uri);
+            assertTrue(proxies.get(0).getType().isHttp());
+            assertEquals(3128, proxies.get(0).getProxyHost().getPort());
+
+            // An invalid script is not swapped in
+            writePacFile(pacFile, "function FindProxyForURL(url, host) { return", 1_600_000_002_000L);
+            assertFalse(pacScriptEvaluator.reload());
+            assertEquals(proxies, pacScriptEvaluator.findProxyForURL(uri));
+        } finally {
+            pacScriptEvaluator.close();
+        }
+    }
+
+    @Test
+    void reload_EvaluationWaitingForEngine_RetriedOnNewScript(@TempDir Path tempDir) throws Exception {
+        Path pacFile = tempDir.resolve("proxy.pac");
+        writePacFile(pacFile, SLOW_PAC, 1_600_000_000_000L);
+        DefaultPacScriptEvaluator pacScriptEvaluator =
+                createPacScriptEvaluator(pacFile.toUri().toURL(), mockSystemConfig(), null);
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            // The pool has one engine, kept busy by the first evaluation
+            Future<List<ProxyInfo>> slow = executorService.submit(() ->
+                    pacScriptEvaluator.findProxyForURL(new URI("http://slow/path")));
+            while (pacScriptEvaluator.getEngineCheckoutCount() == 0) {
+                Thread.sleep(10);
+            }
+            Future<List<ProxyInfo>> waiting = executorService.submit(() ->
+                    pacScriptEvaluator.findProxyForURL(new URI("http://host/path")));
+            while (pacScriptEvaluator.getEngineWaitCount() == 0) {
+                Thread.sleep(10);
+            }
+
+            writePacFile(pacFile, "function FindProxyForURL(url, host) { return 'PROXY localhost:3128'; }",
+                    1_600_000_001_000L);
+            assertTrue(pacScriptEvaluator.reload());
+
+            List<ProxyInfo> proxies = waiting.get(5, TimeUnit.SECONDS);
+            assertEquals(3128, proxies.get(0).getProxyHost().getPort());
+            assertTrue(slow.get(5, TimeUnit.SECONDS).get(0).getType().isDirect());
+        } finally {
+            executorService.shutdownNow();
+            pacScriptEvaluator.close();
+        }
+    }
+
+    @Test
+    void close_EvaluationWaitingForEngine_FailsWithoutReload(@TempDir Path tempDir) throws Exception {
+        Path pacFile = tempDir.resolve("proxy.pac");
+        writePacFile(pacFile, SLOW_PAC, 1_600_000_000_000L);
+        DefaultPacScriptEvaluator pacScriptEvaluator =
+                createPacScriptEvaluator(pacFile.toUri().toURL(), mockSystemConfig(), null);
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            executorService.submit(() -> pacScriptEvaluator.findProxyForURL(new URI("http://slow/path")));
+            while (pacScriptEvaluator.getEngineCheckoutCount() == 0) {
+                Thread.sleep(10);
+            }
+            Future<List<ProxyInfo>> waiting = executorService.submit(() ->
+                    pacScriptEvaluator.findProxyForURL(new URI("http://host/path")));
+            while (pacScriptEvaluator.getEngineWaitCount() == 0) {
+                Thread.sleep(10);
+            }
+
+            // The session ends: the waiting evaluation must not load a new script
+            writePacFile(pacFile, "function FindProxyForURL(url, host) { return 'PROXY localhost:3128'; }",
+                    1_600_000_001_000L);
+            pacScriptEvaluator.close();
+            ExecutionException e = assertThrows(ExecutionException.class, () -> waiting.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof PacScriptException);
+            assertThrows(PacScriptException.class,
+                    () -> pacScriptEvaluator.findProxyForURL(new URI("http://host/path")));
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    void findProxyForURL_PacServerDown_StoredCopyUsed(@TempDir Path tempDir) throws Exception {
+        int port;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            port = serverSocket.getLocalPort();
+        }
+        URL url = new URL("http://localhost:" + port + "/proxy.pac");
+        PacFileStore pacFileStore = new PacFileStore();
+        ReflectionTestUtils.setField(pacFileStore, "directory", tempDir);
+        pacFileStore.save(new PacFile(url,
+                "function FindProxyForURL(url, host) { return 'PROXY localhost:3128'; }", "\"v1\"", 0));
+
+        SystemConfig systemConfig = mockSystemConfig();
+        when(systemConfig.isPacDiskCache()).thenReturn(true);
+        DefaultPacScriptEvaluator pacScriptEvaluator = createPacScriptEvaluator(url, systemConfig, pacFileStore);
+        try {
+            URI uri = new URI("http://host/path");
+            List<ProxyInfo> proxies = pacScriptEvaluator.findProxyForURL(uri);
+            assertEquals(3128, proxies.get(0).getProxyHost().getPort());
+            // The revalidation fails, the stored copy is kept
+            assertFalse(pacScriptEvaluator.reload());
+            assertEquals(proxies, pacScriptEvaluator.findProxyForURL(uri));
+        } finally {
+            pacScriptEvaluator.close();
+        }
+    }
+
+    private static SystemConfig mockSystemConfig() {
+        SystemConfig systemConfig = mock(SystemConfig.class);
+        when(systemConfig.getPacEnginePoolSize()).thenReturn(1);
+        when(systemConfig.getPacCacheMaxSize()).thenReturn(100);
+        when(systemConfig.getPacCacheTtl()).thenReturn(300);
+        when(systemConfig.getPacCacheVolatileTtl()).thenReturn(5);
+        when(systemConfig.getSocketConnectTimeout()).thenReturn(1);
+        when(systemConfig.getSocketSoTimeout()).thenReturn(1);
+        return systemConfig;
+    }
+
+    private DefaultPacScriptEvaluator createPacScriptEvaluator(URL url, SystemConfig systemConfig,
+                                                               PacFileStore pacFileStore) throws IOException {
+        ProxyConfig pacProxyConfig = mock(ProxyConfig.class);
+        when(pacProxyConfig.getProxyPacFileLocationAsURL()).thenReturn(url);
+        DefaultPacScriptEvaluator pacScriptEvaluator = new DefaultPacScriptEvaluator();
+        ReflectionTestUtils.setField(pacScriptEvaluator, "proxyConfig", pacProxyConfig);
+        ReflectionTestUtils.setField(pacScriptEvaluator, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(pacScriptEvaluator, "pacHelperMethods", pacHelperMethods);
+        ReflectionTestUtils.setField(pacScriptEvaluator, "pacFileStore", pacFileStore);
+        ReflectionTestUtils.setField(pacScriptEvaluator, "executorService", mock(ProxyExecutorService.class));
+        return pacScriptEvaluator;
+    }
+
+    private static void writePacFile(Path path, String content, long lastModified) throws IOException {
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(path, FileTime.fromMillis(lastModified));
+    }
+
 }
@@ -0,0 +1,89 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.proxy.ProxyInfo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@SpringBootTest(classes = FoomApplicationTest.class)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class GraalJsPacScriptEvaluatorTests {
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Lazy
+    @Autowired
+    private GraalJsPacScriptEvaluator graalJsPacScriptEvaluator;
+
+    @Lazy
+    @Autowired
+    private DefaultPacScriptEvaluator defaultPacScriptEvaluator;
+
+    private void usePacFile(String fileName) throws IOException {
+        when(proxyConfig.getProxyPacFileLocationAsURL()).
+                thenReturn(new File("./src/test/resources/" + fileName).toURI().toURL());
+    }
+
+    @Test
+    void findProxyForURL_AllHelperMethods_NoError() throws Exception {
+        usePacFile("proxy-simple-all-helpers.pac");
+        List<ProxyInfo> proxies = graalJsPacScriptEvaluator.findProxyForURL(new URI("http://host:80/path?param1=val"));
+        assertEquals(1, proxies.size());
+        assertTrue(proxies.get(0).getType().isDirect());
+    }
+
+    @Test
+    void findProxyForURL_LargeScript_SameAsNashorn() throws Exception {
+        usePacFile("proxy-large.pac");
+        for (String url : new String[]{"http://intranet", "ftp://files.corp.example/",
+                "http://www.wiki.example.com/", "https://jira.eu.example.com:8443/",
+                "http://10.158.3.4/", "http://8.8.8.8/", "https://www.unknown.example.io/"}) {
+            URI uri = new URI(url);
+            assertEquals(defaultPacScriptEvaluator.findProxyForURL(uri),
+                    graalJsPacScriptEvaluator.findProxyForURL(uri), url);
+        }
+    }
+
+    @AfterEach
+    void afterEach() {
+        // Reload the script on the next evaluation
+        graalJsPacScriptEvaluator.close();
+        defaultPacScriptEvaluator.close();
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.proxy.ProxyInfo;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PacDecisionCacheTests {
+
+    private static final List<ProxyInfo> DIRECT = Collections.singletonList(new ProxyInfo(ProxyInfo.PacType.DIRECT));
+
+    @Test
+    void detectPurity_TimeRange_TimeDependent() {
+        assertEquals(PacDecisionCache.Purity.TIME_DEPENDENT,
+                PacDecisionCache.detectPurity("if (timeRange(8, 18)) { return 'DIRECT'; }"));
+        assertEquals(PacDecisionCache.Purity.TIME_DEPENDENT,
+                PacDecisionCache.detectPurity("if (weekdayRange ('MON', 'FRI')) { return 'DIRECT'; }"));
+    }
+
+    @Test
+    void detectPurity_DateOrRandom_TimeDependent() {
+        assertEquals(PacDecisionCache.Purity.TIME_DEPENDENT,
+                PacDecisionCache.detectPurity("if (new Date().getHours() < 12) { return 'DIRECT'; }"));
+        assertEquals(PacDecisionCache.Purity.TIME_DEPENDENT,
+                PacDecisionCache.detectPurity("var start = Date.now();"));
+        assertEquals(PacDecisionCache.Purity.TIME_DEPENDENT,
+                PacDecisionCache.detectPurity("return Math.random() < 0.5 ? 'PROXY a:3128' : 'PROXY b:3128';"));
+    }
+
+    @Test
+    void detectPurity_MyIpAddress_NetworkDependent() {
+        assertEquals(PacDecisionCache.Purity.NETWORK_DEPENDENT,
+                PacDecisionCache.detectPurity("if (isInNet(myIpAddress(), '10.0.0.0', '255.0.0.0')) {}"));
+    }
+
+    @Test
+    void detectPurity_OnlyHostHelpers_Pure() {
+        assertEquals(PacDecisionCache.Purity.PURE,
+                PacDecisionCache.detectPurity("if (dnsDomainIs(host, '.local')) { return 'DIRECT'; } " +
+                        "// myIpAddress is only mentioned in this comment"));
+    }
+
+    @Test
+    void get_Pure_Cached() {
+        PacDecisionCache decisionCache = new PacDecisionCache(PacDecisionCache.Purity.PURE, 10, 60000, 1000);
+        decisionCache.put("http://host/", DIRECT);
+        assertEquals(DIRECT, decisionCache.get("http://host/"));
+        assertNull(decisionCache.get("https://host/"));
+    }
+
+    @Test
+    void get_TimeDependent_NeverCached() {
+        PacDecisionCache decisionCache = new PacDecisionCache(PacDecisionCache.Purity.TIME_DEPENDENT, 10, 60000, 1000);
+        assertSame(DIRECT.get(0), decisionCache.put("http://host/", DIRECT).get(0));
+        assertNull(decisionCache.get("http://host/"));
+        assertEquals(0, decisionCache.size());
+    }
+
+    @Test
+    void get_Expired_Null() throws InterruptedException {
+        PacDecisionCache decisionCache = new PacDecisionCache(PacDecisionCache.Purity.NETWORK_DEPENDENT, 10, 60000, 50);
+        decisionCache.put("http://host/", DIRECT);
+        assertNotNull(decisionCache.get("http://host/"));
+        Thread.sleep(100);
+        assertNull(decisionCache.get("http://host/"));
+    }
+
+    @Test
+    void put_MaxSizeExceeded_Bounded() {
+        PacDecisionCache decisionCache = new PacDecisionCache(PacDecisionCache.Purity.PURE, 10, 60000, 1000);
+        for (int i = 0; i < 100; i++) {
+            decisionCache.put("http://host" + i + "/", DIRECT);
+        }
+        assertEquals(10, decisionCache.size());
+    }
+
+    @Test
+    void put_MaxSizeExceeded_OldestInsertedEvicted() {
+        PacDecisionCache decisionCache = new PacDecisionCache(PacDecisionCache.Purity.PURE, 2, 60000, 1000);
+        decisionCache.put("http://first/", DIRECT);
+        decisionCache.put("http://second/", DIRECT);
+        decisionCache.put("http://first/", DIRECT);
+        decisionCache.put("http://third/", DIRECT);
+        assertEquals(2, decisionCache.size());
+        assertNull(decisionCache.get("http://second/"));
+        assertNotNull(decisionCache.get("http://first/"));
+        assertNotNull(decisionCache.get("http://third/"));
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PacFileStoreTests {
+
+    private static final String PAC_CONTENT = "function FindProxyForURL(url, host) { return 'DIRECT'; }";
+
+    @TempDir
+    Path tempDir;
+
+    private PacFileStore pacFileStore;
+
+    private URL url;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        pacFileStore = new PacFileStore();
+        ReflectionTestUtils.setField(pacFileStore, "directory", tempDir.resolve(PacFileStore.DIR_NAME));
+        url = new URL("http://pac.example.com/proxy.pac");
+    }
+
+    @Test
+    void load_NothingStored_Empty() {
+        assertFalse(pacFileStore.load(url).isPresent());
+    }
+
+    @Test
+    void load_Stored_SameContentAndValidators() {
+        pacFileStore.save(new PacFile(url, PAC_CONTENT, "\"v1\"", 1_600_000_000_000L));
+        Optional<PacFile> pacFile = pacFileStore.load(url);
+        assertTrue(pacFile.isPresent());
+        assertEquals(url, pacFile.get().getUrl());
+        assertEquals(PAC_CONTENT, pacFile.get().getContent());
+        assertEquals("\"v1\"", pacFile.get().getETag());
+        assertEquals(1_600_000_000_000L, pacFile.get().getLastModified());
+    }
+
+    @Test
+    void load_StoredForAnotherLocation_Empty() throws IOException {
+        pacFileStore.save(new PacFile(url, PAC_CONTENT, null, 0));
+        assertFalse(pacFileStore.load(new URL("http://other.example.com/proxy.pac")).isPresent());
+    }
+
+    @Test
+    void load_ContentTampered_Empty() throws IOException {
+        pacFileStore.save(new PacFile(url, PAC_CONTENT, null, 0));
+        Files.write(tempDir.resolve(PacFileStore.DIR_NAME).resolve(PacFileStore.CONTENT_FILENAME),
+                "function FindProxyForURL(url, host) {".getBytes(StandardCharsets.UTF_8));
+        assertFalse(pacFileStore.load(url).isPresent());
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PacFileTests {
+
+    private static final String PAC_CONTENT = "function FindProxyForURL(url, host) { return 'DIRECT'; }";
+
+    private final AtomicReference<String> served = new AtomicReference<>(PAC_CONTENT);
+
+    private final AtomicInteger notModifiedCount = new AtomicInteger();
+
+    private HttpServer remoteServer;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        remoteServer = ServerBootstrap.bootstrap().registerHandler("/pacFile", (request, response, context) -> {
+            String content = served.get();
+            String eTag = "\"" + content.hashCode() + "\"";
+            if (request.containsHeader(HttpHeaders.IF_NONE_MATCH)
+                    && request.getFirstHeader(HttpHeaders.IF_NONE_MATCH).getValue().equals(eTag)) {
+                notModifiedCount.incrementAndGet();
+                response.setStatusCode(HttpStatus.SC_NOT_MODIFIED);
+            } else {
+                response.setHeader(HttpHeaders.ETAG, eTag);
+                response.setEntity(new StringEntity(content, StandardCharsets.UTF_8));
+            }
+        }).create();
+        remoteServer.start();
+    }
+
+    @AfterEach
+    void afterEach() {
+        remoteServer.stop();
+    }
+
+    @Test
+    void reload_HttpNotModified_Same() throws IOException {
+        PacFile pacFile = PacFile.load(getPacFileURL(), 1000, 1000);
+        assertEquals(PAC_CONTENT, pacFile.getContent());
+        assertNotNull(pacFile.getETag());
+        assertSame(pacFile, pacFile.reload(1000, 1000));
+        assertEquals(1, notModifiedCount.get());
+    }
+
+    @Test
+    void reload_HttpModified_NewContent() throws IOException {
+        PacFile pacFile = PacFile.load(getPacFileURL(), 1000, 1000);
+        served.set("function FindProxyForURL(url, host) { return 'PROXY localhost:3128'; }");
+        PacFile reloaded = pacFile.reload(1000, 1000);
+        assertNotSame(pacFile, reloaded);
+        assertEquals(served.get(), reloaded.getContent());
+        assertNotEquals(pacFile.getETag(), reloaded.getETag());
+        assertEquals(0, notModifiedCount.get());
+    }
+
+    @Test
+    void reload_FileModificationTime_ReloadedOnlyWhenModified(@TempDir Path tempDir) throws IOException {
+        Path path = tempDir.resolve("proxy.pac");
+        Files.write(path, PAC_CONTENT.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(path, FileTime.fromMillis(1_600_000_000_000L));
+        PacFile pacFile = PacFile.load(path.toUri().toURL(), 1000, 1000);
+        assertSame(pacFile, pacFile.reload(1000, 1000));
+
+        Files.write(path, "function FindProxyForURL(url, host) { return 'DIRECT'; } ".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(path, FileTime.fromMillis(1_600_000_001_000L));
+        PacFile reloaded = pacFile.reload(1000, 1000);
+        assertNotSame(pacFile, reloaded);
+        assertEquals(1_600_000_001_000L, reloaded.getLastModified());
+    }
+
+    private URL getPacFileURL() throws IOException {
+        return new URL("http://localhost:" + remoteServer.getLocalPort() + "/pacFile");
+    }
+
+}
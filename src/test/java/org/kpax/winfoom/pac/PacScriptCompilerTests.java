@@ -0,0 +1,159 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.DnsCache;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class PacScriptCompilerTests {
+
+    /**
+     * The names resolved by the mocked DNS cache, the others are unknown.
+     */
+    private static final Map<String, String> DNS_RECORDS = Map.of(
+            "loopback.example.org", "127.0.0.5",
+            "cgnat.example.org", "100.64.1.1",
+            "public.example.org", "8.8.8.8");
+
+    private DefaultPacHelperMethods pacHelperMethods;
+
+    private DefaultPacScriptEvaluator nashornEvaluator;
+
+    @BeforeEach
+    void beforeEach() throws UnknownHostException {
+        DnsCache dnsCache = mock(DnsCache.class);
+        when(dnsCache.resolve(anyString())).thenAnswer(invocation -> {
+            String host = invocation.getArgument(0);
+            if (DNS_RECORDS.containsKey(host)) {
+                return new InetAddress[]{InetAddress.getByName(DNS_RECORDS.get(host))};
+            }
+            throw new UnknownHostException(host);
+        });
+        pacHelperMethods = new DefaultPacHelperMethods();
+        ReflectionTestUtils.setField(pacHelperMethods, "systemConfig", mock(SystemConfig.class));
+        ReflectionTestUtils.setField(pacHelperMethods, "dnsCache", dnsCache);
+        ReflectionTestUtils.setField(pacHelperMethods, "globPatternMatcher", new GlobPatternMatcher());
+
+        nashornEvaluator = new DefaultPacScriptEvaluator();
+        ReflectionTestUtils.setField(nashornEvaluator, "pacHelperMethods", pacHelperMethods);
+    }
+
+    @Test
+    void compile_SupportedSubset_Compiled() throws Exception {
+        assertTrue(PacScriptCompiler.compile(readPac("proxy-corporate.pac")).isPresent());
+        assertTrue(PacScriptCompiler.compile(readPac("proxy-complex.pac")).isPresent());
+        assertTrue(PacScriptCompiler.compile(readPac("proxy-simple.pac")).isPresent());
+    }
+
+    @Test
+    void compile_UnsupportedSyntax_Empty() throws Exception {
+        // Regular expressions
+        assertFalse(PacScriptCompiler.compile(readPac("proxy-large.pac")).isPresent());
+        // Date and time functions
+        assertFalse(PacScriptCompiler.compile(readPac("proxy-simple-all-helpers.pac")).isPresent());
+        // Variables
+        assertFalse(PacScriptCompiler.compile("function FindProxyForURL(url, host) { " +
+                "var h = host.toLowerCase(); return 'DIRECT'; }").isPresent());
+        // Not returning on every path
+        assertFalse(PacScriptCompiler.compile("function FindProxyForURL(url, host) { " +
+                "if (isPlainHostName(host)) return 'DIRECT'; }").isPresent());
+    }
+
+    @Test
+    void findProxyForURL_CorporatePac_SameAsNashorn() throws Exception {
+        assertSameAsNashorn(readPac("proxy-corporate.pac"));
+    }
+
+    @Test
+    void findProxyForURL_ComplexPac_SameAsNashorn() throws Exception {
+        assertSameAsNashorn(readPac("proxy-complex.pac"));
+    }
+
+    @Test
+    void findProxyForURL_OverlappingRules_FirstMatchWins() {
+        CompiledPacScript compiledScript = PacScriptCompiler.compile("function FindProxyForURL(url, host) {\n" +
+                "  if (shExpMatch(host, '*.example.com')) return 'PROXY first:80';\n" +
+                "  if (shExpMatch(host, '*.sub.example.com')) return 'PROXY second:80';\n" +
+                "  if (shExpMatch(host, '*')) return 'PROXY third:80';\n" +
+                "  if (shExpMatch(host, '*.other.com')) return 'PROXY never:80';\n" +
+                "  return 'DIRECT';\n" +
+                "}").orElseThrow();
+        assertEquals("PROXY first:80",
+                compiledScript.findProxyForURL("http://a.sub.example.com/", "a.sub.example.com", pacHelperMethods));
+        assertEquals("PROXY third:80",
+                compiledScript.findProxyForURL("http://a.other.com/", "a.other.com", pacHelperMethods));
+    }
+
+    /**
+     * Compare the compiled script with the script evaluated by Nashorn, on hosts derived from the script's literals.
+     */
+    private void assertSameAsNashorn(String pacSource) throws Exception {
+        CompiledPacScript compiledScript = PacScriptCompiler.compile(pacSource).orElseThrow();
+        AbstractPacScriptEvaluator.PacScriptEngine scriptEngine = nashornEvaluator.createScriptEngine(pacSource);
+        for (String host : testHosts(pacSource)) {
+            for (String scheme : Arrays.asList("http", "https", "ftp")) {
+                String url = scheme + "://" + host + "/";
+                assertEquals(Objects.toString(scriptEngine.findProxyForURL(url, host), null),
+                        compiledScript.findProxyForURL(url, host, pacHelperMethods), url);
+            }
+        }
+    }
+
+    private static Set<String> testHosts(String pacSource) {
+        Set<String> hosts = new TreeSet<>(DNS_RECORDS.keySet());
+        hosts.addAll(Arrays.asList("localhost", "intranet", "unknown.example.io",
+                "172.15.255.255", "172.32.0.1", "8.8.4.4", "010.1.2.3", "::1"));
+        Matcher matcher = Pattern.compile("[\"']([^\"']+)[\"']").matcher(pacSource);
+        while (matcher.find()) {
+            String literal = matcher.group(1).replace("*", "");
+            hosts.add(literal);
+            hosts.add("www" + (literal.startsWith(".") ? "" : ".") + literal);
+            hosts.add("x" + literal);
+            int dotPos = literal.indexOf('.', 1);
+            if (dotPos > 0) {
+                hosts.add(literal.substring(0, dotPos));
+                hosts.add(literal.substring(dotPos + 1));
+            }
+            if (literal.matches("\\d+\\.\\d+\\.\\d+\\.\\d+")) {
+                String[] octets = literal.split("\\.");
+                hosts.add(octets[0] + "." + octets[1] + "." + octets[2] + ".1");
+                hosts.add(octets[0] + "." + octets[1] + ".255.254");
+                hosts.add(octets[0] + "." + (Integer.parseInt(octets[1]) + 1) + ".0.1");
+            }
+        }
+        hosts.removeIf(host -> host.isEmpty() || host.contains(" ") || host.contains(":") && !host.equals("::1"));
+        return hosts;
+    }
+
+    private static String readPac(String fileName) throws Exception {
+        return new String(Files.readAllBytes(Paths.get("./src/test/resources/" + fileName)), StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.pac;
+
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.proxy.DnsCache;
+import org.kpax.winfoom.proxy.ProxyInfo;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compare the Nashorn and the GraalJS evaluators on a large corporate style PAC script,
+ * with the decision cache disabled.
+ * <p>Run it with the {@link #main(String[])} method, after {@code mvn test-compile}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PacScriptEvaluatorBenchmark {
+
+    /**
+     * Hosts matching early, late, on a network and not at all.
+     */
+    private static final String[] URLS = {
+            "http://intranet.corp.example/",
+            "https://www.logs.apac.example.com/",
+            "https://dev-01.us.example.com:8443/",
+            "http://10.20.30.40/",
+            "https://192.168.1.1/",
+            "https://www.unknown.example.io/"
+    };
+
+    @Param({"NASHORN", "GRAALJS"})
+    private SystemConfig.PacEngine pacEngine;
+
+    private AbstractPacScriptEvaluator pacScriptEvaluator;
+
+    private URI[] uris;
+
+    private int index;
+
+    @Setup
+    public void setup() throws Exception {
+        SystemConfig systemConfig = mock(SystemConfig.class);
+        when(systemConfig.getPacEnginePoolSize()).thenReturn(1);
+        when(systemConfig.getPacCacheMaxSize()).thenReturn(0);
+        when(systemConfig.getPacCacheTtl()).thenReturn(0);
+        when(systemConfig.getPacCacheVolatileTtl()).thenReturn(0);
+
+        ProxyConfig proxyConfig = mock(ProxyConfig.class);
+        when(proxyConfig.getProxyPacFileLocationAsURL())
+                .thenReturn(new File("./src/test/resources/proxy-large.pac").toURI().toURL());
+
+        DnsCache dnsCache = new DnsCache();
+        ReflectionTestUtils.setField(dnsCache, "systemConfig", systemConfig);
+        DefaultPacHelperMethods pacHelperMethods = new DefaultPacHelperMethods();
+        ReflectionTestUtils.setField(pacHelperMethods, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(pacHelperMethods, "dnsCache", dnsCache);
+        ReflectionTestUtils.setField(pacHelperMethods, "globPatternMatcher", new GlobPatternMatcher());
+
+        pacScriptEvaluator = pacEngine == SystemConfig.PacEngine.GRAALJS
+                ? new GraalJsPacScriptEvaluator() : new DefaultPacScriptEvaluator();
+        ReflectionTestUtils.setField(pacScriptEvaluator, "proxyConfig", proxyConfig);
+        ReflectionTestUtils.setField(pacScriptEvaluator, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(pacScriptEvaluator, "pacHelperMethods", pacHelperMethods);
+
+        uris = new URI[URLS.length];
+        for (int i = 0; i < URLS.length; i++) {
+            uris[i] = new URI(URLS[i]);
+        }
+    }
+
+    @Benchmark
+    public List<ProxyInfo> findProxyForURL() throws Exception {
+        index = (index + 1) % uris.length;
+        return pacScriptEvaluator.findProxyForURL(uris[index]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pacScriptEvaluator.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(PacScriptEvaluatorBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.SystemConfig;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class BuiltinDnsResolverTests {
+
+    private static final byte[] IPV4 = {10, 0, 0, 1};
+
+    private static final byte[] IPV6 = {0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1};
+
+    /**
+     * The query types received by the stand-in DNS server.
+     */
+    private final List<Integer> queryTypes = new CopyOnWriteArrayList<>();
+
+    private DatagramSocket dnsServer;
+
+    /**
+     * A server that never answers.
+     */
+    private DatagramSocket deadServer;
+
+    private SystemConfig systemConfig;
+
+    private ProxyExecutorService executorService;
+
+    private BuiltinDnsResolver builtinDnsResolver;
+
+    @BeforeEach
+    void before() throws Exception {
+        dnsServer = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        deadServer = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        new Thread(this::serve).start();
+
+        systemConfig = mock(SystemConfig.class);
+        when(systemConfig.getExecutorMode()).thenReturn(SystemConfig.ExecutorMode.PLATFORM);
+        when(systemConfig.getDnsResolverTimeout()).thenReturn(500);
+        when(systemConfig.getDnsResolverServers()).thenReturn("127.0.0.1:" + dnsServer.getLocalPort());
+
+        executorService = new ProxyExecutorService();
+        ReflectionTestUtils.setField(executorService, "systemConfig", systemConfig);
+        builtinDnsResolver = new BuiltinDnsResolver();
+        ReflectionTestUtils.setField(builtinDnsResolver, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(builtinDnsResolver, "executorService", executorService);
+    }
+
+    /**
+     * Answer the A and AAAA queries for any name but 'unknown.test', which does not exist.
+     */
+    private void serve() {
+        try {
+            while (true) {
+                DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+                dnsServer.receive(packet);
+                ByteBuffer query = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+                int id = query.getShort() & 0xFFFF;
+                query.position(12);
+                StringBuilder name = new StringBuilder();
+                for (int length = query.get(); length > 0; length = query.get()) {
+                    byte[] label = new byte[length];
+                    query.get(label);
+                    name.append(name.length() > 0 ? "." : "").append(new String(label));
+                }
+                int questionEnd = query.position() + 4;
+                int type = query.getShort() & 0xFFFF;
+                queryTypes.add(type);
+
+                boolean unknown = "unknown.test".equals(name.toString());
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                DataOutputStream outputStream = new DataOutputStream(response);
+                outputStream.writeShort(id);
+                outputStream.writeShort(0x8180 | (unknown ? BuiltinDnsResolver.RCODE_NAME_ERROR : 0));
+                outputStream.writeShort(1);
+                outputStream.writeShort(unknown ? 0 : 1);
+                outputStream.writeShort(0);
+                outputStream.writeShort(0);
+                outputStream.write(packet.getData(), 12, questionEnd - 12);
+                if (!unknown) {
+                    byte[] data = type == BuiltinDnsResolver.TYPE_A ? IPV4 : IPV6;
+                    // A pointer to the question's name
+                    outputStream.writeShort(0xC00C);
+                    outputStream.writeShort(type);
+                    outputStream.writeShort(BuiltinDnsResolver.CLASS_IN);
+                    outputStream.writeInt(60);
+                    outputStream.writeShort(data.length);
+                    outputStream.write(data);
+                }
+                byte[] bytes = response.toByteArray();
+                dnsServer.send(new DatagramPacket(bytes, bytes.length, packet.getSocketAddress()));
+            }
+        } catch (Exception e) {
+            // Server closed
+        }
+    }
+
+    @Test
+    void resolve_BothFamilies_IPv4First() throws Exception {
+        InetAddress[] addresses = builtinDnsResolver.resolve("www.example.test");
+        assertEquals(2, addresses.length);
+        assertArrayEquals(IPV4, addresses[0].getAddress());
+        assertArrayEquals(IPV6, addresses[1].getAddress());
+        assertEquals("www.example.test", addresses[0].getHostName());
+        assertTrue(queryTypes.containsAll(List.of(BuiltinDnsResolver.TYPE_A, BuiltinDnsResolver.TYPE_AAAA)));
+    }
+
+    @Test
+    void resolve_PreferIPv6_IPv6First() throws Exception {
+        when(systemConfig.isPreferIPv6Addresses()).thenReturn(true);
+        InetAddress[] addresses = builtinDnsResolver.resolve("www.example.test");
+        assertTrue(addresses[0] instanceof Inet6Address);
+    }
+
+    @Test
+    void resolve_NameError_UnknownHostException() {
+        assertThrows(UnknownHostException.class, () -> builtinDnsResolver.resolve("unknown.test"));
+    }
+
+    @Test
+    void resolve_FirstServerDead_NextServer() throws Exception {
+        when(systemConfig.getDnsResolverServers()).thenReturn(
+                "127.0.0.1:" + deadServer.getLocalPort() + ",127.0.0.1:" + dnsServer.getLocalPort());
+        InetAddress[] addresses = builtinDnsResolver.resolve("www.example.test");
+        assertEquals(2, addresses.length);
+    }
+
+    @Test
+    void resolve_AllServersDead_UnknownHostException() {
+        when(systemConfig.getDnsResolverServers()).thenReturn("127.0.0.1:" + deadServer.getLocalPort());
+        long start = System.currentTimeMillis();
+        assertThrows(UnknownHostException.class, () -> builtinDnsResolver.resolve("www.example.test"));
+        // The A and AAAA queries time out in parallel
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    @AfterEach
+    void after() throws Exception {
+        dnsServer.close();
+        deadServer.close();
+        executorService.close();
+    }
+
+}
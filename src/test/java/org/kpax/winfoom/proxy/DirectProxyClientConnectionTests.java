@@ -20,6 +20,7 @@ import org.apache.http.HttpStatus;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.bootstrap.HttpServer;
 import org.apache.http.impl.bootstrap.ServerBootstrap;
@@ -43,12 +44,15 @@ import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.kpax.winfoom.TestConstants.LOCAL_PROXY_PORT;
 import static org.kpax.winfoom.TestConstants.PROXY_PORT;
 import static org.mockito.Mockito.when;
@@ -79,6 +83,8 @@ public class DirectProxyClientConnectionTests {
 
     private HttpServer remoteServer;
 
+    private final AtomicInteger acceptedConnections = new AtomicInteger();
+
     @BeforeEach
     void beforeEach() {
         when(proxyConfig.getProxyHost()).thenReturn("localhost");
@@ -96,6 +102,13 @@ public class DirectProxyClientConnectionTests {
                 response.setEntity(new StringEntity("12345"));
             }
 
+        }).registerHandler("/chunked", new HttpRequestHandler() {
+
+            @Override
+            public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+                response.setEntity(new InputStreamEntity(new ByteArrayInputStream("chunked body".getBytes()), -1));
+            }
+
         }).create();
         remoteServer.start();
 
@@ -107,6 +120,7 @@ public class DirectProxyClientConnectionTests {
             while (!serverSocket.isClosed()) {
                 try {
                     Socket socket = serverSocket.accept();
+                    acceptedConnections.incrementAndGet();
                     socket.setSoTimeout(socketTimeout * 1000);
                     new Thread(() -> {
 
@@ -162,6 +176,29 @@ public class DirectProxyClientConnectionTests {
         }
     }
 
+    @Test
+    @Order(2)
+    void directProxy_NonConnectKeepAlive_ConnectionReused() throws IOException {
+        HttpHost localProxy = new HttpHost("localhost", LOCAL_PROXY_PORT, "http");
+        try (CloseableHttpClient httpClient = HttpClientBuilder.create()
+                .setProxy(localProxy).setMaxConnTotal(1).build()) {
+            HttpHost target = HttpHost.create("http://localhost:" + remoteServer.getLocalPort());
+            int accepted = acceptedConnections.get();
+            for (int i = 0; i < 2; i++) {
+                try (CloseableHttpResponse response = httpClient.execute(target, new HttpGet("/get"))) {
+                    assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+                    assertEquals("12345", EntityUtils.toString(response.getEntity()));
+                }
+                try (CloseableHttpResponse response = httpClient.execute(target, new HttpGet("/chunked"))) {
+                    assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+                    assertTrue(response.getEntity().isChunked());
+                    assertEquals("chunked body", EntityUtils.toString(response.getEntity()));
+                }
+            }
+            assertEquals(accepted + 1, acceptedConnections.get());
+        }
+    }
+
     @AfterAll
     void after() {
         try {
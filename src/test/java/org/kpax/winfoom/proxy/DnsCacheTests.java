@@ -0,0 +1,128 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.SystemConfig;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class DnsCacheTests {
+
+    private SystemConfig systemConfig;
+
+    private DnsCache dnsCache;
+
+    @BeforeEach
+    void before() {
+        systemConfig = mock(SystemConfig.class);
+        when(systemConfig.getDnsCacheTtl()).thenReturn(60);
+        when(systemConfig.getDnsCacheNegativeTtl()).thenReturn(60);
+        when(systemConfig.getDnsCacheMaxSize()).thenReturn(2);
+        dnsCache = new DnsCache();
+        ReflectionTestUtils.setField(dnsCache, "systemConfig", systemConfig);
+    }
+
+    @Test
+    void resolve_HostName_Cached() throws Exception {
+        InetAddress[] addresses = dnsCache.resolve("localhost");
+        assertArrayEquals(addresses, dnsCache.resolve("LOCALHOST"));
+        assertEquals(1, dnsCache.size());
+    }
+
+    @Test
+    void resolve_IpAddress_NotCached() throws Exception {
+        assertEquals("127.0.0.1", dnsCache.resolve("127.0.0.1")[0].getHostAddress());
+        assertEquals(0, dnsCache.size());
+    }
+
+    @Test
+    void resolve_UnknownHost_NegativeCached() {
+        assertThrows(UnknownHostException.class, () -> dnsCache.resolve("unknown.host.invalid"));
+        assertThrows(UnknownHostException.class, () -> dnsCache.resolve("unknown.host.invalid"));
+        assertEquals(1, dnsCache.size());
+    }
+
+    @Test
+    void resolve_Expired_ResolvedAgain() throws Exception {
+        when(systemConfig.getDnsCacheNegativeTtl()).thenReturn(0);
+        assertThrows(UnknownHostException.class, () -> dnsCache.resolve("unknown.host.invalid"));
+        Thread.sleep(10);
+        assertThrows(UnknownHostException.class, () -> dnsCache.resolve("unknown.host.invalid"));
+        assertEquals(1, dnsCache.size());
+    }
+
+    @Test
+    void resolve_ZeroTtl_ReturnedAndResolvedAgain() throws Exception {
+        when(systemConfig.getDnsCacheTtl()).thenReturn(0);
+        InetAddress[] addresses = assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> dnsCache.resolve("localhost"));
+        assertTrue(addresses.length > 0);
+        Thread.sleep(10);
+        assertArrayEquals(addresses, assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> dnsCache.resolve("localhost")));
+        assertEquals(1, dnsCache.size());
+    }
+
+    @Test
+    void init_NegativeTtl_Rejected() {
+        when(systemConfig.getDnsCacheNegativeTtl()).thenReturn(-1);
+        assertThrows(IllegalArgumentException.class, () -> dnsCache.init());
+    }
+
+    @Test
+    void resolve_MaxSizeExceeded_Evicted() {
+        for (int i = 0; i < 5; i++) {
+            int index = i;
+            assertThrows(UnknownHostException.class, () -> dnsCache.resolve("unknown" + index + ".host.invalid"));
+        }
+        assertTrue(dnsCache.size() <= 2);
+    }
+
+    @Test
+    void resolve_Concurrent_SameAddresses() throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<InetAddress[]>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executorService.submit(() -> dnsCache.resolve("localhost")));
+            }
+            InetAddress[] expected = futures.get(0).get();
+            for (Future<InetAddress[]> future : futures) {
+                assertArrayEquals(expected, future.get());
+            }
+            assertEquals(1, dnsCache.size());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    void close_Cleared() throws Exception {
+        dnsCache.resolve("localhost");
+        dnsCache.close();
+        assertEquals(0, dnsCache.size());
+    }
+
+}
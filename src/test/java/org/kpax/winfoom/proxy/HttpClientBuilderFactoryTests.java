@@ -0,0 +1,78 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kpax.winfoom.FoomApplicationTest;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.kpax.winfoom.TestConstants.PROXY_PORT;
+import static org.mockito.Mockito.when;
+
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+@ExtendWith(SpringExtension.class)
+@ActiveProfiles("test")
+@SpringBootTest(classes = FoomApplicationTest.class)
+class HttpClientBuilderFactoryTests {
+
+    @MockBean
+    private ProxyConfig proxyConfig;
+
+    @Autowired
+    private HttpClientBuilderFactory httpClientBuilderFactory;
+
+    @Autowired
+    private ProxyController proxyController;
+
+    @BeforeEach
+    void before() throws Exception {
+        // An ephemeral port, since the session is restarted right after the server socket is closed
+        when(proxyConfig.getLocalPort()).thenReturn(0);
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.DIRECT);
+        proxyController.start();
+    }
+
+    @Test
+    void getHttpClient_SameProxy_CachedUntilSessionEnds() throws Exception {
+        ProxyInfo httpProxy = new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("localhost", PROXY_PORT));
+        CloseableHttpClient httpClient = httpClientBuilderFactory.getHttpClient(httpProxy);
+        assertSame(httpClient, httpClientBuilderFactory.getHttpClient(
+                new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("localhost", PROXY_PORT))));
+        assertNotSame(httpClient, httpClientBuilderFactory.getHttpClient(
+                new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("localhost", PROXY_PORT + 1))));
+        assertNotSame(httpClient, httpClientBuilderFactory.getHttpClient(new ProxyInfo(ProxyInfo.PacType.DIRECT)));
+
+        proxyController.stop();
+        proxyController.start();
+        assertNotSame(httpClient, httpClientBuilderFactory.getHttpClient(httpProxy));
+    }
+
+    @AfterEach
+    void after() {
+        proxyController.stop();
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InstrumentedConnectionManagerTests {
+
+    private final HttpRoute route = new HttpRoute(new HttpHost("localhost", 3128));
+
+    private InstrumentedConnectionManager connectionManager;
+
+    @BeforeEach
+    void before() {
+        connectionManager = new InstrumentedConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .build(), null);
+    }
+
+    @AfterEach
+    void after() {
+        connectionManager.shutdown();
+    }
+
+    @Test
+    void percentile_NoSample_Minus1() {
+        assertEquals(-1, InstrumentedConnectionManager.Histogram.percentile(
+                new long[InstrumentedConnectionManager.Histogram.BUCKETS], 50));
+        assertEquals(-1, connectionManager.getLeaseWaitPercentile(route, 50));
+    }
+
+    @Test
+    void percentile_Samples_BucketUpperBound() {
+        InstrumentedConnectionManager.Histogram histogram = new InstrumentedConnectionManager.Histogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(0);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(100);
+        }
+        assertEquals(0, InstrumentedConnectionManager.Histogram.percentile(histogram.snapshot(), 50));
+        assertEquals(0, InstrumentedConnectionManager.Histogram.percentile(histogram.snapshot(), 90));
+        assertEquals(127, InstrumentedConnectionManager.Histogram.percentile(histogram.snapshot(), 95));
+    }
+
+    @Test
+    void adjust_LeaseWaits_Grow() throws Exception {
+        connectionManager.setMaxPerRoute(route, 1);
+        HttpClientConnection connection = connectionManager.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+        assertThrows(ConnectionPoolTimeoutException.class,
+                () -> connectionManager.requestConnection(route, null).get(100, TimeUnit.MILLISECONDS));
+        assertTrue(connectionManager.getLeaseWaitPercentile(route, 99) >= 63);
+
+        connectionManager.adjust(1, 4, 50, true);
+        assertEquals(2, connectionManager.getMaxPerRoute(route));
+        connectionManager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    void adjust_NotAdaptive_Unchanged() throws Exception {
+        connectionManager.setMaxPerRoute(route, 1);
+        HttpClientConnection connection = connectionManager.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+        assertThrows(ConnectionPoolTimeoutException.class,
+                () -> connectionManager.requestConnection(route, null).get(100, TimeUnit.MILLISECONDS));
+
+        connectionManager.adjust(1, 4, 50, false);
+        assertEquals(1, connectionManager.getMaxPerRoute(route));
+        connectionManager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    void adjust_Underused_ShrinkWithinBounds() throws Exception {
+        connectionManager.setMaxPerRoute(route, 20);
+        HttpClientConnection connection = connectionManager.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+        connectionManager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+
+        connectionManager.adjust(10, 100, 50, true);
+        assertEquals(15, connectionManager.getMaxPerRoute(route));
+        connection = connectionManager.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+        connectionManager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+        connectionManager.adjust(10, 100, 50, true);
+        assertEquals(12, connectionManager.getMaxPerRoute(route));
+        connection = connectionManager.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+        connectionManager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+        connectionManager.adjust(10, 100, 50, true);
+        assertEquals(10, connectionManager.getMaxPerRoute(route));
+    }
+
+    @Test
+    void adjust_IdleRoute_Dropped() throws Exception {
+        HttpClientConnection connection = connectionManager.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+        connectionManager.adjust(1, 4, 50, true);
+        connectionManager.adjust(1, 4, 50, true);
+        assertTrue(connectionManager.getLeaseWaitPercentile(route, 50) >= 0);
+
+        connectionManager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+        connectionManager.adjust(1, 4, 50, true);
+        assertEquals(-1, connectionManager.getLeaseWaitPercentile(route, 50));
+
+        connection = connectionManager.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+        assertTrue(connectionManager.getLeaseWaitPercentile(route, 50) >= 0);
+        connectionManager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+    }
+
+}
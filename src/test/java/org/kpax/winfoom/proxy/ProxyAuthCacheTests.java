@@ -0,0 +1,152 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpVersion;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.SystemConfig;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ProxyAuthCacheTests {
+
+    /**
+     * The CONNECT requests received by the fake proxy: target and whether authenticated.
+     */
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    private ServerSocket proxyServer;
+
+    private SystemConfig systemConfig;
+
+    private ProxyAuthCache proxyAuthCache;
+
+    private TunnelConnection tunnelConnection;
+
+    private HttpHost proxy;
+
+    @BeforeEach
+    void before() throws Exception {
+        systemConfig = mock(SystemConfig.class);
+        when(systemConfig.isAuthenticationPreemptive()).thenReturn(true);
+        TunnelConnectionPool tunnelConnectionPool = mock(TunnelConnectionPool.class);
+
+        CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+        credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("user", "pass"));
+
+        proxyAuthCache = new ProxyAuthCache();
+        tunnelConnection = new TunnelConnection();
+        ReflectionTestUtils.setField(tunnelConnection, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(tunnelConnection, "credentialsProvider", credentialsProvider);
+        ReflectionTestUtils.setField(tunnelConnection, "tunnelConnectionPool", tunnelConnectionPool);
+        ReflectionTestUtils.setField(tunnelConnection, "proxyAuthCache", proxyAuthCache);
+        DnsCache dnsCache = new DnsCache();
+        ReflectionTestUtils.setField(dnsCache, "systemConfig", systemConfig);
+        UpstreamConnector upstreamConnector = new UpstreamConnector();
+        ReflectionTestUtils.setField(upstreamConnector, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(upstreamConnector, "dnsCache", dnsCache);
+        ReflectionTestUtils.setField(tunnelConnection, "upstreamConnector", upstreamConnector);
+        tunnelConnection.init();
+
+        proxyServer = new ServerSocket(0);
+        proxy = new HttpHost("localhost", proxyServer.getLocalPort());
+        new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = proxyServer.accept();
+                    new Thread(() -> handle(socket)).start();
+                }
+            } catch (Exception e) {
+                // Server closed
+            }
+        }).start();
+    }
+
+    /**
+     * A proxy requiring Basic authentication, that keeps the connection alive on challenge.
+     */
+    private void handle(Socket socket) {
+        try (socket) {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream outputStream = socket.getOutputStream();
+            for (String requestLine; (requestLine = reader.readLine()) != null; ) {
+                boolean authenticated = false;
+                for (String line; (line = reader.readLine()) != null && !line.isEmpty(); ) {
+                    authenticated |= line.toLowerCase().startsWith("proxy-authorization: basic");
+                }
+                requests.add(requestLine.split(" ")[1] + (authenticated ? " auth" : " noauth"));
+                if (authenticated) {
+                    outputStream.write("HTTP/1.1 200 Connection established\r\n\r\n"
+                            .getBytes(StandardCharsets.US_ASCII));
+                    outputStream.flush();
+                    IOUtils.toByteArray(socket.getInputStream());
+                    return;
+                }
+                outputStream.write(("HTTP/1.1 407 Proxy Authentication Required\r\n" +
+                        "Proxy-Authenticate: Basic realm=\"test\"\r\n" +
+                        "Content-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                outputStream.flush();
+            }
+        } catch (Exception e) {
+            // Connection closed
+        }
+    }
+
+    @Test
+    void open_SchemeCached_CredentialsSentPreemptively() throws Exception {
+        tunnelConnection.open(proxy, new HttpHost("first", 443), HttpVersion.HTTP_1_1).close();
+        assertNotNull(proxyAuthCache.get(proxy));
+        tunnelConnection.open(proxy, new HttpHost("second", 443), HttpVersion.HTTP_1_1).close();
+        assertEquals(List.of("first:443 noauth", "first:443 auth", "second:443 auth"), requests);
+    }
+
+    @Test
+    void open_PreemptiveDisabled_ChallengedEachTime() throws Exception {
+        when(systemConfig.isAuthenticationPreemptive()).thenReturn(false);
+        tunnelConnection.open(proxy, new HttpHost("first", 443), HttpVersion.HTTP_1_1).close();
+        tunnelConnection.open(proxy, new HttpHost("second", 443), HttpVersion.HTTP_1_1).close();
+        assertNull(proxyAuthCache.get(proxy));
+        assertEquals(List.of("first:443 noauth", "first:443 auth", "second:443 noauth", "second:443 auth"),
+                requests);
+    }
+
+    @AfterEach
+    void after() {
+        proxyAuthCache.close();
+        IOUtils.closeQuietly(proxyServer);
+    }
+
+}
@@ -25,10 +25,10 @@ import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.springframework.test.util.ReflectionTestUtils;
 
+import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.when;
 
 @DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
@@ -148,7 +148,57 @@ class ProxyBlacklistTests {
         Thread.sleep(BLACKLIST_TIMEOUT * 1000 + 1);
         proxyBlacklist.checkBlacklist(proxyInfo);
         assertEquals(0, proxyBlacklist.getBlacklistMap().size());
+        assertFalse(proxyBlacklist.isBlacklisted(proxyInfo));
+    }
+
+    @Order(10)
+    @Test
+    void checkBlacklisted_HalfOpen_SingleTrialUntilSuccess() throws InterruptedException {
+        proxyBlacklist.clear();
+        ProxyInfo proxyInfo = new ProxyInfo(ProxyInfo.PacType.HTTP, new HttpHost("host", 1234));
+        proxyBlacklist.blacklist(proxyInfo);
+        Thread.sleep(BLACKLIST_TIMEOUT * 1000 + 1);
+        assertFalse(proxyBlacklist.checkBlacklist(proxyInfo));
+        assertTrue(proxyBlacklist.checkBlacklist(proxyInfo));
+        proxyBlacklist.recordSuccess(proxyInfo);
         assertFalse(proxyBlacklist.checkBlacklist(proxyInfo));
+        assertFalse(proxyBlacklist.checkBlacklist(proxyInfo));
+    }
+
+    @Order(11)
+    @Test
+    void blacklist_TrialFailed_TimeoutDoubled() throws InterruptedException {
+        proxyBlacklist.clear();
+        ProxyInfo proxyInfo = new ProxyInfo(ProxyInfo.PacType.HTTP, new HttpHost("host", 1234));
+        proxyBlacklist.blacklist(proxyInfo);
+        Thread.sleep(BLACKLIST_TIMEOUT * 1000 + 1);
+        assertFalse(proxyBlacklist.checkBlacklist(proxyInfo));
+        Instant start = Instant.now();
+        Instant timeoutInstant = proxyBlacklist.blacklist(proxyInfo);
+        assertFalse(timeoutInstant.isBefore(start.plusSeconds(2 * BLACKLIST_TIMEOUT)));
+        assertTrue(proxyBlacklist.checkBlacklist(proxyInfo));
+    }
+
+    @Order(12)
+    @Test
+    void blacklist_FailureRateUnderThreshold_NotBlacklisted() throws InterruptedException {
+        proxyBlacklist.clear();
+        ProxyInfo proxyInfo = new ProxyInfo(ProxyInfo.PacType.HTTP, new HttpHost("host", 1234));
+        proxyBlacklist.blacklist(proxyInfo);
+        Thread.sleep(BLACKLIST_TIMEOUT * 1000 + 1);
+        assertFalse(proxyBlacklist.checkBlacklist(proxyInfo));
+
+        // Three successes in the window, then one failure: 25% failure rate
+        for (int i = 0; i < 3; i++) {
+            proxyBlacklist.recordSuccess(proxyInfo);
+        }
+        assertNull(proxyBlacklist.blacklist(proxyInfo));
+        assertFalse(proxyBlacklist.checkBlacklist(proxyInfo));
+
+        // 40%, then 50% failure rate
+        assertNull(proxyBlacklist.blacklist(proxyInfo));
+        assertNotNull(proxyBlacklist.blacklist(proxyInfo));
+        assertTrue(proxyBlacklist.checkBlacklist(proxyInfo));
     }
 
 }
@@ -0,0 +1,267 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.kpax.winfoom.util.StreamSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A standalone benchmark comparing the {@link ProxyExecutorService} threading modes
+ * while many tunnels are relayed concurrently by {@link InputOutputs#duplex}.
+ * <p>For each mode, it opens the tunnels through a local relay to a non-blocking echo server,
+ * then reports the used heap, the resident memory, the platform thread count and the echo throughput.
+ * <p>It is not a unit test. Run it with the test classpath:
+ * {@code ProxyExecutorServiceBenchmark [tunnels] [rounds] [payloadBytes]} (defaults: 5000, 10, 1024).
+ * Each tunnel takes four file descriptors, so raise the open files limit accordingly.
+ * On a JVM without virtual threads, the {@code VIRTUAL} mode falls back to platform threads.
+ */
+public class ProxyExecutorServiceBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int tunnels = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int payloadLength = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+        System.out.printf("JVM %s, %d tunnels, %d rounds, %d bytes payload%n",
+                System.getProperty("java.version"), tunnels, rounds, payloadLength);
+        for (SystemConfig.ExecutorMode mode : new SystemConfig.ExecutorMode[]{
+                SystemConfig.ExecutorMode.PLATFORM, SystemConfig.ExecutorMode.VIRTUAL}) {
+            run(mode, tunnels, rounds, payloadLength);
+        }
+    }
+
+    private static void run(SystemConfig.ExecutorMode mode, int tunnels, int rounds, int payloadLength)
+            throws Exception {
+        SystemConfig systemConfig = new SystemConfig();
+        ReflectionTestUtils.setField(systemConfig, "executorMode", mode);
+        ProxyExecutorService executorService = new ProxyExecutorService();
+        ReflectionTestUtils.setField(executorService, "systemConfig", systemConfig);
+
+        List<Socket> clients = new ArrayList<>(tunnels);
+        try (EchoServer echoServer = new EchoServer();
+             ServerSocket localServer = new ServerSocket(0, tunnels)) {
+            new Thread(echoServer).start();
+            Thread acceptor = new Thread(() -> {
+                while (!localServer.isClosed()) {
+                    try {
+                        Socket client = localServer.accept();
+                        executorService.submit(() -> {
+                            try (Socket remote = new Socket("localhost", echoServer.getPort())) {
+                                InputOutputs.duplex(executorService,
+                                        StreamSource.from(remote.getInputStream(), remote.getOutputStream()),
+                                        StreamSource.from(client.getInputStream(), client.getOutputStream()));
+                            } catch (IOException e) {
+                                // Tunnel closed
+                            } finally {
+                                InputOutputs.close(client);
+                            }
+                        });
+                    } catch (IOException e) {
+                        // Server closed
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            long heapBefore = usedHeap();
+            long rssBefore = residentMemory();
+            int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+            // Open the tunnels and make sure each one is established
+            for (int i = 0; i < tunnels; i++) {
+                Socket client = new Socket("localhost", localServer.getLocalPort());
+                client.setSoTimeout(60_000);
+                clients.add(client);
+            }
+            echo(clients, 1, 1);
+
+            long heapDelta = usedHeap() - heapBefore;
+            long rssDelta = residentMemory() - rssBefore;
+            int threadDelta = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+
+            long start = System.nanoTime();
+            echo(clients, rounds, payloadLength);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double megabytes = 2.0 * tunnels * rounds * payloadLength / (1024 * 1024);
+
+            System.out.printf("%-8s heap +%,d KB, rss +%,d KB, platform threads +%d, " +
+                            "%.1f round trips/s, %.1f MB/s%n",
+                    mode, heapDelta / 1024, rssDelta / 1024, threadDelta,
+                    tunnels * rounds / seconds, megabytes / seconds);
+        } finally {
+            clients.forEach(InputOutputs::close);
+            executorService.close();
+        }
+    }
+
+    /**
+     * Write the payload on every tunnel then read it back, using a fixed number of driver threads.
+     */
+    private static void echo(List<Socket> clients, int rounds, int payloadLength) throws Exception {
+        int drivers = Math.min(64, clients.size());
+        ExecutorService driverPool = Executors.newFixedThreadPool(drivers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int d = 0; d < drivers; d++) {
+                List<Socket> slice = clients.subList(d * clients.size() / drivers,
+                        (d + 1) * clients.size() / drivers);
+                futures.add(driverPool.submit(() -> {
+                    byte[] payload = new byte[payloadLength];
+                    byte[] buffer = new byte[payloadLength];
+                    for (int r = 0; r < rounds; r++) {
+                        for (Socket client : slice) {
+                            OutputStream outputStream = client.getOutputStream();
+                            outputStream.write(payload);
+                            outputStream.flush();
+                        }
+                        for (Socket client : slice) {
+                            InputStream inputStream = client.getInputStream();
+                            int read = 0;
+                            while (read < payloadLength) {
+                                int n = inputStream.read(buffer, read, payloadLength - read);
+                                if (n < 0) {
+                                    throw new IOException("Tunnel closed prematurely");
+                                }
+                                read += n;
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            driverPool.shutdownNow();
+            driverPool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * @return the resident set size on Linux, {@code 0} elsewhere.
+     */
+    private static long residentMemory() throws IOException {
+        Path status = Paths.get("/proc/self/status");
+        if (Files.exists(status)) {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * A single threaded, non-blocking echo server, so that it doesn't weigh on the measured thread count.
+     */
+    private static class EchoServer implements Runnable, AutoCloseable {
+
+        private final Selector selector = Selector.open();
+        private final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+
+        EchoServer() throws IOException {
+            serverChannel.bind(new InetSocketAddress("localhost", 0), 10_000);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        int getPort() {
+            return serverChannel.socket().getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    selector.select();
+                    for (Iterator<SelectionKey> itr = selector.selectedKeys().iterator(); itr.hasNext(); ) {
+                        SelectionKey key = itr.next();
+                        itr.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            SocketChannel channel;
+                            while ((channel = serverChannel.accept()) != null) {
+                                channel.configureBlocking(false);
+                                channel.register(selector, SelectionKey.OP_READ,
+                                        ByteBuffer.allocate(InputOutputs.DEFAULT_BUFFER_SIZE));
+                            }
+                        } else {
+                            SocketChannel channel = (SocketChannel) key.channel();
+                            ByteBuffer buffer = (ByteBuffer) key.attachment();
+                            try {
+                                if (key.isReadable() && channel.read(buffer) < 0) {
+                                    key.cancel();
+                                    channel.close();
+                                    continue;
+                                }
+                                buffer.flip();
+                                channel.write(buffer);
+                                buffer.compact();
+                                key.interestOps(buffer.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                            } catch (IOException e) {
+                                key.cancel();
+                                channel.close();
+                            }
+                        }
+                    }
+                } catch (ClosedSelectorException e) {
+                    return;
+                } catch (IOException e) {
+                    // Keep serving
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            selector.close();
+            serverChannel.close();
+        }
+    }
+
+}
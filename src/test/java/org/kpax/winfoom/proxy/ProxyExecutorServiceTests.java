@@ -0,0 +1,128 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.SystemConfig;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ProxyExecutorServiceTests {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private SystemConfig systemConfig;
+
+    private ProxyExecutorService executorService;
+
+    @BeforeEach
+    void before() {
+        systemConfig = mock(SystemConfig.class);
+        when(systemConfig.getExecutorMode()).thenReturn(SystemConfig.ExecutorMode.BOUNDED);
+        when(systemConfig.getExecutorMaxConnections()).thenReturn(1);
+        when(systemConfig.getExecutorQueueCapacity()).thenReturn(1);
+        executorService = new ProxyExecutorService();
+        ReflectionTestUtils.setField(executorService, "systemConfig", systemConfig);
+    }
+
+    @Test
+    void submitConnection_MaxConnectionsAndQueueFull_RejectedAndCounted() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch queuedStarted = new CountDownLatch(1);
+        executorService.submitConnection(() -> {
+            started.countDown();
+            awaitRelease();
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        executorService.submitConnection(() -> {
+            queuedStarted.countDown();
+            awaitRelease();
+        });
+
+        assertThrows(RejectedExecutionException.class, () -> executorService.submitConnection(this::awaitRelease));
+        assertEquals(1, executorService.getActiveConnectionCount());
+        assertEquals(1, executorService.getQueuedCount());
+        assertEquals(1, executorService.getRejectedCount());
+        assertEquals(1, queuedStarted.getCount());
+
+        release.countDown();
+        assertTrue(queuedStarted.await(5, TimeUnit.SECONDS));
+        assertEquals(0, executorService.getQueuedCount());
+    }
+
+    @Test
+    void submitConnection_NoQueue_RejectedWhenMaxConnections() {
+        when(systemConfig.getExecutorQueueCapacity()).thenReturn(0);
+        executorService.submitConnection(this::awaitRelease);
+        assertThrows(RejectedExecutionException.class, () -> executorService.submitConnection(this::awaitRelease));
+        assertEquals(0, executorService.getQueuedCount());
+        assertEquals(1, executorService.getRejectedCount());
+    }
+
+    @Test
+    void submit_MaxConnections_InternalTasksNotRejected() throws Exception {
+        when(systemConfig.getExecutorQueueCapacity()).thenReturn(0);
+        executorService.submitConnection(this::awaitRelease);
+        Future<?> first = executorService.submit(() -> "first");
+        Future<?> second = executorService.submit(() -> "second");
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        assertEquals("second", second.get(5, TimeUnit.SECONDS));
+        assertEquals(0, executorService.getRejectedCount());
+    }
+
+    @Test
+    void submitConnection_Finished_PlaceReleased() throws Exception {
+        when(systemConfig.getExecutorQueueCapacity()).thenReturn(0);
+        CountDownLatch done = new CountDownLatch(1);
+        executorService.submitConnection(done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        CountDownLatch next = new CountDownLatch(1);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                executorService.submitConnection(next::countDown);
+                break;
+            } catch (RejectedExecutionException e) {
+                // The first connection may not have released its place yet
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+        assertTrue(next.await(5, TimeUnit.SECONDS));
+    }
+
+    private void awaitRelease() {
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @AfterEach
+    void after() throws Exception {
+        release.countDown();
+        executorService.close();
+    }
+
+}
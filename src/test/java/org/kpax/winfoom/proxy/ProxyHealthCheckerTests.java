@@ -0,0 +1,146 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpHost;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.SystemConfig;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ProxyHealthCheckerTests {
+
+    /**
+     * The request lines received by the fake proxy.
+     */
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    private ServerSocket proxyServer;
+
+    private SystemConfig systemConfig;
+
+    private ProxyBlacklist proxyBlacklist;
+
+    private ProxyExecutorService executorService;
+
+    private ProxyHealthChecker proxyHealthChecker;
+
+    private volatile String response = "HTTP/1.1 407 Proxy Authentication Required\r\n\r\n";
+
+    @BeforeEach
+    void before() throws Exception {
+        systemConfig = mock(SystemConfig.class);
+        when(systemConfig.isHealthCheck()).thenReturn(true);
+        when(systemConfig.getHealthCheckTimeout()).thenReturn(3);
+        when(systemConfig.getHealthCheckUrl()).thenReturn("");
+        when(systemConfig.getExecutorMode()).thenReturn(SystemConfig.ExecutorMode.PLATFORM);
+        proxyBlacklist = mock(ProxyBlacklist.class);
+        executorService = new ProxyExecutorService();
+        ReflectionTestUtils.setField(executorService, "systemConfig", systemConfig);
+        proxyHealthChecker = new ProxyHealthChecker();
+        ReflectionTestUtils.setField(proxyHealthChecker, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(proxyHealthChecker, "executorService", executorService);
+        ReflectionTestUtils.setField(proxyHealthChecker, "proxyBlacklist", proxyBlacklist);
+
+        proxyServer = new ServerSocket(0);
+        new Thread(() -> {
+            try {
+                while (true) {
+                    try (Socket socket = proxyServer.accept()) {
+                        String requestLine = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                                StandardCharsets.US_ASCII)).readLine();
+                        requests.add(requestLine);
+                        socket.getOutputStream().write(response.getBytes(StandardCharsets.US_ASCII));
+                    } catch (Exception e) {
+                        if (proxyServer.isClosed()) {
+                            return;
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                // Server closed
+            }
+        }).start();
+    }
+
+    @Test
+    void probe_TcpOnlyProxyDownThenUp_StateFollows() throws Exception {
+        ServerSocket closedServer = new ServerSocket(0);
+        ProxyInfo proxyInfo = proxy(closedServer.getLocalPort());
+        closedServer.close();
+        assertFalse(proxyHealthChecker.probe(proxyInfo));
+        assertTrue(proxyHealthChecker.isDown(proxyInfo));
+
+        ProxyInfo upProxyInfo = proxy(proxyServer.getLocalPort());
+        assertTrue(proxyHealthChecker.probe(upProxyInfo));
+        assertFalse(proxyHealthChecker.isDown(upProxyInfo));
+        verify(proxyBlacklist).remove(upProxyInfo);
+        verify(proxyBlacklist, never()).remove(proxyInfo);
+    }
+
+    @Test
+    void probe_HttpsUrl_ConnectSentAndAnyHttpResponseUp() {
+        when(systemConfig.getHealthCheckUrl()).thenReturn("https://example.com");
+        assertTrue(proxyHealthChecker.probe(proxy(proxyServer.getLocalPort())));
+        assertEquals(List.of("CONNECT example.com:443 HTTP/1.1"), requests);
+    }
+
+    @Test
+    void probe_HttpUrlNotHttpResponse_Down() {
+        when(systemConfig.getHealthCheckUrl()).thenReturn("http://example.com/");
+        response = "SSH-2.0-OpenSSH\r\n";
+        assertFalse(proxyHealthChecker.probe(proxy(proxyServer.getLocalPort())));
+        assertEquals(List.of("HEAD http://example.com/ HTTP/1.1"), requests);
+    }
+
+    @Test
+    void probeAll_RegisteredProxies_ProbedInBackground() throws Exception {
+        ServerSocket closedServer = new ServerSocket(0);
+        ProxyInfo proxyInfo = proxy(closedServer.getLocalPort());
+        closedServer.close();
+        proxyHealthChecker.register(List.of(proxyInfo, new ProxyInfo(ProxyInfo.PacType.DIRECT)));
+        assertFalse(proxyHealthChecker.isDown(proxyInfo));
+
+        proxyHealthChecker.probeAll();
+        for (int i = 0; i < 100 && !proxyHealthChecker.isDown(proxyInfo); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(proxyHealthChecker.isDown(proxyInfo));
+        assertFalse(proxyHealthChecker.isDown(new ProxyInfo(ProxyInfo.PacType.DIRECT)));
+    }
+
+    private ProxyInfo proxy(int port) {
+        return new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("localhost", port));
+    }
+
+    @AfterEach
+    void after() throws Exception {
+        proxyHealthChecker.close();
+        executorService.close();
+        IOUtils.closeQuietly(proxyServer);
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.SystemConfig;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ProxyLoadBalancerTests {
+
+    private final ProxyInfo first = proxy(3128);
+
+    private final ProxyInfo second = proxy(3129);
+
+    private final ProxyInfo third = proxy(3130);
+
+    private final ProxyInfo direct = new ProxyInfo(ProxyInfo.PacType.DIRECT);
+
+    private SystemConfig systemConfig;
+
+    private ProxyBlacklist proxyBlacklist;
+
+    private ProxyLoadBalancer proxyLoadBalancer;
+
+    @BeforeEach
+    void before() {
+        systemConfig = mock(SystemConfig.class);
+        when(systemConfig.getLoadBalancing()).thenReturn(SystemConfig.LoadBalancing.FASTEST);
+        proxyBlacklist = mock(ProxyBlacklist.class);
+        proxyLoadBalancer = new ProxyLoadBalancer();
+        ReflectionTestUtils.setField(proxyLoadBalancer, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(proxyLoadBalancer, "proxyBlacklist", proxyBlacklist);
+    }
+
+    @Test
+    void recordLatency_Samples_MovingAverage() {
+        proxyLoadBalancer.recordLatency(first, 100);
+        assertEquals(100, proxyLoadBalancer.getLatency(first), 0.001);
+        proxyLoadBalancer.recordLatency(first, 200);
+        assertEquals(130, proxyLoadBalancer.getLatency(first), 0.001);
+    }
+
+    @Test
+    void order_Fastest_LowestLatencyFirstAndPacOrderOnTies() {
+        proxyLoadBalancer.recordLatency(first, 300);
+        proxyLoadBalancer.recordLatency(second, 100);
+        proxyLoadBalancer.recordLatency(third, 100);
+        assertEquals(List.of(second, third, first, direct),
+                proxyLoadBalancer.order(List.of(first, second, third, direct)));
+    }
+
+    @Test
+    void order_FastestNoSample_ConnectLatencySeed() {
+        proxyLoadBalancer.recordLatency(first, 300);
+        when(proxyBlacklist.getLatency(second)).thenReturn(50L);
+        assertEquals(List.of(second, first), proxyLoadBalancer.order(List.of(first, second)));
+    }
+
+    @Test
+    void order_Blacklisted_KeptAfterCandidates() {
+        proxyLoadBalancer.recordLatency(first, 300);
+        proxyLoadBalancer.recordLatency(second, 200);
+        proxyLoadBalancer.recordLatency(third, 100);
+        when(proxyBlacklist.isBlacklisted(third)).thenReturn(true);
+        assertEquals(List.of(second, first, third), proxyLoadBalancer.order(List.of(first, second, third)));
+    }
+
+    @Test
+    void order_DirectFirst_KeptFirst() {
+        proxyLoadBalancer.recordLatency(first, 300);
+        proxyLoadBalancer.recordLatency(second, 100);
+        assertEquals(List.of(direct, second, first), proxyLoadBalancer.order(List.of(direct, first, second)));
+    }
+
+    @Test
+    void order_DirectInTheMiddle_RunsOrderedSeparately() {
+        ProxyInfo fourth = proxy(3131);
+        proxyLoadBalancer.recordLatency(first, 300);
+        proxyLoadBalancer.recordLatency(second, 200);
+        proxyLoadBalancer.recordLatency(third, 100);
+        proxyLoadBalancer.recordLatency(fourth, 50);
+        assertEquals(List.of(second, first, direct, fourth, third),
+                proxyLoadBalancer.order(List.of(first, second, direct, third, fourth)));
+    }
+
+    @Test
+    void order_BlacklistedInTheMiddle_KeptInPlace() {
+        proxyLoadBalancer.recordLatency(first, 300);
+        proxyLoadBalancer.recordLatency(second, 200);
+        proxyLoadBalancer.recordLatency(third, 100);
+        when(proxyBlacklist.isBlacklisted(second)).thenReturn(true);
+        assertEquals(List.of(first, second, third), proxyLoadBalancer.order(List.of(first, second, third)));
+    }
+
+    @Test
+    void order_PowerOfTwoChoices_LeastLoadedFirst() {
+        when(systemConfig.getLoadBalancing()).thenReturn(SystemConfig.LoadBalancing.POWER_OF_TWO_CHOICES);
+        proxyLoadBalancer.recordLatency(first, 100);
+        proxyLoadBalancer.recordLatency(second, 100);
+
+        // Same latency, but the first one has two requests in flight
+        proxyLoadBalancer.begin(first);
+        proxyLoadBalancer.begin(first);
+        assertEquals(2, proxyLoadBalancer.getInFlight(first));
+        for (int i = 0; i < 20; i++) {
+            assertEquals(List.of(second, first, direct), proxyLoadBalancer.order(List.of(first, second, direct)));
+        }
+
+        proxyLoadBalancer.end(first);
+        proxyLoadBalancer.end(first);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(List.of(first, second), proxyLoadBalancer.order(List.of(first, second)));
+        }
+    }
+
+    @Test
+    void order_SingleCandidate_SameList() {
+        List<ProxyInfo> proxyInfoList = List.of(first, direct);
+        assertSame(proxyInfoList, proxyLoadBalancer.order(proxyInfoList));
+    }
+
+    private static ProxyInfo proxy(int port) {
+        return new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("localhost", port));
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpHost;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.SystemConfig;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class ProxyRaceTests {
+
+    private final URI requestUri = URI.create("http://example.com/");
+
+    private final List<Socket> backlogSockets = new ArrayList<>();
+
+    private ServerSocket fastServer;
+
+    private ServerSocket slowServer;
+
+    private ProxyBlacklist proxyBlacklist;
+
+    private ProxyExecutorService executorService;
+
+    private UpstreamConnector upstreamConnector;
+
+    private ProxyRace proxyRace;
+
+    @BeforeEach
+    void before() throws Exception {
+        SystemConfig systemConfig = mock(SystemConfig.class);
+        when(systemConfig.getExecutorMode()).thenReturn(SystemConfig.ExecutorMode.PLATFORM);
+        when(systemConfig.getProxyRaceDelay()).thenReturn(100);
+        when(systemConfig.getSocketConnectTimeout()).thenReturn(5);
+        proxyBlacklist = mock(ProxyBlacklist.class);
+        executorService = new ProxyExecutorService();
+        ReflectionTestUtils.setField(executorService, "systemConfig", systemConfig);
+        proxyRace = new ProxyRace();
+        ReflectionTestUtils.setField(proxyRace, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(proxyRace, "executorService", executorService);
+        ReflectionTestUtils.setField(proxyRace, "proxyBlacklist", proxyBlacklist);
+        DnsCache dnsCache = new DnsCache();
+        ReflectionTestUtils.setField(dnsCache, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(proxyRace, "dnsCache", dnsCache);
+        upstreamConnector = new UpstreamConnector();
+        ReflectionTestUtils.setField(upstreamConnector, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(upstreamConnector, "dnsCache", dnsCache);
+        ReflectionTestUtils.setField(proxyRace, "upstreamConnector", upstreamConnector);
+
+        fastServer = new ServerSocket(0);
+
+        // A server never accepting, with the backlog full: the next connect attempts hang
+        slowServer = new ServerSocket(0, 1);
+        for (int i = 0; i < 2; i++) {
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress("localhost", slowServer.getLocalPort()), 1000);
+            backlogSockets.add(socket);
+        }
+    }
+
+    @Test
+    void race_FirstConnects_SameOrder() {
+        List<ProxyInfo> proxyInfoList = List.of(proxy(fastServer), proxy(slowServer));
+        assertEquals(proxyInfoList, proxyRace.race(proxyInfoList, requestUri, false));
+        verify(proxyBlacklist).recordLatency(eq(proxy(fastServer)), anyLong());
+        verify(proxyBlacklist, never()).blacklist(any());
+    }
+
+    @Test
+    void race_Winner_SocketHandedOverAndNoBreakerSuccess() throws Exception {
+        List<ProxyInfo> raced = proxyRace.race(List.of(proxy(slowServer), proxy(fastServer)), requestUri, false);
+        assertEquals(proxy(fastServer), raced.get(0));
+
+        // The processor's connection to the winner reuses the raced socket
+        Socket socket = upstreamConnector.takeAdopted(proxy(fastServer).getProxyHost(), false);
+        assertNotNull(socket);
+        assertTrue(socket.isConnected());
+        socket.close();
+        assertNull(upstreamConnector.takeAdopted(proxy(fastServer).getProxyHost(), false));
+
+        // A TCP connection is not a proof of a working proxy
+        verify(proxyBlacklist, never()).recordSuccess(any());
+    }
+
+    @Test
+    void race_FirstSlow_NextStartedAndWins() {
+        long start = System.currentTimeMillis();
+        List<ProxyInfo> raced = proxyRace.race(List.of(proxy(slowServer), proxy(fastServer)), requestUri, false);
+        assertTrue(System.currentTimeMillis() - start < 3000);
+        assertEquals(List.of(proxy(fastServer), proxy(slowServer)), raced);
+
+        // The slow attempt is cancelled with at least the race delay as latency
+        verify(proxyBlacklist).recordLatency(eq(proxy(slowServer)), longThat(latency -> latency >= 100));
+        verify(proxyBlacklist, never()).blacklist(any());
+    }
+
+    @Test
+    void race_FirstRefused_BlacklistedAndNextWins() throws Exception {
+        ServerSocket closedServer = new ServerSocket(0);
+        ProxyInfo refused = proxy(closedServer);
+        closedServer.close();
+        List<ProxyInfo> raced = proxyRace.race(List.of(refused, proxy(fastServer)), requestUri, false);
+        assertEquals(List.of(proxy(fastServer), refused), raced);
+        verify(proxyBlacklist).blacklist(refused);
+    }
+
+    private ProxyInfo proxy(ServerSocket serverSocket) {
+        return new ProxyInfo(ProxyInfo.PacType.PROXY, new HttpHost("localhost", serverSocket.getLocalPort()));
+    }
+
+    @AfterEach
+    void after() throws Exception {
+        upstreamConnector.releaseAdopted();
+        executorService.close();
+        backlogSockets.forEach(IOUtils::closeQuietly);
+        IOUtils.closeQuietly(fastServer);
+        IOUtils.closeQuietly(slowServer);
+    }
+
+}
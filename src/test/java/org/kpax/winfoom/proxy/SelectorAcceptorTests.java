@@ -0,0 +1,111 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.util.InputOutputs;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SelectorAcceptorTests {
+
+    private ServerSocketChannel serverSocketChannel;
+
+    private SelectorAcceptor selectorAcceptor;
+
+    private final BlockingQueue<String> requests = new ArrayBlockingQueue<>(10);
+
+    @BeforeEach
+    void before() throws Exception {
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+        selectorAcceptor = new SelectorAcceptor(serverSocketChannel, (socket, inputStream) -> {
+            try {
+                socket.setSoTimeout(1000);
+                byte[] buffer = new byte[1024];
+                int length = inputStream.read(buffer);
+                requests.add(new String(buffer, 0, length, StandardCharsets.UTF_8));
+            } catch (Exception e) {
+                requests.add("error: " + e.getMessage());
+            } finally {
+                InputOutputs.close(socket);
+            }
+        }, 1024, 1);
+        new Thread(selectorAcceptor).start();
+    }
+
+    @Test
+    void dispatch_FragmentedRequestHead_DispatchedOnlyWhenComplete() throws Exception {
+        try (Socket socket = new Socket("localhost", serverSocketChannel.socket().getLocalPort())) {
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write("GET http://example.com/ HTTP/1.1\r\nHost: exa".getBytes(StandardCharsets.UTF_8));
+            outputStream.flush();
+            assertNull(requests.poll(300, TimeUnit.MILLISECONDS));
+
+            outputStream.write("mple.com\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            outputStream.flush();
+            assertEquals("GET http://example.com/ HTTP/1.1\r\nHost: example.com\r\n\r\n",
+                    requests.poll(2, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void dispatch_BareLineFeeds_Dispatched() throws Exception {
+        try (Socket socket = new Socket("localhost", serverSocketChannel.socket().getLocalPort())) {
+            socket.getOutputStream().write("GET / HTTP/1.0\n\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals("GET / HTTP/1.0\n\n", requests.poll(2, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void dispatch_NoCompleteRequestHead_ClosedAfterTimeout() throws Exception {
+        try (Socket socket = new Socket("localhost", serverSocketChannel.socket().getLocalPort())) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write("GET / HTTP/1.1\r\n".getBytes(StandardCharsets.UTF_8));
+            InputStream inputStream = socket.getInputStream();
+            assertEquals(-1, inputStream.read());
+            assertTrue(requests.isEmpty());
+        }
+    }
+
+    @Test
+    void dispatch_RequestHeadExceedsMaxLength_DispatchedForParsing() throws Exception {
+        try (Socket socket = new Socket("localhost", serverSocketChannel.socket().getLocalPort())) {
+            socket.getOutputStream().write(("GET / HTTP/1.1\r\nX: " + "x".repeat(2000))
+                    .getBytes(StandardCharsets.UTF_8));
+            String request = requests.poll(2, TimeUnit.SECONDS);
+            assertNotNull(request);
+            assertTrue(request.startsWith("GET / HTTP/1.1"));
+        }
+    }
+
+    @AfterEach
+    void after() {
+        selectorAcceptor.close();
+        IOUtils.closeQuietly(serverSocketChannel);
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpHost;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.ProxyConfig;
+import org.kpax.winfoom.config.SystemConfig;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SocksClientTests {
+
+    /**
+     * The events seen by the fake SOCKS5 server: greetings, authentications and CONNECT targets.
+     */
+    private final List<String> events = new CopyOnWriteArrayList<>();
+
+    private ServerSocket proxyServer;
+
+    private SystemConfig systemConfig;
+
+    private ProxyConfig proxyConfig;
+
+    private ProxyExecutorService executorService;
+
+    private SocksClient socksClient;
+
+    private HttpHost proxy;
+
+    @BeforeEach
+    void before() throws Exception {
+        systemConfig = mock(SystemConfig.class);
+        when(systemConfig.getExecutorMode()).thenReturn(SystemConfig.ExecutorMode.PLATFORM);
+        when(systemConfig.getSocketConnectTimeout()).thenReturn(2);
+        when(systemConfig.getSocksPoolIdleTimeout()).thenReturn(20);
+
+        proxyConfig = mock(ProxyConfig.class);
+        when(proxyConfig.getProxyType()).thenReturn(ProxyConfig.Type.SOCKS5);
+        when(proxyConfig.getProxyUsername()).thenReturn("user");
+        when(proxyConfig.getProxyPassword()).thenReturn("pass");
+
+        executorService = new ProxyExecutorService();
+        ReflectionTestUtils.setField(executorService, "systemConfig", systemConfig);
+        DnsCache dnsCache = new DnsCache();
+        ReflectionTestUtils.setField(dnsCache, "systemConfig", systemConfig);
+        UpstreamConnector upstreamConnector = new UpstreamConnector();
+        ReflectionTestUtils.setField(upstreamConnector, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(upstreamConnector, "dnsCache", dnsCache);
+        socksClient = new SocksClient();
+        ReflectionTestUtils.setField(socksClient, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(socksClient, "proxyConfig", proxyConfig);
+        ReflectionTestUtils.setField(socksClient, "upstreamConnector", upstreamConnector);
+        ReflectionTestUtils.setField(socksClient, "executorService", executorService);
+
+        proxyServer = new ServerSocket(0);
+        proxy = new HttpHost("localhost", proxyServer.getLocalPort());
+        new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = proxyServer.accept();
+                    new Thread(() -> handle(socket)).start();
+                }
+            } catch (Exception e) {
+                // Server closed
+            }
+        }).start();
+    }
+
+    /**
+     * A SOCKS5 server requiring username/password authentication,
+     * that rejects the targets named 'unknown' with 'Host unreachable'.
+     */
+    private void handle(Socket socket) {
+        try (socket) {
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+            OutputStream outputStream = socket.getOutputStream();
+            inputStream.readUnsignedByte();
+            inputStream.readFully(new byte[inputStream.readUnsignedByte()]);
+            events.add("greeting");
+            outputStream.write(new byte[]{5, 2});
+            outputStream.flush();
+
+            inputStream.readUnsignedByte();
+            String username = readString(inputStream);
+            String password = readString(inputStream);
+            boolean authenticated = "user".equals(username) && "pass".equals(password);
+            events.add("auth " + (authenticated ? "ok" : "failed"));
+            outputStream.write(new byte[]{1, (byte) (authenticated ? 0 : 1)});
+            outputStream.flush();
+            if (!authenticated) {
+                return;
+            }
+
+            inputStream.readFully(new byte[3]);
+            assertEquals(SocksClient.DOMAIN_NAME, inputStream.readUnsignedByte());
+            String host = readString(inputStream);
+            int port = inputStream.readUnsignedShort();
+            events.add("connect " + host + ":" + port);
+            int reply = "unknown".equals(host) ? SocksClient.HOST_UNREACHABLE : SocksClient.SUCCEEDED;
+            outputStream.write(new byte[]{5, (byte) reply, 0, 1, 127, 0, 0, 1, 0, 80});
+            outputStream.flush();
+            IOUtils.toByteArray(socket.getInputStream());
+        } catch (Exception e) {
+            // Connection closed
+        }
+    }
+
+    private String readString(DataInputStream inputStream) throws Exception {
+        byte[] bytes = new byte[inputStream.readUnsignedByte()];
+        inputStream.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void connect_DomainName_RemoteResolution() throws Exception {
+        socksClient.connect(proxy, false, new HttpHost("example.com", 443), false).close();
+        assertEquals(List.of("greeting", "auth ok", "connect example.com:443"), events);
+    }
+
+    @Test
+    void connect_HostUnreachable_UnknownHostException() {
+        assertThrows(UnknownHostException.class,
+                () -> socksClient.connect(proxy, false, new HttpHost("unknown", 443), false));
+    }
+
+    @Test
+    void connect_WrongPassword_AuthenticationFailed() {
+        when(proxyConfig.getProxyPassword()).thenReturn("wrong");
+        SocketException e = assertThrows(SocketException.class,
+                () -> socksClient.connect(proxy, false, new HttpHost("example.com", 443), false));
+        assertEquals("SOCKS : authentication failed", e.getMessage());
+    }
+
+    @Test
+    void connect_PooledSession_OnlyConnectExchange() throws Exception {
+        when(systemConfig.getSocksPoolSize()).thenReturn(1);
+        socksClient.connect(proxy, false, new HttpHost("first", 443), false).close();
+        awaitIdleSession();
+        events.clear();
+
+        // The pooled session has already finished the greeting and the authentication
+        socksClient.connect(proxy, false, new HttpHost("second", 443), false).close();
+        assertEquals("connect second:443", events.get(0));
+        awaitIdleSession();
+
+        socksClient.close();
+        assertEquals(0, socksClient.getIdleCount(proxy));
+    }
+
+    @Test
+    void connect_OtherSocketKind_PooledSessionKept() throws Exception {
+        when(systemConfig.getSocksPoolSize()).thenReturn(1);
+        socksClient.connect(proxy, false, new HttpHost("first", 443), false).close();
+        awaitIdleSession();
+        events.clear();
+
+        // A channel backed socket is requested: the plain socket session is neither used nor closed
+        socksClient.connect(proxy, false, new HttpHost("second", 443), true).close();
+        assertEquals("greeting", events.get(0));
+        awaitIdleSessions(2);
+    }
+
+    private void awaitIdleSession() throws InterruptedException {
+        awaitIdleSessions(1);
+    }
+
+    private void awaitIdleSessions(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && socksClient.getIdleCount(proxy) < count; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(count, socksClient.getIdleCount(proxy));
+    }
+
+    @AfterEach
+    void after() throws Exception {
+        socksClient.close();
+        executorService.close();
+        IOUtils.closeQuietly(proxyServer);
+    }
+
+}
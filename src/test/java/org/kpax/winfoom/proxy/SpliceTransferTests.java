@@ -0,0 +1,129 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import com.sun.jna.Platform;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * The splice tests only run on Linux, when the sockets' file descriptors are accessible.
+ */
+class SpliceTransferTests {
+
+    private ServerSocket localServer;
+
+    private ServerSocket echoServer;
+
+    private SystemConfig systemConfig;
+
+    private ProxyExecutorService executorService;
+
+    private SpliceTransfer spliceTransfer;
+
+    @BeforeEach
+    void before() throws Exception {
+        systemConfig = mock(SystemConfig.class);
+        when(systemConfig.isTunnelSplice()).thenReturn(true);
+        when(systemConfig.getSocketSoTimeout()).thenReturn(30);
+        when(systemConfig.getExecutorMode()).thenReturn(SystemConfig.ExecutorMode.PLATFORM);
+        executorService = new ProxyExecutorService();
+        ReflectionTestUtils.setField(executorService, "systemConfig", systemConfig);
+        spliceTransfer = new SpliceTransfer();
+        ReflectionTestUtils.setField(spliceTransfer, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(spliceTransfer, "executorService", executorService);
+
+        localServer = new ServerSocket(0);
+        echoServer = new ServerSocket(0);
+        new Thread(() -> {
+            try (Socket socket = echoServer.accept()) {
+                socket.getInputStream().transferTo(socket.getOutputStream());
+                socket.shutdownOutput();
+            } catch (Exception e) {
+                // Ignore
+            }
+        }).start();
+    }
+
+    @Test
+    void duplex_PendingAndLaterBytes_EchoedAndHalfClosed() throws Exception {
+        assumeTrue(Platform.isLinux());
+        try (Socket client = new Socket("localhost", localServer.getLocalPort());
+             Socket remote = new Socket("localhost", echoServer.getLocalPort())) {
+            client.setSoTimeout(5000);
+            Socket accepted = localServer.accept();
+            accepted.setSoTimeout(5000);
+            assumeTrue(isFileDescriptorAccessible(accepted));
+
+            OutputStream clientOutput = client.getOutputStream();
+            clientOutput.write("CONNECT example.com:443 HTTP/1.1\r\n\r\nearly".getBytes(StandardCharsets.UTF_8));
+            clientOutput.flush();
+            ClientConnection clientConnection = new ClientConnection(accepted, null, systemConfig);
+            Future<Boolean> spliced = executorService.submit(() -> spliceTransfer.duplex(clientConnection, remote));
+
+            clientOutput.write("-late".getBytes(StandardCharsets.UTF_8));
+            client.shutdownOutput();
+            assertEquals("early-late", IOUtils.toString(client.getInputStream(), StandardCharsets.UTF_8));
+            assertTrue(spliced.get(5, TimeUnit.SECONDS));
+            InputOutputs.close(accepted);
+        }
+    }
+
+    @Test
+    void duplex_Disabled_False() throws Exception {
+        when(systemConfig.isTunnelSplice()).thenReturn(false);
+        try (Socket client = new Socket("localhost", localServer.getLocalPort());
+             Socket remote = new Socket("localhost", echoServer.getLocalPort())) {
+            client.getOutputStream().write("CONNECT example.com:443 HTTP/1.1\r\n\r\n"
+                    .getBytes(StandardCharsets.UTF_8));
+            Socket accepted = localServer.accept();
+            ClientConnection clientConnection = new ClientConnection(accepted, null, systemConfig);
+            assertFalse(spliceTransfer.duplex(clientConnection, remote));
+            InputOutputs.close(accepted);
+        }
+    }
+
+    private boolean isFileDescriptorAccessible(Socket socket) {
+        try {
+            SpliceTransfer.getFileDescriptor(socket);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    @AfterEach
+    void after() throws Exception {
+        executorService.close();
+        IOUtils.closeQuietly(localServer);
+        IOUtils.closeQuietly(echoServer);
+    }
+
+}
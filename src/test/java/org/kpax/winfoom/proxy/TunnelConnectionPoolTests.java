@@ -0,0 +1,213 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpVersion;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.execchain.TunnelRefusedException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.SystemConfig;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class TunnelConnectionPoolTests {
+
+    /**
+     * The CONNECT requests received by the fake proxy on each connection: target and whether authenticated.
+     */
+    private final List<List<String>> connections = new CopyOnWriteArrayList<>();
+
+    /**
+     * The status line the fake proxy answers once, to the next authenticated CONNECT request.
+     */
+    private final AtomicReference<String> refusal = new AtomicReference<>();
+
+    private ServerSocket proxyServer;
+
+    private ProxyExecutorService executorService;
+
+    private TunnelConnectionPool tunnelConnectionPool;
+
+    private TunnelConnection tunnelConnection;
+
+    private HttpHost proxy;
+
+    @BeforeEach
+    void before() throws Exception {
+        SystemConfig systemConfig = mock(SystemConfig.class);
+        when(systemConfig.getExecutorMode()).thenReturn(SystemConfig.ExecutorMode.PLATFORM);
+        when(systemConfig.getTunnelPoolSize()).thenReturn(1);
+        when(systemConfig.getTunnelPoolIdleTimeout()).thenReturn(20);
+
+        CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+        credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("user", "pass"));
+
+        executorService = new ProxyExecutorService();
+        ReflectionTestUtils.setField(executorService, "systemConfig", systemConfig);
+        tunnelConnection = new TunnelConnection();
+        tunnelConnectionPool = new TunnelConnectionPool();
+        ReflectionTestUtils.setField(tunnelConnection, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(tunnelConnection, "credentialsProvider", credentialsProvider);
+        ReflectionTestUtils.setField(tunnelConnection, "tunnelConnectionPool", tunnelConnectionPool);
+        DnsCache dnsCache = new DnsCache();
+        ReflectionTestUtils.setField(dnsCache, "systemConfig", systemConfig);
+        UpstreamConnector upstreamConnector = new UpstreamConnector();
+        ReflectionTestUtils.setField(upstreamConnector, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(upstreamConnector, "dnsCache", dnsCache);
+        ReflectionTestUtils.setField(tunnelConnection, "upstreamConnector", upstreamConnector);
+        tunnelConnection.init();
+        ReflectionTestUtils.setField(tunnelConnectionPool, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(tunnelConnectionPool, "tunnelConnection", tunnelConnection);
+        ReflectionTestUtils.setField(tunnelConnectionPool, "executorService", executorService);
+
+        proxyServer = new ServerSocket(0);
+        proxy = new HttpHost("localhost", proxyServer.getLocalPort());
+        new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = proxyServer.accept();
+                    List<String> requests = new CopyOnWriteArrayList<>();
+                    connections.add(requests);
+                    new Thread(() -> handle(socket, requests)).start();
+                }
+            } catch (Exception e) {
+                // Server closed
+            }
+        }).start();
+    }
+
+    /**
+     * A proxy requiring Basic authentication, that keeps the connection alive on challenge.
+     */
+    private void handle(Socket socket, List<String> requests) {
+        try (socket) {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream outputStream = socket.getOutputStream();
+            for (String requestLine; (requestLine = reader.readLine()) != null; ) {
+                boolean authenticated = false;
+                for (String line; (line = reader.readLine()) != null && !line.isEmpty(); ) {
+                    authenticated |= line.toLowerCase().startsWith("proxy-authorization: basic");
+                }
+                requests.add(requestLine.split(" ")[1] + (authenticated ? " auth" : " noauth"));
+                String statusLine = authenticated ? refusal.getAndSet(null) : null;
+                if (statusLine != null) {
+                    outputStream.write((statusLine + "\r\nContent-Length: 0\r\n\r\n")
+                            .getBytes(StandardCharsets.US_ASCII));
+                    outputStream.flush();
+                    return;
+                }
+                if (authenticated) {
+                    outputStream.write("HTTP/1.1 200 Connection established\r\n\r\n"
+                            .getBytes(StandardCharsets.US_ASCII));
+                    outputStream.flush();
+                    IOUtils.toByteArray(socket.getInputStream());
+                    return;
+                }
+                outputStream.write(("HTTP/1.1 407 Proxy Authentication Required\r\n" +
+                        "Proxy-Authenticate: Basic realm=\"test\"\r\n" +
+                        "Content-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                outputStream.flush();
+            }
+        } catch (Exception e) {
+            // Connection closed
+        }
+    }
+
+    @Test
+    void open_WarmChallengedConnection_SingleAuthenticatedRequest() throws Exception {
+        tunnelConnection.open(proxy, new HttpHost("first", 443), HttpVersion.HTTP_1_1).close();
+        assertEquals(List.of("first:443 noauth", "first:443 auth"), authenticatedConnection("first"));
+        awaitIdleConnection();
+
+        // The warm connection has already received the challenge
+        tunnelConnection.open(proxy, new HttpHost("second", 443), HttpVersion.HTTP_1_1).close();
+        assertEquals(List.of("first:443 noauth", "second:443 auth"), authenticatedConnection("second"));
+        awaitIdleConnection();
+    }
+
+    @Test
+    void open_PooledConnectionStaleAuthentication_FreshConnectionUsed() throws Exception {
+        tunnelConnection.open(proxy, new HttpHost("first", 443), HttpVersion.HTTP_1_1).close();
+        awaitIdleConnection();
+
+        refusal.set("HTTP/1.1 407 Proxy Authentication Required");
+        tunnelConnection.open(proxy, new HttpHost("second", 443), HttpVersion.HTTP_1_1).close();
+        // Refused on the pooled connection, then established on a fresh one
+        assertEquals(2, connections.stream().filter(requests -> requests.contains("second:443 auth")).count());
+    }
+
+    @Test
+    void open_PooledConnectionDenied_RefusedWithoutRetry() throws Exception {
+        tunnelConnection.open(proxy, new HttpHost("first", 443), HttpVersion.HTTP_1_1).close();
+        awaitIdleConnection();
+
+        refusal.set("HTTP/1.1 403 Forbidden");
+        TunnelRefusedException e = assertThrows(TunnelRefusedException.class,
+                () -> tunnelConnection.open(proxy, new HttpHost("second", 443), HttpVersion.HTTP_1_1));
+        assertEquals(403, e.getResponse().getStatusLine().getStatusCode());
+        assertEquals(1, connections.stream().filter(requests -> requests.contains("second:443 auth")).count());
+    }
+
+    @Test
+    void close_IdleConnectionsClosed() throws Exception {
+        tunnelConnection.open(proxy, new HttpHost("first", 443), HttpVersion.HTTP_1_1).close();
+        awaitIdleConnection();
+        tunnelConnectionPool.close();
+        assertEquals(0, tunnelConnectionPool.getIdleCount(proxy));
+    }
+
+    /**
+     * @return the requests received on the connection the tunnel to the target was established on.
+     */
+    private List<String> authenticatedConnection(String target) {
+        return connections.stream().filter(requests -> requests.contains(target + ":443 auth"))
+                .findFirst().orElseThrow();
+    }
+
+    private void awaitIdleConnection() throws InterruptedException {
+        for (int i = 0; i < 100 && tunnelConnectionPool.getIdleCount(proxy) == 0; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, tunnelConnectionPool.getIdleCount(proxy));
+    }
+
+    @AfterEach
+    void after() throws Exception {
+        tunnelConnectionPool.close();
+        executorService.close();
+        IOUtils.closeQuietly(proxyServer);
+    }
+
+}
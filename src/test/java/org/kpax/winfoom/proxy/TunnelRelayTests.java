@@ -0,0 +1,115 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.SystemConfig;
+import org.kpax.winfoom.util.InputOutputs;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class TunnelRelayTests {
+
+    private ServerSocketChannel localServer;
+
+    private ServerSocketChannel echoServer;
+
+    private TunnelRelay tunnelRelay;
+
+    @BeforeEach
+    void before() throws Exception {
+        SystemConfig systemConfig = mock(SystemConfig.class);
+        when(systemConfig.isTunnelRelayNonBlocking()).thenReturn(true);
+        when(systemConfig.getTunnelRelayThreads()).thenReturn(2);
+        when(systemConfig.getSocketSoTimeout()).thenReturn(30);
+        tunnelRelay = new TunnelRelay();
+        ReflectionTestUtils.setField(tunnelRelay, "systemConfig", systemConfig);
+
+        localServer = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+        echoServer = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+        new Thread(() -> {
+            try (SocketChannel channel = echoServer.accept()) {
+                Socket socket = channel.socket();
+                socket.getInputStream().transferTo(socket.getOutputStream());
+                socket.shutdownOutput();
+            } catch (Exception e) {
+                // Ignore
+            }
+        }).start();
+    }
+
+    @Test
+    void relay_PendingAndLaterBytes_EchoedAndHalfClosed() throws Exception {
+        try (Socket client = new Socket("localhost", localServer.socket().getLocalPort())) {
+            client.setSoTimeout(5000);
+            OutputStream clientOutput = client.getOutputStream();
+            clientOutput.write("CONNECT example.com:443 HTTP/1.1\r\n\r\nearly".getBytes(StandardCharsets.UTF_8));
+            clientOutput.flush();
+
+            Socket accepted = localServer.accept().socket();
+            ClientConnection clientConnection = new ClientConnection(accepted, null, null);
+            assertTrue(clientConnection.isConnect());
+
+            SocketChannel remoteChannel = SocketChannel.open(echoServer.socket().getLocalSocketAddress());
+            assertTrue(tunnelRelay.canRelay(clientConnection, remoteChannel.socket()));
+            tunnelRelay.relay(clientConnection, remoteChannel.socket());
+            assertTrue(clientConnection.isRelayed());
+
+            clientOutput.write("-late".getBytes(StandardCharsets.UTF_8));
+            client.shutdownOutput();
+
+            InputStream clientInput = client.getInputStream();
+            assertEquals("early-late", IOUtils.toString(clientInput, StandardCharsets.UTF_8));
+        }
+        for (int i = 0; i < 50 && tunnelRelay.getActiveTunnels() > 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, tunnelRelay.getActiveTunnels());
+    }
+
+    @Test
+    void canRelay_NoChannel_False() throws Exception {
+        try (Socket client = new Socket("localhost", localServer.socket().getLocalPort())) {
+            client.getOutputStream().write("CONNECT example.com:443 HTTP/1.1\r\n\r\n"
+                    .getBytes(StandardCharsets.UTF_8));
+            Socket accepted = localServer.accept().socket();
+            ClientConnection clientConnection = new ClientConnection(accepted, null, null);
+            try (Socket remote = new Socket("localhost", echoServer.socket().getLocalPort())) {
+                assertFalse(tunnelRelay.canRelay(clientConnection, remote));
+            }
+            InputOutputs.close(accepted);
+        }
+    }
+
+    @AfterEach
+    void after() {
+        tunnelRelay.close();
+        IOUtils.closeQuietly(localServer);
+        IOUtils.closeQuietly(echoServer);
+    }
+
+}
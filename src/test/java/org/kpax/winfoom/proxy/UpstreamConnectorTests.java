@@ -0,0 +1,94 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpHost;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kpax.winfoom.config.SystemConfig;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class UpstreamConnectorTests {
+
+    private UpstreamConnector upstreamConnector;
+
+    @BeforeEach
+    void before() {
+        SystemConfig systemConfig = mock(SystemConfig.class);
+        when(systemConfig.getSocketConnectTimeout()).thenReturn(2);
+        when(systemConfig.getDnsCacheTtl()).thenReturn(60);
+        when(systemConfig.getDnsCacheMaxSize()).thenReturn(10);
+        DnsCache dnsCache = new DnsCache();
+        ReflectionTestUtils.setField(dnsCache, "systemConfig", systemConfig);
+        upstreamConnector = new UpstreamConnector();
+        ReflectionTestUtils.setField(upstreamConnector, "systemConfig", systemConfig);
+        ReflectionTestUtils.setField(upstreamConnector, "dnsCache", dnsCache);
+    }
+
+    @AfterEach
+    void after() {
+        upstreamConnector.close();
+    }
+
+    @Test
+    void connect_Listening_Connected() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            HttpHost host = new HttpHost("localhost", serverSocket.getLocalPort());
+            try (Socket socket = upstreamConnector.connect(host, false)) {
+                assertTrue(socket.isConnected());
+                assertNull(socket.getChannel());
+            }
+            try (Socket socket = upstreamConnector.connect(host, true)) {
+                assertTrue(socket.isConnected());
+                assertNotNull(socket.getChannel());
+            }
+        }
+    }
+
+    @Test
+    void connect_Refused_ConnectException() throws Exception {
+        int port;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            port = serverSocket.getLocalPort();
+        }
+        HttpHost host = new HttpHost("localhost", port);
+        assertThrows(ConnectException.class, () -> upstreamConnector.connect(host, false));
+        assertThrows(ConnectException.class, () -> upstreamConnector.connect(host, true));
+    }
+
+    @Test
+    void connect_UnknownHost_UnknownHostException() {
+        assertThrows(UnknownHostException.class,
+                () -> upstreamConnector.connect(new HttpHost("unknown.host.invalid", 3128), false));
+    }
+
+    @Test
+    void connect_Closed_ConnectException() throws Exception {
+        upstreamConnector.close();
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            assertThrows(ConnectException.class, () -> upstreamConnector.connect(
+                    new HttpHost("localhost", serverSocket.getLocalPort()), false));
+        }
+    }
+
+}
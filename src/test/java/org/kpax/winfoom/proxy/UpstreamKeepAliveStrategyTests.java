@@ -0,0 +1,58 @@
+/*
+ *  Copyright (c) 2020. Eugen Covaci
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.kpax.winfoom.proxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class UpstreamKeepAliveStrategyTests {
+
+    private final UpstreamKeepAliveStrategy keepAliveStrategy = new UpstreamKeepAliveStrategy(30000);
+
+    @Test
+    void getKeepAliveDuration_NoHeader_Default() {
+        assertEquals(30000, keepAliveStrategy.getKeepAliveDuration(response(null), new BasicHttpContext()));
+    }
+
+    @Test
+    void getKeepAliveDuration_TimeoutHeader_MinusSafetyMargin() {
+        assertEquals(4000, keepAliveStrategy.getKeepAliveDuration(response("timeout=5, max=100"),
+                new BasicHttpContext()));
+    }
+
+    @Test
+    void getKeepAliveDuration_LongTimeoutHeader_Capped() {
+        assertEquals(30000, keepAliveStrategy.getKeepAliveDuration(response("timeout=300"),
+                new BasicHttpContext()));
+    }
+
+    @Test
+    void getKeepAliveDuration_ShortTimeoutHeader_Positive() {
+        assertEquals(1, keepAliveStrategy.getKeepAliveDuration(response("timeout=1"), new BasicHttpContext()));
+    }
+
+    private HttpResponse response(String keepAlive) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        if (keepAlive != null) {
+            response.addHeader("Keep-Alive", keepAlive);
+        }
+        return response;
+    }
+
+}